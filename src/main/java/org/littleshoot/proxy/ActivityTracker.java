@@ -144,4 +144,42 @@ public interface ActivityTracker {
     void responseSentToClient(FlowContext flowContext,
             HttpResponse httpResponse);
 
+    /**
+     * <p>
+     * Record that the proxy compressed a response on its way to the client.
+     * This is only called if response compression is enabled, once the whole
+     * response has been compressed.
+     * </p>
+     * 
+     * @param flowContext
+     *            if full information is available, this will be a
+     *            {@link FullFlowContext}.
+     * @param uncompressedBytes
+     *            size of the response content before compression
+     * @param compressedBytes
+     *            size of the response content after compression
+     * @param compressionTimeNanos
+     *            time spent compressing the response, in nanoseconds
+     */
+    default void responseCompressed(FlowContext flowContext, long uncompressedBytes,
+            long compressedBytes, long compressionTimeNanos) {
+    }
+
+    /**
+     * <p>
+     * Record that the circuit breaker of an upstream changed its state. This is
+     * only called if circuit breakers are enabled.
+     * </p>
+     * 
+     * @param upstream
+     *            host and port of the chained proxy or origin server
+     * @param previousState
+     *            state of the circuit breaker before the change
+     * @param newState
+     *            state of the circuit breaker after the change
+     */
+    default void circuitBreakerStateChanged(String upstream,
+            CircuitBreakerState previousState, CircuitBreakerState newState) {
+    }
+
 }
@@ -65,4 +65,15 @@ public class ActivityTrackerAdapter implements ActivityTracker {
             SSLSession sslSession) {
     }
 
+    @Override
+    public void responseCompressed(FlowContext flowContext,
+            long uncompressedBytes, long compressedBytes,
+            long compressionTimeNanos) {
+    }
+
+    @Override
+    public void circuitBreakerStateChanged(String upstream,
+            CircuitBreakerState previousState, CircuitBreakerState newState) {
+    }
+
 }
@@ -89,4 +89,40 @@ public interface ChainedProxy extends SslEngineSource {
      * Called to let us know that we were disconnected.
      */
     void disconnected();
+
+    /**
+     * Called right after {@link #connectionSucceeded()} to let us know how
+     * long it took to connect to the server via this proxy, including any
+     * encryption handshake and CONNECT or SOCKS negotiation.
+     *
+     * @param connectTimeNanos
+     *            time it took to connect, in nanoseconds
+     */
+    default void connectTimeMeasured(long connectTimeNanos) {
+    }
+
+    /**
+     * Called to let us know that a request was sent to the server via this
+     * proxy.
+     */
+    default void requestSent() {
+    }
+
+    /**
+     * Called to let us know that the response to a request that was sent via
+     * this proxy started to arrive.
+     *
+     * @param responseTimeNanos
+     *            time between sending the request and receiving the initial
+     *            line and headers of the response, in nanoseconds
+     */
+    default void responseReceived(long responseTimeNanos) {
+    }
+
+    /**
+     * Called to let us know that we were disconnected from this proxy before
+     * the response to a request that was sent via this proxy arrived.
+     */
+    default void requestFailed() {
+    }
 }
@@ -71,6 +71,22 @@ public class ChainedProxyAdapter implements ChainedProxy {
     public void disconnected() {
     }
 
+    @Override
+    public void connectTimeMeasured(long connectTimeNanos) {
+    }
+
+    @Override
+    public void requestSent() {
+    }
+
+    @Override
+    public void responseReceived(long responseTimeNanos) {
+    }
+
+    @Override
+    public void requestFailed() {
+    }
+
     @Override
     public SSLEngine newSslEngine(String peerHost, int peerPort) {
         return null;
@@ -2,7 +2,10 @@ package org.littleshoot.proxy;
 
 /**
  * Enumeration of chained proxy types supported by LittleProxy.
+ *
+ * HTTP2 is an HTTP chained proxy that connections are multiplexed to over a few HTTP/2 trunk connections, see
+ * {@link org.littleshoot.proxy.impl.TrunkConfiguration}. Its address is the trunk port of another LittleProxy.
  */
 public enum ChainedProxyType {
-    HTTP, SOCKS4, SOCKS5
+    HTTP, SOCKS4, SOCKS5, HTTP2
 }
@@ -0,0 +1,23 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the states of the circuit breakers that LittleProxy keeps for
+ * its upstreams when configured to do so.
+ */
+public enum CircuitBreakerState {
+    /**
+     * Requests go to the upstream as usual.
+     */
+    CLOSED,
+
+    /**
+     * Too many requests to the upstream failed recently, so it is not used.
+     */
+    OPEN,
+
+    /**
+     * The upstream has not been used for a while, and a single trial request is
+     * let through to see if it has recovered.
+     */
+    HALF_OPEN
+}
@@ -42,6 +42,27 @@ import java.net.InetSocketAddress;
  * </p>
  * 
  * <p>
+ * If the {@link HttpFiltersSource} doesn't buffer, the same can be requested
+ * for individual requests and responses using
+ * {@link #getMaximumRequestBufferSizeInBytes()} and
+ * {@link #getMaximumResponseBufferSizeInBytes()}. The decompressing and
+ * aggregating handlers are then only added to the pipeline for the messages
+ * that need them, and other traffic keeps streaming through chunk by chunk.
+ * Since these filters are created before the request is buffered, the
+ * {@code originalRequest} they were created with is the initial
+ * {@link HttpRequest} without its content, not a {@link FullHttpRequest}.
+ * Only the filter methods receive the {@link FullHttpRequest}.
+ * </p>
+ * 
+ * <p>
+ * When the whole request is buffered, the {@code originalRequest} is a
+ * {@link FullHttpRequest} with its own copy of the headers, which the proxy
+ * rewrites on the request it forwards. Its content is not copied though: it
+ * is a read-only view of the content that is forwarded, so changes that a
+ * filter makes to the content of the forwarded request show through.
+ * </p>
+ * 
+ * <p>
  * A new instance of {@link HttpFilters} is created for each request, so these
  * objects can be stateful.
  * </p>
@@ -153,7 +174,12 @@ public interface HttpFilters {
     HttpObject proxyToClientResponse(HttpObject httpObject);
 
     /**
-     * Informs filter that proxy to server connection is in queue.
+     * Informs filter that proxy to server connection is in queue. If the
+     * number of connections to the server is limited and the limit has been
+     * reached, the connection waits in the queue until
+     * {@link #proxyToServerConnectionStarted()}, or until
+     * {@link #proxyToServerConnectionFailed()} if it can't be queued or waits
+     * for too long.
      */
     void proxyToServerConnectionQueued();
 
@@ -208,4 +234,37 @@ public interface HttpFilters {
      */
     void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx);
 
+    /**
+     * Indicate how many (if any) bytes to buffer for the {@link HttpRequest}
+     * this filter was created for. A positive value will cause LittleProxy to
+     * pass a {@link FullHttpRequest}, with its content already decompressed, to
+     * {@link #clientToProxyRequest(HttpObject)} and
+     * {@link #proxyToServerRequest(HttpObject)}. If the request exceeds the
+     * maximum buffer size, the client will receive a 413 response. This is
+     * only consulted if
+     * {@link HttpFiltersSource#getMaximumRequestBufferSizeInBytes()} doesn't
+     * already buffer all requests.
+     *
+     * @return the maximum number of bytes to buffer, or 0 to not buffer
+     */
+    default int getMaximumRequestBufferSizeInBytes() {
+        return 0;
+    }
+
+    /**
+     * Indicate how many (if any) bytes to buffer for the {@link HttpResponse}
+     * to the request this filter was created for. A positive value will cause
+     * LittleProxy to pass a {@link FullHttpResponse}, with its content already
+     * decompressed, to {@link #serverToProxyResponse(HttpObject)} and
+     * {@link #proxyToClientResponse(HttpObject)}. If the response exceeds the
+     * maximum buffer size, the response will fail. This is only consulted if
+     * {@link HttpFiltersSource#getMaximumResponseBufferSizeInBytes()} doesn't
+     * already buffer all responses.
+     *
+     * @return the maximum number of bytes to buffer, or 0 to not buffer
+     */
+    default int getMaximumResponseBufferSizeInBytes() {
+        return 0;
+    }
+
 }
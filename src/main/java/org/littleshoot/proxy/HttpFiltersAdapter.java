@@ -103,4 +103,14 @@ public class HttpFiltersAdapter implements HttpFilters {
     @Override
     public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
     }
+
+    @Override
+    public int getMaximumRequestBufferSizeInBytes() {
+        return 0;
+    }
+
+    @Override
+    public int getMaximumResponseBufferSizeInBytes() {
+        return 0;
+    }
 }
@@ -12,7 +12,9 @@ import io.netty.handler.codec.http.HttpResponse;
 public interface HttpFiltersSource {
     /**
      * Return an {@link HttpFilters} object for this request if and only if we
-     * want to filter the request and/or its responses.
+     * want to filter the request and/or its responses. The content of a
+     * buffered {@code originalRequest} is shared with the request that is
+     * forwarded, see {@link HttpFilters}.
      */
     HttpFilters filterRequest(HttpRequest originalRequest,
             ChannelHandlerContext ctx);
@@ -40,7 +40,8 @@ public interface HttpProxyServer {
     HttpProxyServerBootstrap clone();
 
     /**
-     * Stops the server and all related clones. Waits for traffic to stop before shutting down.
+     * Stops the server and all related clones. Waits for traffic to stop before shutting down, for at most the drain
+     * timeout, see {@link HttpProxyServerBootstrap#withDrainTimeout(int)}.
      */
     void stop();
 
@@ -1,8 +1,22 @@
 package org.littleshoot.proxy;
 
+import org.littleshoot.proxy.impl.CircuitBreakerConfiguration;
+import org.littleshoot.proxy.impl.RequestHedgingConfiguration;
+import org.littleshoot.proxy.impl.ServerConnectionLimitConfiguration;
+import org.littleshoot.proxy.impl.AdaptiveConcurrencyLimitConfiguration;
+import org.littleshoot.proxy.impl.ResponseCompressionConfiguration;
+import org.littleshoot.proxy.impl.OptimisticConnectConfiguration;
+import org.littleshoot.proxy.impl.HandshakeExecutorConfiguration;
+import org.littleshoot.proxy.impl.TlsSessionCacheConfiguration;
+import org.littleshoot.proxy.impl.MitmBypassConfiguration;
+import org.littleshoot.proxy.impl.ExtensionExecutorConfiguration;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+import org.littleshoot.proxy.impl.TrunkConfiguration;
+import org.littleshoot.proxy.impl.WarmConnectionConfiguration;
 import org.littleshoot.proxy.impl.ServerGroup;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Collection;
 
 /**
  * Configures and starts an {@link HttpProxyServer}. The HttpProxyServer is
@@ -110,7 +124,9 @@ public interface HttpProxyServerBootstrap {
     /**
      * <p>
      * Specify a {@link ProxyAuthenticator} to use for doing basic HTTP
-     * authentication of clients.
+     * authentication of clients. The authenticator is called for every new
+     * client connection, wrap slow authenticators in a
+     * {@link org.littleshoot.proxy.extras.CachingProxyAuthenticator}.
      * </p>
      * 
      * <p>
@@ -303,4 +319,354 @@ public interface HttpProxyServerBootstrap {
      * @param sendProxyProtocol when true, the proxy will send a proxy protocol header
      */
     HttpProxyServerBootstrap withSendProxyProtocol(boolean sendProxyProtocol);
+
+    /**
+     * <p>
+     * When true, responses that are buffered for filtering (see
+     * {@link HttpFiltersSource#getMaximumResponseBufferSizeInBytes()} and
+     * {@link HttpFilters#getMaximumResponseBufferSizeInBytes()}) keep their gzip or
+     * deflate encoded content until a filter actually reads it. Responses whose
+     * content wasn't looked at are sent to the client exactly as the server sent
+     * them, and content that was modified by a filter is compressed again using
+     * the original Content-Encoding. Until a filter calls
+     * {@link io.netty.handler.codec.http.FullHttpResponse#content()}, the
+     * response still carries its original Content-Encoding header.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param lazyResponseDecompression when true, only decompress buffered responses when filters read them
+     */
+    HttpProxyServerBootstrap withLazyResponseDecompression(boolean lazyResponseDecompression);
+
+    /**
+     * <p>
+     * Compress responses on their way to the client using gzip or deflate, for
+     * clients that accept it. Only responses that the server didn't already
+     * encode, that aren't range responses, and that match the content types and
+     * minimum size of the given configuration are compressed. Pass null to
+     * disable compression.
+     * </p>
+     *
+     * <p>
+     * Default = null (no compression)
+     * </p>
+     *
+     * @param configuration response compression configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withResponseCompression(ResponseCompressionConfiguration configuration);
+
+    /**
+     * <p>
+     * Keep a circuit breaker for every chained proxy and origin server the proxy
+     * connects to. Once too many connections or requests to an upstream fail or
+     * time out, chained proxies are skipped and requests to origin servers fail
+     * right away, until a background probe or a trial request finds that the
+     * upstream has recovered. Pass null to disable circuit breakers.
+     * </p>
+     *
+     * <p>
+     * Default = null (no circuit breakers)
+     * </p>
+     *
+     * @param configuration circuit breaker configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withCircuitBreakers(CircuitBreakerConfiguration configuration);
+
+    /**
+     * <p>
+     * Specify how many of the chained proxies returned by the
+     * {@link ChainedProxyManager} to connect through in parallel. The first
+     * connection that is fully established, including TLS and SOCKS or HTTP
+     * CONNECT negotiation with the chained proxy, is used and the others are
+     * closed. If all of them fail, the remaining chained proxies are tried one
+     * after the other as usual.
+     * </p>
+     *
+     * <p>
+     * Default = 1 (no racing)
+     * </p>
+     *
+     * @param racedChainedProxies number of chained proxies to connect through at the same time
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withRacedChainedProxies(int racedChainedProxies);
+
+    /**
+     * <p>
+     * Specify how long to wait before starting each additional connection when
+     * racing chained proxies (see {@link #withRacedChainedProxies(int)}), in
+     * milliseconds. A connection that fails starts the next one right away.
+     * Staggering avoids opening connections through all proxies when the
+     * first one is quick.
+     * </p>
+     *
+     * <p>
+     * Default = 0 (start all connections at once)
+     * </p>
+     *
+     * @param chainedProxyRaceStaggerMillis delay between starting connections, in milliseconds
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withChainedProxyRaceStaggerMillis(long chainedProxyRaceStaggerMillis);
+
+    /**
+     * <p>
+     * Hedge idempotent requests: if the response to a GET, HEAD or OPTIONS
+     * request hasn't started to arrive after a delay based on the recent
+     * response times of the server, send a copy of the request through another
+     * chained proxy or connection, and use whichever response arrives first.
+     * Pass null to disable hedging.
+     * </p>
+     *
+     * <p>
+     * Default = null (no hedging)
+     * </p>
+     *
+     * @param configuration request hedging configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withRequestHedging(RequestHedgingConfiguration configuration);
+
+    /**
+     * <p>
+     * Limit the number of connections the proxy opens to a single server.
+     * Connections over the limit wait in a first-in, first-out queue until
+     * another connection to the server is closed, and their requests are
+     * answered with a 503 Service Unavailable if the queue is full, or with a
+     * 504 Gateway Timeout if they wait for too long. Pass null to disable the
+     * limits.
+     * </p>
+     *
+     * <p>
+     * Default = null (no limits)
+     * </p>
+     *
+     * @param configuration server connection limit configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withServerConnectionLimits(ServerConnectionLimitConfiguration configuration);
+
+    /**
+     * <p>
+     * Limit the number of requests in flight to each server to a limit that
+     * adapts to the response times and failures of the server. Requests that
+     * arrive while their server is at its limit are answered with a 503
+     * Service Unavailable right away. Pass null to disable the limits.
+     * </p>
+     *
+     * <p>
+     * Default = null (no limits)
+     * </p>
+     *
+     * @param configuration adaptive concurrency limit configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withAdaptiveConcurrencyLimits(AdaptiveConcurrencyLimitConfiguration configuration);
+
+    /**
+     * <p>
+     * Specify whether idempotent requests that were sent over a reused
+     * connection to a server should be sent again over a new connection when
+     * the server closes the reused connection before it starts to respond.
+     * This usually happens when the server closes an idle keep-alive
+     * connection just as the proxy sends a request over it. Requests that are
+     * still being sent, or whose body is larger than the retry buffer, are
+     * not retried.
+     * </p>
+     *
+     * <p>
+     * Default = true
+     * </p>
+     *
+     * @param retryOnStaleConnections true to retry idempotent requests on stale connections
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withRetryOnStaleConnections(boolean retryOnStaleConnections);
+
+    /**
+     * <p>
+     * Specify the largest request body that is kept in memory so that the
+     * request can be sent again when a reused connection to a server turns out
+     * to be closed. See {@link #withRetryOnStaleConnections(boolean)}.
+     * </p>
+     *
+     * <p>
+     * Default = 65536 bytes
+     * </p>
+     *
+     * @param maxRetryBufferSizeInBytes maximum size of a request body that can be retried, in bytes
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withMaxRetryBufferSizeInBytes(int maxRetryBufferSizeInBytes);
+
+    /**
+     * <p>
+     * Specify a pool of local addresses that outgoing connections are bound to,
+     * so that the number of connections the proxy can have open to a single
+     * server isn't limited by the number of ephemeral ports of a single local
+     * address. Each new connection is bound to the address with the fewest
+     * connections open to the same server, taking turns between addresses
+     * that are equally used. Only addresses of the same family (IPv4 or IPv6)
+     * as the server's address are used.
+     * </p>
+     *
+     * <p>
+     * The pool takes precedence over {@link #withNetworkInterface(InetSocketAddress)}
+     * for outgoing connections, while the local address of a chained proxy, if
+     * any, takes precedence over the pool.
+     * </p>
+     *
+     * <p>
+     * Default = empty, i.e. no pool
+     * </p>
+     *
+     * @param sourceAddresses local addresses to bind outgoing connections to
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withSourceAddresses(Collection<InetAddress> sourceAddresses);
+
+    /**
+     * <p>
+     * Keep idle connections to hot destinations open, so that requests to them
+     * don't have to wait for a new connection. See
+     * {@link WarmConnectionConfiguration} for which destinations are kept warm.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. no warm connections
+     * </p>
+     *
+     * @param warmConnectionConfiguration configuration of the warm connections
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withWarmConnections(WarmConnectionConfiguration warmConnectionConfiguration);
+
+    /**
+     * <p>
+     * Configure trunks, i.e. HTTP/2 connections to and from other proxies that
+     * many proxy connections are multiplexed over, see
+     * {@link TrunkConfiguration}. Connections to chained proxies of type
+     * {@link ChainedProxyType#HTTP2} always go over trunks; this configures
+     * them and whether the proxy accepts trunk connections itself.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. trunk connections aren't accepted, and those opened
+     * to chained proxies use the defaults of {@link TrunkConfiguration}
+     * </p>
+     *
+     * @param trunkConfiguration configuration of the trunks
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withTrunks(TrunkConfiguration trunkConfiguration);
+
+    /**
+     * <p>
+     * Respond to CONNECT requests as soon as they have been read, and buffer
+     * what the client sends until the connection to the server is established,
+     * see {@link OptimisticConnectConfiguration}. Tunnels whose connection
+     * fails are closed instead of answered with an error response.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. CONNECT requests are answered once the connection
+     * to the server is established
+     * </p>
+     *
+     * @param optimisticConnectConfiguration configuration of optimistic CONNECT
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withOptimisticConnect(OptimisticConnectConfiguration optimisticConnectConfiguration);
+
+    /**
+     * <p>
+     * Run the expensive parts of TLS handshakes on a dedicated thread pool, so
+     * that bursts of handshakes don't hold up the worker threads. See
+     * {@link HandshakeExecutorConfiguration}.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. handshakes run on the worker threads
+     * </p>
+     *
+     * @param handshakeExecutorConfiguration configuration of the handshake thread pool
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withHandshakeExecutor(HandshakeExecutorConfiguration handshakeExecutorConfiguration);
+
+    /**
+     * <p>
+     * Size and time the cache of TLS sessions that clients can resume when
+     * they reconnect to the proxy. Only applies if an
+     * {@link SslEngineSource} is set. See
+     * {@link TlsSessionCacheConfiguration}.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. the JDK's defaults apply
+     * </p>
+     *
+     * @param tlsSessionCacheConfiguration configuration of the TLS session cache
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withTlsSessionCache(TlsSessionCacheConfiguration tlsSessionCacheConfiguration);
+
+    /**
+     * <p>
+     * Tunnel CONNECTs to some hosts instead of MITMing them, including hosts
+     * whose clients keep failing their handshakes with the proxy, e.g.
+     * because they pin certificates. Only applies if a {@link MitmManager} is
+     * set. See {@link MitmBypassConfiguration}.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. all CONNECTs are MITMed
+     * </p>
+     *
+     * @param mitmBypassConfiguration configuration of the hosts to bypass
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withMitmBypass(MitmBypassConfiguration mitmBypassConfiguration);
+
+    /**
+     * <p>
+     * Call the authenticator, the filters source, the request filter for the
+     * initial request and the chained proxy manager on a bounded thread pool,
+     * so that extensions that block don't hold up the worker threads. See
+     * {@link ExtensionExecutorConfiguration}.
+     * </p>
+     *
+     * <p>
+     * Default = null, i.e. extensions are called on the worker threads
+     * </p>
+     *
+     * @param extensionExecutorConfiguration configuration of the extension thread pool
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withExtensionExecutor(ExtensionExecutorConfiguration extensionExecutorConfiguration);
+
+    /**
+     * <p>
+     * Specify how long {@link HttpProxyServer#stop()} waits for requests and
+     * CONNECT tunnels that are in flight to finish, in seconds. While draining,
+     * the proxy no longer accepts connections, closes idle client connections
+     * and closes the other ones after their current response, which is sent
+     * with a "Connection: close" header. Connections that are still open when
+     * the timeout expires are closed. 0 closes all connections at once.
+     * {@link HttpProxyServer#abort()} never drains.
+     * </p>
+     *
+     * <p>
+     * Default = 10
+     * </p>
+     *
+     * @param drainTimeout how long to drain connections when stopping, in seconds
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withDrainTimeout(int drainTimeout);
 }
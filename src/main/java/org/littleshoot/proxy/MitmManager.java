@@ -51,4 +51,23 @@ public interface MitmManager {
      * @return the SSLEngine used to connect to the client
      */
     SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession);
+
+    /**
+     * <p>
+     * Returns true if {@link #clientSslEngineFor(HttpRequest, SSLSession)}
+     * needs the {@link SSLSession} that's been established with the server.
+     * </p>
+     *
+     * <p>
+     * If it doesn't, the proxy handshakes with the client while it's still
+     * handshaking with the server, instead of one after the other, and passes
+     * null as the serverSslSession. The client engine can then only depend on
+     * the host of the CONNECT request and the SNI the client sends.
+     * </p>
+     *
+     * @return true if the client engine depends on the server's SSL session, which is the default
+     */
+    default boolean needsServerSslSession() {
+        return true;
+    }
 }
@@ -0,0 +1,248 @@
+package org.littleshoot.proxy.extras;
+
+import org.littleshoot.proxy.ProxyAuthenticator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>
+ * {@link ProxyAuthenticator} that remembers the results of another
+ * authenticator for a while, so that a slow authenticator, e.g. one that checks
+ * bcrypt hashes or queries an LDAP directory, isn't called again for every
+ * connection that a client opens with the same credentials.
+ * </p>
+ *
+ * <p>
+ * Accepted credentials are remembered for longer than rejected ones, so that a
+ * password that has just been fixed works again soon. The credentials
+ * themselves are not kept: results are keyed by a salted SHA-256 hash of the
+ * user name and password. If several connections present the same credentials
+ * while the other authenticator is still checking them, only the first one
+ * calls it and the others wait for its result.
+ * </p>
+ *
+ * <p>
+ * At most a given number of results are remembered. Once there are more,
+ * expired results are dropped first, then arbitrary ones, until a tenth of the
+ * space is free again, so that the results aren't gone through on every new
+ * lookup.
+ * </p>
+ */
+public class CachingProxyAuthenticator implements ProxyAuthenticator {
+    /**
+     * How long accepted credentials are remembered, unless another time is given.
+     */
+    public static final long DEFAULT_SUCCESS_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * How long rejected credentials are remembered, unless another time is given.
+     */
+    public static final long DEFAULT_FAILURE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * How many results are remembered, unless another size is given.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final ProxyAuthenticator delegate;
+    private final long successTtlNanos;
+    private final long failureTtlNanos;
+    private final int maxEntries;
+    private final LongSupplier nanoClock;
+
+    private final byte[] salt = new byte[16];
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingProxyAuthenticator(ProxyAuthenticator delegate) {
+        this(delegate, DEFAULT_SUCCESS_TTL_MILLIS, DEFAULT_FAILURE_TTL_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param delegate the authenticator whose results are remembered
+     * @param successTtl how long accepted credentials are remembered, 0 to only share results between concurrent checks
+     * @param failureTtl how long rejected credentials are remembered, 0 to only share results between concurrent checks
+     * @param unit the unit of the TTLs
+     * @param maxEntries the maximum number of results to remember
+     */
+    public CachingProxyAuthenticator(ProxyAuthenticator delegate, long successTtl, long failureTtl, TimeUnit unit, int maxEntries) {
+        this(delegate, successTtl, failureTtl, unit, maxEntries, System::nanoTime);
+    }
+
+    CachingProxyAuthenticator(ProxyAuthenticator delegate, long successTtl, long failureTtl, TimeUnit unit, int maxEntries,
+                              LongSupplier nanoClock) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate: null (expected: an authenticator)");
+        }
+        if (successTtl < 0) {
+            throw new IllegalArgumentException("successTtl: " + successTtl + " (expected: >= 0)");
+        }
+        if (failureTtl < 0) {
+            throw new IllegalArgumentException("failureTtl: " + failureTtl + " (expected: >= 0)");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries: " + maxEntries + " (expected: > 0)");
+        }
+        this.delegate = delegate;
+        this.successTtlNanos = unit.toNanos(successTtl);
+        this.failureTtlNanos = unit.toNanos(failureTtl);
+        this.maxEntries = maxEntries;
+        this.nanoClock = nanoClock;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    @Override
+    public boolean authenticate(String userName, String password) {
+        String key = hash(userName, password);
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.isExpired(nanoClock.getAsLong())) {
+                hits.incrementAndGet();
+                return entry.await();
+            }
+
+            Entry lookup = new Entry();
+            boolean won = entry == null
+                    ? entries.putIfAbsent(key, lookup) == null
+                    : entries.replace(key, entry, lookup);
+            if (won) {
+                misses.incrementAndGet();
+                evictIfFull();
+                return lookup(key, lookup, userName, password);
+            }
+            // another thread has just started a lookup for the same credentials, wait for that one
+        }
+    }
+
+    private boolean lookup(String key, Entry entry, String userName, String password) {
+        boolean authenticated;
+        try {
+            authenticated = delegate.authenticate(userName, password);
+        } catch (RuntimeException | Error e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+
+        long ttlNanos = authenticated ? successTtlNanos : failureTtlNanos;
+        if (ttlNanos > 0) {
+            entry.expiresAtNanos = nanoClock.getAsLong() + ttlNanos;
+        } else {
+            entries.remove(key, entry);
+        }
+        entry.result.complete(authenticated);
+        return authenticated;
+    }
+
+    private void evictIfFull() {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        long now = nanoClock.getAsLong();
+        entries.values().removeIf(entry -> entry.isExpired(now));
+
+        int targetEntries = maxEntries - maxEntries / 10;
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > targetEntries && it.hasNext()) {
+            // lookups in progress are kept, so that their waiters aren't joined by new lookups
+            if (it.next().result.isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    private String hash(String userName, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            byte[] userNameBytes = String.valueOf(userName).getBytes(StandardCharsets.UTF_8);
+            // the length keeps e.g. "a:" + "b" and "a" + ":b" apart
+            digest.update(ByteBuffer.allocate(4).putInt(userNameBytes.length).array());
+            digest.update(userNameBytes);
+            digest.update(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public String getRealm() {
+        return delegate.getRealm();
+    }
+
+    /**
+     * Returns the number of checks that were answered without calling the
+     * other authenticator, including those that waited for a concurrent check
+     * of the same credentials.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of checks that called the other authenticator.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of checks that were answered without calling the
+     * other authenticator, between 0 and 1, or 0 if there haven't been any.
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of results that are currently remembered or being
+     * looked up.
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        /**
+         * Set once the result is known, lookups in progress never expire.
+         */
+        private volatile long expiresAtNanos = Long.MAX_VALUE;
+
+        private boolean isExpired(long now) {
+            return expiresAtNanos != Long.MAX_VALUE && now - expiresAtNanos >= 0;
+        }
+
+        private boolean await() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+    }
+}
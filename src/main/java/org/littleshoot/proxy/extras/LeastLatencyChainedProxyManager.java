@@ -0,0 +1,296 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+import org.littleshoot.proxy.ChainedProxyManager;
+import org.littleshoot.proxy.ChainedProxyType;
+import org.littleshoot.proxy.TransportProtocol;
+import org.littleshoot.proxy.impl.ClientDetails;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * {@link ChainedProxyManager} that balances requests over a fixed set of
+ * chained proxies, preferring the ones that have been the quickest to respond.
+ * </p>
+ *
+ * <p>
+ * Every chained proxy is scored using an exponentially weighted moving average
+ * (EWMA) of the time it takes to connect through it plus an EWMA of the time
+ * it takes for responses to arrive through it, multiplied by the number of
+ * requests that are currently in flight through it plus one. Lower scores are
+ * better. The proxy that is tried first is chosen by picking two proxies at
+ * random and taking the one with the lower score ("power of two choices"),
+ * which sends most of the traffic to fast proxies without piling all of it
+ * onto the single fastest one. The other proxies follow in order of their
+ * scores, so that they are tried if connecting through the first one fails.
+ * </p>
+ *
+ * <p>
+ * The statistics are collected automatically: the proxies passed to this
+ * manager are wrapped, and the wrappers record the connect times, response
+ * times and request outcomes reported to them by LittleProxy before passing
+ * all calls on to the original proxies. A failed connection counts as a
+ * connect time of five seconds. Proxies that haven't been measured yet have
+ * a score of zero, so they are tried soon.
+ * </p>
+ *
+ * <p>
+ * If the given proxies include
+ * {@link ChainedProxyAdapter#FALLBACK_TO_DIRECT_CONNECTION}, it is not
+ * balanced but always added as the last option.
+ * </p>
+ */
+public class LeastLatencyChainedProxyManager implements ChainedProxyManager {
+    /**
+     * Weight of a new measurement in the moving averages, used unless another
+     * smoothing factor is given.
+     */
+    public static final double DEFAULT_SMOOTHING_FACTOR = 0.3;
+
+    /**
+     * The connect time recorded when connecting through a proxy fails.
+     */
+    private static final long FAILED_CONNECTION_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final List<TrackedChainedProxy> chainedProxies;
+    private final boolean fallbackToDirectConnection;
+
+    public LeastLatencyChainedProxyManager(Collection<? extends ChainedProxy> chainedProxies) {
+        this(chainedProxies, DEFAULT_SMOOTHING_FACTOR);
+    }
+
+    /**
+     * @param chainedProxies the chained proxies to balance requests over
+     * @param smoothingFactor weight of a new measurement in the moving averages, greater than 0 and at most 1. Higher
+     *                        values make the manager react faster to changes in latency.
+     */
+    public LeastLatencyChainedProxyManager(Collection<? extends ChainedProxy> chainedProxies, double smoothingFactor) {
+        if (!(smoothingFactor > 0 && smoothingFactor <= 1)) {
+            throw new IllegalArgumentException("smoothingFactor: " + smoothingFactor + " (expected: 0 < smoothingFactor <= 1)");
+        }
+
+        List<TrackedChainedProxy> trackedChainedProxies = new ArrayList<>(chainedProxies.size());
+        boolean fallbackToDirectConnection = false;
+        for (ChainedProxy chainedProxy : chainedProxies) {
+            if (chainedProxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION) {
+                fallbackToDirectConnection = true;
+            } else {
+                trackedChainedProxies.add(new TrackedChainedProxy(chainedProxy, smoothingFactor));
+            }
+        }
+        this.chainedProxies = Collections.unmodifiableList(trackedChainedProxies);
+        this.fallbackToDirectConnection = fallbackToDirectConnection;
+    }
+
+    @Override
+    public void lookupChainedProxies(HttpRequest httpRequest,
+                                     Queue<ChainedProxy> chainedProxies,
+                                     ClientDetails clientDetails) {
+        int count = this.chainedProxies.size();
+        if (count > 0) {
+            // take a snapshot of the scores, since they keep changing while we sort
+            TrackedChainedProxy[] proxies = this.chainedProxies.toArray(new TrackedChainedProxy[count]);
+            double[] scores = new double[count];
+            for (int i = 0; i < count; i++) {
+                scores[i] = proxies[i].score();
+            }
+
+            TrackedChainedProxy first;
+            if (count == 1) {
+                first = proxies[0];
+            } else {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int a = random.nextInt(count);
+                int b = random.nextInt(count - 1);
+                if (b >= a) {
+                    b++;
+                }
+                first = scores[a] <= scores[b] ? proxies[a] : proxies[b];
+            }
+
+            // there are few chained proxies, so a simple insertion sort is all we need for the fallbacks
+            for (int i = 1; i < count; i++) {
+                TrackedChainedProxy proxy = proxies[i];
+                double score = scores[i];
+                int j = i - 1;
+                while (j >= 0 && scores[j] > score) {
+                    proxies[j + 1] = proxies[j];
+                    scores[j + 1] = scores[j];
+                    j--;
+                }
+                proxies[j + 1] = proxy;
+                scores[j + 1] = score;
+            }
+
+            chainedProxies.add(first);
+            for (TrackedChainedProxy proxy : proxies) {
+                if (proxy != first) {
+                    chainedProxies.add(proxy);
+                }
+            }
+        }
+
+        if (fallbackToDirectConnection) {
+            chainedProxies.add(ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION);
+        }
+    }
+
+    /**
+     * Wraps a chained proxy to record its statistics.
+     */
+    static class TrackedChainedProxy implements ChainedProxy {
+        private final ChainedProxy chainedProxy;
+        private final double smoothingFactor;
+
+        private final AtomicInteger requestsInFlight = new AtomicInteger();
+
+        /**
+         * Moving averages of the connect and response times in nanoseconds, or -1 until the first measurement.
+         */
+        private volatile double averageConnectTimeNanos = -1;
+        private volatile double averageResponseTimeNanos = -1;
+
+        TrackedChainedProxy(ChainedProxy chainedProxy, double smoothingFactor) {
+            this.chainedProxy = chainedProxy;
+            this.smoothingFactor = smoothingFactor;
+        }
+
+        ChainedProxy getChainedProxy() {
+            return chainedProxy;
+        }
+
+        int getRequestsInFlight() {
+            return requestsInFlight.get();
+        }
+
+        double score() {
+            double latency = Math.max(0, averageConnectTimeNanos) + Math.max(0, averageResponseTimeNanos);
+            return latency * (requestsInFlight.get() + 1);
+        }
+
+        private synchronized void recordConnectTime(long connectTimeNanos) {
+            averageConnectTimeNanos = movingAverage(averageConnectTimeNanos, connectTimeNanos);
+        }
+
+        private synchronized void recordResponseTime(long responseTimeNanos) {
+            averageResponseTimeNanos = movingAverage(averageResponseTimeNanos, responseTimeNanos);
+        }
+
+        private double movingAverage(double average, long measurement) {
+            return average < 0 ? measurement : average + smoothingFactor * (measurement - average);
+        }
+
+        private void requestDone() {
+            requestsInFlight.updateAndGet(requests -> Math.max(0, requests - 1));
+        }
+
+        @Override
+        public void connectTimeMeasured(long connectTimeNanos) {
+            recordConnectTime(connectTimeNanos);
+            chainedProxy.connectTimeMeasured(connectTimeNanos);
+        }
+
+        @Override
+        public void connectionFailed(Throwable cause) {
+            recordConnectTime(FAILED_CONNECTION_PENALTY_NANOS);
+            chainedProxy.connectionFailed(cause);
+        }
+
+        @Override
+        public void requestSent() {
+            requestsInFlight.incrementAndGet();
+            chainedProxy.requestSent();
+        }
+
+        @Override
+        public void responseReceived(long responseTimeNanos) {
+            requestDone();
+            recordResponseTime(responseTimeNanos);
+            chainedProxy.responseReceived(responseTimeNanos);
+        }
+
+        @Override
+        public void requestFailed() {
+            requestDone();
+            chainedProxy.requestFailed();
+        }
+
+        @Override
+        public InetSocketAddress getChainedProxyAddress() {
+            return chainedProxy.getChainedProxyAddress();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return chainedProxy.getLocalAddress();
+        }
+
+        @Override
+        public TransportProtocol getTransportProtocol() {
+            return chainedProxy.getTransportProtocol();
+        }
+
+        @Override
+        public ChainedProxyType getChainedProxyType() {
+            return chainedProxy.getChainedProxyType();
+        }
+
+        @Override
+        public String getUsername() {
+            return chainedProxy.getUsername();
+        }
+
+        @Override
+        public String getPassword() {
+            return chainedProxy.getPassword();
+        }
+
+        @Override
+        public boolean requiresEncryption() {
+            return chainedProxy.requiresEncryption();
+        }
+
+        @Override
+        public void filterRequest(HttpObject httpObject) {
+            chainedProxy.filterRequest(httpObject);
+        }
+
+        @Override
+        public void connectionSucceeded() {
+            chainedProxy.connectionSucceeded();
+        }
+
+        @Override
+        public void disconnected() {
+            chainedProxy.disconnected();
+        }
+
+        @Override
+        public SSLEngine newSslEngine() {
+            return chainedProxy.newSslEngine();
+        }
+
+        @Override
+        public SSLEngine newSslEngine(String peerHost, int peerPort) {
+            return chainedProxy.newSslEngine(peerHost, peerPort);
+        }
+
+        @Override
+        public String toString() {
+            return chainedProxy.toString();
+        }
+    }
+}
@@ -34,4 +34,10 @@ public class SelfSignedMitmManager implements MitmManager {
     public SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession) {
         return selfSignedSslEngineSource.newSslEngine();
     }
+
+    @Override
+    public boolean needsServerSslSession() {
+        // the same certificate is used for every server
+        return false;
+    }
 }
@@ -1,25 +1,40 @@
 package org.littleshoot.proxy.extras;
 
 import com.google.common.io.ByteStreams;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
 import org.littleshoot.proxy.SslEngineSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.*;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.SecureRandom;
 import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Basic {@link SslEngineSource} for testing. The {@link SSLContext} uses
  * self-signed certificates that are generated lazily if the given key store
- * file doesn't yet exist.
+ * file doesn't yet exist. The key and certificate are generated in-process
+ * if possible, otherwise with keytool, and the certificate is exported to
+ * {@code littleproxy_cert} next to the key store. The {@link SSLContext} is
+ * shared by all sources with the same key store and settings, so that creating
+ * more sources (e.g. one per proxy) is cheap, until the key store file changes.
  */
 public class SelfSignedSslEngineSource implements SslEngineSource {
     private static final Logger LOG = LoggerFactory
@@ -27,13 +42,23 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
 
     private static final String PROTOCOL = "TLS";
 
+    /**
+     * Size of generated RSA keys. 2048-bit keys are generated and used in
+     * handshakes many times faster than 4096-bit ones.
+     */
+    private static final int KEY_SIZE = 2048;
+
+    private static final long VALIDITY_DAYS = 36500;
+
+    private static final ConcurrentMap<List<Object>, CachedSslContext> SSL_CONTEXTS = new ConcurrentHashMap<>();
+
     private final String alias;
     private final String password;
     private final String keyStoreFile;
     private final boolean trustAllServers;
     private final boolean sendCerts;
 
-    private SSLContext sslContext;
+    private final SSLContext sslContext;
 
     public SelfSignedSslEngineSource(String keyStorePath, boolean trustAllServers, boolean sendCerts,
         String alias, String password) {
@@ -42,7 +67,20 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         this.keyStoreFile = keyStorePath;
         this.alias = alias;
         this.password = password;
-        initializeSSLContext();
+        this.sslContext = SSL_CONTEXTS.compute(
+                Arrays.asList(keyStorePath, trustAllServers, sendCerts, alias, password),
+                (key, cached) -> {
+                    long lastModified = keyStoreLastModified();
+                    if (cached != null && cached.keyStoreLastModified == lastModified) {
+                        return cached;
+                    }
+                    SSLContext sslContext = initializeSSLContext();
+                    if (lastModified == 0) {
+                        // the key store has just been generated
+                        lastModified = keyStoreLastModified();
+                    }
+                    return new CachedSslContext(lastModified, sslContext);
+                }).sslContext;
     }
 
     public SelfSignedSslEngineSource(String keyStorePath, boolean trustAllServers, boolean sendCerts) {
@@ -79,18 +117,61 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         return sslContext;
     }
 
-    private void initializeKeyStore(String filename) {
+    /**
+     * Returns when the key store file was last modified, or 0 if it doesn't
+     * exist yet or is a resource.
+     */
+    private long keyStoreLastModified() {
+        if (getClass().getResource(keyStoreFile) != null) {
+            return 0;
+        }
+        return new File(keyStoreFile).lastModified();
+    }
+
+    private void initializeKeyStore(File keyStoreFile) throws IOException, GeneralSecurityException {
+        LOG.info("Generating {}-bit RSA key and self-signed certificate in {}", KEY_SIZE, keyStoreFile);
+        Date notBefore = new Date();
+        Date notAfter = new Date(notBefore.getTime() + TimeUnit.DAYS.toMillis(VALIDITY_DAYS));
+        SelfSignedCertificate certificate;
+        try {
+            certificate = new SelfSignedCertificate(
+                    "littleproxy", new SecureRandom(), KEY_SIZE, notBefore, notAfter);
+        } catch (CertificateException e) {
+            // e.g. on JDK 15+ without Bouncy Castle
+            LOG.info("Unable to generate self-signed certificate in-process, falling back to keytool", e);
+            initializeKeyStoreWithKeytool(keyStoreFile);
+            return;
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(alias, certificate.key(), password.toCharArray(),
+                    new Certificate[] { certificate.cert() });
+            try (OutputStream os = new FileOutputStream(keyStoreFile)) {
+                keyStore.store(os, password.toCharArray());
+            }
+
+            try (OutputStream os = new FileOutputStream(new File(keyStoreFile.getAbsoluteFile().getParentFile(), "littleproxy_cert"))) {
+                os.write(certificate.cert().getEncoded());
+            }
+        } finally {
+            // the certificate and key are also written to temporary files, which we don't need
+            certificate.delete();
+        }
+    }
+
+    private void initializeKeyStoreWithKeytool(File keyStoreFile) {
         nativeCall("keytool", "-genkey", "-alias", alias, "-keysize",
-                "4096", "-validity", "36500", "-keyalg", "RSA", "-dname",
+                String.valueOf(KEY_SIZE), "-validity", String.valueOf(VALIDITY_DAYS), "-keyalg", "RSA", "-dname",
                 "CN=littleproxy", "-keypass", password, "-storepass",
-                password, "-keystore", filename);
+                password, "-keystore", keyStoreFile.getPath());
 
         nativeCall("keytool", "-exportcert", "-alias", alias, "-keystore",
-                filename, "-storepass", password, "-file",
-                "littleproxy_cert");
+                keyStoreFile.getPath(), "-storepass", password, "-file",
+                new File(keyStoreFile.getAbsoluteFile().getParentFile(), "littleproxy_cert").getPath());
     }
 
-    private void initializeSSLContext() {
+    private SSLContext initializeSSLContext() {
         String algorithm = Security
                 .getProperty("ssl.KeyManagerFactory.algorithm");
         if (algorithm == null) {
@@ -139,8 +220,9 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
             }
 
             // Initialize the SSLContext to work with our key managers.
-            sslContext = SSLContext.getInstance(PROTOCOL);
+            SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
             sslContext.init(keyManagers, trustManagers, null);
+            return sslContext;
         } catch (final Exception e) {
             throw new Error(
                     "Failed to initialize the server-side SSLContext", e);
@@ -155,7 +237,7 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         } else {
             File keyStoreLocalFile = new File(keyStoreFile);
             if(!keyStoreLocalFile.isFile()) {
-                initializeKeyStore(keyStoreLocalFile.getName());
+                initializeKeyStore(keyStoreLocalFile);
             }
             loadKeyStore(keyStore, keyStoreLocalFile.toURI().toURL());
         }
@@ -188,4 +270,13 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         }
     }
 
+    private static class CachedSslContext {
+        private final long keyStoreLastModified;
+        private final SSLContext sslContext;
+
+        private CachedSslContext(long keyStoreLastModified, SSLContext sslContext) {
+            this.keyStoreLastModified = keyStoreLastModified;
+            this.sslContext = sslContext;
+        }
+    }
 }
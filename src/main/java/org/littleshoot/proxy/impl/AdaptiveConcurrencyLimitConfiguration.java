@@ -0,0 +1,168 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for the adaptive limits on the number of requests that
+ * the proxy has in flight to each server at the same time, where a server is
+ * identified by its host and port as given in the requests. Requests that
+ * arrive while their server is at its limit are answered with a 503 Service
+ * Unavailable right away, instead of adding to the load of a server that is
+ * already struggling.
+ * </p>
+ *
+ * <p>
+ * Every server starts out with the initial limit, which is then adjusted to
+ * the response times of the server: a long-term average of the response times
+ * serves as the baseline, and the limit grows while responses arrive about as
+ * fast as the baseline and shrinks when they take longer, in proportion to how
+ * much longer they take (the "gradient"). The limit also shrinks by the
+ * backoff ratio whenever a request fails or times out, or the server responds
+ * with a 502, 503 or 504. The limit only grows while the server is actually
+ * being sent at least half as many requests as the limit allows, so that it
+ * can't grow without bound while traffic is light.
+ * </p>
+ *
+ * <p>
+ * CONNECT requests are not limited, since tunnels stay open for as long as the
+ * client wants them to.
+ * </p>
+ */
+public class AdaptiveConcurrencyLimitConfiguration {
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private double smoothing = 0.2;
+    private double rttTolerance = 1.5;
+    private double backoffRatio = 0.9;
+    private int longWindow = 600;
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * Set the limit that servers start out with. The default value is 20.
+     *
+     * @param initialLimit initial number of requests in flight to a single server
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withInitialLimit(int initialLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit: " + initialLimit + " (expected: > 0)");
+        }
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Set the lowest the limit of a server can go. The default value is 1.
+     *
+     * @param minLimit minimum number of requests in flight to a single server
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withMinLimit(int minLimit) {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("minLimit: " + minLimit + " (expected: > 0)");
+        }
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Set the highest the limit of a server can go. The default value is 1000.
+     *
+     * @param maxLimit maximum number of requests in flight to a single server
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withMaxLimit(int maxLimit) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("maxLimit: " + maxLimit + " (expected: > 0)");
+        }
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * Set how far the limit moves towards the value calculated from a response time, greater than 0 and at most 1.
+     * Higher values make the limits react faster. The default value is 0.2.
+     *
+     * @param smoothing weight of a new limit
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withSmoothing(double smoothing) {
+        if (!(smoothing > 0 && smoothing <= 1)) {
+            throw new IllegalArgumentException("smoothing: " + smoothing + " (expected: 0 < smoothing <= 1)");
+        }
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    /**
+     * Set how many times slower than the long-term average a response may be before the limit shrinks, at least 1.
+     * The default value is 1.5.
+     *
+     * @param rttTolerance ratio of response time to long-term response time that is tolerated
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withRttTolerance(double rttTolerance) {
+        if (!(rttTolerance >= 1)) {
+            throw new IllegalArgumentException("rttTolerance: " + rttTolerance + " (expected: >= 1)");
+        }
+        this.rttTolerance = rttTolerance;
+        return this;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Set the factor the limit is multiplied with when a request fails, greater than 0 and less than 1. The default
+     * value is 0.9.
+     *
+     * @param backoffRatio factor to shrink the limit by on failures
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withBackoffRatio(double backoffRatio) {
+        if (!(backoffRatio > 0 && backoffRatio < 1)) {
+            throw new IllegalArgumentException("backoffRatio: " + backoffRatio + " (expected: 0 < backoffRatio < 1)");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    public int getLongWindow() {
+        return longWindow;
+    }
+
+    /**
+     * Set the number of responses the long-term average response time of a server is roughly calculated over. The
+     * default value is 600.
+     *
+     * @param longWindow number of responses in the long-term average
+     * @return this adaptive concurrency limit configuration instance, for chaining
+     */
+    public AdaptiveConcurrencyLimitConfiguration withLongWindow(int longWindow) {
+        if (longWindow < 1) {
+            throw new IllegalArgumentException("longWindow: " + longWindow + " (expected: > 0)");
+        }
+        this.longWindow = longWindow;
+        return this;
+    }
+}
@@ -0,0 +1,195 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the adaptive limit and the number of requests in flight of every
+ * server. See {@link AdaptiveConcurrencyLimitConfiguration} for how the limits
+ * are adjusted.
+ */
+class AdaptiveConcurrencyLimits {
+    /**
+     * When there are more servers than this, the ones without requests in
+     * flight are forgotten, so that proxying to many different servers doesn't
+     * use up memory.
+     */
+    private static final int MAX_LIMITS = 10000;
+
+    private final AdaptiveConcurrencyLimitConfiguration configuration;
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    AdaptiveConcurrencyLimits(AdaptiveConcurrencyLimitConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Lets a request to the given server through if the server is below its
+     * limit.
+     *
+     * @return the permit that has to be completed when the request is done, or null if the request must be rejected
+     */
+    Permit tryAcquire(String serverHostAndPort) {
+        while (true) {
+            Limit limit = limits.get(serverHostAndPort);
+            if (limit == null) {
+                if (limits.size() >= MAX_LIMITS) {
+                    limits.values().removeIf(Limit::removeIfIdle);
+                }
+                limit = limits.computeIfAbsent(serverHostAndPort, key -> new Limit());
+            }
+
+            int inFlight;
+            synchronized (limit) {
+                if (limit.removed) {
+                    // the server was forgotten while we were looking it up
+                    continue;
+                }
+                if (limit.inFlight >= (int) limit.limit) {
+                    rejectedRequests.incrementAndGet();
+                    return null;
+                }
+                inFlight = ++limit.inFlight;
+            }
+            return new Permit(limit, inFlight);
+        }
+    }
+
+    Map<String, Integer> getLimits() {
+        Map<String, Integer> currentLimits = new HashMap<>();
+        for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+            Limit limit = entry.getValue();
+            synchronized (limit) {
+                currentLimits.put(entry.getKey(), (int) limit.limit);
+            }
+        }
+        return Collections.unmodifiableMap(currentLimits);
+    }
+
+    /**
+     * Returns the number of requests in flight to the given server.
+     */
+    int getInFlight(String serverHostAndPort) {
+        Limit limit = limits.get(serverHostAndPort);
+        if (limit == null) {
+            return 0;
+        }
+        synchronized (limit) {
+            return limit.inFlight;
+        }
+    }
+
+    long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * The limit of a single server.
+     */
+    private class Limit {
+        private double limit = Math.max(configuration.getMinLimit(),
+                Math.min(configuration.getMaxLimit(), configuration.getInitialLimit()));
+        private int inFlight;
+
+        /**
+         * Long-term average response time in nanoseconds, or -1 until the first response.
+         */
+        private double longRttNanos = -1;
+        private boolean removed;
+
+        private synchronized boolean removeIfIdle() {
+            if (inFlight == 0) {
+                removed = true;
+            }
+            return removed;
+        }
+
+        private synchronized void succeeded(long rttNanos, int inFlightAtStart) {
+            inFlight--;
+            if (rttNanos <= 0) {
+                return;
+            }
+
+            if (longRttNanos < 0) {
+                longRttNanos = rttNanos;
+            } else {
+                longRttNanos += (rttNanos - longRttNanos) * 2 / (configuration.getLongWindow() + 1);
+            }
+            if (longRttNanos > 2 * rttNanos) {
+                // the server got a lot faster, so let the baseline catch up quickly
+                longRttNanos *= 0.95;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, configuration.getRttTolerance() * longRttNanos / rttNanos));
+            double newLimit = limit * gradient + Math.sqrt(limit);
+            if (newLimit > limit && inFlightAtStart < limit / 2) {
+                // we aren't sending enough requests to know whether the server could handle more
+                return;
+            }
+            limit = clamp(limit * (1 - configuration.getSmoothing()) + newLimit * configuration.getSmoothing());
+        }
+
+        private synchronized void dropped() {
+            inFlight--;
+            limit = clamp(limit * configuration.getBackoffRatio());
+        }
+
+        private synchronized void ignored() {
+            inFlight--;
+        }
+
+        private double clamp(double newLimit) {
+            return Math.max(configuration.getMinLimit(), Math.min(configuration.getMaxLimit(), newLimit));
+        }
+    }
+
+    /**
+     * A request in flight, which must be completed exactly once by calling
+     * one of {@link #succeeded(long)}, {@link #dropped()} or
+     * {@link #ignored()}. Completing it again has no effect.
+     */
+    class Permit {
+        private final Limit limit;
+        private final int inFlightAtStart;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private Permit(Limit limit, int inFlightAtStart) {
+            this.limit = limit;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * The server responded in the given time.
+         */
+        void succeeded(long rttNanos) {
+            if (completed.compareAndSet(false, true)) {
+                limit.succeeded(rttNanos, inFlightAtStart);
+            }
+        }
+
+        /**
+         * The request failed or timed out in a way that suggests the server is
+         * overloaded.
+         */
+        void dropped() {
+            if (completed.compareAndSet(false, true)) {
+                limit.dropped();
+            }
+        }
+
+        /**
+         * The request ended without telling us anything about the server,
+         * e.g. because the client went away.
+         */
+        void ignored() {
+            if (completed.compareAndSet(false, true)) {
+                limit.ignored();
+            }
+        }
+    }
+}
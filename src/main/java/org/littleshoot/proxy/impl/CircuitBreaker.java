@@ -0,0 +1,221 @@
+package org.littleshoot.proxy.impl;
+
+import org.littleshoot.proxy.CircuitBreakerState;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * The circuit breaker of a single upstream, i.e. a chained proxy or an origin
+ * server. See {@link CircuitBreakerConfiguration} for how it behaves.
+ * </p>
+ *
+ * <p>
+ * The outcomes of the most recent calls are kept in a ring buffer, so that the
+ * failure rate can be updated without allocating anything.
+ * </p>
+ */
+class CircuitBreaker {
+    private final String upstream;
+    private final CircuitBreakerConfiguration configuration;
+    private final CircuitBreakers circuitBreakers;
+
+    /**
+     * Ring buffer of the most recent outcomes, true meaning failure.
+     */
+    private final boolean[] outcomes;
+    private int numberOfOutcomes;
+    private int nextOutcome;
+    private int numberOfFailures;
+
+    private volatile CircuitBreakerState state = CircuitBreakerState.CLOSED;
+    private long openedAtNanos;
+    private long trialStartedAtNanos;
+    private boolean trialInProgress;
+
+    /**
+     * The address that was used when the upstream last failed, which is where
+     * the background probes try to connect to. Null if the upstream can't be
+     * probed.
+     */
+    private volatile InetSocketAddress probeAddress;
+
+    /**
+     * True while background probes are scheduled for this breaker.
+     */
+    final AtomicBoolean probing = new AtomicBoolean(false);
+
+    CircuitBreaker(String upstream, CircuitBreakerConfiguration configuration, CircuitBreakers circuitBreakers) {
+        this.upstream = upstream;
+        this.configuration = configuration;
+        this.circuitBreakers = circuitBreakers;
+        this.outcomes = new boolean[configuration.getSlidingWindowSize()];
+    }
+
+    String getUpstream() {
+        return upstream;
+    }
+
+    CircuitBreakerState getState() {
+        return state;
+    }
+
+    InetSocketAddress getProbeAddress() {
+        return probeAddress;
+    }
+
+    /**
+     * Returns true if a request may be sent to the upstream. When the breaker
+     * has been open for long enough, this makes it half-open and lets the
+     * caller's request through as the trial request.
+     */
+    boolean allowRequest() {
+        CircuitBreakerState previousState;
+        synchronized (this) {
+            previousState = state;
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (!hasElapsed(openedAtNanos, configuration.getOpenStateDurationMillis())) {
+                        return false;
+                    }
+                    state = CircuitBreakerState.HALF_OPEN;
+                    break;
+                case HALF_OPEN:
+                default:
+                    // let another trial through if the last one never reported back, e.g. because the client went away
+                    if (trialInProgress && !hasElapsed(trialStartedAtNanos, configuration.getOpenStateDurationMillis())) {
+                        return false;
+                    }
+                    break;
+            }
+            trialInProgress = true;
+            trialStartedAtNanos = System.nanoTime();
+        }
+
+        stateChanged(previousState, CircuitBreakerState.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Records that connecting to the upstream, or a request to it, succeeded.
+     */
+    void recordSuccess() {
+        CircuitBreakerState previousState;
+        synchronized (this) {
+            previousState = state;
+            switch (state) {
+                case CLOSED:
+                    recordOutcome(false);
+                    return;
+                case HALF_OPEN:
+                    close();
+                    break;
+                case OPEN:
+                default:
+                    // a request that started before the breaker opened, which doesn't change our mind
+                    return;
+            }
+        }
+
+        stateChanged(previousState, CircuitBreakerState.CLOSED);
+    }
+
+    /**
+     * Records that connecting to the upstream, or a request to it, failed or
+     * timed out.
+     *
+     * @param address the address of the upstream that failed, or null if it should not be probed
+     */
+    void recordFailure(InetSocketAddress address) {
+        if (address != null) {
+            probeAddress = address;
+        }
+
+        CircuitBreakerState previousState;
+        synchronized (this) {
+            previousState = state;
+            switch (state) {
+                case CLOSED:
+                    recordOutcome(true);
+                    if (numberOfOutcomes < configuration.getMinimumNumberOfCalls()
+                            || numberOfFailures < configuration.getFailureRateThreshold() * numberOfOutcomes) {
+                        return;
+                    }
+                    open();
+                    break;
+                case HALF_OPEN:
+                    open();
+                    break;
+                case OPEN:
+                default:
+                    return;
+            }
+        }
+
+        stateChanged(previousState, CircuitBreakerState.OPEN);
+    }
+
+    /**
+     * Records that a background probe was able to connect to the upstream.
+     */
+    void probeSucceeded() {
+        CircuitBreakerState previousState;
+        synchronized (this) {
+            previousState = state;
+            if (state == CircuitBreakerState.CLOSED) {
+                return;
+            }
+            close();
+        }
+
+        stateChanged(previousState, CircuitBreakerState.CLOSED);
+    }
+
+    private void recordOutcome(boolean failure) {
+        if (numberOfOutcomes == outcomes.length) {
+            if (outcomes[nextOutcome]) {
+                numberOfFailures--;
+            }
+        } else {
+            numberOfOutcomes++;
+        }
+        outcomes[nextOutcome] = failure;
+        if (failure) {
+            numberOfFailures++;
+        }
+        nextOutcome = (nextOutcome + 1) % outcomes.length;
+    }
+
+    private void open() {
+        state = CircuitBreakerState.OPEN;
+        openedAtNanos = System.nanoTime();
+        trialInProgress = false;
+    }
+
+    private void close() {
+        state = CircuitBreakerState.CLOSED;
+        trialInProgress = false;
+        numberOfOutcomes = 0;
+        nextOutcome = 0;
+        numberOfFailures = 0;
+    }
+
+    private void stateChanged(CircuitBreakerState previousState, CircuitBreakerState newState) {
+        if (previousState != newState) {
+            circuitBreakers.stateChanged(this, previousState, newState);
+        }
+    }
+
+    private static boolean hasElapsed(long sinceNanos, long millis) {
+        return System.nanoTime() - sinceNanos >= TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker(" + upstream + ", " + state + ")";
+    }
+}
@@ -0,0 +1,120 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for the circuit breakers that the proxy keeps for every
+ * upstream it connects to, i.e. for every chained proxy and for every origin
+ * server that it connects to directly.
+ * </p>
+ *
+ * <p>
+ * A circuit breaker starts out closed. It keeps track of the outcomes of the
+ * most recent connection attempts and requests to its upstream, where failed
+ * connections, connect timeouts and requests that time out waiting for a
+ * response count as failures. Once the failure rate reaches the configured
+ * threshold, the breaker opens: chained proxies with an open breaker are
+ * skipped in favor of the next one, and requests to origin servers with an
+ * open breaker fail right away with a 502 Bad Gateway instead of waiting for
+ * the connect timeout.
+ * </p>
+ *
+ * <p>
+ * While a breaker is open, the proxy periodically tries to open a TCP
+ * connection to the upstream in the background and closes the breaker again
+ * as soon as that succeeds. Independently of these probes, a breaker becomes
+ * half-open once it has been open for the configured time, and lets a single
+ * request through to find out whether the upstream has recovered.
+ * </p>
+ */
+public class CircuitBreakerConfiguration {
+    private double failureRateThreshold = 0.5;
+    private int slidingWindowSize = 20;
+    private int minimumNumberOfCalls = 5;
+    private long openStateDurationMillis = 30000;
+    private long probeIntervalMillis = 5000;
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Set the failure rate at which a circuit breaker opens, greater than 0 and at most 1. The default value is 0.5.
+     *
+     * @param failureRateThreshold failure rate at which circuit breakers open
+     * @return this circuit breaker configuration instance, for chaining
+     */
+    public CircuitBreakerConfiguration withFailureRateThreshold(double failureRateThreshold) {
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+            throw new IllegalArgumentException("failureRateThreshold: " + failureRateThreshold + " (expected: 0 < failureRateThreshold <= 1)");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    public int getSlidingWindowSize() {
+        return slidingWindowSize;
+    }
+
+    /**
+     * Set the number of most recent outcomes that the failure rate is calculated from. The default value is 20.
+     *
+     * @param slidingWindowSize number of outcomes to calculate the failure rate from
+     * @return this circuit breaker configuration instance, for chaining
+     */
+    public CircuitBreakerConfiguration withSlidingWindowSize(int slidingWindowSize) {
+        if (slidingWindowSize < 1) {
+            throw new IllegalArgumentException("slidingWindowSize: " + slidingWindowSize + " (expected: > 0)");
+        }
+        this.slidingWindowSize = slidingWindowSize;
+        return this;
+    }
+
+    public int getMinimumNumberOfCalls() {
+        return minimumNumberOfCalls;
+    }
+
+    /**
+     * Set the number of outcomes a circuit breaker needs to have seen before it can open, so that a single failure
+     * doesn't open it. The default value is 5.
+     *
+     * @param minimumNumberOfCalls minimum number of outcomes before the failure rate is considered
+     * @return this circuit breaker configuration instance, for chaining
+     */
+    public CircuitBreakerConfiguration withMinimumNumberOfCalls(int minimumNumberOfCalls) {
+        this.minimumNumberOfCalls = minimumNumberOfCalls;
+        return this;
+    }
+
+    public long getOpenStateDurationMillis() {
+        return openStateDurationMillis;
+    }
+
+    /**
+     * Set how long a circuit breaker stays open before it lets a single request through to see if the upstream has
+     * recovered. The default value is 30 seconds.
+     *
+     * @param openStateDurationMillis time a circuit breaker stays open, in milliseconds
+     * @return this circuit breaker configuration instance, for chaining
+     */
+    public CircuitBreakerConfiguration withOpenStateDurationMillis(long openStateDurationMillis) {
+        this.openStateDurationMillis = openStateDurationMillis;
+        return this;
+    }
+
+    public long getProbeIntervalMillis() {
+        return probeIntervalMillis;
+    }
+
+    /**
+     * Set how often the proxy tries to connect to an upstream whose circuit breaker is open. A value of 0 or less
+     * disables these probes, in which case breakers are only closed again by a successful request after they became
+     * half-open. The default value is 5 seconds.
+     *
+     * @param probeIntervalMillis time between probes, in milliseconds
+     * @return this circuit breaker configuration instance, for chaining
+     */
+    public CircuitBreakerConfiguration withProbeIntervalMillis(long probeIntervalMillis) {
+        this.probeIntervalMillis = probeIntervalMillis;
+        return this;
+    }
+}
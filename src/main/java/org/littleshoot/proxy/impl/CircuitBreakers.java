@@ -0,0 +1,154 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.CircuitBreakerState;
+import org.littleshoot.proxy.TransportProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link CircuitBreaker}s of all upstreams of a proxy server, and
+ * probes the upstreams whose breakers are open in the background.
+ */
+class CircuitBreakers {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakers.class);
+
+    /**
+     * When there are more breakers than this, the closed ones are forgotten, so
+     * that proxying to many different origin servers doesn't use up memory.
+     */
+    private static final int MAX_CIRCUIT_BREAKERS = 10000;
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final CircuitBreakerConfiguration configuration;
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private volatile boolean stopped = false;
+
+    CircuitBreakers(DefaultHttpProxyServer proxyServer, CircuitBreakerConfiguration configuration) {
+        this.proxyServer = proxyServer;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the name of the upstream that a connection to the given server
+     * via the given chained proxy goes to, i.e. the host and port of the
+     * chained proxy, or the host and port of the server when connecting
+     * directly.
+     */
+    static String upstreamFor(ChainedProxy chainedProxy, String serverHostAndPort) {
+        InetSocketAddress chainedProxyAddress = chainedProxy == null ? null : chainedProxy.getChainedProxyAddress();
+        if (chainedProxyAddress == null) {
+            return serverHostAndPort;
+        }
+        return chainedProxyAddress.getHostString() + ':' + chainedProxyAddress.getPort();
+    }
+
+    /**
+     * Returns the circuit breaker of the given upstream, creating it if necessary.
+     */
+    CircuitBreaker forUpstream(String upstream) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(upstream);
+        if (circuitBreaker == null) {
+            if (circuitBreakers.size() >= MAX_CIRCUIT_BREAKERS) {
+                circuitBreakers.values().removeIf(breaker -> breaker.getState() == CircuitBreakerState.CLOSED);
+            }
+            circuitBreaker = circuitBreakers.computeIfAbsent(upstream,
+                    key -> new CircuitBreaker(key, configuration, this));
+        }
+        return circuitBreaker;
+    }
+
+    Map<String, CircuitBreakerState> getStates() {
+        Map<String, CircuitBreakerState> states = new HashMap<>();
+        for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            states.put(circuitBreaker.getUpstream(), circuitBreaker.getState());
+        }
+        return Collections.unmodifiableMap(states);
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    void stateChanged(CircuitBreaker circuitBreaker, CircuitBreakerState previousState, CircuitBreakerState newState) {
+        LOG.info("Circuit breaker for {} changed from {} to {}", circuitBreaker.getUpstream(), previousState, newState);
+
+        for (ActivityTracker tracker : proxyServer.getActivityTrackers()) {
+            try {
+                tracker.circuitBreakerStateChanged(circuitBreaker.getUpstream(), previousState, newState);
+            } catch (Exception e) {
+                LOG.error("Unable to record circuitBreakerStateChanged", e);
+            }
+        }
+
+        if (newState == CircuitBreakerState.OPEN
+                && configuration.getProbeIntervalMillis() > 0
+                && circuitBreaker.getProbeAddress() != null
+                && circuitBreaker.probing.compareAndSet(false, true)) {
+            scheduleProbe(circuitBreaker);
+        }
+    }
+
+    private void scheduleProbe(CircuitBreaker circuitBreaker) {
+        if (stopped) {
+            circuitBreaker.probing.set(false);
+            return;
+        }
+
+        try {
+            proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP).schedule(
+                    () -> probe(circuitBreaker),
+                    configuration.getProbeIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the proxy is shutting down
+            circuitBreaker.probing.set(false);
+        }
+    }
+
+    /**
+     * Tries to open a TCP connection to the upstream of the given breaker,
+     * closing the breaker if that works and trying again later if it doesn't.
+     */
+    private void probe(CircuitBreaker circuitBreaker) {
+        if (stopped || circuitBreaker.getState() == CircuitBreakerState.CLOSED) {
+            circuitBreaker.probing.set(false);
+            return;
+        }
+
+        EventLoopGroup group = proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP);
+        LOG.debug("Probing {} at {}", circuitBreaker.getUpstream(), circuitBreaker.getProbeAddress());
+        ChannelFuture connectFuture = new Bootstrap()
+                .group(group)
+                .channelFactory(NioSocketChannel::new)
+                .handler(new ChannelInboundHandlerAdapter())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, proxyServer.getConnectTimeout())
+                .connect(circuitBreaker.getProbeAddress());
+        connectFuture.addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                future.channel().close();
+                circuitBreaker.probing.set(false);
+                circuitBreaker.probeSucceeded();
+            } else {
+                LOG.debug("Probe of {} failed", circuitBreaker.getUpstream(), future.cause());
+                scheduleProbe(circuitBreaker);
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package org.littleshoot.proxy.impl;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the TLS sessions of clients connecting to a proxy: applies
+ * the {@link TlsSessionCacheConfiguration}, if any, to the session contexts
+ * that the client sessions belong to, and counts how many client handshakes
+ * resumed a session.
+ */
+class ClientTlsSessions {
+    private final TlsSessionCacheConfiguration configuration;
+
+    private final Set<SSLSessionContext> configuredContexts = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    ClientTlsSessions(TlsSessionCacheConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Records a completed client handshake.
+     *
+     * @param session the session that the handshake established or resumed
+     * @param handshakeStartMillis when the handshake started, in milliseconds since the epoch
+     */
+    void handshakeCompleted(SSLSession session, long handshakeStartMillis) {
+        SSLSessionContext sessionContext = session.getSessionContext();
+        if (configuration != null && sessionContext != null && configuredContexts.add(sessionContext)) {
+            sessionContext.setSessionCacheSize(configuration.getSessionCacheSize());
+            sessionContext.setSessionTimeout(configuration.getSessionTimeoutSeconds());
+        }
+
+        handshakes.incrementAndGet();
+        // a full handshake creates its session, a resumed one reuses a session that was created earlier
+        if (session.getCreationTime() < handshakeStartMillis) {
+            resumedHandshakes.incrementAndGet();
+        }
+    }
+
+    long getHandshakes() {
+        return handshakes.get();
+    }
+
+    long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+}
@@ -4,17 +4,24 @@ import com.google.common.io.BaseEncoding;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseNotifier;
 import io.netty.util.ReferenceCounted;
 import org.apache.commons.lang3.StringUtils;
 import org.littleshoot.proxy.*;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -25,7 +32,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.littleshoot.proxy.impl.ConnectionState.*;
 
@@ -57,9 +65,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             200, "Connection established");
 
     /**
-     * Used for case-insensitive comparisons when checking direct proxy request.
+     * The de-facto standard header that browsers send instead of Connection to proxies.
      */
-    private static final Pattern HTTP_SCHEME = Pattern.compile("^http://.*", Pattern.CASE_INSENSITIVE);
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    private static final String HOLD_READS_HANDLER_NAME = "holdReads";
 
     /**
      * Keep track of all ProxyToServerConnections by host+port.
@@ -117,8 +127,48 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile HttpRequest currentRequest;
 
+    /**
+     * Whether a request has been read and its response hasn't been written
+     * completely yet. A CONNECT stays in flight until the tunnel is closed,
+     * unless it's MITMed. Tells idle connections apart when draining.
+     */
+    private volatile boolean exchangeInFlight = false;
+
     private final ClientDetails clientDetails = new ClientDetails();
 
+    /**
+     * Whether we told the client that its CONNECT succeeded and are still
+     * connecting to the server, see {@link OptimisticConnectConfiguration}.
+     */
+    private volatile boolean connectingOptimistically = false;
+
+    /**
+     * What the client sent through an optimistic CONNECT tunnel while we were
+     * still connecting to the server. This is only accessed on the client
+     * channel's event loop.
+     */
+    private Deque<ByteBuf> earlyTunnelData;
+
+    private int earlyTunnelDataBytes;
+
+    /**
+     * Number of calls to extension points that are running on the
+     * {@link ExtensionExecutor} for this connection. Only changed on the
+     * event loop.
+     */
+    private volatile int extensionCallsInFlight;
+
+    /**
+     * True if reading was stopped with {@link #stopReading()}, as opposed to
+     * being paused while extension calls are in flight.
+     */
+    private volatile boolean readingStopped;
+
+    /**
+     * What we read from the client while extension calls were in flight.
+     */
+    private final Deque<Object> heldMessages = new ArrayDeque<>();
+
     ClientToProxyConnection(
             final DefaultHttpProxyServer proxyServer,
             SslEngineSource sslEngineSource,
@@ -131,12 +181,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
         if (sslEngineSource != null) {
             LOG.debug("Enabling encryption of traffic from client to proxy");
+            long handshakeStartMillis = System.currentTimeMillis();
             encrypt(pipeline, sslEngineSource.newSslEngine(),
                     authenticateClients)
                     .addListener(
                             future -> {
                                 if (future.isSuccess()) {
                                     clientSslSession = sslEngine.getSession();
+                                    proxyServer.getClientTlsSessions().handshakeCompleted(clientSslSession, handshakeStartMillis);
                                     recordClientSSLHandshakeSucceeded();
                                 }
                             });
@@ -158,6 +210,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     @Override
     protected ConnectionState readHTTPInitial(HttpRequest httpRequest) {
         LOG.debug("Received raw request: {}", httpRequest);
+        exchangeInFlight = true;
 
         // if we cannot parse the request, immediately return a 400 and close the connection, since we do not know what state
         // the client thinks the connection is in
@@ -174,14 +227,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             return DISCONNECT_REQUESTED;
         }
 
-        boolean authenticationRequired = authenticationRequired(httpRequest);
-
-        if (authenticationRequired) {
-            LOG.debug("Not authenticated!!");
-            return AWAITING_PROXY_AUTHENTICATION;
-        } else {
-            return doReadHTTPInitial(httpRequest);
-        }
+        return authenticateAndReadHTTPInitial(httpRequest);
     }
 
     /**
@@ -203,18 +249,55 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         // Make a copy of the original request
         this.currentRequest = copy(httpRequest);
 
+        if (isAggregatingMessageForFiltering()) {
+            // This is the buffered request that our filters asked for, and we already set them up for its headers
+            stopAggregatingMessageForFiltering();
+            return filterHTTPInitial(httpRequest);
+        }
+
         // Set up our filters based on the original request. If the HttpFiltersSource returns null (meaning the request/response
         // should not be filtered), fall back to the default no-op filter source.
-        HttpFilters filterInstance = proxyServer.getFiltersSource().filterRequest(currentRequest, ctx);
-        if (filterInstance != null) {
-            currentFilters = filterInstance;
-        } else {
-            currentFilters = HttpFiltersAdapter.NOOP_FILTER;
-        }
+        final HttpRequest originalRequest = currentRequest;
+        return callExtension(httpRequest,
+                () -> proxyServer.getFiltersSource().filterRequest(originalRequest, ctx),
+                filterInstance -> {
+                    if (filterInstance != null) {
+                        currentFilters = filterInstance;
+                    } else {
+                        currentFilters = HttpFiltersAdapter.NOOP_FILTER;
+                    }
+
+                    // Buffer the rest of this request if the filters want to see all of it at once
+                    int numberOfBytesToBuffer = currentFilters.getMaximumRequestBufferSizeInBytes();
+                    if (numberOfBytesToBuffer > 0
+                            && proxyServer.getFiltersSource().getMaximumRequestBufferSizeInBytes() <= 0
+                            && !(httpRequest instanceof LastHttpContent)
+                            && !ProxyUtils.isCONNECT(httpRequest)) {
+                        aggregateMessageForFiltering(httpRequest, numberOfBytesToBuffer, true);
+                        return AWAITING_INITIAL;
+                    }
 
-        // Send the request through the clientToProxyRequest filter, and respond with the short-circuit response if required
-        HttpResponse clientToProxyFilterResponse = currentFilters.clientToProxyRequest(httpRequest);
+                    return filterHTTPInitial(httpRequest);
+                });
+    }
+
+    /**
+     * Sends the request through the clientToProxyRequest filter and carries
+     * on with it, unless the filter short-circuits it.
+     */
+    private ConnectionState filterHTTPInitial(HttpRequest httpRequest) {
+        final HttpFilters filters = currentFilters;
+        return callExtension(httpRequest,
+                () -> filters.clientToProxyRequest(httpRequest),
+                clientToProxyFilterResponse -> forwardHTTPInitial(httpRequest, clientToProxyFilterResponse));
+    }
 
+    /**
+     * Responds with the short-circuit response of the clientToProxyRequest
+     * filter, if any, or else finds or creates the connection to the server
+     * and writes the request to it.
+     */
+    private ConnectionState forwardHTTPInitial(HttpRequest httpRequest, HttpResponse clientToProxyFilterResponse) {
         if (clientToProxyFilterResponse != null) {
             LOG.debug("Responding to client with short-circuit response from filter: {}", clientToProxyFilterResponse);
 
@@ -226,9 +309,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        // Parse the request-target once, now that the filters are done with it
+        RequestTarget requestTarget = RequestTarget.parse(httpRequest.uri());
+
         // if origin-form requests are not explicitly enabled, short-circuit requests that treat the proxy as the
         // origin server, to avoid infinite loops
-        if (!proxyServer.isAllowRequestsToOriginServer() && isRequestToOriginServer(httpRequest)) {
+        if (!proxyServer.isAllowRequestsToOriginServer() && isRequestToOriginServer(httpRequest, requestTarget)) {
             boolean keepAlive = writeBadRequest(httpRequest);
             if (keepAlive) {
                 return AWAITING_INITIAL;
@@ -238,7 +324,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         // Identify our server and chained proxy
-        String serverHostAndPort = identifyHostAndPort(httpRequest);
+        String serverHostAndPort = identifyHostAndPort(httpRequest, requestTarget);
 
         LOG.debug("Ensuring that hostAndPort are available in {}",
                 httpRequest.uri());
@@ -252,6 +338,24 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        RequestTarget serverTarget = identifyServerTarget(requestTarget, serverHostAndPort);
+
+        // Reject the request right away if its server already has as many requests in flight as it can handle
+        AdaptiveConcurrencyLimits.Permit concurrencyPermit = null;
+        AdaptiveConcurrencyLimits concurrencyLimits = proxyServer.getAdaptiveConcurrencyLimits();
+        if (concurrencyLimits != null && !ProxyUtils.isCONNECT(httpRequest)) {
+            concurrencyPermit = concurrencyLimits.tryAcquire(serverHostAndPort);
+            if (concurrencyPermit == null) {
+                LOG.debug("Too many requests in flight to {}, responding with Service Unavailable", serverHostAndPort);
+                boolean keepAlive = writeServiceUnavailable(httpRequest);
+                if (keepAlive) {
+                    return AWAITING_INITIAL;
+                } else {
+                    return DISCONNECT_REQUESTED;
+                }
+            }
+        }
+
         LOG.debug("Finding ProxyToServerConnection for: {}", serverHostAndPort);
         currentServerConnection = isMitming() || isTunneling() ?
                 this.currentServerConnection
@@ -270,29 +374,42 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         if (newConnectionRequired) {
-            try {
-                currentServerConnection = ProxyToServerConnection.create(
-                        proxyServer,
-                        this,
-                        serverHostAndPort,
-                        currentFilters,
-                        httpRequest,
-                        globalTrafficShapingHandler);
-                if (currentServerConnection == null) {
-                    LOG.debug("Unable to create server connection, probably no chained proxies available");
-                    boolean keepAlive = writeBadGateway(httpRequest);
-                    resumeReading();
-                    if (keepAlive) {
-                        return AWAITING_INITIAL;
-                    } else {
-                        return DISCONNECT_REQUESTED;
-                    }
-                }
-                // Remember the connection for later
-                serverConnectionsByHostAndPort.put(serverHostAndPort,
-                        currentServerConnection);
-            } catch (UnknownHostException uhe) {
-                LOG.info("Bad Host {}", httpRequest.uri());
+            final AdaptiveConcurrencyLimits.Permit permit = concurrencyPermit;
+            return callExtension(httpRequest,
+                    () -> ProxyToServerConnection.lookupChainedProxies(proxyServer, this, httpRequest),
+                    chainedProxies -> connectAndWriteHTTPInitial(httpRequest, requestTarget, serverTarget,
+                            serverHostAndPort, permit, chainedProxies),
+                    () -> ignoreConcurrencyPermit(permit));
+        } else {
+            LOG.debug("Reusing existing server connection: {}",
+                    currentServerConnection);
+            numberOfReusedServerConnections.incrementAndGet();
+            return writeHTTPInitial(httpRequest, requestTarget, serverTarget, concurrencyPermit);
+        }
+    }
+
+    /**
+     * Creates a connection to the server, through the given chained proxies if
+     * there are any, and writes the request to it.
+     */
+    private ConnectionState connectAndWriteHTTPInitial(HttpRequest httpRequest,
+            RequestTarget requestTarget,
+            RequestTarget serverTarget,
+            String serverHostAndPort,
+            AdaptiveConcurrencyLimits.Permit concurrencyPermit,
+            Queue<ChainedProxy> chainedProxies) {
+        try {
+            currentServerConnection = ProxyToServerConnection.create(
+                    proxyServer,
+                    this,
+                    serverHostAndPort,
+                    serverTarget,
+                    currentFilters,
+                    chainedProxies,
+                    globalTrafficShapingHandler);
+            if (currentServerConnection == null) {
+                LOG.debug("Unable to create server connection, probably no chained proxies available");
+                ignoreConcurrencyPermit(concurrencyPermit);
                 boolean keepAlive = writeBadGateway(httpRequest);
                 resumeReading();
                 if (keepAlive) {
@@ -301,17 +418,38 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                     return DISCONNECT_REQUESTED;
                 }
             }
-        } else {
-            LOG.debug("Reusing existing server connection: {}",
+            // Remember the connection for later
+            serverConnectionsByHostAndPort.put(serverHostAndPort,
                     currentServerConnection);
-            numberOfReusedServerConnections.incrementAndGet();
+        } catch (UnknownHostException uhe) {
+            LOG.info("Bad Host {}", httpRequest.uri());
+            ignoreConcurrencyPermit(concurrencyPermit);
+            boolean keepAlive = writeBadGateway(httpRequest);
+            resumeReading();
+            if (keepAlive) {
+                return AWAITING_INITIAL;
+            } else {
+                return DISCONNECT_REQUESTED;
+            }
         }
 
-        modifyRequestHeadersToReflectProxying(httpRequest);
+        return writeHTTPInitial(httpRequest, requestTarget, serverTarget, concurrencyPermit);
+    }
+
+    /**
+     * Writes the request to the current server connection, unless the
+     * proxyToServerRequest filter short-circuits it.
+     */
+    private ConnectionState writeHTTPInitial(HttpRequest httpRequest,
+            RequestTarget requestTarget,
+            RequestTarget serverTarget,
+            AdaptiveConcurrencyLimits.Permit concurrencyPermit) {
+        modifyRequestHeadersToReflectProxying(httpRequest, requestTarget);
 
         HttpResponse proxyToServerFilterResponse = currentFilters.proxyToServerRequest(httpRequest);
         if (proxyToServerFilterResponse != null) {
             LOG.debug("Responding to client with short-circuit response from filter: {}", proxyToServerFilterResponse);
+            ignoreConcurrencyPermit(concurrencyPermit);
 
             boolean keepAlive = respondWithShortCircuitResponse(proxyToServerFilterResponse);
             if (keepAlive) {
@@ -321,7 +459,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        if (ProxyUtils.isCONNECT(httpRequest) && shouldConnectOptimistically(serverTarget)) {
+            startOptimisticTunnel();
+        }
+
         LOG.debug("Writing request to ProxyToServerConnection");
+        if (concurrencyPermit != null) {
+            currentServerConnection.setConcurrencyPermit(concurrencyPermit);
+        }
         currentServerConnection.write(httpRequest, currentFilters);
 
         // Figure out our next state
@@ -334,6 +479,48 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    /**
+     * Returns true if the client should be told that its CONNECT to the given
+     * server succeeded before we connect, see
+     * {@link OptimisticConnectConfiguration}.
+     */
+    private boolean shouldConnectOptimistically(RequestTarget serverTarget) {
+        OptimisticConnectConfiguration optimisticConnect = proxyServer.getOptimisticConnectConfiguration();
+        return optimisticConnect != null
+                && optimisticConnect.appliesTo(serverTarget)
+                && !proxyServer.shouldMitm(serverTarget.host());
+    }
+
+    /**
+     * Responds to the CONNECT and starts tunneling right away, buffering what
+     * the client sends until the connection to the server is established.
+     * The connection flow leaves the client alone in this case.
+     */
+    private void startOptimisticTunnel() {
+        LOG.debug("Responding to CONNECT before connecting to the server");
+        connectingOptimistically = true;
+        earlyTunnelData = new ArrayDeque<>();
+        earlyTunnelDataBytes = 0;
+        RespondCONNECTSuccessful.execute();
+        // the decoder has yet to pass on the end of the CONNECT request, so only start tunneling once it's done
+        ctx.executor().execute(() -> StartTunneling.execute());
+    }
+
+    /**
+     * Returns true if the client was told that its CONNECT succeeded before
+     * we connected to the server, and we're still connecting.
+     */
+    boolean isConnectingOptimistically() {
+        return connectingOptimistically;
+    }
+
+    private static void ignoreConcurrencyPermit(AdaptiveConcurrencyLimits.Permit concurrencyPermit) {
+        if (concurrencyPermit != null) {
+            // the request never made it to the server
+            concurrencyPermit.ignored();
+        }
+    }
+
     /**
      * Returns true if the specified request is a request to an origin server, rather than to a proxy server. If this
      * request is being MITM'd, this method always returns false. The format of requests to a proxy server are defined
@@ -352,9 +539,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      </pre>
      *
      * @param httpRequest the request to evaluate
+     * @param requestTarget the parsed URI of the request
      * @return true if the specified request is a request to an origin server, otherwise false
      */
-    private boolean isRequestToOriginServer(HttpRequest httpRequest) {
+    private boolean isRequestToOriginServer(HttpRequest httpRequest, RequestTarget requestTarget) {
         // while MITMing, all HTTPS requests are requests to the origin server, since the client does not know
         // the request is being MITM'd by the proxy
         if (httpRequest.method() == HttpMethod.CONNECT || isMitming()) {
@@ -362,8 +550,128 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         // direct requests to the proxy have the path only without a scheme
-        String uri = httpRequest.uri();
-        return !HTTP_SCHEME.matcher(uri).matches();
+        return !requestTarget.isHttpScheme();
+    }
+
+    /**
+     * <p>
+     * Calls an extension point, and then carries on with its result. If there
+     * is an {@link ExtensionExecutor}, the call runs on it and this returns
+     * the current state right away. Until the call returns, what we read from
+     * the client is held back, so that it is processed after the request the
+     * call is for.
+     * </p>
+     *
+     * @param httpRequest the request that the call is for, retained until we carry on with it
+     * @param call the call to the extension point
+     * @param then carries on with the result on the event loop, returning the next state
+     */
+    private <T> ConnectionState callExtension(HttpRequest httpRequest,
+            Supplier<T> call,
+            Function<T, ConnectionState> then) {
+        return callExtension(httpRequest, call, then, () -> {});
+    }
+
+    /**
+     * Like {@link #callExtension(HttpRequest, Supplier, Function)}, but runs
+     * the given cleanup if we don't carry on with the result, because the
+     * call failed or was rejected or the client has gone away in the meantime.
+     */
+    private <T> ConnectionState callExtension(HttpRequest httpRequest,
+            Supplier<T> call,
+            Function<T, ConnectionState> then,
+            Runnable ifAbandoned) {
+        ExtensionExecutor extensionExecutor = proxyServer.getExtensionExecutor();
+        if (extensionExecutor == null) {
+            T result;
+            try {
+                result = call.get();
+            } catch (RuntimeException e) {
+                ifAbandoned.run();
+                throw e;
+            }
+            return then.apply(result);
+        }
+
+        if (extensionCallsInFlight++ == 0) {
+            super.stopReading();
+        }
+        ReferenceCountUtil.retain(httpRequest);
+        extensionExecutor.call(call, ctx.executor()).addListener(future -> {
+            try {
+                if (!channel.isActive()) {
+                    ifAbandoned.run();
+                    return;
+                }
+                if (future.isSuccess()) {
+                    @SuppressWarnings("unchecked")
+                    T result = (T) future.getNow();
+                    become(then.apply(result));
+                } else if (future.cause() instanceof RejectedExecutionException) {
+                    LOG.debug("Too many extension calls waiting for a thread, responding with Service Unavailable");
+                    ifAbandoned.run();
+                    boolean keepAlive = writeServiceUnavailable(httpRequest);
+                    become(keepAlive ? AWAITING_INITIAL : DISCONNECT_REQUESTED);
+                } else {
+                    ifAbandoned.run();
+                    exceptionCaught(future.cause());
+                }
+            } finally {
+                ReferenceCountUtil.release(httpRequest);
+                extensionCallsInFlight--;
+                readHeldMessages();
+            }
+        });
+        return getCurrentState();
+    }
+
+    @Override
+    protected void read(Object msg) {
+        if (extensionCallsInFlight > 0) {
+            // SimpleChannelInboundHandler releases the message once we return
+            heldMessages.add(ReferenceCountUtil.retain(msg));
+            return;
+        }
+        super.read(msg);
+    }
+
+    /**
+     * Reads what was held back while extension calls were in flight, until
+     * another call starts, and resumes reading once everything was read.
+     */
+    private void readHeldMessages() {
+        Object msg;
+        while (extensionCallsInFlight == 0 && (msg = heldMessages.poll()) != null) {
+            if (channel.isActive() && isAggregatingMessageForFiltering()) {
+                // the filters asked for the rest of the message to be aggregated, so it has to go through the aggregator
+                ctx.pipeline().context("idle").fireChannelRead(msg);
+                continue;
+            }
+            try {
+                if (channel.isActive()) {
+                    read(msg);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+        if (extensionCallsInFlight == 0 && !readingStopped) {
+            super.resumeReading();
+        }
+    }
+
+    @Override
+    protected void stopReading() {
+        readingStopped = true;
+        super.stopReading();
+    }
+
+    @Override
+    protected void resumeReading() {
+        readingStopped = false;
+        if (extensionCallsInFlight == 0) {
+            super.resumeReading();
+        }
     }
 
     @Override
@@ -376,9 +684,48 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
     @Override
     protected void readRaw(ByteBuf buf) {
+        if (earlyTunnelData != null) {
+            earlyTunnelData.add(buf.retain());
+            earlyTunnelDataBytes += buf.readableBytes();
+            if (earlyTunnelDataBytes >= proxyServer.getOptimisticConnectConfiguration().getMaxBufferedBytes()) {
+                LOG.debug("Buffered {} bytes while connecting, waiting for the connection", earlyTunnelDataBytes);
+                stopReading();
+            }
+            return;
+        }
         currentServerConnection.write(buf);
     }
 
+    /**
+     * Sends what the client sent through an optimistic CONNECT tunnel while we
+     * were connecting to the server, now that we're connected.
+     */
+    private void flushEarlyTunnelData() {
+        if (earlyTunnelData == null) {
+            return;
+        }
+        LOG.debug("Writing {} bytes that were buffered while connecting", earlyTunnelDataBytes);
+        ByteBuf buf;
+        while ((buf = earlyTunnelData.poll()) != null) {
+            currentServerConnection.write(buf);
+            buf.release();
+        }
+        earlyTunnelData = null;
+        connectingOptimistically = false;
+        resumeReading();
+    }
+
+    private void releaseEarlyTunnelData() {
+        if (earlyTunnelData == null) {
+            return;
+        }
+        ByteBuf buf;
+        while ((buf = earlyTunnelData.poll()) != null) {
+            buf.release();
+        }
+        earlyTunnelData = null;
+    }
+
     /* *************************************************************************
      * Writing
      **************************************************************************/
@@ -440,6 +787,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
             fixHttpVersionHeaderIfNecessary(httpResponse);
             modifyResponseHeadersToReflectProxying(httpResponse);
+
+            if (proxyServer.isDraining()) {
+                // the proxy is being stopped, so this is the last response on this connection
+                HttpUtil.setKeepAlive(httpResponse, false);
+            }
         }
 
         httpObject = filters.proxyToClientResponse(httpObject);
@@ -448,9 +800,15 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             return;
         }
 
+        if (httpObject instanceof LazilyDecompressedFullHttpResponse) {
+            // send the content compressed again, the way the server sent it
+            ((LazilyDecompressedFullHttpResponse) httpObject).restoreContentEncoding();
+        }
+
         write(httpObject);
 
         if (ProxyUtils.isLastChunk(httpObject)) {
+            exchangeInFlight = false;
             writeEmptyBuffer();
         }
 
@@ -477,7 +835,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             HttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
                     CONNECTION_ESTABLISHED);
             response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            ProxyUtils.addVia(response, proxyServer.getProxyAlias());
+            addVia(response);
             return writeToChannel(response);
         }
     };
@@ -491,6 +849,22 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         super.connected();
         become(AWAITING_INITIAL);
         recordClientConnected();
+        proxyServer.registerClientConnection(this);
+    }
+
+    /**
+     * Called when the proxy starts draining its client connections because it
+     * is being stopped. Closes this connection if it's idle. Otherwise the
+     * connection is closed after the current response, see
+     * {@link #shouldCloseClientConnection(HttpRequest, HttpResponse, HttpObject)}.
+     */
+    void drain() {
+        ctx.executor().execute(() -> {
+            if (!exchangeInFlight && !isTunneling()) {
+                LOG.debug("Closing idle connection to client while draining");
+                disconnect();
+            }
+        });
     }
 
     void timedOut(ProxyToServerConnection serverConnection) {
@@ -520,7 +894,13 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 .values()) {
             serverConnection.disconnect();
         }
+        releaseEarlyTunnelData();
+        Object msg;
+        while ((msg = heldMessages.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
         recordClientDisconnected();
+        proxyServer.unregisterClientConnection(this);
     }
 
     /**
@@ -528,7 +908,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     protected void serverConnectionFlowStarted(
             ProxyToServerConnection serverConnection) {
-        stopReading();
+        if (!connectingOptimistically) {
+            stopReading();
+        }
         this.numberOfCurrentlyConnectingServers.incrementAndGet();
     }
 
@@ -545,6 +927,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         become(shouldForwardInitialRequest ? getCurrentState()
                 : AWAITING_INITIAL);
         numberOfCurrentlyConnectedServers.incrementAndGet();
+        releaseHeldReads();
+        if (connectingOptimistically) {
+            ctx.executor().execute(this::flushEarlyTunnelData);
+        }
     }
 
     /**
@@ -559,7 +945,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * <li>If the server was a chained proxy, we fall back to connecting to the
      * ultimate endpoint directly.</li>
      * <li>If the server was the ultimate endpoint, we return a 502 Bad Gateway
-     * to the client.</li>
+     * to the client, or a 503 Service Unavailable or 504 Gateway Timeout if we
+     * never got to connect because of the limit on connections to the
+     * server.</li>
      * </ol>
      * 
      * @param serverConnection
@@ -588,22 +976,40 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                         serverConnection.getRemoteAddress(),
                         lastStateBeforeFailure,
                         cause);
-                connectionFailedUnrecoverably(initialRequest, serverConnection);
+                connectionFailedUnrecoverably(initialRequest, serverConnection, cause);
                 return false;
             }
         } catch (UnknownHostException uhe) {
-            connectionFailedUnrecoverably(initialRequest, serverConnection);
+            connectionFailedUnrecoverably(initialRequest, serverConnection, uhe);
             return false;
         }
     }
 
-    private void connectionFailedUnrecoverably(HttpRequest initialRequest, ProxyToServerConnection serverConnection) {
+    private void connectionFailedUnrecoverably(HttpRequest initialRequest, ProxyToServerConnection serverConnection,
+            Throwable cause) {
         // the connection to the server failed, so disconnect the server and remove the ProxyToServerConnection from the
         // map of open server connections
         serverConnection.disconnect();
+        serverConnection.connectionAbandoned();
         this.serverConnectionsByHostAndPort.remove(serverConnection.getServerHostAndPort());
+        releaseHeldReads();
 
-        boolean keepAlive = writeBadGateway(initialRequest);
+        if (connectingOptimistically) {
+            // we already told the client that the CONNECT succeeded, so all we can do is close the tunnel
+            LOG.debug("Closing optimistic CONNECT tunnel after failing to connect");
+            disconnect();
+            become(DISCONNECT_REQUESTED);
+            return;
+        }
+
+        boolean keepAlive;
+        if (cause instanceof ServerConnectionLimits.QueueFullException) {
+            keepAlive = writeServiceUnavailable(initialRequest);
+        } else if (cause instanceof ServerConnectionLimits.QueueTimeoutException) {
+            keepAlive = writeGatewayTimeout(initialRequest);
+        } else {
+            keepAlive = writeBadGateway(initialRequest);
+        }
         if (keepAlive) {
             become(AWAITING_INITIAL);
         } else {
@@ -757,11 +1163,21 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 proxyServer.getMaxHeaderSize(),
                 proxyServer.getMaxChunkSize()));
 
+        // Compress responses on their way to the client if configured to
+        ResponseCompressionConfiguration responseCompression = proxyServer
+                .getResponseCompressionConfiguration();
+        if (responseCompression != null) {
+            pipeline.addLast("compressor", new ResponseCompressor(
+                    responseCompression,
+                    proxyServer.getResponseCompressionPermits(),
+                    this));
+        }
+
         // Enable aggregation for filtering if necessary
         int numberOfBytesToBuffer = proxyServer.getFiltersSource()
                 .getMaximumRequestBufferSizeInBytes();
         if (numberOfBytesToBuffer > 0) {
-            aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
+            aggregateContentForFiltering(pipeline, numberOfBytesToBuffer, true);
         }
 
         pipeline.addLast("requestReadMonitor", requestReadMonitor);
@@ -844,6 +1260,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        if (proxyServer.isDraining()) {
+            LOG.debug("Closing client connection since the proxy is being stopped: {}", req);
+            return true;
+        }
+
         if (!HttpUtil.isKeepAlive(req)) {
             LOG.debug("Closing client connection since request is not keep alive: {}", req);
             // Here we simply want to close the connection because the
@@ -934,24 +1355,25 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * <p>
      * If authentication is still required, either because no credentials were
      * provided or the credentials were wrong, this writes a 407 response to the
-     * client.
+     * client. Otherwise, it goes on reading the request.
      * </p>
      */
-    private boolean authenticationRequired(HttpRequest request) {
+    private ConnectionState authenticateAndReadHTTPInitial(HttpRequest request) {
 
         if (authenticated.get()) {
-            return false;
+            return doReadHTTPInitial(request);
         }
 
         final ProxyAuthenticator authenticator = proxyServer
                 .getProxyAuthenticator();
 
         if (authenticator == null)
-            return false;
+            return doReadHTTPInitial(request);
 
         if (!request.headers().contains(HttpHeaderNames.PROXY_AUTHORIZATION)) {
+            LOG.debug("Not authenticated!!");
             writeAuthenticationRequired(authenticator.getRealm());
-            return true;
+            return AWAITING_PROXY_AUTHENTICATION;
         }
 
         List<String> values = request.headers().getAll(
@@ -965,20 +1387,25 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         
         String userName = StringUtils.substringBefore(decodedString, ":");
         String password = StringUtils.substringAfter(decodedString, ":");
-        if (!authenticator.authenticate(userName, password)) {
-            writeAuthenticationRequired(authenticator.getRealm());
-            return true;
-        }
-        clientDetails.setUserName(userName);
-
-        LOG.debug("Got proxy authorization!");
-        // We need to remove the header before sending the request on.
-        String authentication = request.headers().get(
-                HttpHeaderNames.PROXY_AUTHORIZATION);
-        LOG.debug(authentication);
-        request.headers().remove(HttpHeaderNames.PROXY_AUTHORIZATION);
-        authenticated.set(true);
-        return false;
+        return callExtension(request,
+                () -> authenticator.authenticate(userName, password),
+                authenticatedNow -> {
+                    if (!authenticatedNow) {
+                        LOG.debug("Not authenticated!!");
+                        writeAuthenticationRequired(authenticator.getRealm());
+                        return AWAITING_PROXY_AUTHENTICATION;
+                    }
+                    clientDetails.setUserName(userName);
+
+                    LOG.debug("Got proxy authorization!");
+                    // We need to remove the header before sending the request on.
+                    String authentication = request.headers().get(
+                            HttpHeaderNames.PROXY_AUTHORIZATION);
+                    LOG.debug(authentication);
+                    request.headers().remove(HttpHeaderNames.PROXY_AUTHORIZATION);
+                    authenticated.set(true);
+                    return doReadHTTPInitial(request);
+                });
     }
 
     private void writeAuthenticationRequired(String realm) {
@@ -995,10 +1422,18 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 + "the credentials required.</p>\n" + "</body></html>\n";
         FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
                 HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED, body);
-        response.headers().set(HttpHeaderNames.DATE, new Date());
+        response.headers().set(HttpHeaderNames.DATE, ProxyUtils.currentDateHeaderValue());
         response.headers().set(HttpHeaderNames.PROXY_AUTHENTICATE,
                 "Basic realm=\"" + (realm == null ? "Restricted Files" : realm) + "\"");
+        boolean draining = proxyServer.isDraining();
+        if (draining) {
+            HttpUtil.setKeepAlive(response, false);
+        }
+        exchangeInFlight = false;
         write(response);
+        if (draining) {
+            disconnect();
+        }
     }
 
     /* *************************************************************************
@@ -1006,11 +1441,20 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      **************************************************************************/
 
     /**
-     * Copy the given {@link HttpRequest} verbatim.
+     * Copy the given {@link HttpRequest} verbatim. The content of a
+     * {@link FullHttpRequest} is shared with the copy rather than duplicated.
      */
     private HttpRequest copy(HttpRequest original) {
         if (original instanceof FullHttpRequest) {
-            return ((FullHttpRequest) original).copy();
+            // The proxy rewrites the headers of the request it forwards, so those are copied, but it never touches the
+            // content. Rather than copying a potentially large body, share it through a read-only view with its own
+            // reader and writer indexes.
+            FullHttpRequest fullRequest = (FullHttpRequest) original;
+            return new DefaultFullHttpRequest(original.protocolVersion(),
+                    original.method(), original.uri(),
+                    fullRequest.content().retainedDuplicate().asReadOnly(),
+                    fullRequest.headers().copy(),
+                    fullRequest.trailingHeaders().copy());
         } else {
             HttpRequest request = new DefaultHttpRequest(original.protocolVersion(),
                     original.method(), original.uri());
@@ -1040,7 +1484,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * If and only if our proxy is not running in transparent mode, modify the
      * request headers to reflect that it was proxied.
      */
-    private void modifyRequestHeadersToReflectProxying(HttpRequest httpRequest) {
+    private void modifyRequestHeadersToReflectProxying(HttpRequest httpRequest, RequestTarget requestTarget) {
         if (isNextHopOriginServer()) {
             /*
              * We are making the request to the origin server, so must modify
@@ -1053,7 +1497,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             LOG.debug("Modifying request for proxy chaining");
             // Strip host from uri
             String uri = httpRequest.uri();
-            String adjustedUri = ProxyUtils.stripHost(uri);
+            String adjustedUri = requestTarget.uri().equals(uri)
+                    ? requestTarget.pathAndQuery()
+                    : ProxyUtils.stripHost(uri);
             LOG.debug("Stripped host from uri: {}    yielding: {}", uri,
                     adjustedUri);
             httpRequest.setUri(adjustedUri);
@@ -1066,9 +1512,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             // Remove sdch from encodings we accept since we can't decode it.
             ProxyUtils.removeSdchEncoding(headers);
             switchProxyConnectionHeader(headers);
-            stripConnectionTokens(headers);
-            stripHopByHopHeaders(headers);
-            ProxyUtils.addVia(httpRequest, proxyServer.getProxyAlias());
+            ProxyUtils.stripConnectionTokens(headers);
+            ProxyUtils.stripHopByHopHeaders(headers);
+            addVia(httpRequest);
         }
     }
 
@@ -1086,6 +1532,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
          */
         switch (currentServerConnection.getChainedProxyType()) {
             case HTTP:
+            case HTTP2:
                 return false;
             case SOCKS4:
             case SOCKS5:
@@ -1107,9 +1554,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         if (!proxyServer.isTransparent()) {
             HttpHeaders headers = httpResponse.headers();
 
-            stripConnectionTokens(headers);
-            stripHopByHopHeaders(headers);
-            ProxyUtils.addVia(httpResponse, proxyServer.getProxyAlias());
+            ProxyUtils.stripConnectionTokens(headers);
+            ProxyUtils.stripHopByHopHeaders(headers);
+            addVia(httpResponse);
 
             /*
              * RFC2616 Section 14.18
@@ -1119,7 +1566,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
              * that recipient or gatewayed via a protocol which requires a Date.
              */
             if (!headers.contains(HttpHeaderNames.DATE)) {
-                headers.set(HttpHeaderNames.DATE, new Date());
+                headers.set(HttpHeaderNames.DATE, ProxyUtils.currentDateHeaderValue());
             }
         }
     }
@@ -1133,53 +1580,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      *            The headers to modify
      */
     private void switchProxyConnectionHeader(HttpHeaders headers) {
-        String proxyConnectionKey = "Proxy-Connection";
-        if (headers.contains(proxyConnectionKey)) {
-            String header = headers.get(proxyConnectionKey);
-            headers.remove(proxyConnectionKey);
+        String header = headers.get(PROXY_CONNECTION);
+        if (header != null) {
+            headers.remove(PROXY_CONNECTION);
             headers.set(HttpHeaderNames.CONNECTION, header);
         }
     }
 
     /**
-     * RFC2616 Section 14.10
-     * 
-     * HTTP/1.1 proxies MUST parse the Connection header field before a message
-     * is forwarded and, for each connection-token in this field, remove any
-     * header field(s) from the message with the same name as the
-     * connection-token.
-     * 
-     * @param headers
-     *            The headers to modify
+     * Adds this proxy to the Via header of the given message.
      */
-    private void stripConnectionTokens(HttpHeaders headers) {
-        if (headers.contains(HttpHeaderNames.CONNECTION)) {
-            for (String headerValue : headers.getAll(HttpHeaderNames.CONNECTION)) {
-                for (String connectionToken : ProxyUtils.splitCommaSeparatedHeaderValues(headerValue)) {
-                    // do not strip out the Transfer-Encoding header if it is specified in the Connection header, since LittleProxy does not
-                    // normally modify the Transfer-Encoding of the message.
-                    if (!HttpHeaderNames.TRANSFER_ENCODING.toString().equals(connectionToken.toLowerCase(Locale.US))) {
-                        headers.remove(connectionToken);
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * Removes all headers that should not be forwarded. See RFC 2616 13.5.1
-     * End-to-end and Hop-by-hop Headers.
-     * 
-     * @param headers
-     *            The headers to modify
-     */
-    private void stripHopByHopHeaders(HttpHeaders headers) {
-        Set<String> headerNames = headers.names();
-        for (String headerName : headerNames) {
-            if (ProxyUtils.shouldRemoveHopByHopHeader(headerName)) {
-                headers.remove(headerName);
-            }
-        }
+    private void addVia(HttpMessage httpMessage) {
+        httpMessage.headers().add(HttpHeaderNames.VIA,
+                proxyServer.getViaHeaderValue(httpMessage.protocolVersion()));
     }
 
     /* *************************************************************************
@@ -1225,6 +1638,28 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         return respondWithShortCircuitResponse(response);
     }
 
+    /**
+     * Tells the client that the proxy can't handle its request right now, because too many requests to the same
+     * server are already waiting. If the Service Unavailable is a response to an HTTP HEAD request, the response
+     * will contain no body, but the Content-Length header will be set to the value it would have been if this 503
+     * Service Unavailable were in response to a GET.
+     *
+     * @param httpRequest the HttpRequest that is resulting in the Service Unavailable response
+     * @return true if the connection will be kept open, or false if it will be disconnected
+     */
+    private boolean writeServiceUnavailable(HttpRequest httpRequest) {
+        String body = "Service Unavailable";
+        FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SERVICE_UNAVAILABLE, body);
+
+        if (ProxyUtils.isHEAD(httpRequest)) {
+            // don't allow any body content in response to a HEAD request
+            response.content().clear();
+        }
+
+        return respondWithShortCircuitResponse(response);
+    }
+
     /**
      * Tells the client that the connection to the server, or possibly to some intermediary service (such as DNS), timed out.
      * If the Gateway Timeout is a response to an HTTP HEAD request, the response will contain no body, but the
@@ -1269,7 +1704,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
         // allow short-circuit messages to close the connection. normally the Connection header would be stripped when modifying
         // the message for proxying, so save the keep-alive status before the modifications are made.
-        boolean isKeepAlive = HttpUtil.isKeepAlive(httpResponse);
+        boolean isKeepAlive = HttpUtil.isKeepAlive(httpResponse) && !proxyServer.isDraining();
 
         // if the response is not a Bad Gateway or Gateway Timeout, modify the headers "as if" the short-circuit response were proxied
         int statusCode = httpResponse.status().code();
@@ -1283,6 +1718,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         write(httpResponse);
 
         if (ProxyUtils.isLastChunk(httpResponse)) {
+            exchangeInFlight = false;
             writeEmptyBuffer();
         }
 
@@ -1297,8 +1733,8 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     /**
      * Identify the host and port for a request.
      */
-    private String identifyHostAndPort(HttpRequest httpRequest) {
-        String hostAndPort = ProxyUtils.parseHostAndPort(httpRequest);
+    private String identifyHostAndPort(HttpRequest httpRequest, RequestTarget requestTarget) {
+        String hostAndPort = requestTarget.hostAndPort();
         if (StringUtils.isBlank(hostAndPort)) {
             List<String> hosts = httpRequest.headers().getAll(
                     HttpHeaderNames.HOST);
@@ -1310,6 +1746,18 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         return hostAndPort;
     }
 
+    /**
+     * Returns the host and port identified by
+     * {@link #identifyHostAndPort(HttpRequest, RequestTarget)} as a parsed
+     * request-target, reusing the request-target of the request unless the
+     * host and port came from the Host header.
+     */
+    private RequestTarget identifyServerTarget(RequestTarget requestTarget, String serverHostAndPort) {
+        return serverHostAndPort.equals(requestTarget.hostAndPort())
+                ? requestTarget
+                : RequestTarget.parse(serverHostAndPort);
+    }
+
     /**
      * Write an empty buffer at the end of a chunked transfer. We need to do
      * this to handle the way Netty creates HttpChunks from responses that
@@ -1335,6 +1783,70 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
     protected void setMitming(boolean isMitming) {
         this.mitming = isMitming;
+        if (isMitming) {
+            // the CONNECT is done, the requests that the client sends through the tunnel are exchanges of their own
+            exchangeInFlight = false;
+        }
+    }
+
+    /**
+     * Encrypts the connection to the client for MITMing while the connection
+     * to the server is still being established. What the client sends once
+     * its handshake is done is held back until the server connection has
+     * succeeded (or failed), so that it isn't read before we're MITMing.
+     *
+     * @return a Future for when the SSL handshake with the client has completed
+     */
+    Future<Channel> encryptHoldingReads(SSLEngine sslEngine) {
+        Promise<Channel> handshake = ctx.executor().newPromise();
+        // on the event loop, so that nothing can be read between adding the two handlers
+        ctx.executor().execute(() -> {
+            String sslHandlerName = ctx.pipeline().get("ssl") == null ? "ssl" : "sslWithServer";
+            encrypt(sslEngine, false).addListener(new PromiseNotifier<>(handshake));
+            ctx.pipeline().addAfter(sslHandlerName, HOLD_READS_HANDLER_NAME, new HoldReadsHandler());
+        });
+        return handshake;
+    }
+
+    /**
+     * Passes on what {@link #encryptHoldingReads(SSLEngine)} held back.
+     */
+    private void releaseHeldReads() {
+        if (ctx.pipeline().get(HOLD_READS_HANDLER_NAME) != null) {
+            ctx.executor().execute(() -> {
+                if (ctx.pipeline().get(HOLD_READS_HANDLER_NAME) != null) {
+                    ctx.pipeline().remove(HOLD_READS_HANDLER_NAME);
+                }
+            });
+        }
+    }
+
+    /**
+     * Holds back everything that's read until it's removed from the pipeline.
+     */
+    private static class HoldReadsHandler extends ChannelInboundHandlerAdapter {
+        private final List<Object> held = new ArrayList<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            held.add(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            // passed on together with the held messages
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            for (Object msg : held) {
+                ctx.fireChannelRead(msg);
+            }
+            if (!held.isEmpty()) {
+                held.clear();
+                ctx.fireChannelReadComplete();
+            }
+        }
     }
 
     /* *************************************************************************
@@ -1414,6 +1926,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    void recordResponseCompressed(long uncompressedBytes, long compressedBytes, long compressionTimeNanos) {
+        try {
+            FlowContext flowContext = flowContext();
+            for (ActivityTracker tracker : proxyServer
+                    .getActivityTrackers()) {
+                tracker.responseCompressed(flowContext,
+                        uncompressedBytes, compressedBytes, compressionTimeNanos);
+            }
+        } catch (Exception e) {
+            LOG.error("Unable to recordResponseCompressed", e);
+        }
+    }
+
     private void recordClientDisconnected() {
         try {
             InetSocketAddress clientAddress = getClientAddress();
@@ -194,22 +194,30 @@ class ConnectionFlow {
     void fail(final Throwable cause) {
         final ConnectionState lastStateBeforeFailure = serverConnection
                 .getCurrentState();
-        serverConnection.disconnect().addListener(
-                (GenericFutureListener) future -> {
-                    synchronized (connectLock) {
-                        if (!clientConnection.serverConnectionFailed(
-                                serverConnection,
-                                lastStateBeforeFailure,
-                                cause)) {
-                            // the connection to the server failed and we are not retrying, so transition to the
-                            // DISCONNECTED state
-                            serverConnection.become(ConnectionState.DISCONNECTED);
-
-                            // We are not retrying our connection, let anyone waiting for a connection know that we're done
-                            notifyThreadsWaitingForConnection();
-                        }
-                    }
-                });
+        Future<Void> disconnectFuture = serverConnection.disconnect();
+        if (disconnectFuture == null) {
+            // we never got as far as opening a channel, e.g. because all chained proxies we raced failed
+            notifyConnectionFailed(lastStateBeforeFailure, cause);
+        } else {
+            disconnectFuture.addListener(
+                    (GenericFutureListener) future -> notifyConnectionFailed(lastStateBeforeFailure, cause));
+        }
+    }
+
+    private void notifyConnectionFailed(ConnectionState lastStateBeforeFailure, Throwable cause) {
+        synchronized (connectLock) {
+            if (!clientConnection.serverConnectionFailed(
+                    serverConnection,
+                    lastStateBeforeFailure,
+                    cause)) {
+                // the connection to the server failed and we are not retrying, so transition to the
+                // DISCONNECTED state
+                serverConnection.become(ConnectionState.DISCONNECTED);
+
+                // We are not retrying our connection, let anyone waiting for a connection know that we're done
+                notifyThreadsWaitingForConnection();
+            }
+        }
     }
 
     /**
@@ -1,6 +1,12 @@
 package org.littleshoot.proxy.impl;
 
 enum ConnectionState {
+    /**
+     * Waiting for the number of connections to the server to drop below its
+     * limit before connecting.
+     */
+    AWAITING_CONNECTION_SLOT(true),
+
     /**
      * Connection attempting to connect.
      */
@@ -4,9 +4,12 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.ChannelMatchers;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.littleshoot.proxy.*;
@@ -18,12 +21,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -98,12 +109,84 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     private final boolean allowRequestsToOriginServer;
     private final boolean acceptProxyProtocol;
     private final boolean sendProxyProtocol;
+    private final boolean lazyResponseDecompression;
+    private final ResponseCompressionConfiguration responseCompressionConfiguration;
+
+    /**
+     * Limits the number of responses that are compressed at the same time.
+     */
+    private final Semaphore responseCompressionPermits;
+
+    private final CircuitBreakerConfiguration circuitBreakerConfiguration;
+
+    /**
+     * The circuit breakers of the upstreams this proxy connects to, or null if circuit breakers are disabled.
+     */
+    private final CircuitBreakers circuitBreakers;
+    private final int racedChainedProxies;
+    private final long chainedProxyRaceStaggerMillis;
+    private final RequestHedgingConfiguration requestHedgingConfiguration;
+
+    /**
+     * Response times, budget and statistics for hedging requests, or null if hedging is disabled.
+     */
+    private final RequestHedging requestHedging;
+    private final ServerConnectionLimitConfiguration serverConnectionLimitConfiguration;
+
+    /**
+     * Open and waiting connections by server, or null if the number of connections to a server is not limited.
+     */
+    private final ServerConnectionLimits serverConnectionLimits;
+    private final AdaptiveConcurrencyLimitConfiguration adaptiveConcurrencyLimitConfiguration;
+
+    /**
+     * Concurrency limits and requests in flight by server, or null if adaptive concurrency limits are disabled.
+     */
+    private final AdaptiveConcurrencyLimits adaptiveConcurrencyLimits;
+    private final boolean retryOnStaleConnections;
+    private final int maxRetryBufferSizeInBytes;
+    private final AtomicLong staleConnectionRetries = new AtomicLong();
+    private final Collection<InetAddress> sourceAddresses;
+
+    /**
+     * Open connections by source address, or null if outgoing connections aren't spread across a pool of addresses.
+     */
+    private final SourceAddressPool sourceAddressPool;
+    private final WarmConnectionConfiguration warmConnectionConfiguration;
+
+    /**
+     * Idle connections to hot destinations, or null if warm connections are disabled.
+     */
+    private final WarmConnections warmConnections;
+    private final TrunkConfiguration trunkConfiguration;
+
+    /**
+     * Trunk connections to chained proxies of type {@link ChainedProxyType#HTTP2}.
+     */
+    private final Trunks trunks;
+    private volatile InetSocketAddress trunkBoundAddress;
+    private final OptimisticConnectConfiguration optimisticConnectConfiguration;
+    private final HandshakeExecutorConfiguration handshakeExecutorConfiguration;
+    private final HandshakeExecutor handshakeExecutor;
+    private final TlsSessionCacheConfiguration tlsSessionCacheConfiguration;
+    private final ClientTlsSessions clientTlsSessions;
+    private final MitmBypassConfiguration mitmBypassConfiguration;
+    private final MitmBypass mitmBypass;
+    private final ExtensionExecutorConfiguration extensionExecutorConfiguration;
+    private final ExtensionExecutor extensionExecutor;
+    private final int drainTimeout;
 
     /**
      * The alias or pseudonym for this proxy, used when adding the Via header.
      */
     private final String proxyAlias;
 
+    /**
+     * Via header values for HTTP/1.0 and HTTP/1.1 messages, computed once from the proxyAlias.
+     */
+    private final CharSequence http10ViaHeaderValue;
+    private final CharSequence http11ViaHeaderValue;
+
     /**
      * True when the proxy has already been stopped by calling {@link #stop()} or {@link #abort()}.
      */
@@ -119,6 +202,18 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      */
     private final ChannelGroup allChannels = new DefaultChannelGroup("HTTP-Proxy-Server", GlobalEventExecutor.INSTANCE);
 
+    /**
+     * The connected clients, for draining them when the proxy is stopped.
+     */
+    private final Set<ClientToProxyConnection> clientConnections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * True once the proxy has started draining client connections, see {@link #drain()}.
+     */
+    private volatile boolean draining = false;
+
+    private volatile int cutOffExchangeCount = 0;
+
     /**
      * JVM shutdown hook to shutdown this proxy server. Declared as a class-level variable to allow removing the shutdown hook when the
      * proxy server is stopped normally.
@@ -203,6 +298,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      *            when true, allow the proxy to handle requests that contain an origin-form URI, as defined in RFC 7230 5.3.1
      * @param acceptProxyProtocol when true, the proxy will accept a proxy protocol header from client
      * @param sendProxyProtocol when true, the proxy will send a proxy protocol header to the server
+     * @param lazyResponseDecompression when true, buffered responses are only decompressed when a filter reads their content
+     * @param responseCompressionConfiguration (optional) if specified, responses to clients are compressed as configured
+     * @param circuitBreakerConfiguration (optional) if specified, the proxy keeps circuit breakers for its upstreams as configured
+     * @param racedChainedProxies the number of chained proxies to connect through in parallel
+     * @param chainedProxyRaceStaggerMillis the delay between starting connections when racing chained proxies, in milliseconds
+     * @param requestHedgingConfiguration (optional) if specified, slow idempotent requests are hedged as configured
+     * @param serverConnectionLimitConfiguration (optional) if specified, the number of connections to each server is limited as configured
+     * @param adaptiveConcurrencyLimitConfiguration (optional) if specified, the number of requests in flight to each server is limited adaptively as configured
+     * @param retryOnStaleConnections true if idempotent requests should be retried when a reused server connection turns out to be closed
+     * @param maxRetryBufferSizeInBytes the largest request body that is kept for retrying a request on a new connection
+     * @param sourceAddresses local addresses that outgoing connections are spread across, or empty to not use a pool
+     * @param warmConnectionConfiguration (optional) if specified, idle connections to hot destinations are kept open as configured
+     * @param trunkConfiguration (optional) configuration of trunk connections to and from other proxies
+     * @param optimisticConnectConfiguration (optional) if specified, CONNECT requests to the configured destinations are answered before the connection to the server is established
+     * @param handshakeExecutorConfiguration (optional) if specified, TLS handshake work runs on a thread pool of its own
+     * @param tlsSessionCacheConfiguration (optional) if specified, sizes and times the cache of client TLS sessions
+     * @param mitmBypassConfiguration (optional) if specified, CONNECTs to the configured and learned hosts are tunneled instead of MITMed
+     * @param extensionExecutorConfiguration (optional) if specified, extension points that may block are called on a thread pool of their own
+     * @param drainTimeout how long to wait for requests and tunnels in flight to finish when stopping gracefully, in seconds
      */
     private DefaultHttpProxyServer(ServerGroup serverGroup,
             TransportProtocol transportProtocol,
@@ -227,7 +341,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             int maxChunkSize,
             boolean allowRequestsToOriginServer,
             boolean acceptProxyProtocol,
-            boolean sendProxyProtocol) {
+            boolean sendProxyProtocol,
+            boolean lazyResponseDecompression,
+            ResponseCompressionConfiguration responseCompressionConfiguration,
+            CircuitBreakerConfiguration circuitBreakerConfiguration,
+            int racedChainedProxies,
+            long chainedProxyRaceStaggerMillis,
+            RequestHedgingConfiguration requestHedgingConfiguration,
+            ServerConnectionLimitConfiguration serverConnectionLimitConfiguration,
+            AdaptiveConcurrencyLimitConfiguration adaptiveConcurrencyLimitConfiguration,
+            boolean retryOnStaleConnections,
+            int maxRetryBufferSizeInBytes,
+            Collection<InetAddress> sourceAddresses,
+            WarmConnectionConfiguration warmConnectionConfiguration,
+            TrunkConfiguration trunkConfiguration,
+            OptimisticConnectConfiguration optimisticConnectConfiguration,
+            HandshakeExecutorConfiguration handshakeExecutorConfiguration,
+            TlsSessionCacheConfiguration tlsSessionCacheConfiguration,
+            MitmBypassConfiguration mitmBypassConfiguration,
+            ExtensionExecutorConfiguration extensionExecutorConfiguration,
+            int drainTimeout) {
         this.serverGroup = serverGroup;
         this.transportProtocol = transportProtocol;
         this.requestedAddress = requestedAddress;
@@ -262,12 +395,63 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         } else {
             this.proxyAlias = proxyAlias;
         }
+        this.http10ViaHeaderValue = ProxyUtils.viaHeaderValue(HttpVersion.HTTP_1_0, this.proxyAlias);
+        this.http11ViaHeaderValue = ProxyUtils.viaHeaderValue(HttpVersion.HTTP_1_1, this.proxyAlias);
         this.maxInitialLineLength = maxInitialLineLength;
         this.maxHeaderSize = maxHeaderSize;
         this.maxChunkSize = maxChunkSize;
         this.allowRequestsToOriginServer = allowRequestsToOriginServer;
         this.acceptProxyProtocol = acceptProxyProtocol;
         this.sendProxyProtocol = sendProxyProtocol;
+        this.lazyResponseDecompression = lazyResponseDecompression;
+        this.responseCompressionConfiguration = responseCompressionConfiguration;
+        this.responseCompressionPermits = responseCompressionConfiguration != null
+                ? new Semaphore(responseCompressionConfiguration.getMaxConcurrentCompressions())
+                : null;
+        this.circuitBreakerConfiguration = circuitBreakerConfiguration;
+        this.circuitBreakers = circuitBreakerConfiguration != null
+                ? new CircuitBreakers(this, circuitBreakerConfiguration)
+                : null;
+        this.racedChainedProxies = racedChainedProxies;
+        this.chainedProxyRaceStaggerMillis = chainedProxyRaceStaggerMillis;
+        this.requestHedgingConfiguration = requestHedgingConfiguration;
+        this.requestHedging = requestHedgingConfiguration != null
+                ? new RequestHedging(requestHedgingConfiguration)
+                : null;
+        this.serverConnectionLimitConfiguration = serverConnectionLimitConfiguration;
+        this.serverConnectionLimits = serverConnectionLimitConfiguration != null
+                ? new ServerConnectionLimits(serverConnectionLimitConfiguration, this)
+                : null;
+        this.adaptiveConcurrencyLimitConfiguration = adaptiveConcurrencyLimitConfiguration;
+        this.adaptiveConcurrencyLimits = adaptiveConcurrencyLimitConfiguration != null
+                ? new AdaptiveConcurrencyLimits(adaptiveConcurrencyLimitConfiguration)
+                : null;
+        this.retryOnStaleConnections = retryOnStaleConnections;
+        this.maxRetryBufferSizeInBytes = maxRetryBufferSizeInBytes;
+        this.sourceAddresses = sourceAddresses;
+        this.sourceAddressPool = !sourceAddresses.isEmpty()
+                ? new SourceAddressPool(sourceAddresses)
+                : null;
+        this.warmConnectionConfiguration = warmConnectionConfiguration;
+        this.warmConnections = warmConnectionConfiguration != null
+                ? new WarmConnections(this, warmConnectionConfiguration)
+                : null;
+        this.trunkConfiguration = trunkConfiguration;
+        this.trunks = new Trunks(this, trunkConfiguration != null ? trunkConfiguration : new TrunkConfiguration());
+        this.optimisticConnectConfiguration = optimisticConnectConfiguration;
+        this.handshakeExecutorConfiguration = handshakeExecutorConfiguration;
+        this.handshakeExecutor = handshakeExecutorConfiguration != null
+                ? new HandshakeExecutor(handshakeExecutorConfiguration, serverGroup.newThreadFactory("Handshake"))
+                : null;
+        this.tlsSessionCacheConfiguration = tlsSessionCacheConfiguration;
+        this.clientTlsSessions = new ClientTlsSessions(tlsSessionCacheConfiguration);
+        this.mitmBypassConfiguration = mitmBypassConfiguration;
+        this.mitmBypass = mitmBypassConfiguration != null ? new MitmBypass(mitmBypassConfiguration) : null;
+        this.extensionExecutorConfiguration = extensionExecutorConfiguration;
+        this.extensionExecutor = extensionExecutorConfiguration != null
+                ? new ExtensionExecutor(extensionExecutorConfiguration, serverGroup.newThreadFactory("Extension"))
+                : null;
+        this.drainTimeout = drainTimeout;
     }
 
     /**
@@ -363,6 +547,364 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return sendProxyProtocol;
     }
 
+    public boolean isLazyResponseDecompression() {
+        return lazyResponseDecompression;
+    }
+
+    public ResponseCompressionConfiguration getResponseCompressionConfiguration() {
+        return responseCompressionConfiguration;
+    }
+
+    Semaphore getResponseCompressionPermits() {
+        return responseCompressionPermits;
+    }
+
+    public CircuitBreakerConfiguration getCircuitBreakerConfiguration() {
+        return circuitBreakerConfiguration;
+    }
+
+    /**
+     * Returns the current state of the circuit breaker of every upstream the proxy has connected to, keyed by the
+     * host and port of the upstream. The map is empty if circuit breakers are disabled.
+     */
+    public Map<String, CircuitBreakerState> getCircuitBreakerStates() {
+        return circuitBreakers == null ? Collections.emptyMap() : circuitBreakers.getStates();
+    }
+
+    CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    public int getRacedChainedProxies() {
+        return racedChainedProxies;
+    }
+
+    public long getChainedProxyRaceStaggerMillis() {
+        return chainedProxyRaceStaggerMillis;
+    }
+
+    public RequestHedgingConfiguration getRequestHedgingConfiguration() {
+        return requestHedgingConfiguration;
+    }
+
+    /**
+     * Returns the number of requests that were eligible for hedging since the proxy started, or 0 if hedging is
+     * disabled.
+     */
+    public long getHedgeableRequestCount() {
+        return requestHedging == null ? 0 : requestHedging.getHedgeableRequests();
+    }
+
+    /**
+     * Returns the number of requests for which a hedge was sent since the proxy started.
+     */
+    public long getHedgedRequestCount() {
+        return requestHedging == null ? 0 : requestHedging.getHedgedRequests();
+    }
+
+    /**
+     * Returns the number of hedges whose response arrived before the response to the original request.
+     */
+    public long getHedgeWinCount() {
+        return requestHedging == null ? 0 : requestHedging.getHedgesWon();
+    }
+
+    RequestHedging getRequestHedging() {
+        return requestHedging;
+    }
+
+    public ServerConnectionLimitConfiguration getServerConnectionLimitConfiguration() {
+        return serverConnectionLimitConfiguration;
+    }
+
+    /**
+     * Returns the number of server connections that are currently waiting for a connection to the same server to be
+     * closed, or 0 if server connections are not limited.
+     */
+    public int getServerConnectionQueueDepth() {
+        return serverConnectionLimits == null ? 0 : serverConnectionLimits.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of server connections that are currently waiting, by the host and port of the server they
+     * are waiting for. Servers without waiting connections are left out.
+     */
+    public Map<String, Integer> getServerConnectionQueueDepths() {
+        return serverConnectionLimits == null ? Collections.<String, Integer>emptyMap() : serverConnectionLimits.getQueueDepths();
+    }
+
+    /**
+     * Returns the number of server connections that had to wait since the proxy started.
+     */
+    public long getQueuedServerConnectionCount() {
+        return serverConnectionLimits == null ? 0 : serverConnectionLimits.getQueuedConnections();
+    }
+
+    /**
+     * Returns the total time that server connections spent waiting before they were allowed to connect, in
+     * nanoseconds.
+     */
+    public long getServerConnectionQueueWaitNanos() {
+        return serverConnectionLimits == null ? 0 : serverConnectionLimits.getQueueWaitNanos();
+    }
+
+    /**
+     * Returns the number of requests that were answered with a 503 Service Unavailable because the queue of their
+     * server was full.
+     */
+    public long getRejectedServerConnectionCount() {
+        return serverConnectionLimits == null ? 0 : serverConnectionLimits.getRejectedConnections();
+    }
+
+    /**
+     * Returns the number of requests that were answered with a 504 Gateway Timeout because they waited for their
+     * server for too long.
+     */
+    public long getTimedOutServerConnectionCount() {
+        return serverConnectionLimits == null ? 0 : serverConnectionLimits.getTimedOutConnections();
+    }
+
+    ServerConnectionLimits getServerConnectionLimits() {
+        return serverConnectionLimits;
+    }
+
+    public AdaptiveConcurrencyLimitConfiguration getAdaptiveConcurrencyLimitConfiguration() {
+        return adaptiveConcurrencyLimitConfiguration;
+    }
+
+    /**
+     * Returns the current concurrency limits, by the host and port of the server they apply to, or an empty map if
+     * adaptive concurrency limits are disabled.
+     */
+    public Map<String, Integer> getConcurrencyLimits() {
+        return adaptiveConcurrencyLimits == null ? Collections.<String, Integer>emptyMap() : adaptiveConcurrencyLimits.getLimits();
+    }
+
+    /**
+     * Returns the number of requests that were answered with a 503 Service Unavailable because their server was at
+     * its concurrency limit.
+     */
+    public long getConcurrencyLimitedRequestCount() {
+        return adaptiveConcurrencyLimits == null ? 0 : adaptiveConcurrencyLimits.getRejectedRequests();
+    }
+
+    AdaptiveConcurrencyLimits getAdaptiveConcurrencyLimits() {
+        return adaptiveConcurrencyLimits;
+    }
+
+    public boolean isRetryOnStaleConnections() {
+        return retryOnStaleConnections;
+    }
+
+    /**
+     * Returns the number of requests that were sent again because the reused connection they were sent over was
+     * closed by the server before it responded.
+     */
+    public long getStaleConnectionRetryCount() {
+        return staleConnectionRetries.get();
+    }
+
+    void recordStaleConnectionRetry() {
+        staleConnectionRetries.incrementAndGet();
+    }
+
+    public int getMaxRetryBufferSizeInBytes() {
+        return maxRetryBufferSizeInBytes;
+    }
+
+    public Collection<InetAddress> getSourceAddresses() {
+        return sourceAddresses;
+    }
+
+    SourceAddressPool getSourceAddressPool() {
+        return sourceAddressPool;
+    }
+
+    /**
+     * Returns the number of open connections to servers and chained proxies that are bound to each address of the
+     * source address pool, or an empty map if there is no pool.
+     */
+    public Map<InetAddress, Integer> getSourceAddressConnectionCounts() {
+        return sourceAddressPool == null ? Collections.emptyMap() : sourceAddressPool.getConnectionCounts();
+    }
+
+    public WarmConnectionConfiguration getWarmConnectionConfiguration() {
+        return warmConnectionConfiguration;
+    }
+
+    WarmConnections getWarmConnections() {
+        return warmConnections;
+    }
+
+    /**
+     * Returns the number of idle warm connections to each destination, see
+     * {@link WarmConnectionConfiguration}. Servers are identified by their host and port, and chained proxies by
+     * "http-proxy " or "https-proxy " followed by their host and port.
+     */
+    public Map<String, Integer> getIdleWarmConnectionCounts() {
+        return warmConnections == null ? Collections.emptyMap() : warmConnections.getIdleConnectionCounts();
+    }
+
+    /**
+     * Returns the number of connections that took over a warm connection instead of connecting.
+     */
+    public long getWarmConnectionHitCount() {
+        return warmConnections == null ? 0 : warmConnections.getHits();
+    }
+
+    /**
+     * Returns the number of connections that could have taken over a warm connection, but had to connect because
+     * there was no idle warm connection to their destination.
+     */
+    public long getWarmConnectionMissCount() {
+        return warmConnections == null ? 0 : warmConnections.getMisses();
+    }
+
+    public TrunkConfiguration getTrunkConfiguration() {
+        return trunkConfiguration;
+    }
+
+    Trunks getTrunks() {
+        return trunks;
+    }
+
+    /**
+     * Returns the address this proxy accepts trunk connections on, or null if it doesn't accept them.
+     */
+    public InetSocketAddress getTrunkListenAddress() {
+        return trunkBoundAddress;
+    }
+
+    /**
+     * Returns the number of open trunk connections to each chained proxy of type {@link ChainedProxyType#HTTP2},
+     * identified by "http-proxy " or "https-proxy " followed by its host and port.
+     */
+    public Map<String, Integer> getTrunkConnectionCounts() {
+        return trunks.getConnectionCounts();
+    }
+
+    public OptimisticConnectConfiguration getOptimisticConnectConfiguration() {
+        return optimisticConnectConfiguration;
+    }
+
+    public HandshakeExecutorConfiguration getHandshakeExecutorConfiguration() {
+        return handshakeExecutorConfiguration;
+    }
+
+    /**
+     * Returns a new {@link SslHandler} for the given engine, which runs its handshake work on the handshake thread
+     * pool if there is one.
+     */
+    SslHandler newSslHandler(SSLEngine sslEngine) {
+        return handshakeExecutor != null ? handshakeExecutor.newSslHandler(sslEngine) : new SslHandler(sslEngine);
+    }
+
+    /**
+     * Returns the number of pieces of handshake work that are waiting for a handshake thread, or 0 if there is no
+     * handshake thread pool.
+     */
+    public int getHandshakeQueueDepth() {
+        return handshakeExecutor == null ? 0 : handshakeExecutor.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that completed since the proxy started, or 0 if there is no handshake
+     * thread pool.
+     */
+    public long getHandshakeCount() {
+        return handshakeExecutor == null ? 0 : handshakeExecutor.getHandshakes();
+    }
+
+    /**
+     * Returns the total time that the completed TLS handshakes took, in nanoseconds, or 0 if there is no handshake
+     * thread pool.
+     */
+    public long getHandshakeNanos() {
+        return handshakeExecutor == null ? 0 : handshakeExecutor.getHandshakeNanos();
+    }
+
+    /**
+     * Returns the number of pieces of handshake work that ran on a worker thread because the queue of the handshake
+     * thread pool was full.
+     */
+    public long getHandshakeTasksRunOnWorkerThreads() {
+        return handshakeExecutor == null ? 0 : handshakeExecutor.getTasksRunOnCaller();
+    }
+
+    public TlsSessionCacheConfiguration getTlsSessionCacheConfiguration() {
+        return tlsSessionCacheConfiguration;
+    }
+
+    ClientTlsSessions getClientTlsSessions() {
+        return clientTlsSessions;
+    }
+
+    /**
+     * Returns the number of TLS handshakes with clients that completed since the proxy started.
+     */
+    public long getClientTlsHandshakeCount() {
+        return clientTlsSessions.getHandshakes();
+    }
+
+    /**
+     * Returns the number of TLS handshakes with clients that resumed an earlier session instead of establishing a new
+     * one.
+     */
+    public long getClientTlsResumedHandshakeCount() {
+        return clientTlsSessions.getResumedHandshakes();
+    }
+
+    public MitmBypassConfiguration getMitmBypassConfiguration() {
+        return mitmBypassConfiguration;
+    }
+
+    MitmBypass getMitmBypass() {
+        return mitmBypass;
+    }
+
+    /**
+     * Returns true if CONNECTs to the given host are MITMed, i.e. if there is a {@link MitmManager} and the host is
+     * not bypassed.
+     */
+    boolean shouldMitm(String host) {
+        return mitmManager != null && (mitmBypass == null || !mitmBypass.bypasses(host));
+    }
+
+    /**
+     * Returns the number of hosts that are tunneled to because the handshakes of their clients kept failing.
+     */
+    public int getLearnedMitmBypassHostCount() {
+        return mitmBypass == null ? 0 : mitmBypass.getLearnedHostCount();
+    }
+
+    public ExtensionExecutorConfiguration getExtensionExecutorConfiguration() {
+        return extensionExecutorConfiguration;
+    }
+
+    ExtensionExecutor getExtensionExecutor() {
+        return extensionExecutor;
+    }
+
+    /**
+     * Returns the number of extension calls that are waiting for a thread, or 0 if there is no extension thread pool.
+     */
+    public int getExtensionQueueDepth() {
+        return extensionExecutor == null ? 0 : extensionExecutor.getQueueDepth();
+    }
+
+    public int getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Returns the number of client connections that were closed in the middle of a request or a CONNECT tunnel
+     * because they didn't finish within the drain timeout when this proxy was stopped, or 0 if it hasn't been
+     * stopped gracefully.
+     */
+    public int getCutOffExchangeCount() {
+        return cutOffExchangeCount;
+    }
+
     @Override
     public HttpProxyServerBootstrap clone() {
         return new DefaultHttpProxyServerBootstrap(serverGroup,
@@ -387,7 +929,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     maxInitialLineLength,
                     maxHeaderSize,
                     maxChunkSize,
-                    allowRequestsToOriginServer);
+                    allowRequestsToOriginServer,
+                    lazyResponseDecompression,
+                    responseCompressionConfiguration,
+                    circuitBreakerConfiguration,
+                    racedChainedProxies,
+                    chainedProxyRaceStaggerMillis,
+                    requestHedgingConfiguration,
+                    serverConnectionLimitConfiguration,
+                    adaptiveConcurrencyLimitConfiguration,
+                    retryOnStaleConnections,
+                    maxRetryBufferSizeInBytes,
+                    sourceAddresses,
+                    warmConnectionConfiguration,
+                    trunkConfiguration,
+                    optimisticConnectConfiguration,
+                    handshakeExecutorConfiguration,
+                    tlsSessionCacheConfiguration,
+                    mitmBypassConfiguration,
+                    extensionExecutorConfiguration,
+                    drainTimeout);
     }
 
     @Override
@@ -415,6 +976,24 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 LOG.info("Shutting down proxy server immediately (non-graceful)");
             }
 
+            if (warmConnections != null) {
+                warmConnections.stop();
+            }
+
+            if (graceful && drainTimeout > 0) {
+                drain();
+            }
+
+            if (circuitBreakers != null) {
+                circuitBreakers.stop();
+            }
+            if (handshakeExecutor != null) {
+                handshakeExecutor.stop();
+            }
+            if (extensionExecutor != null) {
+                extensionExecutor.stop();
+            }
+
             closeAllChannels(graceful);
 
             serverGroup.unregisterProxyServer(this, graceful);
@@ -430,6 +1009,69 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         }
     }
 
+    /**
+     * Stops accepting connections and lets the connected clients finish the
+     * requests and tunnels that are in flight, for at most the drain timeout.
+     * Idle client connections are closed right away, the others after their
+     * current response. Records how many connections were still busy when the
+     * timeout expired; they are closed along with all other channels
+     * afterwards.
+     */
+    private void drain() {
+        LOG.info("Draining {} client connections for up to {} seconds", clientConnections.size(), drainTimeout);
+        allChannels.close(ChannelMatchers.isServerChannel()).awaitUninterruptibly(10, TimeUnit.SECONDS);
+
+        draining = true;
+        for (ClientToProxyConnection clientConnection : clientConnections) {
+            clientConnection.drain();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeout);
+        for (ClientToProxyConnection clientConnection : clientConnections) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                break;
+            }
+            try {
+                clientConnection.channel.closeFuture().await(remainingNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while draining client connections.");
+                break;
+            }
+        }
+
+        // closed connections may not have been unregistered yet
+        cutOffExchangeCount = (int) clientConnections.stream()
+                .filter(clientConnection -> clientConnection.channel.isOpen())
+                .count();
+        if (cutOffExchangeCount > 0) {
+            LOG.warn("Cutting off {} requests and tunnels that didn't finish within {} seconds",
+                    cutOffExchangeCount, drainTimeout);
+        } else {
+            LOG.info("Drained all client connections");
+        }
+    }
+
+    /**
+     * Returns true once this proxy is being stopped gracefully and is draining
+     * its client connections.
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    void registerClientConnection(ClientToProxyConnection clientConnection) {
+        clientConnections.add(clientConnection);
+        if (draining) {
+            clientConnection.drain();
+        }
+    }
+
+    void unregisterClientConnection(ClientToProxyConnection clientConnection) {
+        clientConnections.remove(clientConnection);
+    }
+
     /**
      * Register a new {@link Channel} with this server, for later closing.
      */
@@ -526,9 +1168,56 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         this.boundAddress = ((InetSocketAddress) future.channel().localAddress());
         LOG.info("Proxy started at address: " + this.boundAddress);
 
+        if (trunkConfiguration != null && trunkConfiguration.getListenPort() >= 0) {
+            startAcceptingTrunks();
+        }
+
+        if (warmConnections != null) {
+            warmConnections.start();
+        }
+
         Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
     }
 
+    /**
+     * Accepts trunk connections from other proxies on the configured port of
+     * the same address that the proxy itself listens on. Every stream of a
+     * trunk connection gets its own {@link ClientToProxyConnection}.
+     */
+    private void startAcceptingTrunks() {
+        ServerBootstrap serverBootstrap = new ServerBootstrap().group(
+                serverGroup.getClientToProxyAcceptorPoolForTransport(TransportProtocol.TCP),
+                serverGroup.getClientToProxyWorkerPoolForTransport(TransportProtocol.TCP))
+                .channelFactory(NioServerSocketChannel::new)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    protected void initChannel(Channel ch) {
+                        registerChannel(ch);
+                        trunks.initAcceptedChannel(ch.pipeline(),
+                                sslEngineSource != null ? sslEngineSource.newSslEngine() : null,
+                                new ChannelInitializer<Channel>() {
+                                    protected void initChannel(Channel stream) {
+                                        new ClientToProxyConnection(
+                                                DefaultHttpProxyServer.this,
+                                                null,
+                                                false,
+                                                stream.pipeline(),
+                                                globalTrafficShapingHandler);
+                                    }
+                                });
+                    }
+                });
+        InetSocketAddress trunkAddress = new InetSocketAddress(boundAddress.getAddress(),
+                trunkConfiguration.getListenPort());
+        ChannelFuture future = serverBootstrap.bind(trunkAddress).awaitUninterruptibly();
+        if (future.cause() != null) {
+            throw new RuntimeException(future.cause());
+        }
+        registerChannel(future.channel());
+
+        this.trunkBoundAddress = ((InetSocketAddress) future.channel().localAddress());
+        LOG.info("Proxy accepting trunk connections at address: " + this.trunkBoundAddress);
+    }
+
     protected ChainedProxyManager getChainProxyManager() {
         return chainProxyManager;
     }
@@ -557,6 +1246,19 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return proxyAlias;
     }
 
+    /**
+     * Returns the value this proxy adds to the Via header of messages with the given protocol version.
+     */
+    CharSequence getViaHeaderValue(HttpVersion protocolVersion) {
+        if (HttpVersion.HTTP_1_1.equals(protocolVersion)) {
+            return http11ViaHeaderValue;
+        } else if (HttpVersion.HTTP_1_0.equals(protocolVersion)) {
+            return http10ViaHeaderValue;
+        } else {
+            return ProxyUtils.viaHeaderValue(protocolVersion, proxyAlias);
+        }
+    }
+
 
     protected EventLoopGroup getProxyToServerWorkerFor(TransportProtocol transportProtocol) {
         return serverGroup.getProxyToServerWorkerPoolForTransport(transportProtocol);
@@ -594,6 +1296,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         private boolean allowRequestToOriginServer = false;
         private boolean acceptProxyProtocol = false;
         private boolean sendProxyProtocol = false;
+        private boolean lazyResponseDecompression = false;
+        private ResponseCompressionConfiguration responseCompressionConfiguration = null;
+        private CircuitBreakerConfiguration circuitBreakerConfiguration = null;
+        private int racedChainedProxies = 1;
+        private long chainedProxyRaceStaggerMillis = 0;
+        private RequestHedgingConfiguration requestHedgingConfiguration = null;
+        private ServerConnectionLimitConfiguration serverConnectionLimitConfiguration = null;
+        private AdaptiveConcurrencyLimitConfiguration adaptiveConcurrencyLimitConfiguration = null;
+        private boolean retryOnStaleConnections = true;
+        private int maxRetryBufferSizeInBytes = 65536;
+        private Collection<InetAddress> sourceAddresses = Collections.emptyList();
+        private WarmConnectionConfiguration warmConnectionConfiguration = null;
+        private TrunkConfiguration trunkConfiguration = null;
+        private OptimisticConnectConfiguration optimisticConnectConfiguration = null;
+        private HandshakeExecutorConfiguration handshakeExecutorConfiguration = null;
+        private TlsSessionCacheConfiguration tlsSessionCacheConfiguration = null;
+        private MitmBypassConfiguration mitmBypassConfiguration = null;
+        private ExtensionExecutorConfiguration extensionExecutorConfiguration = null;
+        private int drainTimeout = 10;
 
         private DefaultHttpProxyServerBootstrap() {
         }
@@ -618,7 +1339,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 int maxInitialLineLength,
                 int maxHeaderSize,
                 int maxChunkSize,
-                boolean allowRequestToOriginServer) {
+                boolean allowRequestToOriginServer,
+                boolean lazyResponseDecompression,
+                ResponseCompressionConfiguration responseCompressionConfiguration,
+                CircuitBreakerConfiguration circuitBreakerConfiguration,
+                int racedChainedProxies,
+                long chainedProxyRaceStaggerMillis,
+                RequestHedgingConfiguration requestHedgingConfiguration,
+                ServerConnectionLimitConfiguration serverConnectionLimitConfiguration,
+                AdaptiveConcurrencyLimitConfiguration adaptiveConcurrencyLimitConfiguration,
+                boolean retryOnStaleConnections,
+                int maxRetryBufferSizeInBytes,
+                Collection<InetAddress> sourceAddresses,
+                WarmConnectionConfiguration warmConnectionConfiguration,
+                TrunkConfiguration trunkConfiguration,
+                OptimisticConnectConfiguration optimisticConnectConfiguration,
+                HandshakeExecutorConfiguration handshakeExecutorConfiguration,
+                TlsSessionCacheConfiguration tlsSessionCacheConfiguration,
+                MitmBypassConfiguration mitmBypassConfiguration,
+                ExtensionExecutorConfiguration extensionExecutorConfiguration,
+                int drainTimeout) {
             this.serverGroup = serverGroup;
             this.transportProtocol = transportProtocol;
             this.requestedAddress = requestedAddress;
@@ -644,6 +1384,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         	this.maxHeaderSize = maxHeaderSize;
         	this.maxChunkSize = maxChunkSize;
         	this.allowRequestToOriginServer = allowRequestToOriginServer;
+            this.lazyResponseDecompression = lazyResponseDecompression;
+            this.responseCompressionConfiguration = responseCompressionConfiguration;
+            this.circuitBreakerConfiguration = circuitBreakerConfiguration;
+            this.racedChainedProxies = racedChainedProxies;
+            this.chainedProxyRaceStaggerMillis = chainedProxyRaceStaggerMillis;
+            this.requestHedgingConfiguration = requestHedgingConfiguration;
+            this.serverConnectionLimitConfiguration = serverConnectionLimitConfiguration;
+            this.adaptiveConcurrencyLimitConfiguration = adaptiveConcurrencyLimitConfiguration;
+            this.retryOnStaleConnections = retryOnStaleConnections;
+            this.maxRetryBufferSizeInBytes = maxRetryBufferSizeInBytes;
+            this.sourceAddresses = sourceAddresses;
+            this.warmConnectionConfiguration = warmConnectionConfiguration;
+            this.trunkConfiguration = trunkConfiguration;
+            this.optimisticConnectConfiguration = optimisticConnectConfiguration;
+            this.handshakeExecutorConfiguration = handshakeExecutorConfiguration;
+            this.tlsSessionCacheConfiguration = tlsSessionCacheConfiguration;
+            this.mitmBypassConfiguration = mitmBypassConfiguration;
+            this.extensionExecutorConfiguration = extensionExecutorConfiguration;
+            this.drainTimeout = drainTimeout;
         }
 
         private DefaultHttpProxyServerBootstrap(Properties props) {
@@ -861,6 +1620,123 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             return this;
         }
 
+        @Override
+        public HttpProxyServerBootstrap withLazyResponseDecompression(boolean lazyResponseDecompression) {
+            this.lazyResponseDecompression = lazyResponseDecompression;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withResponseCompression(ResponseCompressionConfiguration configuration) {
+            this.responseCompressionConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withCircuitBreakers(CircuitBreakerConfiguration configuration) {
+            this.circuitBreakerConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withRacedChainedProxies(int racedChainedProxies) {
+            this.racedChainedProxies = racedChainedProxies;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withChainedProxyRaceStaggerMillis(long chainedProxyRaceStaggerMillis) {
+            this.chainedProxyRaceStaggerMillis = chainedProxyRaceStaggerMillis;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withRequestHedging(RequestHedgingConfiguration configuration) {
+            this.requestHedgingConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withServerConnectionLimits(ServerConnectionLimitConfiguration configuration) {
+            this.serverConnectionLimitConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withAdaptiveConcurrencyLimits(AdaptiveConcurrencyLimitConfiguration configuration) {
+            this.adaptiveConcurrencyLimitConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withRetryOnStaleConnections(boolean retryOnStaleConnections) {
+            this.retryOnStaleConnections = retryOnStaleConnections;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMaxRetryBufferSizeInBytes(int maxRetryBufferSizeInBytes) {
+            this.maxRetryBufferSizeInBytes = maxRetryBufferSizeInBytes;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withSourceAddresses(Collection<InetAddress> sourceAddresses) {
+            this.sourceAddresses = Collections.unmodifiableList(new ArrayList<>(sourceAddresses));
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withWarmConnections(WarmConnectionConfiguration warmConnectionConfiguration) {
+            this.warmConnectionConfiguration = warmConnectionConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withTrunks(TrunkConfiguration trunkConfiguration) {
+            this.trunkConfiguration = trunkConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withOptimisticConnect(OptimisticConnectConfiguration optimisticConnectConfiguration) {
+            this.optimisticConnectConfiguration = optimisticConnectConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withHandshakeExecutor(HandshakeExecutorConfiguration handshakeExecutorConfiguration) {
+            this.handshakeExecutorConfiguration = handshakeExecutorConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withTlsSessionCache(TlsSessionCacheConfiguration tlsSessionCacheConfiguration) {
+            this.tlsSessionCacheConfiguration = tlsSessionCacheConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMitmBypass(MitmBypassConfiguration mitmBypassConfiguration) {
+            this.mitmBypassConfiguration = mitmBypassConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withExtensionExecutor(ExtensionExecutorConfiguration extensionExecutorConfiguration) {
+            this.extensionExecutorConfiguration = extensionExecutorConfiguration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withDrainTimeout(int drainTimeout) {
+            if (drainTimeout < 0) {
+                throw new IllegalArgumentException("drainTimeout: " + drainTimeout + " (expected: >= 0)");
+            }
+            this.drainTimeout = drainTimeout;
+            return this;
+        }
+
         @Override
         public HttpProxyServer start() {
             return build().start();
@@ -892,7 +1768,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     idleConnectionTimeout, activityTrackers, connectTimeout,
                     serverResolver, readThrottleBytesPerSecond, writeThrottleBytesPerSecond,
                     localAddress, proxyAlias, maxInitialLineLength, maxHeaderSize, maxChunkSize,
-                    allowRequestToOriginServer, acceptProxyProtocol, sendProxyProtocol);
+                    allowRequestToOriginServer, acceptProxyProtocol, sendProxyProtocol,
+                    lazyResponseDecompression,
+                    responseCompressionConfiguration,
+                    circuitBreakerConfiguration,
+                    racedChainedProxies,
+                    chainedProxyRaceStaggerMillis,
+                    requestHedgingConfiguration,
+                    serverConnectionLimitConfiguration,
+                    adaptiveConcurrencyLimitConfiguration,
+                    retryOnStaleConnections,
+                    maxRetryBufferSizeInBytes,
+                    sourceAddresses,
+                    warmConnectionConfiguration,
+                    trunkConfiguration,
+                    optimisticConnectConfiguration,
+                    handshakeExecutorConfiguration,
+                    tlsSessionCacheConfiguration,
+                    mitmBypassConfiguration,
+                    extensionExecutorConfiguration,
+                    drainTimeout);
         }
 
         private InetSocketAddress determineListenAddress() {
@@ -0,0 +1,83 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Calls extension points that may block on a bounded thread pool, see
+ * {@link ExtensionExecutorConfiguration}, and hands their results back to the
+ * event loop of the connection that needs them.
+ */
+class ExtensionExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(ExtensionExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+
+    ExtensionExecutor(ExtensionExecutorConfiguration configuration, CategorizedThreadFactory threadFactory) {
+        ThreadFactory virtualThreadFactory = configuration.isVirtualThreads() ? virtualThreadFactory() : null;
+        this.executor = new ThreadPoolExecutor(
+                configuration.getThreads(),
+                configuration.getThreads(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(configuration.getMaxQueuedCalls()),
+                virtualThreadFactory != null ? virtualThreadFactory : threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a factory for virtual threads, or null if the JVM doesn't have
+     * them. Looked up reflectively, since we build for Java 8.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Object factory = Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            return (ThreadFactory) factory;
+        } catch (ReflectiveOperationException e) {
+            LOG.warn("Virtual threads are not available, calling extensions on platform threads");
+            return null;
+        }
+    }
+
+    /**
+     * Calls the given extension point on this executor. The returned future
+     * notifies its listeners on the given event loop. It fails with a
+     * {@link RejectedExecutionException} if the queue is full.
+     */
+    <T> Future<T> call(Supplier<T> call, EventExecutor eventLoop) {
+        Promise<T> promise = eventLoop.newPromise();
+        try {
+            executor.execute(() -> {
+                try {
+                    promise.trySuccess(call.get());
+                } catch (Throwable t) {
+                    promise.tryFailure(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            promise.tryFailure(e);
+        }
+        return promise;
+    }
+
+    /**
+     * Returns the number of calls that are waiting for a thread.
+     */
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    void stop() {
+        executor.shutdown();
+    }
+}
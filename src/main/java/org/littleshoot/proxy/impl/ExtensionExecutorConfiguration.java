@@ -0,0 +1,89 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for calling the extension points that are likely to
+ * block, e.g. to query a database or a directory, on a bounded thread pool
+ * instead of on the proxy's worker threads. These are:
+ * </p>
+ *
+ * <ul>
+ * <li>{@link org.littleshoot.proxy.ProxyAuthenticator#authenticate(String, String)}</li>
+ * <li>{@link org.littleshoot.proxy.HttpFiltersSource#filterRequest(io.netty.handler.codec.http.HttpRequest, io.netty.channel.ChannelHandlerContext)}</li>
+ * <li>{@link org.littleshoot.proxy.HttpFilters#clientToProxyRequest(io.netty.handler.codec.http.HttpObject)} for the
+ * initial request</li>
+ * <li>{@link org.littleshoot.proxy.ChainedProxyManager#lookupChainedProxies(io.netty.handler.codec.http.HttpRequest, java.util.Queue, ClientDetails)}</li>
+ * </ul>
+ *
+ * <p>
+ * Without it, a slow call holds up every connection served by the same worker
+ * thread. With it, the proxy stops reading from the client while the call is
+ * running and carries on with the request once the call returns. Whatever the
+ * client sent in the meantime is processed afterwards, in order. If too many
+ * calls are waiting for a thread, the proxy responds with a 503 Service
+ * Unavailable.
+ * </p>
+ *
+ * <p>
+ * The other {@link org.littleshoot.proxy.HttpFilters} callbacks, e.g. for
+ * request chunks and responses, still run on the worker threads.
+ * </p>
+ */
+public class ExtensionExecutorConfiguration {
+    private int threads = 64;
+    private int maxQueuedCalls = 1024;
+    private boolean virtualThreads = false;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the maximum number of extension calls that run at the same time. The default value is 64.
+     *
+     * @param threads number of extension threads
+     * @return this extension executor configuration instance, for chaining
+     */
+    public ExtensionExecutorConfiguration withThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads: " + threads + " (expected: > 0)");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public int getMaxQueuedCalls() {
+        return maxQueuedCalls;
+    }
+
+    /**
+     * Set the maximum number of extension calls that may wait for a thread. Requests that need another call are
+     * answered with a 503 Service Unavailable. The default value is 1024.
+     *
+     * @param maxQueuedCalls maximum number of queued extension calls
+     * @return this extension executor configuration instance, for chaining
+     */
+    public ExtensionExecutorConfiguration withMaxQueuedCalls(int maxQueuedCalls) {
+        if (maxQueuedCalls < 1) {
+            throw new IllegalArgumentException("maxQueuedCalls: " + maxQueuedCalls + " (expected: > 0)");
+        }
+        this.maxQueuedCalls = maxQueuedCalls;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Set whether extension calls run on virtual threads, which are cheaper to block than platform threads. This is
+     * ignored on JVMs without virtual threads. The default value is false.
+     *
+     * @param virtualThreads true to use virtual threads where the JVM supports them
+     * @return this extension executor configuration instance, for chaining
+     */
+    public ExtensionExecutorConfiguration withVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+}
@@ -0,0 +1,96 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.ssl.SslHandler;
+
+import javax.net.ssl.SSLEngine;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Runs the delegated tasks of {@link SSLEngine}s, i.e. the expensive parts of
+ * TLS handshakes, on a bounded thread pool, see
+ * {@link HandshakeExecutorConfiguration}. {@link SslHandler}s created by
+ * {@link #newSslHandler(SSLEngine)} hand their delegated tasks to this
+ * executor and carry on with the handshake on their event loop once the tasks
+ * are done.
+ * </p>
+ *
+ * <p>
+ * Tasks that don't fit into the queue run on the calling thread. The
+ * executor keeps track of how many handshakes completed and how long they
+ * took, from the moment their handler was created.
+ * </p>
+ */
+class HandshakeExecutor implements Executor {
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final AtomicLong tasksRunOnCaller = new AtomicLong();
+
+    HandshakeExecutor(HandshakeExecutorConfiguration configuration, CategorizedThreadFactory threadFactory) {
+        this.executor = new ThreadPoolExecutor(
+                configuration.getThreads(),
+                configuration.getThreads(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(configuration.getMaxQueuedTasks()),
+                threadFactory);
+        // don't keep threads around in proxies that rarely handshake
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a new {@link SslHandler} for the given engine that runs its
+     * delegated tasks on this executor.
+     */
+    SslHandler newSslHandler(SSLEngine sslEngine) {
+        SslHandler handler = new SslHandler(sslEngine, this);
+        long startNanos = System.nanoTime();
+        handler.handshakeFuture().addListener(future -> {
+            if (future.isSuccess()) {
+                handshakes.incrementAndGet();
+                handshakeNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+        });
+        return handler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the queue is full or the proxy is stopping, so slow the handshake down rather than failing it
+            tasksRunOnCaller.incrementAndGet();
+            task.run();
+        }
+    }
+
+    /**
+     * Returns the number of tasks that are waiting for a handshake thread.
+     */
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    long getHandshakes() {
+        return handshakes.get();
+    }
+
+    long getHandshakeNanos() {
+        return handshakeNanos.get();
+    }
+
+    long getTasksRunOnCaller() {
+        return tasksRunOnCaller.get();
+    }
+
+    void stop() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,61 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for running the expensive parts of TLS handshakes,
+ * such as the RSA and ECDHE computations, on a dedicated thread pool instead
+ * of on the proxy's worker threads. This applies to all TLS handshakes the
+ * proxy takes part in: with clients, with servers when MITMing, and with
+ * chained proxies.
+ * </p>
+ *
+ * <p>
+ * Without it, every handshake blocks the worker thread it runs on, and with it
+ * every other connection that thread serves, so a burst of handshakes (e.g.
+ * when all clients reconnect at once) slows down the connections that are
+ * already established. With it, handshakes wait in the queue of the pool
+ * instead. Once the queue is full, handshake work runs on the worker threads
+ * again, so that handshakes are slowed down rather than failed.
+ * </p>
+ */
+public class HandshakeExecutorConfiguration {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxQueuedTasks = 1024;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads that run handshake work. The default value is the number of available processors.
+     *
+     * @param threads number of handshake threads
+     * @return this handshake executor configuration instance, for chaining
+     */
+    public HandshakeExecutorConfiguration withThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads: " + threads + " (expected: > 0)");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public int getMaxQueuedTasks() {
+        return maxQueuedTasks;
+    }
+
+    /**
+     * Set the maximum number of pieces of handshake work that may wait for a handshake thread. Beyond that, handshake
+     * work runs on the worker thread of the connection. The default value is 1024.
+     *
+     * @param maxQueuedTasks maximum number of queued handshake tasks
+     * @return this handshake executor configuration instance, for chaining
+     */
+    public HandshakeExecutorConfiguration withMaxQueuedTasks(int maxQueuedTasks) {
+        if (maxQueuedTasks < 1) {
+            throw new IllegalArgumentException("maxQueuedTasks: " + maxQueuedTasks + " (expected: > 0)");
+        }
+        this.maxQueuedTasks = maxQueuedTasks;
+        return this;
+    }
+}
@@ -0,0 +1,312 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A {@link FullHttpResponse} whose gzip or deflate encoded content is kept in
+ * the compressed form in which it was received from the server, and is only
+ * decompressed the first time somebody asks for its {@link #content()}. At
+ * that point the Content-Encoding header is removed and the Content-Length is
+ * updated, so that filters see the same thing they would have seen if the
+ * content had been decompressed by an {@link io.netty.handler.codec.http.HttpContentDecompressor}.
+ * </p>
+ *
+ * <p>
+ * Before the response is written to the client, {@link #restoreContentEncoding()}
+ * puts the original compressed bytes back if the decompressed content was left
+ * untouched, and compresses it again using the original Content-Encoding if a
+ * filter modified it. Responses whose content was never looked at are sent on
+ * exactly as they were received.
+ * </p>
+ */
+class LazilyDecompressedFullHttpResponse extends DefaultHttpResponse implements FullHttpResponse {
+    private static final Logger LOG = LoggerFactory.getLogger(LazilyDecompressedFullHttpResponse.class);
+
+    /**
+     * Compression level used when a modified body is compressed again. This is
+     * the zlib default, which is also what {@link io.netty.handler.codec.http.HttpContentCompressor}
+     * uses.
+     */
+    private static final int RECOMPRESSION_LEVEL = 6;
+
+    private final HttpHeaders trailingHeaders;
+    private final String contentEncoding;
+
+    /**
+     * The content as it currently stands. Until decompression, this is the
+     * compressed content received from the server.
+     */
+    private ByteBuf content;
+
+    /**
+     * While {@link #content} holds the decompressed content, this holds the
+     * compressed content received from the server.
+     */
+    private ByteBuf compressedContent;
+
+    private boolean decompressionPending = true;
+    private int decompressedLength;
+    private long decompressedChecksum;
+
+    private final AbstractReferenceCounted refCnt = new AbstractReferenceCounted() {
+        @Override
+        protected void deallocate() {
+            content.release();
+            if (compressedContent != null) {
+                compressedContent.release();
+                compressedContent = null;
+            }
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    };
+
+    /**
+     * Wraps the given response, which must have a Content-Encoding for which
+     * {@link #isSupported(HttpResponse)} returns true. The content of the
+     * response is retained, so the given response still needs to be released
+     * by its owner.
+     */
+    LazilyDecompressedFullHttpResponse(FullHttpResponse response) {
+        super(response.protocolVersion(), response.status(), response.headers());
+        this.trailingHeaders = response.trailingHeaders();
+        this.contentEncoding = response.headers().get(HttpHeaderNames.CONTENT_ENCODING).trim();
+        this.content = response.content().retain();
+        setDecoderResult(response.decoderResult());
+    }
+
+    /**
+     * Returns true if the given response is encoded using a Content-Encoding
+     * that we know how to decompress and compress again.
+     */
+    static boolean isSupported(HttpResponse response) {
+        return zlibWrapperFor(response.headers().get(HttpHeaderNames.CONTENT_ENCODING)) != null;
+    }
+
+    private static ZlibWrapper zlibWrapperFor(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        contentEncoding = contentEncoding.trim();
+        if (HttpHeaderValues.GZIP.contentEqualsIgnoreCase(contentEncoding) ||
+                HttpHeaderValues.X_GZIP.contentEqualsIgnoreCase(contentEncoding)) {
+            return ZlibWrapper.GZIP;
+        }
+        if (HttpHeaderValues.DEFLATE.contentEqualsIgnoreCase(contentEncoding) ||
+                HttpHeaderValues.X_DEFLATE.contentEqualsIgnoreCase(contentEncoding)) {
+            return ZlibWrapper.ZLIB;
+        }
+        return null;
+    }
+
+    private static ZlibWrapper decoderWrapperFor(String contentEncoding) {
+        ZlibWrapper wrapper = zlibWrapperFor(contentEncoding);
+        // some servers send raw deflate data without the zlib header, which
+        // is what HttpContentDecompressor allows for as well
+        return wrapper == ZlibWrapper.ZLIB ? ZlibWrapper.ZLIB_OR_NONE : wrapper;
+    }
+
+    @Override
+    public ByteBuf content() {
+        if (decompressionPending) {
+            decompress();
+        }
+        return content;
+    }
+
+    /**
+     * Prepares this response for being written to the client. If the content
+     * was decompressed and left unchanged, the original compressed content is
+     * restored. If it was modified, it is compressed again using the original
+     * Content-Encoding, unless a filter has set a Content-Encoding of its own.
+     */
+    void restoreContentEncoding() {
+        decompressionPending = false;
+        if (compressedContent == null) {
+            return;
+        }
+
+        if (headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            // somebody else took care of the encoding
+            compressedContent.release();
+        } else if (content.readableBytes() == decompressedLength
+                && checksum(content) == decompressedChecksum) {
+            content.release();
+            content = compressedContent;
+        } else {
+            ByteBuf recompressed = compress(content, zlibWrapperFor(contentEncoding));
+            content.release();
+            compressedContent.release();
+            content = recompressed;
+        }
+        compressedContent = null;
+
+        if (!headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            headers().set(HttpHeaderNames.CONTENT_ENCODING, contentEncoding);
+        }
+        headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+    }
+
+    private void decompress() {
+        decompressionPending = false;
+        ByteBuf decompressed;
+        try {
+            decompressed = transform(content,
+                    new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(decoderWrapperFor(contentEncoding))),
+                    true);
+        } catch (RuntimeException e) {
+            LOG.debug("Unable to decompress {} content, leaving it as it is", contentEncoding, e);
+            return;
+        }
+
+        compressedContent = content;
+        content = decompressed;
+        decompressedLength = content.readableBytes();
+        decompressedChecksum = checksum(content);
+
+        headers().remove(HttpHeaderNames.CONTENT_ENCODING);
+        headers().set(HttpHeaderNames.CONTENT_LENGTH, decompressedLength);
+    }
+
+    private static ByteBuf compress(ByteBuf content, ZlibWrapper wrapper) {
+        return transform(content,
+                new EmbeddedChannel(ZlibCodecFactory.newZlibEncoder(wrapper, RECOMPRESSION_LEVEL)),
+                false);
+    }
+
+    /**
+     * Runs the given content through the codec in the given channel and
+     * returns everything that comes out of it.
+     */
+    private static ByteBuf transform(ByteBuf content, EmbeddedChannel codec, boolean inbound) {
+        CompositeByteBuf result = Unpooled.compositeBuffer();
+        try {
+            if (inbound) {
+                codec.writeInbound(content.retainedDuplicate());
+            } else {
+                codec.writeOutbound(content.retainedDuplicate());
+            }
+            codec.finish();
+
+            ByteBuf buf;
+            while ((buf = inbound ? codec.<ByteBuf>readInbound() : codec.<ByteBuf>readOutbound()) != null) {
+                result.addComponent(true, buf);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            result.release();
+            codec.finishAndReleaseAll();
+            throw e;
+        }
+    }
+
+    private static long checksum(ByteBuf content) {
+        CRC32 crc = new CRC32();
+        for (ByteBuffer buffer : content.nioBuffers()) {
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public HttpHeaders trailingHeaders() {
+        return trailingHeaders;
+    }
+
+    @Override
+    public FullHttpResponse copy() {
+        return replace(content().copy());
+    }
+
+    @Override
+    public FullHttpResponse duplicate() {
+        return replace(content().duplicate());
+    }
+
+    @Override
+    public FullHttpResponse retainedDuplicate() {
+        return replace(content().retainedDuplicate());
+    }
+
+    @Override
+    public FullHttpResponse replace(ByteBuf content) {
+        FullHttpResponse response = new DefaultFullHttpResponse(protocolVersion(), status(), content,
+                headers().copy(), trailingHeaders().copy());
+        response.setDecoderResult(decoderResult());
+        return response;
+    }
+
+    @Override
+    public FullHttpResponse setProtocolVersion(HttpVersion version) {
+        super.setProtocolVersion(version);
+        return this;
+    }
+
+    @Override
+    public FullHttpResponse setStatus(HttpResponseStatus status) {
+        super.setStatus(status);
+        return this;
+    }
+
+    @Override
+    public int refCnt() {
+        return refCnt.refCnt();
+    }
+
+    @Override
+    public FullHttpResponse retain() {
+        refCnt.retain();
+        return this;
+    }
+
+    @Override
+    public FullHttpResponse retain(int increment) {
+        refCnt.retain(increment);
+        return this;
+    }
+
+    @Override
+    public FullHttpResponse touch() {
+        return this;
+    }
+
+    @Override
+    public FullHttpResponse touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return refCnt.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return refCnt.release(decrement);
+    }
+}
@@ -0,0 +1,114 @@
+package org.littleshoot.proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which hosts a proxy tunnels to instead of MITMing them, see
+ * {@link MitmBypassConfiguration}, and learns the hosts whose clients keep
+ * failing their handshakes with the proxy.
+ */
+class MitmBypass {
+    private static final Logger LOG = LoggerFactory.getLogger(MitmBypass.class);
+
+    private final Set<String> domains;
+    private final int clientHandshakeFailuresToBypass;
+    private final long learnedBypassNanos;
+    private final int maxLearnedHosts;
+
+    /**
+     * Number of client handshakes that failed in a row, by host.
+     */
+    private final ConcurrentMap<String, Integer> clientHandshakeFailures = new ConcurrentHashMap<>();
+
+    /**
+     * {@link System#nanoTime()} until which each learned host is bypassed.
+     */
+    private final ConcurrentMap<String, Long> learnedHosts = new ConcurrentHashMap<>();
+
+    MitmBypass(MitmBypassConfiguration configuration) {
+        this.domains = new HashSet<>(configuration.getDomains());
+        this.clientHandshakeFailuresToBypass = configuration.getClientHandshakeFailuresToBypass();
+        this.learnedBypassNanos = TimeUnit.SECONDS.toNanos(configuration.getLearnedBypassSeconds());
+        this.maxLearnedHosts = configuration.getMaxLearnedHosts();
+    }
+
+    static String normalize(String host) {
+        String normalized = host.toLowerCase(Locale.US);
+        return normalized.endsWith(".") ? normalized.substring(0, normalized.length() - 1) : normalized;
+    }
+
+    /**
+     * Returns true if CONNECTs to the given host should be tunneled instead of MITMed.
+     */
+    boolean bypasses(String host) {
+        host = normalize(host);
+
+        Long bypassUntil = learnedHosts.get(host);
+        if (bypassUntil != null) {
+            if (System.nanoTime() - bypassUntil < 0) {
+                return true;
+            }
+            learnedHosts.remove(host, bypassUntil);
+        }
+
+        // the host itself or any of its parent domains
+        String domain = host;
+        while (true) {
+            if (domains.contains(domain)) {
+                return true;
+            }
+            int dot = domain.indexOf('.');
+            if (dot < 0) {
+                return false;
+            }
+            domain = domain.substring(dot + 1);
+        }
+    }
+
+    void clientHandshakeSucceeded(String host) {
+        if (clientHandshakeFailuresToBypass > 0) {
+            clientHandshakeFailures.remove(normalize(host));
+        }
+    }
+
+    void clientHandshakeFailed(String host) {
+        if (clientHandshakeFailuresToBypass == 0) {
+            return;
+        }
+
+        host = normalize(host);
+        if (clientHandshakeFailures.size() >= maxLearnedHosts && !clientHandshakeFailures.containsKey(host)) {
+            // don't let clients that fail their handshakes with many hosts fill up the memory
+            return;
+        }
+        int failures = clientHandshakeFailures.merge(host, 1, Integer::sum);
+        if (failures < clientHandshakeFailuresToBypass) {
+            return;
+        }
+
+        clientHandshakeFailures.remove(host);
+        long now = System.nanoTime();
+        if (learnedHosts.size() >= maxLearnedHosts) {
+            learnedHosts.values().removeIf(bypassUntil -> now - bypassUntil >= 0);
+            if (learnedHosts.size() >= maxLearnedHosts) {
+                LOG.debug("Not bypassing {} since {} hosts are bypassed already", host, learnedHosts.size());
+                return;
+            }
+        }
+        learnedHosts.put(host, now + learnedBypassNanos);
+        LOG.info("Client handshakes for {} failed {} times in a row, tunneling CONNECTs to it for the next {} seconds",
+                host, failures, TimeUnit.NANOSECONDS.toSeconds(learnedBypassNanos));
+    }
+
+    int getLearnedHostCount() {
+        return learnedHosts.size();
+    }
+}
@@ -0,0 +1,104 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * Configuration object for tunneling CONNECTs to some hosts instead of MITMing
+ * them, when a {@link org.littleshoot.proxy.MitmManager} is set. Tunneling
+ * saves the two handshakes of MITMing for hosts whose traffic doesn't need to
+ * be filtered.
+ * </p>
+ *
+ * <p>
+ * Besides the configured domains, the proxy learns which hosts to bypass:
+ * clients that pin the certificates of a host reject the certificate that the
+ * proxy impersonates the host with, so their handshakes with the proxy always
+ * fail. Once the TLS handshakes of clients connecting to a host have failed a
+ * number of times in a row, the host is bypassed for a while.
+ * </p>
+ */
+public class MitmBypassConfiguration {
+    private final Set<String> domains = new LinkedHashSet<>();
+    private int clientHandshakeFailuresToBypass = 3;
+    private int learnedBypassSeconds = 3600;
+    private int maxLearnedHosts = 10000;
+
+    public Set<String> getDomains() {
+        return Collections.unmodifiableSet(domains);
+    }
+
+    /**
+     * Add a domain to bypass. The domain and all hosts in it are bypassed, e.g. "example.org" matches
+     * "example.org" and "www.example.org", but not "www.myexample.org".
+     *
+     * @param domain domain to bypass
+     * @return this MITM bypass configuration instance, for chaining
+     */
+    public MitmBypassConfiguration withDomain(String domain) {
+        if (domain == null || domain.isEmpty()) {
+            throw new IllegalArgumentException("domain: " + domain + " (expected: a domain)");
+        }
+        this.domains.add(MitmBypass.normalize(domain));
+        return this;
+    }
+
+    public int getClientHandshakeFailuresToBypass() {
+        return clientHandshakeFailuresToBypass;
+    }
+
+    /**
+     * Set the number of TLS handshakes with clients connecting to a host that have to fail in a row for the host to
+     * be bypassed. 0 means that hosts are never learned. The default value is 3.
+     *
+     * @param clientHandshakeFailuresToBypass number of failed client handshakes, or 0
+     * @return this MITM bypass configuration instance, for chaining
+     */
+    public MitmBypassConfiguration withClientHandshakeFailuresToBypass(int clientHandshakeFailuresToBypass) {
+        if (clientHandshakeFailuresToBypass < 0) {
+            throw new IllegalArgumentException("clientHandshakeFailuresToBypass: " + clientHandshakeFailuresToBypass + " (expected: >= 0)");
+        }
+        this.clientHandshakeFailuresToBypass = clientHandshakeFailuresToBypass;
+        return this;
+    }
+
+    public int getLearnedBypassSeconds() {
+        return learnedBypassSeconds;
+    }
+
+    /**
+     * Set how long a learned host is bypassed, in seconds. Afterwards the proxy MITMs the host again, in case its
+     * clients no longer pin certificates. The default value is 3600 seconds.
+     *
+     * @param learnedBypassSeconds how long learned hosts are bypassed
+     * @return this MITM bypass configuration instance, for chaining
+     */
+    public MitmBypassConfiguration withLearnedBypassSeconds(int learnedBypassSeconds) {
+        if (learnedBypassSeconds < 1) {
+            throw new IllegalArgumentException("learnedBypassSeconds: " + learnedBypassSeconds + " (expected: > 0)");
+        }
+        this.learnedBypassSeconds = learnedBypassSeconds;
+        return this;
+    }
+
+    public int getMaxLearnedHosts() {
+        return maxLearnedHosts;
+    }
+
+    /**
+     * Set the maximum number of hosts to learn. Once that many hosts are bypassed, no more are learned until some of
+     * them expire. The default value is 10000.
+     *
+     * @param maxLearnedHosts maximum number of learned hosts
+     * @return this MITM bypass configuration instance, for chaining
+     */
+    public MitmBypassConfiguration withMaxLearnedHosts(int maxLearnedHosts) {
+        if (maxLearnedHosts < 1) {
+            throw new IllegalArgumentException("maxLearnedHosts: " + maxLearnedHosts + " (expected: > 0)");
+        }
+        this.maxLearnedHosts = maxLearnedHosts;
+        return this;
+    }
+}
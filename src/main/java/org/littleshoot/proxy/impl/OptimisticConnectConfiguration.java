@@ -0,0 +1,97 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Configuration object for optimistic CONNECT, i.e. telling clients that their
+ * tunnel is established as soon as their CONNECT request has been read,
+ * instead of once the connection to the server (or chained proxy) has been
+ * established. This saves the client a round trip to the server before it can
+ * start its TLS handshake.
+ * </p>
+ *
+ * <p>
+ * The bytes that the client sends while the proxy is still connecting are
+ * buffered, up to the maximum number of buffered bytes, after which the proxy
+ * stops reading from the client until the connection is established. If the
+ * connection to the server fails, the proxy closes the tunnel, since it can no
+ * longer respond with a 502 Bad Gateway. Clients then see a closed connection
+ * instead of an error response, so optimistic CONNECT can be limited to
+ * certain destinations.
+ * </p>
+ *
+ * <p>
+ * Optimistic CONNECT does not apply to CONNECTs that the proxy MITMs, since
+ * the handshake with the client depends on the server in that case.
+ * </p>
+ */
+public class OptimisticConnectConfiguration {
+    private int maxBufferedBytes = 64 * 1024;
+    private final List<String> destinations = new ArrayList<>();
+
+    public int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    /**
+     * Set the maximum number of bytes to buffer per tunnel while the proxy is still connecting to the server. The
+     * default value is 64 KiB.
+     *
+     * @param maxBufferedBytes maximum number of bytes buffered per tunnel
+     * @return this optimistic CONNECT configuration instance, for chaining
+     */
+    public OptimisticConnectConfiguration withMaxBufferedBytes(int maxBufferedBytes) {
+        if (maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("maxBufferedBytes: " + maxBufferedBytes + " (expected: > 0)");
+        }
+        this.maxBufferedBytes = maxBufferedBytes;
+        return this;
+    }
+
+    public List<String> getDestinations() {
+        return Collections.unmodifiableList(destinations);
+    }
+
+    /**
+     * Add a destination to use optimistic CONNECT for. A destination is either a host, e.g. "www.example.org", a
+     * host and port, e.g. "www.example.org:443", or a domain prefixed with "*.", e.g. "*.example.org", which
+     * matches all hosts in that domain. If no destinations are added, optimistic CONNECT is used for all
+     * destinations.
+     *
+     * @param destination host, host and port, or "*." followed by a domain
+     * @return this optimistic CONNECT configuration instance, for chaining
+     */
+    public OptimisticConnectConfiguration withDestination(String destination) {
+        if (destination == null || destination.isEmpty()) {
+            throw new IllegalArgumentException("destination: " + destination + " (expected: host, host:port or *.domain)");
+        }
+        this.destinations.add(destination.toLowerCase(Locale.US));
+        return this;
+    }
+
+    /**
+     * Returns true if optimistic CONNECT should be used for a CONNECT to the given server.
+     */
+    boolean appliesTo(RequestTarget target) {
+        if (destinations.isEmpty()) {
+            return true;
+        }
+
+        String host = target.host().toLowerCase(Locale.US);
+        String hostAndPort = host + ":" + target.port(443);
+        for (String destination : destinations) {
+            if (destination.startsWith("*.")) {
+                if (host.endsWith(destination.substring(1))) {
+                    return true;
+                }
+            } else if (destination.equals(host) || destination.equals(hostAndPort)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -7,6 +7,7 @@ import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.Promise;
@@ -164,6 +165,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
                 // to require authentication.
             }
             break;
+        case AWAITING_CONNECTION_SLOT:
         case CONNECTING:
             LOG.warn("Attempted to read from connection that's in the process of connecting.  This shouldn't happen.");
             break;
@@ -324,6 +326,9 @@ abstract class ProxyConnection<I extends HttpObject> extends
                 if (pipeline.get("requestReadMonitor") != null) {
                     pipeline.remove("requestReadMonitor");
                 }
+                if (pipeline.get("compressor") != null) {
+                    pipeline.remove("compressor");
+                }
                 tunneling = true;
                 return channel.newSucceededFuture();
             } catch (Throwable t) {
@@ -368,9 +373,15 @@ abstract class ProxyConnection<I extends HttpObject> extends
         if (null != channel) {
             channel.config().setAutoRead(true);
         }
-        SslHandler handler = new SslHandler(sslEngine);
+        SslHandler handler = proxyServer.newSslHandler(sslEngine);
         if(pipeline.get("ssl") == null) {
-            pipeline.addFirst("ssl", handler);
+            String lastStreamHandlerName = Trunks.lastStreamHandlerName(pipeline);
+            if (lastStreamHandlerName == null) {
+                pipeline.addFirst("ssl", handler);
+            } else {
+                // on a stream of a trunk connection, the bytes go to the handlers that make frames of them
+                pipeline.addAfter(lastStreamHandlerName, "ssl", handler);
+            }
         } else {
             // The second SSL handler is added to handle the case
             // where the proxy (running as MITM) has to chain with
@@ -403,15 +414,66 @@ abstract class ProxyConnection<I extends HttpObject> extends
 
     /**
      * Enables decompression and aggregation of content, which is useful for
-     * certain types of filtering activity.
+     * certain types of filtering activity. If decompressContent is false, the
+     * content is aggregated as it was received.
      */
     protected void aggregateContentForFiltering(ChannelPipeline pipeline,
-            int numberOfBytesToBuffer) {
-        pipeline.addLast("inflater", new HttpContentDecompressor());
+            int numberOfBytesToBuffer, boolean decompressContent) {
+        if (decompressContent) {
+            pipeline.addLast("inflater", new HttpContentDecompressor());
+        }
         pipeline.addLast("aggregator", new HttpObjectAggregator(
                 numberOfBytesToBuffer));
     }
 
+    /**
+     * Enables decompression and aggregation of content for the message that is
+     * currently being read only, as requested by its {@link HttpFilters}. The
+     * handlers are inserted right in front of this connection's handler, and
+     * the given message is sent back through them so that the monitors earlier
+     * in the pipeline don't see it twice. Once the aggregated
+     * {@link FullHttpMessage} has been read, the handlers must be removed again
+     * using {@link #stopAggregatingMessageForFiltering()}.
+     */
+    protected void aggregateMessageForFiltering(HttpMessage httpMessage,
+            int numberOfBytesToBuffer, boolean decompressContent) {
+        LOG.debug("Buffering up to {} bytes of current message for filtering", numberOfBytesToBuffer);
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (decompressContent) {
+            pipeline.addBefore("handler", "inflater", new HttpContentDecompressor());
+        }
+        pipeline.addBefore("handler", "aggregator",
+                new MessageAggregatorForFiltering(numberOfBytesToBuffer));
+
+        // SimpleChannelInboundHandler releases the message once we return
+        ReferenceCountUtil.retain(httpMessage);
+        pipeline.context("idle").fireChannelRead(httpMessage);
+    }
+
+    /**
+     * Removes the handlers added by
+     * {@link #aggregateMessageForFiltering(HttpMessage, int, boolean)}, if any.
+     */
+    protected void stopAggregatingMessageForFiltering() {
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (pipeline.get(MessageAggregatorForFiltering.class) != null) {
+            if (pipeline.get("inflater") != null) {
+                pipeline.remove("inflater");
+            }
+            pipeline.remove("aggregator");
+        }
+    }
+
+    /**
+     * Tells us whether the message currently being read is being aggregated
+     * for filtering by
+     * {@link #aggregateMessageForFiltering(HttpMessage, int, boolean)}.
+     */
+    protected boolean isAggregatingMessageForFiltering() {
+        return ctx != null
+                && ctx.pipeline().get(MessageAggregatorForFiltering.class) != null;
+    }
+
     /**
      * Callback that's invoked if this connection becomes saturated.
      */
@@ -547,6 +609,11 @@ abstract class ProxyConnection<I extends HttpObject> extends
      **************************************************************************/
     @Override
     protected final void channelRead0(ChannelHandlerContext ctx, Object msg) {
+        if (channel != null && ctx.channel() != channel) {
+            // this connection has moved on to another channel, e.g. because a hedged request was answered there
+            LOG.debug("Ignoring message from previous channel: {}", msg);
+            return;
+        }
         read(msg);
     }
 
@@ -798,4 +865,24 @@ abstract class ProxyConnection<I extends HttpObject> extends
         protected abstract void responseWritten(HttpResponse httpResponse);
     }
 
+    /**
+     * {@link HttpObjectAggregator} used for a single message at a time, which
+     * takes itself out of the pipeline again if that message turns out to be
+     * too big.
+     */
+    private class MessageAggregatorForFiltering extends HttpObjectAggregator {
+        MessageAggregatorForFiltering(int maxContentLength) {
+            super(maxContentLength);
+        }
+
+        @Override
+        protected void handleOversizedMessage(ChannelHandlerContext ctx,
+                HttpMessage oversized) throws Exception {
+            try {
+                super.handleOversizedMessage(ctx, oversized);
+            } finally {
+                stopAggregatingMessageForFiltering();
+            }
+        }
+    }
 }
@@ -3,7 +3,9 @@ package org.littleshoot.proxy.impl;
 import com.google.common.net.HostAndPort;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
@@ -14,6 +16,10 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpMessage;
@@ -56,6 +62,10 @@ import io.netty.resolver.AddressResolverGroup;
 import io.netty.resolver.DefaultAddressResolverGroup;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.littleshoot.proxy.ActivityTracker;
 import org.littleshoot.proxy.ChainedProxy;
 import org.littleshoot.proxy.ChainedProxyAdapter;
@@ -68,18 +78,26 @@ import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolException;
 import org.littleshoot.proxy.extras.HAProxyMessageEncoder;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLProtocolException;
 import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
+import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CONNECTION_SLOT;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CONNECT_OK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.CONNECTING;
@@ -116,6 +134,15 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private volatile String username;
     private volatile String password;
     private final String serverHostAndPort;
+    /**
+     * serverHostAndPort, parsed once when this connection is created.
+     */
+    private final RequestTarget serverTarget;
+    /**
+     * True if a CONNECT through this connection is MITMed rather than tunneled, see {@link MitmBypass}. This is
+     * decided once, so that retries don't change their minds.
+     */
+    private final boolean mitm;
     private volatile ChainedProxy chainedProxy;
     private final Queue<ChainedProxy> availableChainedProxies;
 
@@ -137,6 +164,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private volatile boolean disableSni = false;
 
+    /**
+     * The handshake with the client when MITMing with a {@link MitmManager}
+     * that doesn't need the server's {@link SSLSession}, once it's started.
+     */
+    private volatile Future<Channel> mitmClientHandshake;
+
     /**
      * While we're in the process of connecting, it's possible that we'll
      * receive a new message to write. This lock helps us synchronize and wait
@@ -162,6 +195,88 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private volatile HttpResponse currentHttpResponse;
 
+    /**
+     * When the current attempt to connect started, used to tell the chained
+     * proxy how long connecting took.
+     */
+    private volatile long connectStartedNanos;
+
+    /**
+     * Whether the current attempt took over a warm connection instead of
+     * connecting, in which case there is no connect time to report.
+     */
+    private volatile boolean adoptedWarmChannel;
+
+    /**
+     * The chained proxy through which the request that is currently awaiting
+     * a response was sent, and when it was sent.
+     */
+    private volatile ChainedProxy chainedProxyAwaitingResponse;
+    private volatile long requestSentNanos;
+
+    /**
+     * True while a request has been sent and its response hasn't started to
+     * arrive yet.
+     */
+    private volatile boolean awaitingResponse;
+
+    /**
+     * The circuit breaker of the chained proxy or server we are connecting to,
+     * or null if circuit breakers are disabled.
+     */
+    private volatile CircuitBreaker circuitBreaker;
+
+    /**
+     * If this connection is racing on behalf of another connection, the race it
+     * takes part in. Null for all regular connections.
+     */
+    private final ConnectionRace race;
+
+    /**
+     * The request currently awaiting a response that may be hedged, or null.
+     */
+    private volatile HedgedRequest hedgedRequest;
+
+    /**
+     * Set when all connections of a {@link ChainedProxyRace} failed, which
+     * already reported the failures to their chained proxies.
+     */
+    private volatile boolean raceFailed;
+
+    /**
+     * When the number of connections to the server is limited, our request for
+     * a connection slot while we may have to wait for one, and whether we hold
+     * a slot that needs to be given back when we're done.
+     */
+    private volatile Future<Void> connectionSlotRequest;
+    private final AtomicBoolean holdingConnectionSlot = new AtomicBoolean(false);
+
+    /**
+     * The permit of the request in flight when adaptive concurrency limits
+     * are enabled, which needs to be completed once we know how the request
+     * went.
+     */
+    private final AtomicReference<AdaptiveConcurrencyLimits.Permit> concurrencyPermit = new AtomicReference<>();
+
+    /**
+     * The number of requests written since we last started connecting, used
+     * to tell whether a request went over a reused connection.
+     */
+    private volatile int requestsWritten;
+
+    /**
+     * A copy of the request awaiting a response, kept while it can still be
+     * sent again in case the server closes our reused connection before it
+     * starts to respond. Null when the request can't be retried.
+     */
+    private volatile RetryableRequest retryableRequest;
+
+    /**
+     * The request we're reconnecting to send again, whose content still needs
+     * to be written once we're connected.
+     */
+    private volatile RetryableRequest retryingRequest;
+
     /**
      * Limits bandwidth when throttling is enabled.
      */
@@ -173,39 +288,91 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private static final int MINIMUM_RECV_BUFFER_SIZE_BYTES = 64;
     
     /**
-     * Create a new ProxyToServerConnection.
+     * Looks up the chained proxies for the given request, or returns null if
+     * there is no {@link ChainedProxyManager}. This calls into the
+     * ChainedProxyManager, so it may run on the extension executor, see
+     * {@link ExtensionExecutorConfiguration}.
+     */
+    static Queue<ChainedProxy> lookupChainedProxies(DefaultHttpProxyServer proxyServer,
+            ClientToProxyConnection clientConnection,
+            HttpRequest initialHttpRequest) {
+        ChainedProxyManager chainedProxyManager = proxyServer
+                .getChainProxyManager();
+        if (chainedProxyManager == null) {
+            return null;
+        }
+        Queue<ChainedProxy> chainedProxies = new ConcurrentLinkedQueue<>();
+        chainedProxyManager.lookupChainedProxies(initialHttpRequest,
+                chainedProxies, clientConnection.getClientDetails());
+        return chainedProxies;
+    }
+
+    /**
+     * Create a new ProxyToServerConnection through the given chained proxies,
+     * as looked up by {@link #lookupChainedProxies}.
+     *
+     * @param serverTarget the parsed serverHostAndPort
+     * @param chainedProxies the chained proxies to try, or null to connect directly
      */
     static ProxyToServerConnection create(DefaultHttpProxyServer proxyServer,
             ClientToProxyConnection clientConnection,
             String serverHostAndPort,
+            RequestTarget serverTarget,
             HttpFilters initialFilters,
-            HttpRequest initialHttpRequest,
+            Queue<ChainedProxy> chainedProxies,
             GlobalTrafficShapingHandler globalTrafficShapingHandler)
             throws UnknownHostException {
-        Queue<ChainedProxy> chainedProxies = new ConcurrentLinkedQueue<>();
-        ChainedProxyManager chainedProxyManager = proxyServer
-                .getChainProxyManager();
-        if (chainedProxyManager != null) {
-            chainedProxyManager.lookupChainedProxies(initialHttpRequest,
-                    chainedProxies, clientConnection.getClientDetails());
+        CircuitBreakers circuitBreakers = proxyServer.getCircuitBreakers();
+        ChainedProxy chainedProxy = null;
+        if (chainedProxies != null) {
             if (chainedProxies.size() == 0) {
                 // ChainedProxyManager returned no proxies, can't connect
                 return null;
             }
+            chainedProxy = pollAvailableChainedProxy(circuitBreakers, serverHostAndPort, chainedProxies);
+            if (chainedProxy == null) {
+                // the circuit breakers of all chained proxies are open
+                return null;
+            }
+        } else if (circuitBreakers != null
+                && !circuitBreakers.forUpstream(serverHostAndPort).allowRequest()) {
+            // fail fast rather than waiting for a server that is known to be down
+            return null;
         }
         return new ProxyToServerConnection(proxyServer,
                 clientConnection,
                 serverHostAndPort,
-                chainedProxies.poll(),
-                chainedProxies,
+                serverTarget,
+                chainedProxy,
+                chainedProxies != null ? chainedProxies : new ConcurrentLinkedQueue<>(),
                 initialFilters,
                 globalTrafficShapingHandler);
     }
 
+    /**
+     * Takes the next chained proxy from the given queue whose circuit breaker
+     * lets requests through, skipping the ones whose breakers are open.
+     *
+     * @return the next available chained proxy, or null if there is none
+     */
+    private static ChainedProxy pollAvailableChainedProxy(CircuitBreakers circuitBreakers,
+            String serverHostAndPort,
+            Queue<ChainedProxy> chainedProxies) {
+        ChainedProxy chainedProxy;
+        while ((chainedProxy = chainedProxies.poll()) != null) {
+            if (circuitBreakers == null
+                    || circuitBreakers.forUpstream(CircuitBreakers.upstreamFor(chainedProxy, serverHostAndPort)).allowRequest()) {
+                return chainedProxy;
+            }
+        }
+        return null;
+    }
+
     private ProxyToServerConnection(
             DefaultHttpProxyServer proxyServer,
             ClientToProxyConnection clientConnection,
             String serverHostAndPort,
+            RequestTarget serverTarget,
             ChainedProxy chainedProxy,
             Queue<ChainedProxy> availableChainedProxies,
             HttpFilters initialFilters,
@@ -214,10 +381,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         super(DISCONNECTED, proxyServer, true);
         this.clientConnection = clientConnection;
         this.serverHostAndPort = serverHostAndPort;
+        this.serverTarget = serverTarget;
+        this.mitm = proxyServer.shouldMitm(serverTarget.host());
         this.chainedProxy = chainedProxy;
         this.availableChainedProxies = availableChainedProxies;
         this.trafficHandler = globalTrafficShapingHandler;
         this.currentFilters = initialFilters;
+        this.race = null;
 
         // Report connection status to HttpFilters
         currentFilters.proxyToServerConnectionQueued();
@@ -225,6 +395,42 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         setupConnectionParameters();
     }
 
+    /**
+     * Creates a connection that connects through the given chained proxy, or
+     * directly to the server if it is null, as part of the given race on
+     * behalf of another connection.
+     */
+    private ProxyToServerConnection(
+            ProxyToServerConnection racingFor,
+            ConnectionRace race,
+            ChainedProxy chainedProxy,
+            HttpRequest initialRequest)
+            throws UnknownHostException {
+        super(DISCONNECTED, racingFor.proxyServer, true);
+        this.clientConnection = racingFor.clientConnection;
+        this.serverHostAndPort = racingFor.serverHostAndPort;
+        this.serverTarget = racingFor.serverTarget;
+        this.mitm = racingFor.mitm;
+        this.chainedProxy = chainedProxy;
+        this.availableChainedProxies = new ConcurrentLinkedQueue<>();
+        this.trafficHandler = racingFor.trafficHandler;
+        this.currentFilters = racingFor.currentFilters;
+        this.race = race;
+        this.initialRequest = initialRequest;
+
+        if (getChainedProxyAddress() == null && !racingFor.hasUpstreamChainedProxy()) {
+            // connecting to the same server directly, so don't bother the filters with resolving it again
+            this.transportProtocol = racingFor.transportProtocol;
+            this.chainedProxyType = racingFor.chainedProxyType;
+            this.remoteAddress = racingFor.remoteAddress;
+            this.localAddress = racingFor.localAddress;
+            this.remoteAddressResolver = racingFor.remoteAddressResolver;
+            this.circuitBreaker = racingFor.circuitBreaker;
+        } else {
+            setupConnectionParameters();
+        }
+    }
+
     /* *************************************************************************
      * Reading
      **************************************************************************/
@@ -236,7 +442,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                     "In the middle of connecting, forwarding message to connection flow: {}",
                     msg);
             this.connectionFlow.read(msg);
+        } else if (race != null) {
+            race.racerRead(this, msg);
         } else {
+            HedgedRequest hedge = hedgedRequest;
+            if (hedge != null && !hedge.shouldRead(msg)) {
+                LOG.debug("Hedged request was answered through another connection, discarding: {}", msg);
+                return;
+            }
             super.read(msg);
         }
     }
@@ -251,6 +464,40 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     protected ConnectionState readHTTPInitial(HttpResponse httpResponse) {
         LOG.debug("Received raw response: {}", httpResponse);
 
+        // the server is responding, so there's no going back
+        discardRetryableRequest();
+        if (awaitingResponse) {
+            awaitingResponse = false;
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+            RequestHedging requestHedging = proxyServer.getRequestHedging();
+            if (requestHedging != null) {
+                requestHedging.recordResponseTime(serverHostAndPort, System.nanoTime() - requestSentNanos);
+            }
+        }
+        AdaptiveConcurrencyLimits.Permit permit = concurrencyPermit.getAndSet(null);
+        if (permit != null) {
+            int status = httpResponse.status().code();
+            if (httpResponse.decoderResult().isFailure()
+                    || status == HttpResponseStatus.BAD_GATEWAY.code()
+                    || status == HttpResponseStatus.SERVICE_UNAVAILABLE.code()
+                    || status == HttpResponseStatus.GATEWAY_TIMEOUT.code()) {
+                // the server or something behind it is struggling
+                permit.dropped();
+            } else {
+                permit.succeeded(System.nanoTime() - requestSentNanos);
+            }
+        }
+        if (chainedProxyAwaitingResponse != null) {
+            try {
+                chainedProxyAwaitingResponse.responseReceived(System.nanoTime() - requestSentNanos);
+            } catch (Exception e) {
+                LOG.error("Unable to record responseReceived", e);
+            }
+            chainedProxyAwaitingResponse = null;
+        }
+
         if (httpResponse.decoderResult().isFailure()) {
             LOG.debug("Could not parse response from server. Decoder result: {}", httpResponse.decoderResult().toString());
 
@@ -264,10 +511,39 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             httpResponse = substituteResponse;
         }
 
-        currentFilters.serverToProxyResponseReceiving();
+        if (isAggregatingMessageForFiltering()) {
+            // This is the buffered response that our filters asked for
+            stopAggregatingMessageForFiltering();
+        } else {
+            currentFilters.serverToProxyResponseReceiving();
+
+            // Buffer the rest of this response if the filters want to see all of it at once
+            int numberOfBytesToBuffer = currentFilters.getMaximumResponseBufferSizeInBytes();
+            if (numberOfBytesToBuffer > 0
+                    && proxyServer.getFiltersSource().getMaximumResponseBufferSizeInBytes() <= 0
+                    && !(httpResponse instanceof LastHttpContent)) {
+                aggregateMessageForFiltering(httpResponse, numberOfBytesToBuffer,
+                        !proxyServer.isLazyResponseDecompression());
+                return AWAITING_INITIAL;
+            }
+        }
 
-        rememberCurrentResponse(httpResponse);
-        respondWith(httpResponse);
+        if (proxyServer.isLazyResponseDecompression()
+                && httpResponse instanceof FullHttpResponse
+                && LazilyDecompressedFullHttpResponse.isSupported(httpResponse)) {
+            // content was aggregated without being decompressed, so only decompress it if a filter looks at it
+            LazilyDecompressedFullHttpResponse lazyResponse =
+                    new LazilyDecompressedFullHttpResponse((FullHttpResponse) httpResponse);
+            try {
+                rememberCurrentResponse(lazyResponse);
+                respondWith(lazyResponse);
+            } finally {
+                lazyResponse.release();
+            }
+        } else {
+            rememberCurrentResponse(httpResponse);
+            respondWith(httpResponse);
+        }
 
         if (ProxyUtils.isChunked(httpResponse)) {
             return AWAITING_CHUNK;
@@ -307,6 +583,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * </p>
      */
     private class HeadAwareHttpResponseDecoder extends HttpResponseDecoder {
+        /**
+         * The connection whose requests the responses belong to, which changes
+         * when a connection takes over the channel of a racer.
+         */
+        private volatile ProxyToServerConnection connection = ProxyToServerConnection.this;
 
         public HeadAwareHttpResponseDecoder(int maxInitialLineLength,
                 int maxHeaderSize, int maxChunkSize) {
@@ -319,6 +600,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             // negotiating a CONNECT request with a chained proxy
             // while it is running as a MITM. Since the response to a
             // CONNECT request does not have any content, we return true.
+            HttpRequest currentHttpRequest = connection.currentHttpRequest;
             if(currentHttpRequest == null) {
                 return true;
             } else {
@@ -381,12 +663,30 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
     @Override
     protected void writeHttp(HttpObject httpObject) {
+        // keep a copy of the request as it was before the chained proxy filters it, since a retry is filtered again
+        keepForRetry(httpObject);
+        if (httpObject instanceof HttpRequest) {
+            // the same goes for a hedge, which is filtered by the chained proxy it's sent through
+            hedgeIfSlow((HttpRequest) httpObject);
+        }
         if (chainedProxy != null) {
             chainedProxy.filterRequest(httpObject);
         }
         if (httpObject instanceof HttpRequest) {
             // Remember that we issued this HttpRequest for later
             currentHttpRequest = (HttpRequest) httpObject;
+            awaitingResponse = true;
+            requestSentNanos = System.nanoTime();
+
+            if (chainedProxy != null) {
+                recordRequestFailed();
+                chainedProxyAwaitingResponse = chainedProxy;
+                try {
+                    chainedProxy.requestSent();
+                } catch (Exception e) {
+                    LOG.error("Unable to record requestSent", e);
+                }
+            }
         }
         super.writeHttp(httpObject);
     }
@@ -397,9 +697,18 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
     @Override
     protected void become(ConnectionState newState) {
+        if (race != null) {
+            // filters only hear about racers through the connection they race for
+            super.become(newState);
+            return;
+        }
+
         // Report connection status to HttpFilters
-        if (getCurrentState() == DISCONNECTED && newState == CONNECTING) {
+        if ((getCurrentState() == DISCONNECTED || getCurrentState() == AWAITING_CONNECTION_SLOT)
+                && newState == CONNECTING) {
             currentFilters.proxyToServerConnectionStarted();
+        } else if (getCurrentState() == AWAITING_CONNECTION_SLOT && newState == DISCONNECTED) {
+            currentFilters.proxyToServerConnectionFailed();
         } else if (getCurrentState() == CONNECTING) {
             if (newState == HANDSHAKING) {
                 currentFilters.proxyToServerConnectionSSLHandshakeStarted();
@@ -425,17 +734,33 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     @Override
     protected void becameSaturated() {
         super.becameSaturated();
+        if (race != null) {
+            return;
+        }
         this.clientConnection.serverBecameSaturated(this);
     }
 
     @Override
     protected void becameWritable() {
         super.becameWritable();
+        if (race != null) {
+            return;
+        }
         this.clientConnection.serverBecameWriteable(this);
     }
 
     @Override
     protected void timedOut() {
+        if (race != null) {
+            disconnect();
+            return;
+        }
+        if (awaitingResponse && circuitBreaker != null) {
+            circuitBreaker.recordFailure(probeAddress());
+        }
+        // the server may well have processed a request that it's slow to answer
+        discardRetryableRequest();
+        concurrencyPermitFailed(true);
         super.timedOut();
         clientConnection.timedOut(this);
     }
@@ -443,6 +768,23 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     @Override
     protected void disconnected() {
         super.disconnected();
+        if (race != null) {
+            // the client connection doesn't know about racers
+            releaseConnectionSlot();
+            return;
+        }
+        HedgedRequest hedge = hedgedRequest;
+        if (hedge != null) {
+            hedgedRequest = null;
+            hedge.cancel();
+        }
+        releaseConnectionSlot();
+        releaseRetryingRequest();
+        RetryableRequest retry = takeRequestToRetry();
+        if (retry == null) {
+            concurrencyPermitFailed(false);
+        }
+        recordRequestFailed();
         if (this.chainedProxy != null) {
             // Let the ChainedProxy know that we disconnected
             try {
@@ -452,6 +794,179 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             }
         }
         clientConnection.serverDisconnected(this);
+
+        if (retry != null) {
+            LOG.info("Server closed reused connection to {} before responding, sending {} {} again",
+                    serverHostAndPort, retry.request.method(), retry.request.uri());
+            proxyServer.recordStaleConnectionRetry();
+            retryingRequest = retry;
+            connectAndWrite(retry.request);
+        }
+    }
+
+    @Override
+    Future<Void> disconnect() {
+        Future<Void> request = connectionSlotRequest;
+        if (request != null) {
+            // give up our place in the queue, which fails the connection flow
+            request.cancel(false);
+        }
+        return super.disconnect();
+    }
+
+    /**
+     * Called when the client connection gives up on this connection because
+     * it couldn't connect, to give back what we hold for the server.
+     */
+    void connectionAbandoned() {
+        releaseConnectionSlot();
+        releaseRetryingRequest();
+        concurrencyPermitFailed(false);
+    }
+
+    /**
+     * Starts keeping a copy of the given request, or adds the given content to
+     * the copy of the current request, if the request may be retried when
+     * the server closes our reused connection before it responds. Only
+     * idempotent requests are retried, and only once, since the retry goes
+     * over a new connection.
+     */
+    private void keepForRetry(HttpObject httpObject) {
+        if (httpObject instanceof HttpRequest) {
+            discardRetryableRequest();
+            boolean reused = requestsWritten++ > 0;
+            HttpRequest request = (HttpRequest) httpObject;
+            if (reused
+                    && proxyServer.isRetryOnStaleConnections()
+                    && race == null
+                    && !clientConnection.isMitming()
+                    && !clientConnection.isTunneling()
+                    && ProxyUtils.isIdempotent(request)
+                    && !(request instanceof FullHttpRequest
+                        && ((FullHttpRequest) request).content().readableBytes() > proxyServer.getMaxRetryBufferSizeInBytes())) {
+                retryableRequest = new RetryableRequest(request, proxyServer.getMaxRetryBufferSizeInBytes());
+            }
+        } else if (httpObject instanceof HttpContent) {
+            RetryableRequest retryable = retryableRequest;
+            if (retryable != null && !retryable.addContent((HttpContent) httpObject)) {
+                // the content is too large to keep around
+                discardRetryableRequest();
+            }
+        }
+    }
+
+    /**
+     * Takes the copy of the request awaiting a response if it can be sent
+     * again now that our connection is closed.
+     *
+     * @return the request to send again, or null if it can't be retried
+     */
+    private RetryableRequest takeRequestToRetry() {
+        RetryableRequest retryable = retryableRequest;
+        retryableRequest = null;
+        if (retryable == null) {
+            return null;
+        }
+        if (!retryable.isComplete() || clientConnection.is(DISCONNECTED)) {
+            // we don't have the whole request, or there is nobody left to respond to
+            retryable.release();
+            return null;
+        }
+        return retryable;
+    }
+
+    private void discardRetryableRequest() {
+        RetryableRequest retryable = retryableRequest;
+        if (retryable != null) {
+            retryableRequest = null;
+            retryable.release();
+        }
+    }
+
+    /**
+     * Writes the content of the request we reconnected to send again, after
+     * the request itself has been written.
+     */
+    private void writeRetryingRequestContent() {
+        RetryableRequest retrying = retryingRequest;
+        if (retrying == null) {
+            return;
+        }
+        retryingRequest = null;
+        for (HttpContent content : retrying.takeContents()) {
+            write(content);
+            content.release();
+        }
+    }
+
+    private void releaseRetryingRequest() {
+        RetryableRequest retrying = retryingRequest;
+        if (retrying != null) {
+            retryingRequest = null;
+            retrying.release();
+        }
+    }
+
+    /**
+     * Gives the connection slot we hold for the server back, if any, so that
+     * the next connection waiting for the server can connect.
+     */
+    private void releaseConnectionSlot() {
+        if (holdingConnectionSlot.compareAndSet(true, false)) {
+            proxyServer.getServerConnectionLimits().release(serverHostAndPort);
+        }
+    }
+
+    /**
+     * Hands the permit of the request that is about to be written to this
+     * connection, which completes it once the response starts to arrive.
+     */
+    void setConcurrencyPermit(AdaptiveConcurrencyLimits.Permit permit) {
+        AdaptiveConcurrencyLimits.Permit previousPermit = concurrencyPermit.getAndSet(permit);
+        if (previousPermit != null) {
+            previousPermit.ignored();
+        }
+    }
+
+    /**
+     * Lets the adaptive concurrency limits know that the request in flight, if
+     * any, won't get a response.
+     *
+     * @param dropped true if the failure suggests that the server is overloaded
+     */
+    private void concurrencyPermitFailed(boolean dropped) {
+        AdaptiveConcurrencyLimits.Permit permit = concurrencyPermit.getAndSet(null);
+        if (permit != null) {
+            if (dropped) {
+                permit.dropped();
+            } else {
+                permit.ignored();
+            }
+        }
+    }
+
+    /**
+     * Returns the address the circuit breaker should probe when the current
+     * upstream fails, or null if it can't be probed.
+     */
+    private InetSocketAddress probeAddress() {
+        return transportProtocol == TransportProtocol.TCP ? remoteAddress : null;
+    }
+
+    /**
+     * Lets the chained proxy through which the current request was sent know
+     * that no response is going to arrive for it.
+     */
+    private void recordRequestFailed() {
+        ChainedProxy proxy = chainedProxyAwaitingResponse;
+        if (proxy != null) {
+            chainedProxyAwaitingResponse = null;
+            try {
+                proxy.requestFailed();
+            } catch (Exception e) {
+                LOG.error("Unable to record requestFailed", e);
+            }
+        }
     }
 
     @Override
@@ -561,6 +1076,9 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
         // Remember our initial request so that we can write it after connecting
         this.initialRequest = initialRequest;
+        this.connectStartedNanos = System.nanoTime();
+        this.adoptedWarmChannel = false;
+        this.requestsWritten = 0;
         initializeConnectionFlow();
         connectionFlow.start();
     }
@@ -571,11 +1089,82 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * handling CONNECTs.
      */
     private void initializeConnectionFlow() {
+        if (race != null) {
+            // the connection we're racing for takes over from here once we've won
+            this.connectionFlow = new RacingConnectionFlow();
+            addUpstreamConnectionSteps();
+            return;
+        }
+
         this.connectionFlow = new ConnectionFlow(clientConnection, this,
-                connectLock)
-                .then(ConnectChannel);
+                connectLock);
+
+        Queue<ChainedProxy> contestants = chainedProxiesToRace();
+        // a retry goes over a fresh connection
+        String warmConnectionKey = contestants == null && retryingRequest == null ? warmConnectionKey() : null;
+        if (warmConnectionKey != null) {
+            // a warm connection comes with its own connection slot
+            connectionFlow.then(AdoptWarmChannel(warmConnectionKey));
+        } else {
+            if (proxyServer.getServerConnectionLimits() != null && !holdingConnectionSlot.get()) {
+                connectionFlow.then(AcquireConnectionSlot);
+            }
+            if (contestants != null) {
+                connectionFlow.then(RaceChainedProxies(contestants));
+            } else {
+                addUpstreamConnectionSteps();
+            }
+        }
 
-        if (hasUpstreamChainedProxy()) {
+        if (ProxyUtils.isCONNECT(initialRequest)) {
+            if (clientConnection.isConnectingOptimistically()) {
+                // optimistic CONNECT, the client was told that the CONNECT succeeded before we started connecting
+                connectionFlow.then(serverConnection.StartTunneling);
+            } else if (mitm) {
+                MitmManager mitmManager = proxyServer.getMitmManager();
+                // When MITM is enabled and when chained proxy is set up, remoteAddress
+                // will be the chained proxy's address. So we use serverHostAndPort
+                // which is the end server's address.
+                // SNI may be disabled for this request due to a previous failed attempt to connect to the server
+                // with SNI enabled.
+                SSLEngine serverSslEngine = disableSni
+                        ? mitmManager.serverSslEngine()
+                        : mitmManager.serverSslEngine(serverTarget.host(), serverTarget.port(443));
+
+                if (mitmManager.needsServerSslSession()) {
+                    connectionFlow.then(serverConnection.EncryptChannel(serverSslEngine))
+                            .then(clientConnection.RespondCONNECTSuccessful)
+                            .then(serverConnection.MitmEncryptClientChannel);
+                } else {
+                    // when retrying, e.g. without SNI, the client already got its response and is handshaking
+                    if (mitmClientHandshake == null) {
+                        connectionFlow.then(clientConnection.RespondCONNECTSuccessful);
+                    }
+                    connectionFlow.then(MitmEncryptChannels(serverSslEngine));
+                }
+            } else {
+                connectionFlow.then(serverConnection.StartTunneling)
+                        .then(clientConnection.RespondCONNECTSuccessful)
+                        .then(clientConnection.StartTunneling);
+            }
+        }
+    }
+    
+    /**
+     * Adds the steps that establish the connection to the upstream server or
+     * chained proxy to the {@link ConnectionFlow}, i.e. everything up to the
+     * point where we can talk to the server.
+     */
+    private void addUpstreamConnectionSteps() {
+        boolean trunked = hasUpstreamChainedProxy() && chainedProxyType == ChainedProxyType.HTTP2;
+        if (trunked) {
+            // the trunk connection is encrypted if necessary, not the stream
+            connectionFlow.then(OpenTrunkStream);
+        } else {
+            connectionFlow.then(ConnectChannel);
+        }
+
+        if (hasUpstreamChainedProxy() && !trunked) {
             if (chainedProxy.requiresEncryption()) {
                 connectionFlow.then(serverConnection.EncryptChannel(chainedProxy.newSslEngine()));
             }
@@ -591,43 +1180,147 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             }
         }
 
-        if (ProxyUtils.isCONNECT(initialRequest)) {
-            // If we're chaining to an upstream HTTP proxy, forward the CONNECT request.
-            // Do not chain the CONNECT request for SOCKS proxies.
-            if (hasUpstreamChainedProxy() && (chainedProxyType == ChainedProxyType.HTTP)) {
-                connectionFlow.then(serverConnection.HTTPCONNECTWithChainedProxy);
-            }
-        	
-            MitmManager mitmManager = proxyServer.getMitmManager();
-            boolean isMitmEnabled = mitmManager != null;
+        // If we're chaining to an upstream HTTP proxy, forward the CONNECT request.
+        // Do not chain the CONNECT request for SOCKS proxies.
+        if (ProxyUtils.isCONNECT(initialRequest)
+                && hasUpstreamChainedProxy()
+                && (chainedProxyType == ChainedProxyType.HTTP || chainedProxyType == ChainedProxyType.HTTP2)) {
+            connectionFlow.then(serverConnection.HTTPCONNECTWithChainedProxy);
+        }
+    }
 
-            if (isMitmEnabled) {
-                // When MITM is enabled and when chained proxy is set up, remoteAddress
-                // will be the chained proxy's address. So we use serverHostAndPort
-                // which is the end server's address.
-                HostAndPort parsedHostAndPort = HostAndPort.fromString(serverHostAndPort);
+    /**
+     * Returns the key of the destination of this connection for
+     * {@link WarmConnections}, or null if warm connections are disabled or
+     * can't be used for this connection.
+     */
+    private String warmConnectionKey() {
+        if (proxyServer.getWarmConnections() == null
+                || transportProtocol != TransportProtocol.TCP
+                || ProxyUtils.isCONNECT(initialRequest)) {
+            return null;
+        }
+        if (!hasUpstreamChainedProxy()) {
+            return WarmConnections.keyFor(remoteAddress, null);
+        }
+        return chainedProxyType == ChainedProxyType.HTTP ? WarmConnections.keyFor(remoteAddress, chainedProxy) : null;
+    }
 
-                // SNI may be disabled for this request due to a previous failed attempt to connect to the server
-                // with SNI enabled.
-                if (disableSni) {
-                    connectionFlow.then(serverConnection.EncryptChannel(proxyServer.getMitmManager()
-                            .serverSslEngine()));
-                } else {
-                    connectionFlow.then(serverConnection.EncryptChannel(proxyServer.getMitmManager()
-                            .serverSslEngine(parsedHostAndPort.getHost(), parsedHostAndPort.getPort())));
+    /**
+     * Takes over an idle warm connection to our destination instead of
+     * connecting, see {@link WarmConnections}, along with the connection slot
+     * it holds for our server, if we need one. If there is no warm connection,
+     * it was closed in the meantime, or we need a slot that it can't give us
+     * and none is free, we wait for a slot and connect as usual after all.
+     */
+    private ConnectionFlowStep AdoptWarmChannel(final String warmConnectionKey) {
+        final ServerConnectionLimits limits = proxyServer.getServerConnectionLimits();
+        final boolean needsConnectionSlot = limits != null && !holdingConnectionSlot.get();
+        return new ConnectionFlowStep(this, needsConnectionSlot ? AWAITING_CONNECTION_SLOT : CONNECTING) {
+            @Override
+            boolean shouldExecuteOnEventLoop() {
+                return false;
+            }
+
+            @Override
+            protected Future<?> execute() {
+                WarmConnections warmConnections = proxyServer.getWarmConnections();
+                WarmConnections.WarmChannel warmChannel = warmConnections.take(warmConnectionKey);
+                if (needsConnectionSlot) {
+                    if (warmChannel != null
+                            && (warmChannel.takeConnectionSlot(serverHostAndPort) || limits.tryAcquire(serverHostAndPort))) {
+                        holdingConnectionSlot.set(true);
+                    } else {
+                        if (warmChannel != null) {
+                            warmConnections.putBack(warmChannel);
+                        }
+                        connectionFlow.then(AcquireConnectionSlot);
+                        addUpstreamConnectionSteps();
+                        return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+                    }
+                    become(CONNECTING);
                 }
+                if (warmChannel == null) {
+                    addUpstreamConnectionSteps();
+                    return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+                }
+                // unless we took it over, the warm connection's slot is no longer needed, since we hold our own
+                warmChannel.releaseConnectionSlot();
+
+                Channel warm = warmChannel.getChannel();
+                Promise<Void> adopted = warm.eventLoop().newPromise();
+                warm.eventLoop().execute(() -> {
+                    if (!warmChannel.adopt()) {
+                        LOG.debug("Warm connection to {} closed before we could take it over", remoteAddress);
+                        warm.close();
+                        addUpstreamConnectionSteps();
+                        adopted.setSuccess(null);
+                        return;
+                    }
+                    LOG.debug("Taking over warm connection to {}", remoteAddress);
+                    initChannelPipeline(warm.pipeline(), initialRequest);
+                    channel = warm;
+                    ctx = warm.pipeline().context(ProxyToServerConnection.this);
+                    sslEngine = warmChannel.getSslEngine();
+                    // the server may have closed the connection by now without us noticing, just like a reused one
+                    requestsWritten = 1;
+                    adoptedWarmChannel = true;
+                    adopted.setSuccess(null);
+                });
+                return adopted;
+            }
+        };
+    }
 
-            	connectionFlow
-                        .then(clientConnection.RespondCONNECTSuccessful)
-                        .then(serverConnection.MitmEncryptClientChannel);
-            } else {
-                connectionFlow.then(serverConnection.StartTunneling)
-                        .then(clientConnection.RespondCONNECTSuccessful)
-                        .then(clientConnection.StartTunneling);
+    /**
+     * If racing chained proxies is enabled and there are other chained proxies
+     * to race the current one against, takes them from the available chained
+     * proxies and returns them, together with the current one.
+     *
+     * @return the chained proxies to race, or null if there is nothing to race
+     */
+    private Queue<ChainedProxy> chainedProxiesToRace() {
+        int racedChainedProxies = proxyServer.getRacedChainedProxies();
+        if (racedChainedProxies <= 1 || !hasUpstreamChainedProxy()) {
+            return null;
+        }
+
+        Queue<ChainedProxy> contestants = new ArrayDeque<>(racedChainedProxies);
+        contestants.add(chainedProxy);
+        CircuitBreakers circuitBreakers = proxyServer.getCircuitBreakers();
+        ChainedProxy next;
+        // a direct connection is left where it is, so that it's still only tried after all chained proxies failed
+        while (contestants.size() < racedChainedProxies
+                && (next = availableChainedProxies.peek()) != null
+                && next != ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION) {
+            availableChainedProxies.poll();
+            if (circuitBreakers == null
+                    || circuitBreakers.forUpstream(CircuitBreakers.upstreamFor(next, serverHostAndPort)).allowRequest()) {
+                contestants.add(next);
             }
         }
+        return contestants.size() > 1 ? contestants : null;
     }
-    
+
+    /**
+     * Connects through all of the given chained proxies at once, see
+     * {@link ChainedProxyRace}. Once the first one has connected, this
+     * connection takes over its channel and the flow continues.
+     */
+    private ConnectionFlowStep RaceChainedProxies(final Queue<ChainedProxy> contestants) {
+        return new ConnectionFlowStep(this, CONNECTING) {
+            @Override
+            boolean shouldExecuteOnEventLoop() {
+                return false;
+            }
+
+            @Override
+            protected Future<?> execute() {
+                return new ChainedProxyRace(contestants).start();
+            }
+        };
+    }
+
     private void addFirstOrReplaceHandler(String name, ChannelHandler handler) {
         if (channel.pipeline().context(name) != null) {
             channel.pipeline().replace(name, name, handler);
@@ -643,6 +1336,32 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
     }
 
+    /**
+     * Waits until the number of connections to the server allows us to connect.
+     */
+    private ConnectionFlowStep AcquireConnectionSlot = new ConnectionFlowStep(
+            this, AWAITING_CONNECTION_SLOT) {
+        @Override
+        boolean shouldExecuteOnEventLoop() {
+            return false;
+        }
+
+        @Override
+        protected Future<?> execute() {
+            Future<Void> request = proxyServer.getServerConnectionLimits().acquire(serverHostAndPort);
+            if (!request.isDone()) {
+                LOG.debug("Too many connections to {}, waiting for one of them to close", serverHostAndPort);
+                connectionSlotRequest = request;
+            }
+            return request.addListener(future -> {
+                connectionSlotRequest = null;
+                if (future.isSuccess()) {
+                    holdingConnectionSlot.set(true);
+                }
+            });
+        }
+    };
+
     /**
      * Opens the socket connection.
      */
@@ -683,9 +1402,38 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
             if (localAddress != null) {
                 return cb.connect(remoteAddress, localAddress);
-            } else {
+            }
+
+            SourceAddressPool sourceAddressPool = proxyServer.getSourceAddressPool();
+            SourceAddressPool.Lease lease = sourceAddressPool != null ? sourceAddressPool.acquire(remoteAddress) : null;
+            if (lease == null) {
                 return cb.connect(remoteAddress);
             }
+            ChannelFuture connectFuture = cb.connect(remoteAddress, lease.getLocalAddress());
+            // the channel is also closed if connecting fails
+            connectFuture.channel().closeFuture().addListener(future -> lease.release());
+            return connectFuture;
+        }
+    };
+
+    /**
+     * Opens a stream to the chained proxy over one of the trunk connections to
+     * it, see {@link Trunks}, instead of connecting a channel.
+     */
+    private ConnectionFlowStep OpenTrunkStream = new ConnectionFlowStep(this,
+            CONNECTING) {
+        @Override
+        boolean shouldExecuteOnEventLoop() {
+            return false;
+        }
+
+        @Override
+        protected Future<?> execute() {
+            return proxyServer.getTrunks().openStream(chainedProxy, new ChannelInitializer<Channel>() {
+                protected void initChannel(Channel ch) {
+                    initChannelPipeline(ch.pipeline(), initialRequest);
+                }
+            });
         }
     };
 
@@ -697,8 +1445,6 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         protected Future<?> execute() {
             LOG.debug("Handling CONNECT request through Chained Proxy");
             chainedProxy.filterRequest(initialRequest);
-            MitmManager mitmManager = proxyServer.getMitmManager();
-            boolean isMitmEnabled = mitmManager != null;
             /*
              * We ignore the LastHttpContent which we read from the client
              * connection when we are negotiating connect (see readHttp()
@@ -708,7 +1454,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
              * when the next request is written. Writing the EmptyLastContent
              * resets its state.
              */
-            if(isMitmEnabled){
+            if(mitm){
                 ChannelFuture future = writeToChannel(initialRequest);
                 future.addListener((ChannelFutureListener) arg0 -> {
                     if(arg0.isSuccess()){
@@ -755,7 +1501,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         protected Future<?> execute() {
             InetSocketAddress destinationAddress;
             try {
-                destinationAddress = addressFor(serverHostAndPort, proxyServer);
+                destinationAddress = addressFor(serverTarget, proxyServer);
             } catch (UnknownHostException e) {
                 return channel.newFailedFuture(e);
             }
@@ -884,7 +1630,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
         @Override
         protected Future<?> execute() {
-            InetSocketAddress destinationAddress = unresolvedAddressFor(serverHostAndPort);
+            InetSocketAddress destinationAddress = unresolvedAddressFor(serverTarget);
             DefaultSocks5CommandRequest connectRequest = new DefaultSocks5CommandRequest(
                 Socks5CommandType.CONNECT, Socks5AddressType.DOMAIN, destinationAddress.getHostString(), destinationAddress.getPort());
 
@@ -940,6 +1686,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                             .clientSslEngineFor(initialRequest, sslEngine.getSession()), false)
                     .addListener(
                             future -> {
+                                recordMitmClientHandshake(future);
                                 if (future.isSuccess()) {
                                     clientConnection.setMitming(true);
                                 }
@@ -947,6 +1694,73 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
     };
 
+    /**
+     * <p>
+     * Encrypts the server channel and, at the same time, the client channel
+     * as though we were the server, for {@link MitmManager}s that don't need
+     * the server's {@link SSLSession} to impersonate it. This succeeds once
+     * both handshakes have succeeded, so that nothing is relayed before.
+     * </p>
+     *
+     * <p>
+     * The handshake with the client is only started once, so that it carries
+     * on while the connection to the server is retried.
+     * </p>
+     */
+    private ConnectionFlowStep MitmEncryptChannels(final SSLEngine serverSslEngine) {
+        return new ConnectionFlowStep(this, HANDSHAKING) {
+            @Override
+            boolean shouldExecuteOnEventLoop() {
+                return false;
+            }
+
+            @Override
+            boolean shouldSuppressInitialRequest() {
+                return true;
+            }
+
+            @Override
+            protected Future<?> execute() {
+                if (mitmClientHandshake == null) {
+                    mitmClientHandshake = clientConnection.encryptHoldingReads(proxyServer.getMitmManager()
+                            .clientSslEngineFor(initialRequest, null));
+                    mitmClientHandshake.addListener(future -> recordMitmClientHandshake(future));
+                }
+                final Future<Channel> clientHandshake = mitmClientHandshake;
+                final Future<Channel> serverHandshake = encrypt(serverSslEngine, false);
+
+                final Promise<Void> handshakes = ctx.executor().newPromise();
+                GenericFutureListener<Future<Channel>> listener = future -> {
+                    if (!future.isSuccess()) {
+                        handshakes.tryFailure(future.cause());
+                    } else if (clientHandshake.isSuccess() && serverHandshake.isSuccess()) {
+                        clientConnection.setMitming(true);
+                        handshakes.trySuccess(null);
+                    }
+                };
+                clientHandshake.addListener(listener);
+                serverHandshake.addListener(listener);
+                return handshakes;
+            }
+        };
+    }
+
+    /**
+     * Lets the {@link MitmBypass}, if any, learn from the outcome of a MITM handshake with the client.
+     */
+    private void recordMitmClientHandshake(Future<?> handshake) {
+        MitmBypass mitmBypass = proxyServer.getMitmBypass();
+        if (mitmBypass == null) {
+            return;
+        }
+        if (handshake.isSuccess()) {
+            mitmBypass.clientHandshakeSucceeded(serverTarget.host());
+        } else if (handshake.cause() instanceof SSLException) {
+            // the client rejected the handshake, e.g. our certificate, as opposed to going away in the middle of it
+            mitmBypass.clientHandshakeFailed(serverTarget.host());
+        }
+    }
+
     /**
      * Called when the connection to the server or upstream chained proxy fails. This method may return true to indicate
      * that the connection should be retried. If returning true, this method must set up the connection itself.
@@ -956,6 +1770,18 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     protected boolean connectionFailed(Throwable cause)
             throws UnknownHostException {
+        if (cause instanceof ServerConnectionLimits.QueueFullException
+                || cause instanceof ServerConnectionLimits.QueueTimeoutException
+                || cause instanceof CancellationException) {
+            // we never got to connect, so the upstream isn't to blame and trying another one won't help
+            concurrencyPermitFailed(false);
+            return false;
+        }
+
+        // if all chained proxies we raced failed, the racers already reported their failures
+        boolean failureRecorded = raceFailed;
+        raceFailed = false;
+
         // unlike a browser, java throws an exception when receiving an unrecognized_name TLS warning, even if the server
         // sends back a valid certificate for the expected host. we can retry the connection without SNI to allow the proxy
         // to connect to these misconfigured hosts. we should only retry the connection without SNI if the connection
@@ -979,16 +1805,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         // disabling SNI. before falling back to a chained proxy, re-enable SNI.
         disableSni = false;
 
-        if (chainedProxy != null) {
-            LOG.info("Connection to upstream server via chained proxy failed", cause);
-            // Let the ChainedProxy know that we were unable to connect
-            chainedProxy.connectionFailed(cause);
-        } else {
-            LOG.info("Connection to upstream server failed", cause);
+        if (!failureRecorded) {
+            recordConnectionFailed(cause);
         }
 
         // attempt to connect using a chained proxy, if available
-        chainedProxy = availableChainedProxies.poll();
+        chainedProxy = pollAvailableChainedProxy(proxyServer.getCircuitBreakers(), serverHostAndPort,
+                availableChainedProxies);
         if (chainedProxy != null) {
             LOG.info("Retrying connecting using the next available chained proxy");
 
@@ -999,9 +1822,28 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
 
         // no chained proxy fallback or other retry mechanism available
+        concurrencyPermitFailed(true);
         return false;
     }
 
+    /**
+     * Lets the circuit breaker and the chained proxy, if any, know that we were
+     * unable to connect.
+     */
+    private void recordConnectionFailed(Throwable cause) {
+        if (circuitBreaker != null) {
+            circuitBreaker.recordFailure(probeAddress());
+        }
+
+        if (chainedProxy != null) {
+            LOG.info("Connection to upstream server via chained proxy failed", cause);
+            // Let the ChainedProxy know that we were unable to connect
+            chainedProxy.connectionFailed(cause);
+        } else {
+            LOG.info("Connection to upstream server failed", cause);
+        }
+    }
+
     /**
      * Convenience method to prepare to retry this connection. Closes the connection's channel and sets up
      * the connection again using {@link #setupConnectionParameters()}.
@@ -1009,10 +1851,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * @throws UnknownHostException when {@link #setupConnectionParameters()} is unable to resolve the hostname
      */
     private void resetConnectionForRetry() throws UnknownHostException {
-        // Remove ourselves as handler on the old context
-        this.ctx.pipeline().remove(this);
-        this.ctx.close();
-        this.ctx = null;
+        // Remove ourselves as handler on the old context, unless we lost a race before ever getting a channel
+        if (this.ctx != null) {
+            if (this.ctx.pipeline().context(this) != null) {
+                this.ctx.pipeline().remove(this);
+            }
+            this.ctx.close();
+            this.ctx = null;
+        }
 
         this.setupConnectionParameters();
     }
@@ -1024,6 +1870,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * @throws UnknownHostException when unable to resolve the hostname to an IP address
      */
     private void setupConnectionParameters() throws UnknownHostException {
+        CircuitBreakers circuitBreakers = proxyServer.getCircuitBreakers();
+        if (circuitBreakers != null) {
+            this.circuitBreaker = circuitBreakers.forUpstream(CircuitBreakers.upstreamFor(chainedProxy, serverHostAndPort));
+        }
+
         if (chainedProxy != null
                 && chainedProxy != ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION) {
             this.transportProtocol = chainedProxy.getTransportProtocol();
@@ -1047,7 +1898,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             try {
                 if (this.remoteAddress == null) {
                     hostAndPort = serverHostAndPort;
-                    this.remoteAddress = addressFor(serverHostAndPort, proxyServer);
+                    this.remoteAddress = addressFor(serverTarget, proxyServer);
                 } else if (this.remoteAddress.isUnresolved()) {
                     // filter returned an unresolved address, so resolve it using the proxy server's resolver
                     hostAndPort = HostAndPort.fromParts(this.remoteAddress.getHostName(), this.remoteAddress.getPort()).toString();
@@ -1064,8 +1915,8 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
             this.currentFilters.proxyToServerResolutionSucceeded(serverHostAndPort, this.remoteAddress);
 
-
-            this.localAddress = proxyServer.getLocalAddress();
+            // a pool of source addresses takes precedence over the network interface
+            this.localAddress = proxyServer.getSourceAddressPool() == null ? proxyServer.getLocalAddress() : null;
         }
     }
 
@@ -1103,7 +1954,8 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         int numberOfBytesToBuffer = proxyServer.getFiltersSource()
                 .getMaximumResponseBufferSizeInBytes();
         if (numberOfBytesToBuffer > 0) {
-            aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
+            aggregateContentForFiltering(pipeline, numberOfBytesToBuffer,
+                    !proxyServer.isLazyResponseDecompression());
         }
 
         pipeline.addLast("responseReadMonitor", responseReadMonitor);
@@ -1130,10 +1982,16 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     void connectionSucceeded(boolean shouldForwardInitialRequest) {
         become(AWAITING_INITIAL);
+        if (circuitBreaker != null) {
+            circuitBreaker.recordSuccess();
+        }
         if (this.chainedProxy != null) {
             // Notify the ChainedProxy that we successfully connected
             try {
                 this.chainedProxy.connectionSucceeded();
+                if (!adoptedWarmChannel) {
+                    this.chainedProxy.connectTimeMeasured(System.nanoTime() - connectStartedNanos);
+                }
             } catch (Exception e) {
                 LOG.error("Unable to record connectionSucceeded", e);
             }
@@ -1142,8 +2000,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 shouldForwardInitialRequest);
 
         if (shouldForwardInitialRequest) {
+            String warmConnectionKey = race == null ? warmConnectionKey() : null;
+            if (warmConnectionKey != null) {
+                proxyServer.getWarmConnections().recordUse(warmConnectionKey, remoteAddress,
+                        hasUpstreamChainedProxy() ? chainedProxy : null, serverHostAndPort);
+            }
             LOG.debug("Writing initial request: {}", initialRequest);
             write(initialRequest);
+            writeRetryingRequestContent();
         } else {
             LOG.debug("Dropping initial request: {}", initialRequest);
         }
@@ -1156,6 +2020,606 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
     }
 
+    /**
+     * Something that connections race for on behalf of another connection,
+     * like being the first to connect ({@link ChainedProxyRace}) or the first
+     * to get a response ({@link HedgedRequest}).
+     */
+    private abstract class ConnectionRace {
+        /**
+         * Called by a racer whose connection flow completed.
+         */
+        abstract void racerConnected(ProxyToServerConnection racer);
+
+        /**
+         * Called by a racer whose connection flow failed.
+         */
+        abstract void racerFailed(ProxyToServerConnection racer, Throwable cause);
+
+        /**
+         * Called with the messages a racer reads once it's connected. Ignores
+         * them by default.
+         */
+        void racerRead(ProxyToServerConnection racer, Object msg) {
+            LOG.debug("Racer ignoring message: {}", msg);
+        }
+    }
+
+    /**
+     * <p>
+     * Races connections through several chained proxies against each other on
+     * behalf of this connection, see
+     * {@link org.littleshoot.proxy.HttpProxyServerBootstrap#withRacedChainedProxies(int)}.
+     * </p>
+     *
+     * <p>
+     * Each contestant gets its own racing connection, which goes through the
+     * steps added by {@link #addUpstreamConnectionSteps()}, i.e. it connects,
+     * encrypts the channel if the chained proxy requires it, and negotiates
+     * SOCKS or HTTP CONNECT. The first one to finish wins: this connection
+     * takes over its channel and the remaining racers are closed. Racers are
+     * started {@link DefaultHttpProxyServer#getChainedProxyRaceStaggerMillis()}
+     * apart, or right away when a previous racer fails.
+     * </p>
+     */
+    private class ChainedProxyRace extends ConnectionRace {
+        private final Promise<Void> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        private final Queue<ChainedProxy> contestants;
+        private final List<ProxyToServerConnection> racers = new ArrayList<>();
+        private int running;
+        private boolean finished;
+        private Throwable lastCause;
+
+        ChainedProxyRace(Queue<ChainedProxy> contestants) {
+            this.contestants = contestants;
+        }
+
+        /**
+         * Starts the race.
+         *
+         * @return a future that succeeds once this connection has taken over
+         *         the channel of the winner, or fails if all racers failed
+         */
+        Future<Void> start() {
+            LOG.debug("Racing connections through {} chained proxies", contestants.size());
+            if (proxyServer.getChainedProxyRaceStaggerMillis() > 0) {
+                startNextRacer();
+            } else {
+                while (startNextRacer()) {
+                    // start them all
+                }
+            }
+            return promise;
+        }
+
+        /**
+         * Starts connecting through the next contestant, and schedules starting
+         * the one after it if racers are staggered.
+         *
+         * @return true if a racer was started
+         */
+        private boolean startNextRacer() {
+            ProxyToServerConnection racer = null;
+            ServerConnectionLimits limits = proxyServer.getServerConnectionLimits();
+            synchronized (this) {
+                while (!finished && racer == null) {
+                    ChainedProxy contestant = contestants.peek();
+                    if (contestant == null) {
+                        return false;
+                    }
+                    // the first racer uses the slot this connection holds, the others need one of their own
+                    boolean extraSlot = limits != null && running > 0;
+                    if (extraSlot && !limits.tryAcquire(serverHostAndPort)) {
+                        LOG.debug("Too many connections to {} to race another chained proxy", serverHostAndPort);
+                        return false;
+                    }
+                    contestants.poll();
+                    HttpRequest request = initialRequest;
+                    if (ProxyUtils.isCONNECT(request)) {
+                        // the CONNECT request is filtered by the chained proxy before it is sent, so every racer needs its own
+                        request = new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+                                request.headers().copy());
+                    }
+                    try {
+                        racer = new ProxyToServerConnection(ProxyToServerConnection.this, this, contestant, request);
+                        racer.holdingConnectionSlot.set(extraSlot);
+                        racers.add(racer);
+                        running++;
+                    } catch (UnknownHostException e) {
+                        LOG.info("Unable to race chained proxy {}", contestant, e);
+                        lastCause = e;
+                        if (extraSlot) {
+                            limits.release(serverHostAndPort);
+                        }
+                    }
+                }
+                if (racer == null) {
+                    return false;
+                }
+            }
+
+            long staggerMillis = proxyServer.getChainedProxyRaceStaggerMillis();
+            if (staggerMillis > 0 && !contestants.isEmpty()) {
+                try {
+                    proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP)
+                            .schedule(this::startNextRacer, staggerMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Unable to schedule next racer, proxy is shutting down");
+                }
+            }
+
+            racer.connectAndWrite(racer.initialRequest);
+            return true;
+        }
+
+        @Override
+        void racerConnected(ProxyToServerConnection racer) {
+            List<ProxyToServerConnection> losers;
+            synchronized (this) {
+                running--;
+                if (finished) {
+                    // too late
+                    racer.recordRacerConnected();
+                    racer.lost();
+                    return;
+                }
+                finished = true;
+                losers = new ArrayList<>(racers);
+                losers.remove(racer);
+            }
+
+            LOG.debug("Connection through {} won the race", racer.chainedProxy);
+            for (ProxyToServerConnection loser : losers) {
+                if (!loser.isConnecting()) {
+                    loser.recordRacerConnected();
+                }
+                loser.lost();
+            }
+
+            if (racer.channel.eventLoop().inEventLoop()) {
+                takeOver(racer);
+            } else {
+                racer.channel.eventLoop().execute(() -> takeOver(racer));
+            }
+        }
+
+        private void takeOver(ProxyToServerConnection racer) {
+            try {
+                adopt(racer);
+                // the channel now counts against the slot this connection holds
+                racer.releaseConnectionSlot();
+                promise.setSuccess(null);
+            } catch (Exception e) {
+                LOG.error("Unable to take over connection through {}", racer.chainedProxy, e);
+                racer.disconnect();
+                promise.tryFailure(e);
+            }
+        }
+
+        @Override
+        void racerFailed(ProxyToServerConnection racer, Throwable cause) {
+            boolean allFailed;
+            synchronized (this) {
+                running--;
+                if (finished) {
+                    // closed because another racer won
+                    return;
+                }
+                if (cause != null) {
+                    lastCause = cause;
+                }
+                allFailed = running == 0 && contestants.isEmpty();
+                finished = allFailed;
+            }
+
+            racer.recordConnectionFailed(cause);
+
+            if (!allFailed) {
+                startNextRacer();
+            } else {
+                LOG.debug("Connections through all raced chained proxies failed");
+                raceFailed = true;
+                promise.setFailure(lastCause != null ? lastCause
+                        : new IOException("Unable to connect through any of the raced chained proxies"));
+            }
+        }
+    }
+
+    /**
+     * The {@link ConnectionFlow} of a connection taking part in a
+     * {@link ChainedProxyRace}, which reports to the race instead of to the
+     * client connection.
+     */
+    private class RacingConnectionFlow extends ConnectionFlow {
+        RacingConnectionFlow() {
+            super(clientConnection, ProxyToServerConnection.this, connectLock);
+        }
+
+        @Override
+        void start() {
+            advance();
+        }
+
+        @Override
+        void succeed() {
+            become(AWAITING_INITIAL);
+            race.racerConnected(ProxyToServerConnection.this);
+        }
+
+        @Override
+        void fail(Throwable cause) {
+            disconnect();
+            releaseConnectionSlot();
+            race.racerFailed(ProxyToServerConnection.this, cause);
+        }
+    }
+
+    /**
+     * Lets the circuit breaker and the chained proxy, if any, of a racer that
+     * managed to connect know how that went.
+     */
+    private void recordRacerConnected() {
+        if (circuitBreaker != null) {
+            circuitBreaker.recordSuccess();
+        }
+        if (chainedProxy != null) {
+            try {
+                chainedProxy.connectTimeMeasured(System.nanoTime() - connectStartedNanos);
+            } catch (Exception e) {
+                LOG.error("Unable to record connectTimeMeasured", e);
+            }
+        }
+    }
+
+    /**
+     * Closes a racer that didn't win its race.
+     */
+    private void lost() {
+        become(DISCONNECTED);
+        recordRequestFailed();
+        Future<Void> disconnected = disconnect();
+        if (disconnected != null) {
+            disconnected.addListener(future -> releaseConnectionSlot());
+        } else {
+            releaseConnectionSlot();
+        }
+    }
+
+    /**
+     * Takes over the channel of the given racer, which won a
+     * {@link ChainedProxyRace} we started, along with the connection
+     * parameters of the chained proxy it connected through. Must be called on
+     * the racer's event loop.
+     */
+    private void adopt(ProxyToServerConnection racer) {
+        this.chainedProxy = racer.chainedProxy;
+        this.transportProtocol = racer.transportProtocol;
+        this.chainedProxyType = racer.chainedProxyType;
+        this.remoteAddress = racer.remoteAddress;
+        this.localAddress = racer.localAddress;
+        this.remoteAddressResolver = racer.remoteAddressResolver;
+        this.username = racer.username;
+        this.password = racer.password;
+        this.circuitBreaker = racer.circuitBreaker;
+        this.connectStartedNanos = racer.connectStartedNanos;
+        this.sslEngine = racer.sslEngine;
+
+        // the monitors and handler belong to the racer, so replace them with our own
+        ChannelPipeline pipeline = racer.channel.pipeline();
+        pipeline.replace(racer.bytesReadMonitor, "bytesReadMonitor", bytesReadMonitor);
+        pipeline.replace(racer.bytesWrittenMonitor, "bytesWrittenMonitor", bytesWrittenMonitor);
+        pipeline.replace(racer.responseReadMonitor, "responseReadMonitor", responseReadMonitor);
+        pipeline.replace(racer.requestWrittenMonitor, "requestWrittenMonitor", requestWrittenMonitor);
+        ChannelHandler decoder = pipeline.get("decoder");
+        if (decoder instanceof HeadAwareHttpResponseDecoder) {
+            // the decoder may be in the middle of a response, so keep it and just tell it about us
+            ((HeadAwareHttpResponseDecoder) decoder).connection = this;
+        }
+        pipeline.replace(racer, "handler", this);
+        this.channel = racer.channel;
+        this.ctx = pipeline.context(this);
+    }
+
+    /**
+     * Hedges the given request if hedging is enabled and the request may be
+     * hedged, i.e. schedules sending a copy of it through another connection
+     * if its response is slow to arrive.
+     */
+    private void hedgeIfSlow(HttpRequest request) {
+        RequestHedging requestHedging = proxyServer.getRequestHedging();
+        if (requestHedging == null
+                || race != null
+                || ProxyUtils.isCONNECT(initialRequest)
+                || !RequestHedging.isHedgeable(request)) {
+            return;
+        }
+
+        requestHedging.requestHedgeable();
+        HedgedRequest previous = hedgedRequest;
+        if (previous != null) {
+            previous.cancel();
+        }
+        HedgedRequest hedge = new HedgedRequest(requestHedging, request);
+        hedgedRequest = hedge;
+        hedge.schedule();
+    }
+
+    /**
+     * Returns the chained proxy to send a hedge through: the next available
+     * chained proxy if we're connected through one, or else the one we're
+     * connected through (or null when connected to the server directly), in
+     * which case the hedge goes through a new connection.
+     */
+    private ChainedProxy chainedProxyToHedgeThrough() {
+        if (hasUpstreamChainedProxy()) {
+            ChainedProxy next = availableChainedProxies.peek();
+            CircuitBreakers circuitBreakers = proxyServer.getCircuitBreakers();
+            if (next != null
+                    && next != ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION
+                    && (circuitBreakers == null
+                        || circuitBreakers.forUpstream(CircuitBreakers.upstreamFor(next, serverHostAndPort)).allowRequest())) {
+                return next;
+            }
+        }
+        return hasUpstreamChainedProxy() ? chainedProxy : null;
+    }
+
+    /**
+     * <p>
+     * A request whose response hasn't arrived yet, and which is sent again
+     * through another connection if the response takes too long, see
+     * {@link RequestHedgingConfiguration}.
+     * </p>
+     *
+     * <p>
+     * The copy is sent by a racing connection. Whichever connection reads the
+     * response headers first wins. If it's the racer, this connection takes
+     * over its channel in the middle of reading the response, and closes its
+     * own channel.
+     * </p>
+     */
+    private class HedgedRequest extends ConnectionRace {
+        private final RequestHedging requestHedging;
+        private final HttpRequest request;
+        private final AtomicBoolean decided = new AtomicBoolean(false);
+        private volatile boolean racerWon;
+        private volatile ScheduledFuture<?> timer;
+        private volatile ProxyToServerConnection racer;
+
+        HedgedRequest(RequestHedging requestHedging, HttpRequest request) {
+            this.requestHedging = requestHedging;
+            // only the headers are copied, since the content of the original request may be released by the time we
+            // hedge, and they're copied now, since the original request is about to be filtered by our chained proxy
+            this.request = new DefaultFullHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+                    Unpooled.EMPTY_BUFFER, request.headers().copy(), EmptyHttpHeaders.INSTANCE);
+        }
+
+        void schedule() {
+            timer = channel.eventLoop().schedule(this::hedge,
+                    requestHedging.delayMillisFor(serverHostAndPort), TimeUnit.MILLISECONDS);
+        }
+
+        private void hedge() {
+            if (decided.get() || hedgedRequest != this) {
+                return;
+            }
+            ServerConnectionLimits limits = proxyServer.getServerConnectionLimits();
+            if (limits != null && !limits.tryAcquire(serverHostAndPort)) {
+                LOG.debug("Too many connections to {} to hedge request", serverHostAndPort);
+                return;
+            }
+            if (!requestHedging.tryHedge()) {
+                if (limits != null) {
+                    limits.release(serverHostAndPort);
+                }
+                return;
+            }
+
+            ChainedProxy hedgeChainedProxy = chainedProxyToHedgeThrough();
+            ProxyToServerConnection racer;
+            try {
+                racer = new ProxyToServerConnection(ProxyToServerConnection.this, this, hedgeChainedProxy, request);
+                racer.holdingConnectionSlot.set(limits != null);
+            } catch (UnknownHostException e) {
+                LOG.debug("Unable to hedge request", e);
+                if (limits != null) {
+                    limits.release(serverHostAndPort);
+                }
+                return;
+            }
+
+            LOG.debug("No response yet, hedging request through {}",
+                    hedgeChainedProxy != null ? hedgeChainedProxy : serverHostAndPort);
+            this.racer = racer;
+            racer.connectAndWrite(request);
+            if (decided.get()) {
+                // the response arrived while we were starting the racer
+                racer.lost();
+            }
+        }
+
+        /**
+         * Decides whether this connection should read the given message, which
+         * it read from its own channel.
+         */
+        boolean shouldRead(Object msg) {
+            if (!(msg instanceof HttpResponse)) {
+                return !racerWon;
+            }
+
+            cancelTimer();
+            if (!decided.compareAndSet(false, true)) {
+                return false;
+            }
+            hedgedRequest = null;
+            ProxyToServerConnection racer = this.racer;
+            if (racer != null) {
+                racer.lost();
+            }
+            return true;
+        }
+
+        /**
+         * Gives up on this hedged request, e.g. because our connection closed.
+         */
+        void cancel() {
+            cancelTimer();
+            if (decided.compareAndSet(false, true)) {
+                ProxyToServerConnection racer = this.racer;
+                if (racer != null) {
+                    racer.lost();
+                }
+            }
+        }
+
+        private void cancelTimer() {
+            ScheduledFuture<?> timer = this.timer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+
+        @Override
+        void racerConnected(ProxyToServerConnection racer) {
+            racer.recordRacerConnected();
+            if (decided.get()) {
+                racer.lost();
+            } else {
+                racer.write(racer.initialRequest);
+            }
+        }
+
+        @Override
+        void racerFailed(ProxyToServerConnection racer, Throwable cause) {
+            racer.recordConnectionFailed(cause);
+        }
+
+        @Override
+        void racerRead(ProxyToServerConnection racer, Object msg) {
+            if (!(msg instanceof HttpResponse)) {
+                super.racerRead(racer, msg);
+                return;
+            }
+            if (!decided.compareAndSet(false, true)) {
+                racer.lost();
+                return;
+            }
+
+            racerWon = true;
+            cancelTimer();
+            requestHedging.hedgeWon();
+            LOG.debug("Hedged request through {} got the response first", racer.chainedProxy);
+            takeOverHedge(racer);
+            hedgedRequest = null;
+            read(msg);
+        }
+    }
+
+    /**
+     * Takes over the channel of a racer that got the response to a hedged
+     * request first, and quietly closes our own channel. Must be called on
+     * the racer's event loop.
+     */
+    private void takeOverHedge(ProxyToServerConnection racer) {
+        Channel ownChannel = channel;
+        ChannelHandlerContext ownCtx = ctx;
+
+        // our own request won't be answered
+        recordRequestFailed();
+        adopt(racer);
+        this.chainedProxyAwaitingResponse = racer.chainedProxyAwaitingResponse;
+        this.requestSentNanos = racer.requestSentNanos;
+
+        if (ownCtx != null && ownCtx.pipeline().context(this) != null) {
+            ownCtx.pipeline().remove(this);
+        }
+        // the racer's channel now counts against the slot we hold, so the racer's slot goes once our own channel is gone
+        ownChannel.close().addListener(future -> racer.releaseConnectionSlot());
+    }
+
+    /**
+     * <p>
+     * A copy of an idempotent request that was sent over a reused connection,
+     * which is sent again over a new connection if the server closes the
+     * reused one before it starts to respond, see
+     * {@link DefaultHttpProxyServer#isRetryOnStaleConnections()}.
+     * </p>
+     *
+     * <p>
+     * The content of the request is retained as it is written, up to the
+     * maximum retry buffer size. The request can only be retried once all of
+     * its content has been written, since the rest of the content would
+     * otherwise go nowhere.
+     * </p>
+     */
+    private static class RetryableRequest {
+        private final HttpRequest request;
+        private final int maxContentBytes;
+        private final List<HttpContent> contents = new ArrayList<>();
+        private int contentBytes;
+        private boolean complete;
+        private boolean released;
+
+        RetryableRequest(HttpRequest request, int maxContentBytes) {
+            this.maxContentBytes = maxContentBytes;
+            if (request instanceof FullHttpRequest) {
+                this.request = ((FullHttpRequest) request).retainedDuplicate();
+                this.complete = true;
+            } else {
+                this.request = new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+                        request.headers().copy());
+            }
+        }
+
+        /**
+         * Retains a copy of the given content of the request.
+         *
+         * @return false if the content of the request is too large to retry the request
+         */
+        synchronized boolean addContent(HttpContent content) {
+            if (released) {
+                return false;
+            }
+            contentBytes += content.content().readableBytes();
+            if (contentBytes > maxContentBytes) {
+                return false;
+            }
+            contents.add(content.retainedDuplicate());
+            if (content instanceof LastHttpContent) {
+                complete = true;
+            }
+            return true;
+        }
+
+        synchronized boolean isComplete() {
+            return complete && !released;
+        }
+
+        /**
+         * Hands over the retained content, which the caller has to release.
+         */
+        synchronized List<HttpContent> takeContents() {
+            List<HttpContent> taken = new ArrayList<>(contents);
+            contents.clear();
+            released = true;
+            return taken;
+        }
+
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (HttpContent content : contents) {
+                content.release();
+            }
+            contents.clear();
+            if (request instanceof ReferenceCounted) {
+                ((ReferenceCounted) request).release();
+            }
+        }
+    }
+
     /**
      * Build an {@link InetSocketAddress} for the given hostAndPort.
      * 
@@ -1167,31 +2631,27 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     public static InetSocketAddress addressFor(String hostAndPort, DefaultHttpProxyServer proxyServer)
             throws UnknownHostException {
-        HostAndPort parsedHostAndPort;
-        try {
-            parsedHostAndPort = HostAndPort.fromString(hostAndPort);
-        } catch (IllegalArgumentException e) {
+        return addressFor(RequestTarget.parse(hostAndPort), proxyServer);
+    }
+
+    private static InetSocketAddress addressFor(RequestTarget target, DefaultHttpProxyServer proxyServer)
+            throws UnknownHostException {
+        if (!target.hasValidAuthority()) {
             // we couldn't understand the hostAndPort string, so there is no way we can resolve it.
-            throw new UnknownHostException(hostAndPort);
+            throw new UnknownHostException(target.uri());
         }
 
-        String host = parsedHostAndPort.getHost();
-        int port = parsedHostAndPort.getPortOrDefault(80);
-
-        return proxyServer.getServerResolver().resolve(host, port);
+        return proxyServer.getServerResolver().resolve(target.host(), target.port(80));
     }
 
     /**
      * Similar to {@link #addressFor(String, DefaultHttpProxyServer)} except that it does
      * not resolve the address.
-     * @param hostAndPort the host and port to parse.
+     * @param target the parsed host and port.
      * @return an unresolved {@link InetSocketAddress}.
      */
-    private static InetSocketAddress unresolvedAddressFor(String hostAndPort) {
-        HostAndPort parsedHostAndPort = HostAndPort.fromString(hostAndPort);
-        String host = parsedHostAndPort.getHost();
-        int port = parsedHostAndPort.getPortOrDefault(80);
-        return InetSocketAddress.createUnresolved(host, port);
+    private static InetSocketAddress unresolvedAddressFor(RequestTarget target) {
+        return InetSocketAddress.createUnresolved(target.host(), target.port(80));
     }
 
     /* *************************************************************************
@@ -1251,7 +2711,9 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 LOG.warn("Error while invoking ActivityTracker on request", t);
             }
 
-            currentFilters.proxyToServerRequestSending();
+            if (race == null) {
+                currentFilters.proxyToServerRequestSending();
+            }
         }
 
         @Override
@@ -1260,7 +2722,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
         @Override
         protected void contentWritten(HttpContent httpContent) {
-            if (httpContent instanceof LastHttpContent) {
+            if (httpContent instanceof LastHttpContent && race == null) {
                 currentFilters.proxyToServerRequestSent();
             }
         }
@@ -6,6 +6,7 @@ import com.google.common.collect.ImmutableSet;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.*;
 import io.netty.util.AsciiString;
 import org.apache.commons.lang3.StringUtils;
@@ -18,7 +19,6 @@ import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.regex.Pattern;
 
 /**
  * Utilities for the proxy.
@@ -44,8 +44,30 @@ public class ProxyUtils {
             HttpHeaderNames.UPGRADE.toString()
     );
 
+    /**
+     * The same hop-by-hop headers as {@link #SHOULD_NOT_PROXY_HOP_BY_HOP_HEADERS}, as {@link AsciiString}s that can be
+     * removed from {@link HttpHeaders} without converting any header names to Strings. Connection must stay first,
+     * since {@link #stripConnectionTokens(HttpHeaders)} relies on it.
+     */
+    @SuppressWarnings("deprecation")
+    private static final AsciiString[] HOP_BY_HOP_HEADER_NAMES = {
+            HttpHeaderNames.CONNECTION,
+            HttpHeaderNames.KEEP_ALIVE,
+            HttpHeaderNames.PROXY_AUTHENTICATE,
+            HttpHeaderNames.PROXY_AUTHORIZATION,
+            HttpHeaderNames.TE,
+            HttpHeaderNames.TRAILER,
+            HttpHeaderNames.UPGRADE
+    };
+
     private static final Logger LOG = LoggerFactory.getLogger(ProxyUtils.class);
 
+    /**
+     * The Date header value for the current second, see {@link #currentDateHeaderValue()}.
+     */
+    private static volatile CachedDateHeaderValue cachedDateHeaderValue =
+            new CachedDateHeaderValue(System.currentTimeMillis() / 1000L);
+
     private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
 
     /**
@@ -53,16 +75,6 @@ public class ProxyUtils {
      */
     private static final Splitter COMMA_SEPARATED_HEADER_VALUE_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    /**
-     * Date format pattern used to parse HTTP date headers in RFC 1123 format.
-     */
-    private static final String PATTERN_RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
-
-    // Schemes are case-insensitive:
-    // http://tools.ietf.org/html/rfc3986#section-3.1
-    private static Pattern HTTP_PREFIX = Pattern.compile("^https?://.*",
-            Pattern.CASE_INSENSITIVE);
-
     /**
      * Strips the host from a URI string. This will turn "http://host.com/path"
      * into "/path".
@@ -72,30 +84,50 @@ public class ProxyUtils {
      * @return A string with the URI stripped.
      */
     public static String stripHost(final String uri) {
-        if (!HTTP_PREFIX.matcher(uri).matches()) {
-            // It's likely a URI path, not the full URI (i.e. the host is
-            // already stripped).
-            return uri;
-        }
-        final String noHttpUri = StringUtils.substringAfter(uri, "://");
-        final int slashIndex = noHttpUri.indexOf("/");
-        if (slashIndex == -1) {
-            return "/";
-        }
-        return noHttpUri.substring(slashIndex);
+        return RequestTarget.parse(uri).pathAndQuery();
     }
 
     /**
-     * Formats the given date according to the RFC 1123 pattern.
+     * Formats the given date according to the RFC 1123 pattern, using
+     * Netty's thread-local {@link DateFormatter} rather than a new
+     * {@link SimpleDateFormat} for every call.
      * 
      * @param date
      *            The date to format.
      * @return An RFC 1123 formatted date string.
-     * 
-     * @see #PATTERN_RFC1123
      */
     public static String formatDate(final Date date) {
-        return formatDate(date, PATTERN_RFC1123);
+        if (date == null)
+            throw new IllegalArgumentException("date is null");
+
+        return DateFormatter.format(date);
+    }
+
+    /**
+     * Returns the current time formatted for use as the value of a Date
+     * header. The formatted value only changes once per second, so it is
+     * cached and shared between all callers in the same second.
+     *
+     * @return the current time in RFC 1123 format
+     */
+    public static CharSequence currentDateHeaderValue() {
+        long second = System.currentTimeMillis() / 1000L;
+        CachedDateHeaderValue cached = cachedDateHeaderValue;
+        if (cached.second != second) {
+            cached = new CachedDateHeaderValue(second);
+            cachedDateHeaderValue = cached;
+        }
+        return cached.value;
+    }
+
+    private static class CachedDateHeaderValue {
+        private final long second;
+        private final AsciiString value;
+
+        CachedDateHeaderValue(long second) {
+            this.second = second;
+            this.value = AsciiString.of(DateFormatter.format(new Date(second * 1000L)));
+        }
     }
 
     /**
@@ -165,23 +197,7 @@ public class ProxyUtils {
      * @return The host and port string.
      */
     public static String parseHostAndPort(final String uri) {
-        final String tempUri;
-        if (!HTTP_PREFIX.matcher(uri).matches()) {
-            // Browsers particularly seem to send requests in this form when
-            // they use CONNECT.
-            tempUri = uri;
-        } else {
-            // We can't just take a substring from a hard-coded index because it
-            // could be either http or https.
-            tempUri = StringUtils.substringAfter(uri, "://");
-        }
-        final String hostAndPort;
-        if (tempUri.contains("/")) {
-            hostAndPort = tempUri.substring(0, tempUri.indexOf("/"));
-        } else {
-            hostAndPort = tempUri;
-        }
-        return hostAndPort;
+        return RequestTarget.parse(uri).hostAndPort();
     }
 
     /**
@@ -228,22 +244,24 @@ public class ProxyUtils {
      * @param alias the alias to provide in the Via header for this proxy
      */
     public static void addVia(HttpMessage httpMessage, String alias) {
-        String newViaHeader = String.valueOf(httpMessage.protocolVersion().majorVersion()) +
+        httpMessage.headers().add(HttpHeaderNames.VIA, viaHeaderValue(httpMessage.protocolVersion(), alias));
+    }
+
+    /**
+     * Returns the value a proxy with the given alias adds to the Via header
+     * of messages with the given protocol version, i.e. "1.1 alias" for
+     * HTTP/1.1 messages.
+     *
+     * @param protocolVersion protocol version of the message
+     * @param alias the alias to provide in the Via header for this proxy
+     * @return the Via header value for this proxy
+     */
+    public static AsciiString viaHeaderValue(HttpVersion protocolVersion, String alias) {
+        return AsciiString.of(String.valueOf(protocolVersion.majorVersion()) +
                 '.' +
-                httpMessage.protocolVersion().minorVersion() +
+                protocolVersion.minorVersion() +
                 ' ' +
-                alias;
-
-        final List<String> vias;
-        if (httpMessage.headers().contains(HttpHeaderNames.VIA)) {
-            List<String> existingViaHeaders = httpMessage.headers().getAll(HttpHeaderNames.VIA);
-            vias = new ArrayList<>(existingViaHeaders);
-            vias.add(newViaHeader);
-        } else {
-            vias = Collections.singletonList(newViaHeader);
-        }
-
-        httpMessage.headers().set(HttpHeaderNames.VIA, vias);
+                alias);
     }
 
     /**
@@ -316,6 +334,23 @@ public class ProxyUtils {
         return HttpMethod.HEAD.equals(httpRequest.method());
     }
 
+    /**
+     * Returns true if the specified HttpRequest uses an idempotent method, i.e. sending it several times has the same
+     * effect as sending it once (RFC 7231, section 4.2.2).
+     *
+     * @param httpRequest http request
+     * @return true if the request method is idempotent, otherwise false
+     */
+    public static boolean isIdempotent(HttpRequest httpRequest) {
+        HttpMethod method = httpRequest.method();
+        return HttpMethod.GET.equals(method)
+                || HttpMethod.HEAD.equals(method)
+                || HttpMethod.OPTIONS.equals(method)
+                || HttpMethod.TRACE.equals(method)
+                || HttpMethod.PUT.equals(method)
+                || HttpMethod.DELETE.equals(method);
+    }
+
     private static boolean checkTrueOrFalse(final String val,
             final String str1, final String str2) {
         final String str = val.trim();
@@ -519,6 +554,116 @@ public class ProxyUtils {
         return SHOULD_NOT_PROXY_HOP_BY_HOP_HEADERS.contains(headerName);
     }
 
+    /**
+     * Removes all headers that should not be forwarded. See RFC 2616 13.5.1
+     * End-to-end and Hop-by-hop Headers.
+     *
+     * @param headers the headers to modify
+     */
+    public static void stripHopByHopHeaders(HttpHeaders headers) {
+        for (AsciiString headerName : HOP_BY_HOP_HEADER_NAMES) {
+            headers.remove(headerName);
+        }
+    }
+
+    /**
+     * RFC2616 Section 14.10
+     *
+     * HTTP/1.1 proxies MUST parse the Connection header field before a message
+     * is forwarded and, for each connection-token in this field, remove any
+     * header field(s) from the message with the same name as the
+     * connection-token.
+     *
+     * Transfer-Encoding is never removed, since LittleProxy does not normally
+     * modify the Transfer-Encoding of the message. The Connection header
+     * itself is left alone as well; it is removed by
+     * {@link #stripHopByHopHeaders(HttpHeaders)}.
+     *
+     * @param headers the headers to modify
+     */
+    public static void stripConnectionTokens(HttpHeaders headers) {
+        // the usual tokens (close, keep-alive, upgrade, ...) are collected in a bit mask, so that they can be removed
+        // without allocating anything. bit 0 is close, the remaining bits are the HOP_BY_HOP_HEADER_NAMES.
+        int wellKnownTokens = 0;
+        List<CharSequence> otherTokens = null;
+
+        Iterator<? extends CharSequence> values = headers.valueCharSequenceIterator(HttpHeaderNames.CONNECTION);
+        while (values.hasNext()) {
+            CharSequence value = values.next();
+            int length = value.length();
+            int tokenStart = 0;
+            while (tokenStart < length) {
+                int tokenEnd = tokenStart;
+                while (tokenEnd < length && value.charAt(tokenEnd) != ',') {
+                    tokenEnd++;
+                }
+                int nextTokenStart = tokenEnd + 1;
+
+                while (tokenStart < tokenEnd && isOptionalWhitespace(value.charAt(tokenStart))) {
+                    tokenStart++;
+                }
+                while (tokenEnd > tokenStart && isOptionalWhitespace(value.charAt(tokenEnd - 1))) {
+                    tokenEnd--;
+                }
+
+                if (tokenEnd > tokenStart) {
+                    int wellKnownToken = wellKnownConnectionToken(value, tokenStart, tokenEnd);
+                    if (wellKnownToken >= 0) {
+                        wellKnownTokens |= 1 << wellKnownToken;
+                    } else if (!regionEqualsIgnoreCase(value, tokenStart, tokenEnd, HttpHeaderNames.TRANSFER_ENCODING)) {
+                        if (otherTokens == null) {
+                            otherTokens = new ArrayList<>(2);
+                        }
+                        otherTokens.add(value.subSequence(tokenStart, tokenEnd));
+                    }
+                }
+
+                tokenStart = nextTokenStart;
+            }
+        }
+
+        if ((wellKnownTokens & 1) != 0) {
+            headers.remove(HttpHeaderValues.CLOSE);
+        }
+        // start at 1 to leave the Connection header itself alone
+        for (int i = 1; i < HOP_BY_HOP_HEADER_NAMES.length; i++) {
+            if ((wellKnownTokens & (1 << (i + 1))) != 0) {
+                headers.remove(HOP_BY_HOP_HEADER_NAMES[i]);
+            }
+        }
+        if (otherTokens != null) {
+            for (CharSequence token : otherTokens) {
+                headers.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Returns the bit that stands for the given connection-token in the mask
+     * used by {@link #stripConnectionTokens(HttpHeaders)}, or -1 if it is not
+     * one of the well-known tokens.
+     */
+    private static int wellKnownConnectionToken(CharSequence value, int start, int end) {
+        if (regionEqualsIgnoreCase(value, start, end, HttpHeaderValues.CLOSE)) {
+            return 0;
+        }
+        for (int i = 0; i < HOP_BY_HOP_HEADER_NAMES.length; i++) {
+            if (regionEqualsIgnoreCase(value, start, end, HOP_BY_HOP_HEADER_NAMES[i])) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEqualsIgnoreCase(CharSequence value, int start, int end, AsciiString expected) {
+        return end - start == expected.length()
+                && AsciiString.regionMatches(value, true, start, expected, 0, expected.length());
+    }
+
+    private static boolean isOptionalWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
     /**
      * Splits comma-separated header values into tokens. For example, if the value of the Connection header is "Transfer-Encoding, close",
      * this method will return "Transfer-Encoding" and "close". This method strips trims any optional whitespace from
@@ -0,0 +1,173 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the response times, hedge budget and statistics used for hedging
+ * requests, see {@link RequestHedgingConfiguration}. The hedging itself is
+ * done by {@link ProxyToServerConnection}.
+ */
+class RequestHedging {
+    /**
+     * When response times are kept for more servers than this, they are all
+     * forgotten, so that proxying to many different servers doesn't use up
+     * memory.
+     */
+    private static final int MAX_SERVERS = 10000;
+
+    /**
+     * The number of most recent response times kept per server.
+     */
+    private static final int SAMPLES_PER_SERVER = 128;
+
+    /**
+     * How many new response times it takes to recalculate the percentile.
+     */
+    private static final int SAMPLES_PER_RECALCULATION = 8;
+
+    /**
+     * The budget is kept in thousandths of a hedge, and can't grow beyond this
+     * many hedges, so that a long quiet period doesn't allow a burst of hedges.
+     */
+    private static final long BUDGET_UNIT = 1000;
+    private static final long MAX_BUDGET = 10 * BUDGET_UNIT;
+
+    private final RequestHedgingConfiguration configuration;
+    private final long budgetPerRequest;
+    private final Map<String, ResponseTimes> responseTimes = new ConcurrentHashMap<>();
+    private final AtomicLong budget = new AtomicLong(BUDGET_UNIT);
+
+    private final AtomicLong hedgeableRequests = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    RequestHedging(RequestHedgingConfiguration configuration) {
+        this.configuration = configuration;
+        this.budgetPerRequest = Math.max(1, Math.round(configuration.getBudgetRatio() * BUDGET_UNIT));
+    }
+
+    /**
+     * Returns true if the given request may be hedged: it must be a GET, HEAD
+     * or OPTIONS request without a body.
+     */
+    static boolean isHedgeable(HttpRequest request) {
+        HttpMethod method = request.method();
+        return (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method) || HttpMethod.OPTIONS.equals(method))
+                && !HttpUtil.isTransferEncodingChunked(request)
+                && HttpUtil.getContentLength(request, 0L) == 0L;
+    }
+
+    /**
+     * Records that a hedgeable request is being sent, which adds to the hedge
+     * budget.
+     */
+    void requestHedgeable() {
+        hedgeableRequests.incrementAndGet();
+        budget.accumulateAndGet(budgetPerRequest, (current, added) -> Math.min(MAX_BUDGET, current + added));
+    }
+
+    /**
+     * Takes one hedge from the budget.
+     *
+     * @return true if the budget allowed another hedge
+     */
+    boolean tryHedge() {
+        long current;
+        do {
+            current = budget.get();
+            if (current < BUDGET_UNIT) {
+                return false;
+            }
+        } while (!budget.compareAndSet(current, current - BUDGET_UNIT));
+        hedgedRequests.incrementAndGet();
+        return true;
+    }
+
+    void hedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * Returns how long to wait for the response to a request to the given
+     * server before hedging it.
+     */
+    long delayMillisFor(String serverHostAndPort) {
+        ResponseTimes times = responseTimes.get(serverHostAndPort);
+        long percentileNanos = times == null ? -1 : times.percentileNanos;
+        if (percentileNanos < 0) {
+            return configuration.getInitialDelayMillis();
+        }
+        return Math.max(configuration.getMinimumDelayMillis(), TimeUnit.NANOSECONDS.toMillis(percentileNanos));
+    }
+
+    /**
+     * Records how long it took for the response headers from the given server
+     * to arrive.
+     */
+    void recordResponseTime(String serverHostAndPort, long responseTimeNanos) {
+        ResponseTimes times = responseTimes.get(serverHostAndPort);
+        if (times == null) {
+            if (responseTimes.size() >= MAX_SERVERS) {
+                responseTimes.clear();
+            }
+            times = responseTimes.computeIfAbsent(serverHostAndPort, key -> new ResponseTimes());
+        }
+        times.record(responseTimeNanos);
+    }
+
+    long getHedgeableRequests() {
+        return hedgeableRequests.get();
+    }
+
+    long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * The most recent response times of a server, kept in a ring buffer, and
+     * the configured percentile of them.
+     */
+    private class ResponseTimes {
+        private final long[] samples = new long[SAMPLES_PER_SERVER];
+        private final long[] sorted = new long[SAMPLES_PER_SERVER];
+        private int numberOfSamples;
+        private int nextSample;
+        private int samplesSinceRecalculation;
+
+        /**
+         * The percentile of the response times in nanoseconds, or -1 while
+         * there aren't enough samples yet.
+         */
+        private volatile long percentileNanos = -1;
+
+        synchronized void record(long responseTimeNanos) {
+            samples[nextSample] = responseTimeNanos;
+            nextSample = (nextSample + 1) % samples.length;
+            if (numberOfSamples < samples.length) {
+                numberOfSamples++;
+            }
+
+            samplesSinceRecalculation++;
+            if (numberOfSamples >= configuration.getMinimumNumberOfSamples()
+                    && (percentileNanos < 0 || samplesSinceRecalculation >= SAMPLES_PER_RECALCULATION)) {
+                samplesSinceRecalculation = 0;
+                System.arraycopy(samples, 0, sorted, 0, numberOfSamples);
+                Arrays.sort(sorted, 0, numberOfSamples);
+                int index = (int) Math.ceil(configuration.getPercentile() * numberOfSamples) - 1;
+                percentileNanos = sorted[Math.max(0, index)];
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for hedging requests, i.e. for sending a second copy of
+ * a request when the response to the first one is slow to arrive, and using
+ * whichever response arrives first.
+ * </p>
+ *
+ * <p>
+ * Only GET, HEAD and OPTIONS requests without a body are hedged, and only when
+ * they are proxied as plain HTTP (requests in HTTPS tunnels and MITM'ed
+ * requests are never hedged). If the response headers haven't arrived after a
+ * delay, the copy is sent through the next chained proxy returned by the
+ * {@link org.littleshoot.proxy.ChainedProxyManager}, or through a new
+ * connection to the same chained proxy or server if there is none. The delay
+ * is the configured percentile of the recent response times of the server,
+ * so that only the slowest requests are hedged.
+ * </p>
+ *
+ * <p>
+ * To keep hedging from piling extra load onto struggling servers, hedges are
+ * limited by a budget: every hedgeable request adds the configured budget
+ * ratio to the budget, and every hedge uses up one.
+ * </p>
+ */
+public class RequestHedgingConfiguration {
+    private double percentile = 0.95;
+    private int minimumNumberOfSamples = 20;
+    private long initialDelayMillis = 1000;
+    private long minimumDelayMillis = 10;
+    private double budgetRatio = 0.05;
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Set the percentile of the recent response times of a server after which requests to it are hedged, greater
+     * than 0 and less than 1. The default value is 0.95.
+     *
+     * @param percentile percentile of the response times to use as the delay
+     * @return this request hedging configuration instance, for chaining
+     */
+    public RequestHedgingConfiguration withPercentile(double percentile) {
+        if (!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile: " + percentile + " (expected: 0 < percentile < 1)");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    public int getMinimumNumberOfSamples() {
+        return minimumNumberOfSamples;
+    }
+
+    /**
+     * Set the number of response times that need to have been measured for a server before the delay is based on
+     * them. The default value is 20.
+     *
+     * @param minimumNumberOfSamples minimum number of response times to calculate the percentile from
+     * @return this request hedging configuration instance, for chaining
+     */
+    public RequestHedgingConfiguration withMinimumNumberOfSamples(int minimumNumberOfSamples) {
+        this.minimumNumberOfSamples = minimumNumberOfSamples;
+        return this;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    /**
+     * Set the delay after which requests to a server are hedged until enough of its response times have been
+     * measured. The default value is 1 second.
+     *
+     * @param initialDelayMillis delay before hedging requests to unknown servers, in milliseconds
+     * @return this request hedging configuration instance, for chaining
+     */
+    public RequestHedgingConfiguration withInitialDelayMillis(long initialDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        return this;
+    }
+
+    public long getMinimumDelayMillis() {
+        return minimumDelayMillis;
+    }
+
+    /**
+     * Set the shortest delay after which requests are hedged, no matter how quick the server usually is. The default
+     * value is 10 milliseconds.
+     *
+     * @param minimumDelayMillis minimum delay before hedging, in milliseconds
+     * @return this request hedging configuration instance, for chaining
+     */
+    public RequestHedgingConfiguration withMinimumDelayMillis(long minimumDelayMillis) {
+        this.minimumDelayMillis = minimumDelayMillis;
+        return this;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Set the largest share of hedgeable requests that may be hedged, greater than 0 and at most 1. The default value
+     * is 0.05, i.e. hedging adds at most 5% to the load.
+     *
+     * @param budgetRatio share of requests that may be hedged
+     * @return this request hedging configuration instance, for chaining
+     */
+    public RequestHedgingConfiguration withBudgetRatio(double budgetRatio) {
+        if (!(budgetRatio > 0 && budgetRatio <= 1)) {
+            throw new IllegalArgumentException("budgetRatio: " + budgetRatio + " (expected: 0 < budgetRatio <= 1)");
+        }
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+}
@@ -0,0 +1,241 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * The request-target of an HTTP request, parsed in a single pass over the URI
+ * without regular expressions or intermediate strings. This understands the
+ * forms a proxy sees (RFC 7230, section 5.3):
+ * </p>
+ *
+ * <ul>
+ * <li>absolute-form, e.g. "http://www.example.org:8080/path?query"</li>
+ * <li>origin-form, e.g. "/path?query"</li>
+ * <li>authority-form as used by CONNECT, e.g. "www.example.org:443"</li>
+ * </ul>
+ *
+ * <p>
+ * A URI without a scheme is treated as authority-form up to the first "/", so
+ * that "www.example.org:8080/path" is understood as well, and origin-form
+ * URIs simply have an empty authority. IPv6 literals may be given in brackets
+ * ("[::1]:8080"), or without brackets if no port is given ("::1").
+ * </p>
+ *
+ * <p>
+ * Instances are immutable. The request-target is parsed once per request and
+ * shared by everything that needs the host, port or path of the request.
+ * </p>
+ */
+final class RequestTarget {
+    private static final String HTTP_SCHEME = "http://";
+    private static final String HTTPS_SCHEME = "https://";
+
+    private final String uri;
+
+    /**
+     * Length of the scheme including "://", or 0 if the URI has no scheme.
+     */
+    private final int schemeLength;
+
+    /**
+     * End of the authority, which is also the start of the path, query or
+     * fragment (if any).
+     */
+    private final int authorityEnd;
+
+    private final int hostStart;
+    private final int hostEnd;
+
+    /**
+     * The port, or -1 if the authority does not specify one.
+     */
+    private final int port;
+
+    /**
+     * False if the authority could not be parsed, i.e. it contains an
+     * unterminated IPv6 literal or a port that isn't a number from 0 to 65535.
+     */
+    private final boolean validAuthority;
+
+    /**
+     * Lazily computed host:port, see {@link #hostAndPort()}.
+     */
+    private String hostAndPort;
+
+    private RequestTarget(String uri) {
+        this.uri = uri;
+
+        int length = uri.length();
+        if (uri.regionMatches(true, 0, HTTP_SCHEME, 0, HTTP_SCHEME.length())) {
+            schemeLength = HTTP_SCHEME.length();
+        } else if (uri.regionMatches(true, 0, HTTPS_SCHEME, 0, HTTPS_SCHEME.length())) {
+            schemeLength = HTTPS_SCHEME.length();
+        } else {
+            schemeLength = 0;
+        }
+
+        int end = schemeLength;
+        while (end < length) {
+            char c = uri.charAt(end);
+            // only the path ends the authority of URIs without a scheme, to stay compatible with the URIs that were
+            // accepted before, like "host:port/path"
+            if (c == '/' || (schemeLength > 0 && (c == '?' || c == '#'))) {
+                break;
+            }
+            end++;
+        }
+        authorityEnd = end;
+
+        // the host ends at the last colon, unless that colon is part of an IPv6 literal
+        int portSeparator = -1;
+        boolean valid = true;
+        int start = schemeLength;
+        int hostEnd = authorityEnd;
+        if (start < authorityEnd && uri.charAt(start) == '[') {
+            int closingBracket = uri.indexOf(']', start);
+            if (closingBracket < 0 || closingBracket >= authorityEnd) {
+                valid = false;
+            } else {
+                hostEnd = closingBracket;
+                start++;
+                if (closingBracket + 1 < authorityEnd) {
+                    if (uri.charAt(closingBracket + 1) == ':') {
+                        portSeparator = closingBracket + 1;
+                    } else {
+                        valid = false;
+                    }
+                }
+            }
+        } else {
+            int firstColon = uri.indexOf(':', start);
+            if (firstColon >= 0 && firstColon < authorityEnd) {
+                int secondColon = uri.indexOf(':', firstColon + 1);
+                if (secondColon < 0 || secondColon >= authorityEnd) {
+                    portSeparator = firstColon;
+                    hostEnd = firstColon;
+                }
+                // otherwise this is an IPv6 literal without brackets, which can't have a port
+            }
+        }
+        this.hostStart = start;
+        this.hostEnd = hostEnd;
+
+        int port = -1;
+        if (valid && portSeparator >= 0 && portSeparator + 1 < authorityEnd) {
+            port = 0;
+            for (int i = portSeparator + 1; i < authorityEnd; i++) {
+                char c = uri.charAt(i);
+                if (c < '0' || c > '9' || port > 65535) {
+                    valid = false;
+                    port = -1;
+                    break;
+                }
+                port = port * 10 + (c - '0');
+            }
+            if (port > 65535) {
+                valid = false;
+                port = -1;
+            }
+        }
+        this.port = port;
+        this.validAuthority = valid;
+    }
+
+    /**
+     * Parses the given request-target.
+     *
+     * @param uri the URI of the request, or a host and port
+     * @return the parsed request-target
+     */
+    static RequestTarget parse(String uri) {
+        return new RequestTarget(uri);
+    }
+
+    /**
+     * Returns the URI this request-target was parsed from.
+     */
+    String uri() {
+        return uri;
+    }
+
+    /**
+     * Returns true if this request-target is in absolute-form, i.e. it starts
+     * with "http://" or "https://".
+     */
+    boolean isAbsoluteForm() {
+        return schemeLength > 0;
+    }
+
+    /**
+     * Returns true if this request-target starts with "http://".
+     */
+    boolean isHttpScheme() {
+        return schemeLength == HTTP_SCHEME.length();
+    }
+
+    /**
+     * Returns false if the host and port of this request-target could not be
+     * parsed.
+     */
+    boolean hasValidAuthority() {
+        return validAuthority;
+    }
+
+    /**
+     * Returns the authority of this request-target, e.g. "www.example.org:8080"
+     * or "[::1]:8080", or an empty string for origin-form request-targets.
+     */
+    String hostAndPort() {
+        if (hostAndPort == null) {
+            hostAndPort = schemeLength == 0 && authorityEnd == uri.length()
+                    ? uri
+                    : uri.substring(schemeLength, authorityEnd);
+        }
+        return hostAndPort;
+    }
+
+    /**
+     * Returns the host of this request-target, without the brackets of IPv6
+     * literals.
+     */
+    String host() {
+        return uri.substring(hostStart, hostEnd);
+    }
+
+    /**
+     * Returns true if the authority of this request-target specifies a port.
+     */
+    boolean hasPort() {
+        return port >= 0;
+    }
+
+    /**
+     * Returns the port of this request-target, or the given default port if it
+     * does not specify one.
+     */
+    int port(int defaultPort) {
+        return port >= 0 ? port : defaultPort;
+    }
+
+    /**
+     * Returns the request-target in origin-form, i.e. the path and query. For
+     * absolute-form request-targets without a path, this is "/". Request-targets
+     * without a scheme are returned as they are.
+     */
+    String pathAndQuery() {
+        if (schemeLength == 0) {
+            return uri;
+        }
+        if (authorityEnd == uri.length()) {
+            return "/";
+        }
+        if (uri.charAt(authorityEnd) != '/') {
+            return "/" + uri.substring(authorityEnd);
+        }
+        return uri.substring(authorityEnd);
+    }
+
+    @Override
+    public String toString() {
+        return uri;
+    }
+}
@@ -0,0 +1,145 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Configuration object for compressing responses on their way to the client. Responses are compressed with gzip or
+ * deflate, depending on what the client asked for in its Accept-Encoding header, if they are not already encoded,
+ * are not range responses, have a compressible content type and are not known to be smaller than the minimum size.
+ */
+public class ResponseCompressionConfiguration {
+    /**
+     * Content types that are compressed by default. Entries ending in "*" match any content type that starts with the
+     * entry, and entries starting with "*" match any content type that ends with the entry.
+     */
+    public static final List<String> DEFAULT_COMPRESSIBLE_CONTENT_TYPES = Collections.unmodifiableList(Arrays.asList(
+            "text/*",
+            "application/json",
+            "application/javascript",
+            "application/x-javascript",
+            "application/xml",
+            "image/svg+xml",
+            "*+json",
+            "*+xml"));
+
+    private int compressionLevel = 6;
+    private int minimumResponseSizeInBytes = 1024;
+    private int maxConcurrentCompressions = Runtime.getRuntime().availableProcessors();
+    private Collection<String> compressibleContentTypes = DEFAULT_COMPRESSIBLE_CONTENT_TYPES;
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the compression level to use, from 1 (fastest) to 9 (best compression). The default value is 6.
+     *
+     * @param compressionLevel compression level to use
+     * @return this response compression configuration instance, for chaining
+     */
+    public ResponseCompressionConfiguration withCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel: " + compressionLevel + " (expected: 1-9)");
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getMinimumResponseSizeInBytes() {
+        return minimumResponseSizeInBytes;
+    }
+
+    /**
+     * Set the size below which responses are not compressed. Responses of unknown size (i.e. chunked responses
+     * without a Content-Length) are always compressed. The default value is 1024.
+     *
+     * @param minimumResponseSizeInBytes minimum size of a response to compress
+     * @return this response compression configuration instance, for chaining
+     */
+    public ResponseCompressionConfiguration withMinimumResponseSizeInBytes(int minimumResponseSizeInBytes) {
+        if (minimumResponseSizeInBytes < 0) {
+            throw new IllegalArgumentException("minimumResponseSizeInBytes: " + minimumResponseSizeInBytes + " (expected: >= 0)");
+        }
+        this.minimumResponseSizeInBytes = minimumResponseSizeInBytes;
+        return this;
+    }
+
+    public int getMaxConcurrentCompressions() {
+        return maxConcurrentCompressions;
+    }
+
+    /**
+     * Set the maximum number of responses the proxy compresses at the same time. Responses that start while this many
+     * responses are being compressed are sent uncompressed, which keeps the CPU spent on compression bounded. The
+     * default value is the number of available processors.
+     *
+     * @param maxConcurrentCompressions maximum number of responses to compress at the same time
+     * @return this response compression configuration instance, for chaining
+     */
+    public ResponseCompressionConfiguration withMaxConcurrentCompressions(int maxConcurrentCompressions) {
+        if (maxConcurrentCompressions < 1) {
+            throw new IllegalArgumentException("maxConcurrentCompressions: " + maxConcurrentCompressions + " (expected: > 0)");
+        }
+        this.maxConcurrentCompressions = maxConcurrentCompressions;
+        return this;
+    }
+
+    public Collection<String> getCompressibleContentTypes() {
+        return compressibleContentTypes;
+    }
+
+    /**
+     * Set the content types to compress. Entries ending in "*" match any content type that starts with the entry,
+     * and entries starting with "*" match any content type that ends with the entry. The default value is
+     * {@link #DEFAULT_COMPRESSIBLE_CONTENT_TYPES}.
+     *
+     * @param compressibleContentTypes content types to compress
+     * @return this response compression configuration instance, for chaining
+     */
+    public ResponseCompressionConfiguration withCompressibleContentTypes(Collection<String> compressibleContentTypes) {
+        if (compressibleContentTypes == null) {
+            throw new IllegalArgumentException("compressibleContentTypes: null (expected: content types)");
+        }
+        for (String compressible : compressibleContentTypes) {
+            if (compressible == null) {
+                throw new IllegalArgumentException("compressibleContentTypes: " + compressibleContentTypes
+                        + " (expected: content types without nulls)");
+            }
+        }
+        this.compressibleContentTypes = compressibleContentTypes;
+        return this;
+    }
+
+    /**
+     * Returns true if responses with the given Content-Type should be compressed.
+     *
+     * @param contentType value of the Content-Type header, which may include parameters
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parametersStart = contentType.indexOf(';');
+        String mimeType = (parametersStart < 0 ? contentType : contentType.substring(0, parametersStart)).trim();
+
+        for (String compressible : compressibleContentTypes) {
+            if (compressible.endsWith("*")) {
+                if (mimeType.regionMatches(true, 0, compressible, 0, compressible.length() - 1)) {
+                    return true;
+                }
+            } else if (compressible.startsWith("*")) {
+                int suffixLength = compressible.length() - 1;
+                if (mimeType.length() >= suffixLength
+                        && mimeType.regionMatches(true, mimeType.length() - suffixLength, compressible, 1, suffixLength)) {
+                    return true;
+                }
+            } else if (mimeType.equalsIgnoreCase(compressible)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
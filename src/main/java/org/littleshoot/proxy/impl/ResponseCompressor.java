@@ -0,0 +1,133 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <p>
+ * {@link HttpContentCompressor} that compresses responses on their way to the
+ * client, as configured by a {@link ResponseCompressionConfiguration}.
+ * </p>
+ *
+ * <p>
+ * Responses that already have a Content-Encoding, range responses, responses
+ * with a content type that isn't compressible and responses that are known to
+ * be smaller than the configured minimum are sent as they are. So are
+ * responses that start while the proxy is already compressing the maximum
+ * number of responses, which are tracked using the given {@link Semaphore}
+ * shared by all connections of the proxy.
+ * </p>
+ */
+class ResponseCompressor extends HttpContentCompressor {
+    private final ResponseCompressionConfiguration configuration;
+    private final Semaphore compressionPermits;
+    private final ClientToProxyConnection clientConnection;
+
+    /**
+     * Whether or not the response currently being written is compressed, in
+     * which case we are holding one of the compressionPermits.
+     */
+    private boolean compressing = false;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private long compressionTimeNanos;
+
+    ResponseCompressor(ResponseCompressionConfiguration configuration,
+            Semaphore compressionPermits,
+            ClientToProxyConnection clientConnection) {
+        super(configuration.getCompressionLevel());
+        this.configuration = configuration;
+        this.compressionPermits = compressionPermits;
+        this.clientConnection = clientConnection;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        if (response.status().code() == HttpResponseStatus.PARTIAL_CONTENT.code()
+                || response.headers().contains(HttpHeaderNames.CONTENT_RANGE)) {
+            return null;
+        }
+
+        if (!configuration.isCompressible(response.headers().get(HttpHeaderNames.CONTENT_TYPE))) {
+            return null;
+        }
+
+        long contentLength = response instanceof HttpContent
+                ? ((HttpContent) response).content().readableBytes()
+                : HttpUtil.getContentLength(response, -1L);
+        if (contentLength >= 0 && contentLength < configuration.getMinimumResponseSizeInBytes()) {
+            return null;
+        }
+
+        if (!compressionPermits.tryAcquire()) {
+            return null;
+        }
+
+        Result result = super.beginEncode(response, acceptEncoding);
+        if (result == null) {
+            compressionPermits.release();
+        } else {
+            compressing = true;
+            uncompressedBytes = 0;
+            compressedBytes = 0;
+            compressionTimeNanos = 0;
+        }
+        return result;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        int uncompressed = msg instanceof HttpContent ? ((HttpContent) msg).content().readableBytes() : 0;
+        int firstOutput = out.size();
+        long start = System.nanoTime();
+
+        super.encode(ctx, msg, out);
+
+        if (!compressing) {
+            return;
+        }
+
+        compressionTimeNanos += System.nanoTime() - start;
+        uncompressedBytes += uncompressed;
+        for (int i = firstOutput; i < out.size(); i++) {
+            Object encoded = out.get(i);
+            if (encoded instanceof HttpContent) {
+                compressedBytes += ((HttpContent) encoded).content().readableBytes();
+            }
+        }
+
+        if (msg instanceof LastHttpContent) {
+            finishCompressing();
+            clientConnection.recordResponseCompressed(uncompressedBytes, compressedBytes, compressionTimeNanos);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        finishCompressing();
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        finishCompressing();
+        super.channelInactive(ctx);
+    }
+
+    private void finishCompressing() {
+        if (compressing) {
+            compressing = false;
+            compressionPermits.release();
+        }
+    }
+}
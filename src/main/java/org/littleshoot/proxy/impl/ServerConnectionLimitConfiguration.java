@@ -0,0 +1,128 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Configuration object for limiting the number of connections the proxy opens
+ * to a single server, identified by its host and port as given in the
+ * requests. Connections to a server count against its limit from the moment
+ * they start connecting until they are closed, including while they are kept
+ * alive between requests, and regardless of whether they go through a chained
+ * proxy.
+ * </p>
+ *
+ * <p>
+ * The extra connections opened when racing chained proxies or hedging slow
+ * requests count as well. They don't wait for the server, though: a racer or
+ * hedge is only started while the server is below its limit, so a request may
+ * race fewer chained proxies than configured, or not be hedged at all.
+ * Likewise, warm connections to a server, see
+ * {@link WarmConnectionConfiguration}, are only opened while it is below its
+ * limit, and a request that takes one over uses its slot.
+ * </p>
+ *
+ * <p>
+ * When a server is at its limit, new connections to it wait in a first-in,
+ * first-out queue until another connection to the server is closed. Requests
+ * whose connection can't be queued because the queue is full are answered
+ * with a 503 Service Unavailable, and requests whose connection is still
+ * waiting when the queue timeout expires are answered with a 504 Gateway
+ * Timeout.
+ * </p>
+ */
+public class ServerConnectionLimitConfiguration {
+    private int maxConnectionsPerServer = 100;
+    private final Map<String, Integer> maxConnectionsByServer = new HashMap<>();
+    private int maxQueueLength = 1000;
+    private long queueTimeoutMillis = 10000;
+
+    public int getMaxConnectionsPerServer() {
+        return maxConnectionsPerServer;
+    }
+
+    /**
+     * Set the maximum number of connections to each server that has no limit of its own. The default value is 100.
+     *
+     * @param maxConnectionsPerServer maximum number of connections to a single server
+     * @return this server connection limit configuration instance, for chaining
+     */
+    public ServerConnectionLimitConfiguration withMaxConnectionsPerServer(int maxConnectionsPerServer) {
+        if (maxConnectionsPerServer < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerServer: " + maxConnectionsPerServer + " (expected: > 0)");
+        }
+        this.maxConnectionsPerServer = maxConnectionsPerServer;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of connections to the given server.
+     *
+     * @param serverHostAndPort host and port of the server
+     */
+    public int getMaxConnections(String serverHostAndPort) {
+        Integer maxConnections = maxConnectionsByServer.get(serverHostAndPort);
+        return maxConnections != null ? maxConnections : maxConnectionsPerServer;
+    }
+
+    public Map<String, Integer> getMaxConnectionsByServer() {
+        return Collections.unmodifiableMap(maxConnectionsByServer);
+    }
+
+    /**
+     * Set the maximum number of connections to a specific server, overriding the limit set by
+     * {@link #withMaxConnectionsPerServer(int)}.
+     *
+     * @param serverHostAndPort host and port of the server, e.g. "www.example.org:80"
+     * @param maxConnections maximum number of connections to the server
+     * @return this server connection limit configuration instance, for chaining
+     */
+    public ServerConnectionLimitConfiguration withMaxConnections(String serverHostAndPort, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections: " + maxConnections + " (expected: > 0)");
+        }
+        this.maxConnectionsByServer.put(serverHostAndPort, maxConnections);
+        return this;
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * Set the maximum number of connections that may wait for each server. Requests whose connection doesn't fit
+     * into the queue are answered with a 503 Service Unavailable right away. A value of 0 disables queueing. The
+     * default value is 1000.
+     *
+     * @param maxQueueLength maximum number of connections waiting for a single server
+     * @return this server connection limit configuration instance, for chaining
+     */
+    public ServerConnectionLimitConfiguration withMaxQueueLength(int maxQueueLength) {
+        if (maxQueueLength < 0) {
+            throw new IllegalArgumentException("maxQueueLength: " + maxQueueLength + " (expected: >= 0)");
+        }
+        this.maxQueueLength = maxQueueLength;
+        return this;
+    }
+
+    public long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    /**
+     * Set how long a connection may wait in the queue before its request is answered with a 504 Gateway Timeout.
+     * The default value is 10 seconds.
+     *
+     * @param queueTimeoutMillis maximum time spent in the queue, in milliseconds
+     * @return this server connection limit configuration instance, for chaining
+     */
+    public ServerConnectionLimitConfiguration withQueueTimeoutMillis(long queueTimeoutMillis) {
+        if (queueTimeoutMillis < 1) {
+            throw new IllegalArgumentException("queueTimeoutMillis: " + queueTimeoutMillis + " (expected: > 0)");
+        }
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        return this;
+    }
+}
@@ -0,0 +1,275 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.littleshoot.proxy.TransportProtocol;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps track of the number of connections to every server and of the
+ * connections that are waiting for one of them to be closed. See
+ * {@link ServerConnectionLimitConfiguration} for how the limits behave.
+ * </p>
+ *
+ * <p>
+ * A connection that is closed hands its slot directly to the connection that
+ * has been waiting the longest, so that waiting connections can't be
+ * overtaken by new ones. Servers are forgotten as soon as they have neither
+ * connections nor waiting connections.
+ * </p>
+ */
+class ServerConnectionLimits {
+    private final ServerConnectionLimitConfiguration configuration;
+    private final DefaultHttpProxyServer proxyServer;
+    private final Map<String, Server> servers = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong queuedConnections = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong timedOutConnections = new AtomicLong();
+
+    ServerConnectionLimits(ServerConnectionLimitConfiguration configuration, DefaultHttpProxyServer proxyServer) {
+        this.configuration = configuration;
+        this.proxyServer = proxyServer;
+    }
+
+    /**
+     * Asks for a connection slot for the given server. The returned future
+     * succeeds once the caller may connect, which is right away if the server
+     * is below its limit. It fails with a {@link QueueFullException} or
+     * {@link QueueTimeoutException} if the caller may not connect at all.
+     * Cancelling the future gives up the place in the queue.
+     *
+     * @param serverHostAndPort host and port of the server
+     */
+    Future<Void> acquire(String serverHostAndPort) {
+        Promise<Void> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        while (true) {
+            Server server = servers.computeIfAbsent(serverHostAndPort,
+                    key -> new Server(configuration.getMaxConnections(key)));
+            Waiter waiter;
+            synchronized (server) {
+                if (server.removed) {
+                    // the server was forgotten while we were looking it up
+                    continue;
+                }
+                if (server.openConnections < server.maxConnections && server.waiters.isEmpty()) {
+                    server.openConnections++;
+                    return promise.setSuccess(null);
+                }
+                if (server.waiters.size() >= configuration.getMaxQueueLength()) {
+                    rejectedConnections.incrementAndGet();
+                    return promise.setFailure(new QueueFullException(serverHostAndPort));
+                }
+                waiter = new Waiter(server, promise);
+                server.waiters.add(waiter);
+            }
+
+            queueDepth.incrementAndGet();
+            queuedConnections.incrementAndGet();
+            scheduleTimeout(serverHostAndPort, waiter);
+            promise.addListener(future -> {
+                if (future.isCancelled()) {
+                    removeWaiter(serverHostAndPort, waiter);
+                }
+            });
+            return promise;
+        }
+    }
+
+    /**
+     * Takes a connection slot for the given server if the server is below its
+     * limit and no other connection is waiting for it, without queueing. This
+     * is for extra connections, like racers and hedges, which are simply not
+     * opened otherwise.
+     *
+     * @param serverHostAndPort host and port of the server
+     * @return true if a slot was taken, which has to be given back with {@link #release(String)}
+     */
+    boolean tryAcquire(String serverHostAndPort) {
+        while (true) {
+            Server server = servers.computeIfAbsent(serverHostAndPort,
+                    key -> new Server(configuration.getMaxConnections(key)));
+            synchronized (server) {
+                if (server.removed) {
+                    // the server was forgotten while we were looking it up
+                    continue;
+                }
+                if (server.openConnections < server.maxConnections && server.waiters.isEmpty()) {
+                    server.openConnections++;
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Gives back a slot that was acquired for the given server, handing it to
+     * the connection that has been waiting the longest, if any.
+     */
+    void release(String serverHostAndPort) {
+        Server server = servers.get(serverHostAndPort);
+        if (server == null) {
+            return;
+        }
+
+        while (true) {
+            Waiter waiter;
+            synchronized (server) {
+                waiter = server.waiters.poll();
+                if (waiter == null) {
+                    server.openConnections--;
+                    forgetIfUnused(serverHostAndPort, server);
+                    return;
+                }
+            }
+
+            // complete the promise outside of the lock, since it continues the waiting connection's connection flow
+            queueDepth.decrementAndGet();
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel(false);
+            }
+            if (waiter.promise.trySuccess(null)) {
+                queueWaitNanos.addAndGet(System.nanoTime() - waiter.enqueuedNanos);
+                return;
+            }
+            // the waiter gave up in the meantime, so try the next one
+        }
+    }
+
+    private void scheduleTimeout(String serverHostAndPort, Waiter waiter) {
+        try {
+            waiter.timeout = proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP).schedule(() -> {
+                if (removeWaiter(serverHostAndPort, waiter)) {
+                    timedOutConnections.incrementAndGet();
+                    waiter.promise.tryFailure(new QueueTimeoutException(serverHostAndPort));
+                }
+            }, configuration.getQueueTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the proxy is shutting down
+            if (removeWaiter(serverHostAndPort, waiter)) {
+                waiter.promise.tryFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Removes the given waiter from its queue.
+     *
+     * @return true if it was still waiting
+     */
+    private boolean removeWaiter(String serverHostAndPort, Waiter waiter) {
+        Server server = waiter.server;
+        synchronized (server) {
+            if (!server.waiters.remove(waiter)) {
+                return false;
+            }
+            forgetIfUnused(serverHostAndPort, server);
+        }
+        queueDepth.decrementAndGet();
+        return true;
+    }
+
+    private void forgetIfUnused(String serverHostAndPort, Server server) {
+        if (server.openConnections <= 0 && server.waiters.isEmpty()) {
+            server.removed = true;
+            servers.remove(serverHostAndPort, server);
+        }
+    }
+
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> queueDepths = new HashMap<>();
+        for (Map.Entry<String, Server> entry : servers.entrySet()) {
+            Server server = entry.getValue();
+            int depth;
+            synchronized (server) {
+                depth = server.waiters.size();
+            }
+            if (depth > 0) {
+                queueDepths.put(entry.getKey(), depth);
+            }
+        }
+        return Collections.unmodifiableMap(queueDepths);
+    }
+
+    long getQueuedConnections() {
+        return queuedConnections.get();
+    }
+
+    long getQueueWaitNanos() {
+        return queueWaitNanos.get();
+    }
+
+    long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    long getTimedOutConnections() {
+        return timedOutConnections.get();
+    }
+
+    private static class Server {
+        private final int maxConnections;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private int openConnections;
+        private boolean removed;
+
+        private Server(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    private static class Waiter {
+        private final Server server;
+        private final Promise<Void> promise;
+        private final long enqueuedNanos = System.nanoTime();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(Server server, Promise<Void> promise) {
+            this.server = server;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * The connection couldn't be queued because too many connections are
+     * already waiting for the server.
+     */
+    static class QueueFullException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        QueueFullException(String serverHostAndPort) {
+            // these are expected under load, so don't bother filling in the stack trace
+            super("Too many connections waiting for " + serverHostAndPort, null, false, false);
+        }
+    }
+
+    /**
+     * The connection waited for the server for too long.
+     */
+    static class QueueTimeoutException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        QueueTimeoutException(String serverHostAndPort) {
+            super("Timed out waiting for a connection to " + serverHostAndPort, null, false, false);
+        }
+    }
+}
@@ -288,4 +288,14 @@ public class ServerGroup {
         return stopped.get();
     }
 
+    /**
+     * Creates a factory for threads that belong to this ServerGroup, but not to its event loops.
+     *
+     * @param category the type of threads the factory creates
+     * @return thread factory that names threads like the ones of the event loops
+     */
+    CategorizedThreadFactory newThreadFactory(String category) {
+        return new CategorizedThreadFactory(name, category, serverGroupId);
+    }
+
 }
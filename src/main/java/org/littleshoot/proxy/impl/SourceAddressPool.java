@@ -0,0 +1,163 @@
+package org.littleshoot.proxy.impl;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>
+ * Spreads outgoing connections across a pool of local addresses, see
+ * {@link org.littleshoot.proxy.HttpProxyServerBootstrap#withSourceAddresses(Collection)}.
+ * </p>
+ *
+ * <p>
+ * The number of open connections is tracked for every address, both in total
+ * and per destination, since the ephemeral ports run out per combination of
+ * local address and destination. A new connection gets the address with the
+ * fewest connections open to its destination, and addresses that are equally
+ * used take turns. Destinations are forgotten as soon as they have no open
+ * connections.
+ * </p>
+ */
+class SourceAddressPool {
+    private final List<InetAddress> addresses;
+    private final AtomicIntegerArray connections;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final AtomicInteger nextAddress = new AtomicInteger();
+
+    SourceAddressPool(Collection<InetAddress> addresses) {
+        this.addresses = new ArrayList<>(addresses);
+        this.connections = new AtomicIntegerArray(this.addresses.size());
+    }
+
+    /**
+     * Picks the local address for a new connection to the given destination.
+     * The returned lease must be released once the connection is closed.
+     *
+     * @param remoteAddress the server or chained proxy we are connecting to
+     * @return the lease of the local address to bind to, or null if the pool has no address of the destination's
+     *         address family
+     */
+    Lease acquire(InetSocketAddress remoteAddress) {
+        String key = remoteAddress.getHostString() + ":" + remoteAddress.getPort();
+        while (true) {
+            Destination destination = destinations.computeIfAbsent(key, k -> new Destination());
+            int index;
+            synchronized (destination) {
+                if (destination.removed) {
+                    // the destination was forgotten while we were looking it up
+                    continue;
+                }
+                index = leastUsed(destination, remoteAddress.getAddress());
+                if (index < 0) {
+                    forgetIfUnused(key, destination);
+                    return null;
+                }
+                destination.connections[index]++;
+            }
+            connections.incrementAndGet(index);
+            return new Lease(key, destination, index);
+        }
+    }
+
+    /**
+     * Returns the address with the fewest connections to the given
+     * destination, starting the search at the next address in turn so that
+     * equally used addresses take turns.
+     */
+    private int leastUsed(Destination destination, InetAddress remoteAddress) {
+        int start = Math.floorMod(nextAddress.getAndIncrement(), addresses.size());
+        int best = -1;
+        for (int i = 0; i < addresses.size(); i++) {
+            int index = (start + i) % addresses.size();
+            if (!sameFamily(addresses.get(index), remoteAddress)) {
+                continue;
+            }
+            if (best < 0 || destination.connections[index] < destination.connections[best]) {
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if a socket bound to the local address can connect to the
+     * remote address, which is always assumed when the remote address isn't
+     * resolved yet.
+     */
+    private static boolean sameFamily(InetAddress localAddress, InetAddress remoteAddress) {
+        return remoteAddress == null
+                || (localAddress instanceof Inet4Address) == (remoteAddress instanceof Inet4Address);
+    }
+
+    private void forgetIfUnused(String key, Destination destination) {
+        for (int count : destination.connections) {
+            if (count > 0) {
+                return;
+            }
+        }
+        destination.removed = true;
+        destinations.remove(key, destination);
+    }
+
+    /**
+     * Returns the number of open connections bound to each address of the pool.
+     */
+    Map<InetAddress, Integer> getConnectionCounts() {
+        Map<InetAddress, Integer> counts = new LinkedHashMap<>();
+        for (int i = 0; i < addresses.size(); i++) {
+            counts.put(addresses.get(i), connections.get(i));
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private class Destination {
+        private final int[] connections = new int[addresses.size()];
+        private boolean removed;
+    }
+
+    /**
+     * A local address handed out for a single connection. Releasing it again
+     * has no effect.
+     */
+    class Lease {
+        private final String key;
+        private final Destination destination;
+        private final int index;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(String key, Destination destination, int index) {
+            this.key = key;
+            this.destination = destination;
+            this.index = index;
+        }
+
+        /**
+         * Returns the address to bind the connection to, with an ephemeral port.
+         */
+        InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress(addresses.get(index), 0);
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            connections.decrementAndGet(index);
+            synchronized (destination) {
+                destination.connections[index]--;
+                forgetIfUnused(key, destination);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for the cache of TLS sessions that clients can resume
+ * when they reconnect to the proxy, see
+ * {@link org.littleshoot.proxy.HttpProxyServerBootstrap#withSslEngineSource(org.littleshoot.proxy.SslEngineSource)}.
+ * A resumed session saves the client and the proxy the key exchange and the
+ * certificate checks of a full handshake.
+ * </p>
+ *
+ * <p>
+ * Sessions are kept by the {@link javax.net.ssl.SSLContext} that the
+ * {@link org.littleshoot.proxy.SslEngineSource} creates its engines with, so
+ * all proxies that share an SslEngineSource, such as the proxies of a
+ * {@link ServerGroup} started from clones of one bootstrap, share one cache.
+ * The cache is configured when the first client handshake with that
+ * SSLContext completes. Where the JDK supports stateless session tickets
+ * (Java 13 and later), it creates and rotates the ticket keys per SSLContext
+ * as well, so tickets issued by one of these proxies can be resumed with any
+ * other.
+ * </p>
+ */
+public class TlsSessionCacheConfiguration {
+    private int sessionCacheSize = 10000;
+    private int sessionTimeoutSeconds = 3600;
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Set the maximum number of sessions to cache. 0 means no limit. The default value is 10000.
+     *
+     * @param sessionCacheSize maximum number of cached sessions
+     * @return this TLS session cache configuration instance, for chaining
+     */
+    public TlsSessionCacheConfiguration withSessionCacheSize(int sessionCacheSize) {
+        if (sessionCacheSize < 0) {
+            throw new IllegalArgumentException("sessionCacheSize: " + sessionCacheSize + " (expected: >= 0)");
+        }
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    public int getSessionTimeoutSeconds() {
+        return sessionTimeoutSeconds;
+    }
+
+    /**
+     * Set how long a session may be resumed after it was established, in seconds. 0 means no limit. The default
+     * value is 3600 seconds.
+     *
+     * @param sessionTimeoutSeconds session timeout in seconds
+     * @return this TLS session cache configuration instance, for chaining
+     */
+    public TlsSessionCacheConfiguration withSessionTimeoutSeconds(int sessionTimeoutSeconds) {
+        if (sessionTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("sessionTimeoutSeconds: " + sessionTimeoutSeconds + " (expected: >= 0)");
+        }
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        return this;
+    }
+}
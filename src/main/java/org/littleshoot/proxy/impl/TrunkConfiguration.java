@@ -0,0 +1,129 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * <p>
+ * Configuration object for trunks, i.e. long-lived HTTP/2 connections between
+ * LittleProxy instances that carry many proxy connections at once. A proxy
+ * sends requests over trunks to chained proxies of type
+ * {@link org.littleshoot.proxy.ChainedProxyType#HTTP2}, which must point at the
+ * trunk port of the other proxy.
+ * </p>
+ *
+ * <p>
+ * Every connection that would otherwise have been a separate TCP (and TLS)
+ * connection to the chained proxy becomes a stream of a trunk connection
+ * instead, which carries the same bytes as that connection would have, with
+ * HTTP/2 flow control for each stream. The proxy opens up to the configured
+ * number of trunk connections to each chained proxy, and spreads streams
+ * across them. Trunk connections to chained proxies that require encryption
+ * are encrypted, and a proxy with an
+ * {@link org.littleshoot.proxy.SslEngineSource} encrypts the trunk connections
+ * it accepts.
+ * </p>
+ *
+ * <p>
+ * A proxy only accepts trunk connections if a listen port is configured, but
+ * any proxy can open trunk connections to its chained proxies.
+ * </p>
+ */
+public class TrunkConfiguration {
+    private int listenPort = -1;
+    private int connectionsPerPeer = 2;
+    private int maxConcurrentStreams = 500;
+    private int initialWindowSize = 1024 * 1024;
+    private boolean compression = false;
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    /**
+     * Set the port to accept trunk connections from other proxies on, in addition to the proxy's own port. A value
+     * of 0 picks a free port. By default, trunk connections aren't accepted.
+     *
+     * @param listenPort port to accept trunk connections on
+     * @return this trunk configuration instance, for chaining
+     */
+    public TrunkConfiguration withListenPort(int listenPort) {
+        if (listenPort < 0 || listenPort > 65535) {
+            throw new IllegalArgumentException("listenPort: " + listenPort + " (expected: 0-65535)");
+        }
+        this.listenPort = listenPort;
+        return this;
+    }
+
+    public int getConnectionsPerPeer() {
+        return connectionsPerPeer;
+    }
+
+    /**
+     * Set the maximum number of trunk connections to open to each chained proxy. A new trunk connection is only
+     * opened while all others carry streams. The default value is 2.
+     *
+     * @param connectionsPerPeer maximum number of trunk connections per chained proxy
+     * @return this trunk configuration instance, for chaining
+     */
+    public TrunkConfiguration withConnectionsPerPeer(int connectionsPerPeer) {
+        if (connectionsPerPeer < 1) {
+            throw new IllegalArgumentException("connectionsPerPeer: " + connectionsPerPeer + " (expected: > 0)");
+        }
+        this.connectionsPerPeer = connectionsPerPeer;
+        return this;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Set the maximum number of streams that the other side may open at once on a trunk connection. Streams beyond
+     * that wait until another stream is closed. The default value is 500.
+     *
+     * @param maxConcurrentStreams maximum number of concurrent streams per trunk connection
+     * @return this trunk configuration instance, for chaining
+     */
+    public TrunkConfiguration withMaxConcurrentStreams(int maxConcurrentStreams) {
+        if (maxConcurrentStreams < 1) {
+            throw new IllegalArgumentException("maxConcurrentStreams: " + maxConcurrentStreams + " (expected: > 0)");
+        }
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * Set the flow control window of each stream, i.e. how many bytes the other side may send on a stream before
+     * the proxy has read them. The window of each trunk connection, which all of its streams share, is about twice
+     * that. The default value is 1 MiB.
+     *
+     * @param initialWindowSize flow control window per stream, in bytes
+     * @return this trunk configuration instance, for chaining
+     */
+    public TrunkConfiguration withInitialWindowSize(int initialWindowSize) {
+        if (initialWindowSize < 1) {
+            throw new IllegalArgumentException("initialWindowSize: " + initialWindowSize + " (expected: > 0)");
+        }
+        this.initialWindowSize = initialWindowSize;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Set whether to compress the streams that this proxy opens. Each stream is compressed with its own deflate
+     * context, so the headers of a request mostly compress to references to the headers of earlier requests on the
+     * same stream. The default value is false.
+     *
+     * @param compression whether to compress streams
+     * @return this trunk configuration instance, for chaining
+     */
+    public TrunkConfiguration withCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+}
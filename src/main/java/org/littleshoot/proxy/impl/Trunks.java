@@ -0,0 +1,487 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.TransportProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Opens and accepts trunk connections, see {@link TrunkConfiguration}.
+ * </p>
+ *
+ * <p>
+ * A trunk connection is an HTTP/2 connection, which each proxy connection that
+ * goes through it uses a stream of, like a CONNECT tunnel to the proxy at the
+ * other end: the proxy that opens the stream sends a CONNECT request and then
+ * the bytes of the proxy connection as DATA frames, without waiting for the
+ * other proxy to respond. Since a stream channel takes and gives bytes like a
+ * socket channel, {@link ProxyToServerConnection}s and
+ * {@link ClientToProxyConnection}s work on streams just as they do on sockets.
+ * </p>
+ */
+class Trunks {
+    private static final Logger LOG = LoggerFactory.getLogger(Trunks.class);
+
+    /**
+     * The handler at the bottom of every stream's pipeline, which turns bytes
+     * into DATA frames and back. Handlers that deal in bytes, like SSL, must be
+     * added after it and the compression handlers.
+     */
+    static final String STREAM_HANDLER_NAME = "trunk-stream";
+    private static final String DEFLATER_NAME = "trunk-deflater";
+    private static final String INFLATER_NAME = "trunk-inflater";
+
+    /**
+     * Header of the CONNECT request that opens a stream, telling the other
+     * proxy that the stream's bytes are compressed.
+     */
+    private static final AsciiString COMPRESSION_HEADER = AsciiString.cached("x-littleproxy-compression");
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final TrunkConfiguration configuration;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    Trunks(DefaultHttpProxyServer proxyServer, TrunkConfiguration configuration) {
+        this.proxyServer = proxyServer;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the key of the trunk connections to the given chained proxy.
+     */
+    static String keyFor(ChainedProxy chainedProxy) {
+        InetSocketAddress address = chainedProxy.getChainedProxyAddress();
+        return (chainedProxy.requiresEncryption() ? "https-proxy " : "http-proxy ")
+                + address.getHostString() + ':' + address.getPort();
+    }
+
+    /**
+     * Returns the name of the handler that handlers dealing in bytes must be
+     * added after, or null if the pipeline doesn't belong to a stream.
+     */
+    static String lastStreamHandlerName(ChannelPipeline pipeline) {
+        if (pipeline.get(INFLATER_NAME) != null) {
+            return INFLATER_NAME;
+        }
+        return pipeline.get(STREAM_HANDLER_NAME) != null ? STREAM_HANDLER_NAME : null;
+    }
+
+    /**
+     * Opens a stream to the given chained proxy, over the least busy of its
+     * trunk connections. A new trunk connection is opened if all of them carry
+     * streams and there are fewer than the configured number.
+     *
+     * @param chainedProxy the chained proxy to open the stream to
+     * @param handler      the handler to add to the stream's pipeline
+     * @return a future for the stream's channel, which is registered and active once the future succeeds
+     */
+    Future<Channel> openStream(ChainedProxy chainedProxy, ChannelHandler handler) {
+        Peer peer = peers.computeIfAbsent(keyFor(chainedProxy), Peer::new);
+        Trunk trunk = peer.acquire(chainedProxy);
+        Promise<Channel> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        trunk.ready.addListener(ready -> {
+            if (!ready.isSuccess()) {
+                trunk.release();
+                promise.tryFailure(ready.cause());
+                return;
+            }
+            new Http2StreamChannelBootstrap(trunk.channel)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ChannelPipeline pipeline = ch.pipeline();
+                            pipeline.addLast(STREAM_HANDLER_NAME, new StreamHandler(true, configuration.isCompression()));
+                            if (configuration.isCompression()) {
+                                addCompression(pipeline, STREAM_HANDLER_NAME);
+                            }
+                            pipeline.addLast(handler);
+                        }
+                    })
+                    .open()
+                    .addListener(open -> {
+                        if (open.isSuccess()) {
+                            Channel stream = (Channel) open.getNow();
+                            stream.closeFuture().addListener(future -> trunk.release());
+                            promise.trySuccess(stream);
+                        } else {
+                            trunk.release();
+                            promise.tryFailure(open.cause());
+                        }
+                    });
+        });
+        return promise;
+    }
+
+    /**
+     * Sets up the pipeline of a trunk connection accepted from another proxy,
+     * with the given handler for the streams the other proxy opens.
+     */
+    void initAcceptedChannel(ChannelPipeline pipeline, SSLEngine sslEngine, ChannelHandler streamHandler) {
+        if (sslEngine != null) {
+            sslEngine.setUseClientMode(false);
+            pipeline.addLast("ssl", proxyServer.newSslHandler(sslEngine));
+        }
+        pipeline.addLast("http2", Http2FrameCodecBuilder.forServer()
+                .initialSettings(settings())
+                .build());
+        pipeline.addLast("multiplex", new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(STREAM_HANDLER_NAME, new StreamHandler(false, false));
+                ch.pipeline().addLast(streamHandler);
+            }
+        }));
+        pipeline.addLast("trunk", new TrunkHandler(null));
+    }
+
+    /**
+     * Returns the number of open trunk connections to each chained proxy.
+     */
+    Map<String, Integer> getConnectionCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Peer peer : peers.values()) {
+            int connections = peer.connectionCount();
+            if (connections > 0) {
+                counts.put(peer.key, connections);
+            }
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private Http2Settings settings() {
+        return new Http2Settings()
+                .maxConcurrentStreams(configuration.getMaxConcurrentStreams())
+                .initialWindowSize(configuration.getInitialWindowSize());
+    }
+
+    private static void addCompression(ChannelPipeline pipeline, String after) {
+        pipeline.addAfter(after, DEFLATER_NAME, ZlibCodecFactory.newZlibEncoder(ZlibWrapper.ZLIB));
+        pipeline.addAfter(DEFLATER_NAME, INFLATER_NAME, ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB));
+    }
+
+    /**
+     * The trunk connections to one chained proxy.
+     */
+    private class Peer {
+        private final String key;
+        private final List<Trunk> trunks = new ArrayList<>();
+
+        private Peer(String key) {
+            this.key = key;
+        }
+
+        synchronized Trunk acquire(ChainedProxy chainedProxy) {
+            Trunk leastBusy = null;
+            for (Trunk trunk : trunks) {
+                if (leastBusy == null || trunk.streams.get() < leastBusy.streams.get()) {
+                    leastBusy = trunk;
+                }
+            }
+            if (leastBusy == null
+                    || (leastBusy.streams.get() > 0 && trunks.size() < configuration.getConnectionsPerPeer())) {
+                leastBusy = connect(chainedProxy);
+                trunks.add(leastBusy);
+            }
+            leastBusy.streams.incrementAndGet();
+            return leastBusy;
+        }
+
+        synchronized void remove(Trunk trunk) {
+            trunks.remove(trunk);
+        }
+
+        synchronized int connectionCount() {
+            return trunks.size();
+        }
+
+        private Trunk connect(ChainedProxy chainedProxy) {
+            Trunk trunk = new Trunk(key);
+            SSLEngine sslEngine = chainedProxy.requiresEncryption() ? chainedProxy.newSslEngine() : null;
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP))
+                    .channelFactory(NioSocketChannel::new)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, proxyServer.getConnectTimeout())
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            if (sslEngine != null) {
+                                sslEngine.setUseClientMode(true);
+                                ch.pipeline().addLast("ssl", proxyServer.newSslHandler(sslEngine));
+                            }
+                            ch.pipeline().addLast("http2", Http2FrameCodecBuilder.forClient()
+                                    .initialSettings(settings().pushEnabled(false))
+                                    // streams beyond the other proxy's limit wait for a slot
+                                    .encoderEnforceMaxConcurrentStreams(true)
+                                    .build());
+                            ch.pipeline().addLast("multiplex", new Http2MultiplexHandler(RejectStreams.INSTANCE));
+                            ch.pipeline().addLast("trunk", new TrunkHandler(trunk));
+                        }
+                    });
+
+            LOG.debug("Opening trunk connection to {}", key);
+            InetSocketAddress localAddress = chainedProxy.getLocalAddress();
+            ChannelFuture connectFuture = localAddress != null
+                    ? bootstrap.connect(chainedProxy.getChainedProxyAddress(), localAddress)
+                    : bootstrap.connect(chainedProxy.getChainedProxyAddress());
+            trunk.channel = connectFuture.channel();
+            connectFuture.channel().closeFuture().addListener(future -> {
+                LOG.debug("Trunk connection to {} closed", key);
+                trunk.ready.tryFailure(new ClosedChannelException());
+                remove(trunk);
+            });
+            connectFuture.addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    LOG.debug("Unable to open trunk connection to {}", key, future.cause());
+                    trunk.ready.tryFailure(future.cause());
+                }
+            });
+            return trunk;
+        }
+    }
+
+    /**
+     * A trunk connection and the number of streams it carries.
+     */
+    private static class Trunk {
+        private final String key;
+        private final Promise<Void> ready = ImmediateEventExecutor.INSTANCE.newPromise();
+        private final AtomicInteger streams = new AtomicInteger();
+        private volatile Channel channel;
+
+        private Trunk(String key) {
+            this.key = key;
+        }
+
+        void release() {
+            streams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sits at the end of the pipeline of a trunk connection. Once the
+     * connection is active, and the HTTP/2 preface has been sent, streams may
+     * be opened on a trunk connection we opened, after the TLS handshake if
+     * the connection is encrypted.
+     */
+    private class TrunkHandler extends ChannelInboundHandlerAdapter {
+        private final Trunk trunk;
+
+        /**
+         * @param trunk the trunk connection we opened, or null for a trunk connection we accepted
+         */
+        private TrunkHandler(Trunk trunk) {
+            this.trunk = trunk;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (trunk != null) {
+                SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+                if (sslHandler == null) {
+                    ready(ctx);
+                } else {
+                    sslHandler.handshakeFuture().addListener(handshake -> {
+                        if (handshake.isSuccess()) {
+                            ready(ctx);
+                        } else {
+                            LOG.debug("Unable to handshake trunk connection to {}", trunk.key, handshake.cause());
+                            trunk.ready.tryFailure(handshake.cause());
+                            ctx.close();
+                        }
+                    });
+                }
+            }
+            super.channelActive(ctx);
+        }
+
+        private void ready(ChannelHandlerContext ctx) {
+            proxyServer.registerChannel(ctx.channel());
+            trunk.ready.trySuccess(null);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.debug("Closing trunk connection {}", ctx.channel(), cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Closes streams that the other proxy opens on a trunk connection that we
+     * opened, since only the proxy that opened a trunk connection opens streams
+     * on it.
+     */
+    @ChannelHandler.Sharable
+    private static class RejectStreams extends ChannelInboundHandlerAdapter {
+        private static final RejectStreams INSTANCE = new RejectStreams();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Turns the bytes written to a stream into DATA frames, and the DATA
+     * frames read from it into bytes. The end of the stream closes the
+     * channel, just like the end of a TCP connection does.
+     */
+    private static class StreamHandler extends ChannelDuplexHandler {
+        private final boolean opening;
+        private final boolean compression;
+        private boolean headersRead;
+        private boolean endStreamWritten;
+
+        /**
+         * @param opening     true for the proxy that opens the stream, false for the proxy that accepts it
+         * @param compression whether the opening proxy compresses the stream
+         */
+        private StreamHandler(boolean opening, boolean compression) {
+            this.opening = opening;
+            this.compression = compression;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (opening) {
+                Http2Headers headers = new DefaultHttp2Headers()
+                        .method(HttpMethod.CONNECT.asciiName());
+                if (compression) {
+                    headers.set(COMPRESSION_HEADER, HttpHeaderValues.DEFLATE);
+                }
+                // the stream's bytes follow right away, since the other proxy always accepts it
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers));
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof Http2DataFrame) {
+                Http2DataFrame frame = (Http2DataFrame) msg;
+                ByteBuf content = frame.content();
+                if (content.isReadable() && !endStreamWritten) {
+                    ctx.fireChannelRead(content);
+                } else {
+                    frame.release();
+                }
+                if (frame.isEndStream()) {
+                    ctx.close();
+                }
+            } else if (msg instanceof Http2HeadersFrame) {
+                Http2HeadersFrame frame = (Http2HeadersFrame) msg;
+                if (!headersRead) {
+                    headersRead = true;
+                    if (!(opening ? acceptResponse(frame.headers()) : acceptRequest(ctx, frame.headers()))) {
+                        ctx.close();
+                        return;
+                    }
+                }
+                if (frame.isEndStream()) {
+                    ctx.close();
+                }
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private boolean acceptResponse(Http2Headers headers) {
+            if (!HttpResponseStatus.OK.codeAsText().contentEquals(headers.status())) {
+                LOG.debug("Stream rejected with status {}", headers.status());
+                return false;
+            }
+            return true;
+        }
+
+        private boolean acceptRequest(ChannelHandlerContext ctx, Http2Headers headers) {
+            if (!HttpMethod.CONNECT.asciiName().contentEquals(headers.method())) {
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                        .status(HttpResponseStatus.METHOD_NOT_ALLOWED.codeAsText()), true));
+                endStreamWritten = true;
+                return false;
+            }
+            if (HttpHeaderValues.DEFLATE.contentEqualsIgnoreCase(headers.get(COMPRESSION_HEADER))) {
+                addCompression(ctx.pipeline(), ctx.name());
+            }
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                    .status(HttpResponseStatus.OK.codeAsText())));
+            return true;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf) {
+                super.write(ctx, new DefaultHttp2DataFrame((ByteBuf) msg), promise);
+            } else {
+                super.write(ctx, msg, promise);
+            }
+        }
+
+        /**
+         * Ends the stream instead of resetting it, so that the other proxy gets
+         * all bytes written so far. The other proxy ends the stream as well as
+         * soon as it reads the end, which closes the channel.
+         */
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            if (endStreamWritten || !ctx.channel().isActive()) {
+                super.close(ctx, promise);
+                return;
+            }
+            endStreamWritten = true;
+            ctx.channel().closeFuture().addListener(future -> promise.trySuccess());
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(true)).addListener(future -> {
+                if (!future.isSuccess()) {
+                    ctx.close();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.littleshoot.proxy.impl;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyType;
+import org.littleshoot.proxy.TransportProtocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Configuration object for keeping idle connections to hot destinations open,
+ * so that requests to them don't have to wait for a connection to be
+ * established. A destination is either a server that the proxy connects to
+ * directly, identified by its host and port, or an HTTP chained proxy, in
+ * which case the connections are also TLS-handshaken if the chained proxy
+ * requires encryption.
+ * </p>
+ *
+ * <p>
+ * The hot destinations are the ones configured here, plus the destinations
+ * that the proxy connected to most often recently, up to the maximum number
+ * of learned destinations. The proxy keeps the minimum number of idle
+ * connections open to each of them, opening new ones in the background at no
+ * more than the maximum connect rate, and closes idle connections when they
+ * reach the maximum idle time, so that they are replaced before servers close
+ * them.
+ * </p>
+ *
+ * <p>
+ * Warm connections are only used for HTTP requests, not for CONNECT requests,
+ * and not through SOCKS chained proxies, since those connections depend on the
+ * server being connected to.
+ * </p>
+ */
+public class WarmConnectionConfiguration {
+    private int minIdleConnections = 2;
+    private int maxLearnedDestinations = 10;
+    private int maxConnectsPerSecond = 10;
+    private long maxIdleMillis = 20000;
+    private final List<String> destinations = new ArrayList<>();
+    private final List<ChainedProxy> chainedProxies = new ArrayList<>();
+
+    public int getMinIdleConnections() {
+        return minIdleConnections;
+    }
+
+    /**
+     * Set the number of idle connections to keep open to each hot destination. The default value is 2.
+     *
+     * @param minIdleConnections number of idle connections per destination
+     * @return this warm connection configuration instance, for chaining
+     */
+    public WarmConnectionConfiguration withMinIdleConnections(int minIdleConnections) {
+        if (minIdleConnections < 1) {
+            throw new IllegalArgumentException("minIdleConnections: " + minIdleConnections + " (expected: > 0)");
+        }
+        this.minIdleConnections = minIdleConnections;
+        return this;
+    }
+
+    public int getMaxLearnedDestinations() {
+        return maxLearnedDestinations;
+    }
+
+    /**
+     * Set the number of destinations that the proxy connected to most often recently to keep warm, in addition to
+     * the configured ones. A value of 0 only keeps the configured destinations warm. The default value is 10.
+     *
+     * @param maxLearnedDestinations maximum number of learned hot destinations
+     * @return this warm connection configuration instance, for chaining
+     */
+    public WarmConnectionConfiguration withMaxLearnedDestinations(int maxLearnedDestinations) {
+        if (maxLearnedDestinations < 0) {
+            throw new IllegalArgumentException("maxLearnedDestinations: " + maxLearnedDestinations + " (expected: >= 0)");
+        }
+        this.maxLearnedDestinations = maxLearnedDestinations;
+        return this;
+    }
+
+    public int getMaxConnectsPerSecond() {
+        return maxConnectsPerSecond;
+    }
+
+    /**
+     * Set the maximum number of warm connections opened per second, across all destinations. The default value is
+     * 10.
+     *
+     * @param maxConnectsPerSecond maximum rate of opening warm connections
+     * @return this warm connection configuration instance, for chaining
+     */
+    public WarmConnectionConfiguration withMaxConnectsPerSecond(int maxConnectsPerSecond) {
+        if (maxConnectsPerSecond < 1) {
+            throw new IllegalArgumentException("maxConnectsPerSecond: " + maxConnectsPerSecond + " (expected: > 0)");
+        }
+        this.maxConnectsPerSecond = maxConnectsPerSecond;
+        return this;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    /**
+     * Set how long a warm connection may stay idle before it is closed and replaced. This should be shorter than
+     * the keep-alive timeout of the servers. The default value is 20 seconds.
+     *
+     * @param maxIdleMillis maximum idle time of a warm connection, in milliseconds
+     * @return this warm connection configuration instance, for chaining
+     */
+    public WarmConnectionConfiguration withMaxIdleMillis(long maxIdleMillis) {
+        if (maxIdleMillis < 1) {
+            throw new IllegalArgumentException("maxIdleMillis: " + maxIdleMillis + " (expected: > 0)");
+        }
+        this.maxIdleMillis = maxIdleMillis;
+        return this;
+    }
+
+    public List<String> getDestinations() {
+        return Collections.unmodifiableList(destinations);
+    }
+
+    /**
+     * Add a server to keep idle connections to, for requests that are sent to it directly.
+     *
+     * @param serverHostAndPort host and port of the server, e.g. "www.example.org:80"
+     * @return this warm connection configuration instance, for chaining
+     */
+    public WarmConnectionConfiguration withDestination(String serverHostAndPort) {
+        this.destinations.add(serverHostAndPort);
+        return this;
+    }
+
+    public List<ChainedProxy> getChainedProxies() {
+        return Collections.unmodifiableList(chainedProxies);
+    }
+
+    /**
+     * Add an HTTP chained proxy to keep idle connections to, for requests to any server that are sent through it.
+     *
+     * @param chainedProxy chained proxy of type {@link ChainedProxyType#HTTP}
+     * @return this warm connection configuration instance, for chaining
+     */
+    public WarmConnectionConfiguration withChainedProxy(ChainedProxy chainedProxy) {
+        if (chainedProxy.getChainedProxyType() != ChainedProxyType.HTTP
+                || chainedProxy.getTransportProtocol() != TransportProtocol.TCP) {
+            throw new IllegalArgumentException("chainedProxy: " + chainedProxy.getChainedProxyAddress()
+                    + " (expected: HTTP chained proxy over TCP)");
+        }
+        this.chainedProxies.add(chainedProxy);
+        return this;
+    }
+}
@@ -0,0 +1,601 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.TransportProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps idle connections to hot destinations open, see
+ * {@link WarmConnectionConfiguration}. A warm connection is a connected, and
+ * if necessary TLS-handshaken, channel without a {@link ProxyToServerConnection},
+ * which a new {@link ProxyToServerConnection} to the same destination takes
+ * over instead of connecting.
+ * </p>
+ *
+ * <p>
+ * Destinations are identified by keys, see {@link #keyFor(InetSocketAddress, ChainedProxy)}.
+ * Every time the proxy connects to a destination, or takes a warm connection
+ * to it, the destination is used once. Uses are halved regularly, so that the
+ * learned destinations are the ones used most often recently.
+ * </p>
+ *
+ * <p>
+ * With {@link ServerConnectionLimits}, a warm connection to a server holds a
+ * slot for the server as given in the requests, which it hands to the
+ * connection that takes it over. Warm connections to a server that is at its
+ * limit aren't opened. Warm connections to chained proxies don't hold a slot,
+ * since they aren't tied to a server until they're taken over.
+ * </p>
+ */
+class WarmConnections {
+    private static final Logger LOG = LoggerFactory.getLogger(WarmConnections.class);
+
+    private static final long TICK_MILLIS = 100;
+    private static final long LEARNING_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * When there are more destinations than this, new destinations aren't
+     * learned until some of the known ones haven't been used for a while.
+     */
+    private static final int MAX_DESTINATIONS = 10000;
+
+    private static final String WARM_HANDLER_NAME = "warm";
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final WarmConnectionConfiguration configuration;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     * Only used by the replenishing task, which never runs concurrently with
+     * itself.
+     */
+    private double connectTokens;
+    private long lastDecayNanos = System.nanoTime();
+    private Set<String> configuredKeys;
+
+    WarmConnections(DefaultHttpProxyServer proxyServer, WarmConnectionConfiguration configuration) {
+        this.proxyServer = proxyServer;
+        this.configuration = configuration;
+        this.connectTokens = configuration.getMaxConnectsPerSecond();
+    }
+
+    /**
+     * Returns the key of the destination of connections to the given remote
+     * address, through the given HTTP chained proxy if not null.
+     */
+    static String keyFor(InetSocketAddress remoteAddress, ChainedProxy chainedProxy) {
+        String hostAndPort = remoteAddress.getHostString() + ':' + remoteAddress.getPort();
+        if (chainedProxy == null) {
+            return hostAndPort;
+        }
+        return (chainedProxy.requiresEncryption() ? "https-proxy " : "http-proxy ") + hostAndPort;
+    }
+
+    void start() {
+        scheduleTick();
+    }
+
+    void stop() {
+        stopped = true;
+        for (Destination destination : destinations.values()) {
+            for (WarmChannel warmChannel : destination.drain()) {
+                warmChannel.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Takes an idle connection to the given destination, if there is one.
+     * The caller must take over the channel on its event loop using
+     * {@link WarmChannel#adopt()}.
+     *
+     * @return the warm connection, or null if there is no idle connection to the destination
+     */
+    WarmChannel take(String key) {
+        Destination destination = destinations.get(key);
+        WarmChannel warmChannel = destination != null ? destination.poll(expiryNanos()) : null;
+        if (warmChannel == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return warmChannel;
+    }
+
+    /**
+     * Puts back a warm connection that was taken but couldn't be used after
+     * all, so that it doesn't count as taken.
+     */
+    void putBack(WarmChannel warmChannel) {
+        hits.decrementAndGet();
+        misses.incrementAndGet();
+        warmChannel.destination.putBack(warmChannel);
+    }
+
+    /**
+     * Records that the proxy connected to the given destination, which makes
+     * it hotter.
+     *
+     * @param chainedProxy the HTTP chained proxy the remote address belongs to, or null for a server
+     * @param serverHostAndPort the server as given in the request
+     */
+    void recordUse(String key, InetSocketAddress remoteAddress, ChainedProxy chainedProxy, String serverHostAndPort) {
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            if (configuration.getMaxLearnedDestinations() == 0 || destinations.size() >= MAX_DESTINATIONS) {
+                return;
+            }
+            destination = destinations.computeIfAbsent(key, k -> new Destination(k, null));
+        }
+        destination.used(remoteAddress, chainedProxy, serverHostAndPort);
+    }
+
+    private void scheduleTick() {
+        if (stopped) {
+            return;
+        }
+        try {
+            proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP).schedule(() -> {
+                try {
+                    tick();
+                } catch (Exception e) {
+                    LOG.warn("Unable to replenish warm connections", e);
+                }
+                scheduleTick();
+            }, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the proxy is shutting down
+        }
+    }
+
+    private void tick() {
+        if (stopped) {
+            return;
+        }
+
+        int maxConnectsPerSecond = configuration.getMaxConnectsPerSecond();
+        connectTokens = Math.min(maxConnectsPerSecond, connectTokens + maxConnectsPerSecond * TICK_MILLIS / 1000.0);
+
+        long now = System.nanoTime();
+        boolean decay = now - lastDecayNanos >= LEARNING_WINDOW_NANOS;
+        if (decay) {
+            lastDecayNanos = now;
+        }
+
+        long expiryNanos = expiryNanos();
+        for (Destination destination : destinations.values()) {
+            for (WarmChannel expired : destination.removeExpired(expiryNanos)) {
+                LOG.debug("Recycling warm connection to {}", destination.key);
+                expired.channel.close();
+            }
+            if (decay) {
+                destination.decay();
+            }
+        }
+        destinations.values().removeIf(Destination::removeIfUnused);
+
+        if (configuredKeys == null || decay) {
+            // resolve the configured destinations again now and then, in case their addresses change
+            configureDestinations();
+        }
+
+        for (Destination destination : hotDestinations()) {
+            while (connectTokens >= 1 && destination.needsConnection()) {
+                if (!connect(destination)) {
+                    break;
+                }
+                connectTokens--;
+            }
+        }
+    }
+
+    private long expiryNanos() {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(configuration.getMaxIdleMillis());
+    }
+
+    /**
+     * Returns the configured destinations, followed by the learned ones that
+     * were used most recently.
+     */
+    private List<Destination> hotDestinations() {
+        List<Destination> hot = new ArrayList<>();
+        List<Destination> learned = new ArrayList<>();
+        for (Destination destination : destinations.values()) {
+            if (destination.configured) {
+                hot.add(destination);
+            } else if (destination.getUses() > 0) {
+                learned.add(destination);
+            }
+        }
+        learned.sort(Comparator.comparingLong(Destination::getUses).reversed());
+        hot.addAll(learned.subList(0, Math.min(learned.size(), configuration.getMaxLearnedDestinations())));
+        return hot;
+    }
+
+    private void configureDestinations() {
+        Set<String> keys = new HashSet<>();
+        for (String serverHostAndPort : configuration.getDestinations()) {
+            RequestTarget target = RequestTarget.parse(serverHostAndPort);
+            try {
+                InetSocketAddress address = proxyServer.getServerResolver().resolve(target.host(), target.port(80));
+                keys.add(configureDestination(address, null, serverHostAndPort));
+            } catch (UnknownHostException e) {
+                LOG.debug("Unable to resolve warm destination {}", serverHostAndPort, e);
+            }
+        }
+        for (ChainedProxy chainedProxy : configuration.getChainedProxies()) {
+            keys.add(configureDestination(chainedProxy.getChainedProxyAddress(), chainedProxy, null));
+        }
+
+        // destinations whose address changed are left to be forgotten like learned ones
+        for (Destination destination : destinations.values()) {
+            destination.configured = keys.contains(destination.key);
+        }
+        configuredKeys = keys;
+    }
+
+    private String configureDestination(InetSocketAddress address, ChainedProxy chainedProxy, String serverHostAndPort) {
+        String key = keyFor(address, chainedProxy);
+        Destination destination = destinations.computeIfAbsent(key, k -> new Destination(k, address));
+        destination.remoteAddress = address;
+        destination.chainedProxy = chainedProxy;
+        destination.serverHostAndPort = serverHostAndPort;
+        return key;
+    }
+
+    /**
+     * Opens a warm connection to the given destination.
+     *
+     * @return false if the destination's circuit breaker doesn't let us connect, or its server is at its limit
+     */
+    private boolean connect(Destination destination) {
+        InetSocketAddress remoteAddress = destination.remoteAddress;
+        ChainedProxy chainedProxy = destination.chainedProxy;
+        CircuitBreakers circuitBreakers = proxyServer.getCircuitBreakers();
+        if (circuitBreakers != null && !circuitBreakers.forUpstream(
+                CircuitBreakers.upstreamFor(chainedProxy, remoteAddress.getHostString() + ':' + remoteAddress.getPort()))
+                .allowRequest()) {
+            return false;
+        }
+
+        ServerConnectionLimits limits = proxyServer.getServerConnectionLimits();
+        String serverHostAndPort = chainedProxy == null && limits != null ? destination.serverHostAndPort : null;
+        if (serverHostAndPort != null && !limits.tryAcquire(serverHostAndPort)) {
+            LOG.debug("Too many connections to {} to open a warm connection", serverHostAndPort);
+            return false;
+        }
+
+        SSLEngine sslEngine;
+        InetSocketAddress localAddress;
+        if (chainedProxy != null) {
+            sslEngine = chainedProxy.requiresEncryption() ? chainedProxy.newSslEngine() : null;
+            localAddress = chainedProxy.getLocalAddress();
+        } else {
+            sslEngine = null;
+            localAddress = proxyServer.getSourceAddressPool() == null ? proxyServer.getLocalAddress() : null;
+        }
+        SourceAddressPool sourceAddressPool = proxyServer.getSourceAddressPool();
+        SourceAddressPool.Lease lease = localAddress == null && sourceAddressPool != null
+                ? sourceAddressPool.acquire(remoteAddress)
+                : null;
+        if (lease != null) {
+            localAddress = lease.getLocalAddress();
+        }
+
+        WarmChannel warmChannel = new WarmChannel(destination, sslEngine, serverHostAndPort);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP))
+                .channelFactory(NioSocketChannel::new)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, proxyServer.getConnectTimeout())
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (sslEngine != null) {
+                            sslEngine.setUseClientMode(true);
+                            ch.pipeline().addFirst("ssl", proxyServer.newSslHandler(sslEngine));
+                        }
+                        ch.pipeline().addLast(WARM_HANDLER_NAME, new WarmChannelHandler(warmChannel));
+                    }
+                });
+
+        LOG.debug("Opening warm connection to {}", destination.key);
+        destination.connecting(1);
+        ChannelFuture connectFuture = localAddress != null
+                ? bootstrap.connect(remoteAddress, localAddress)
+                : bootstrap.connect(remoteAddress);
+        warmChannel.channel = connectFuture.channel();
+        connectFuture.channel().closeFuture().addListener(future -> warmChannel.releaseConnectionSlot());
+        if (lease != null) {
+            connectFuture.channel().closeFuture().addListener(future -> lease.release());
+        }
+        connectFuture.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                LOG.debug("Unable to open warm connection to {}", destination.key, future.cause());
+                destination.connecting(-1);
+            } else if (sslEngine != null) {
+                future.channel().pipeline().get(SslHandler.class).handshakeFuture().addListener(handshake -> {
+                    if (handshake.isSuccess()) {
+                        connected(warmChannel);
+                    } else {
+                        LOG.debug("Unable to handshake warm connection to {}", destination.key, handshake.cause());
+                        destination.connecting(-1);
+                        future.channel().close();
+                    }
+                });
+            } else {
+                connected(warmChannel);
+            }
+        });
+        return true;
+    }
+
+    private void connected(WarmChannel warmChannel) {
+        proxyServer.registerChannel(warmChannel.channel);
+        warmChannel.destination.add(warmChannel);
+        if (stopped) {
+            warmChannel.channel.close();
+        }
+    }
+
+    /**
+     * Returns the number of idle warm connections to each destination.
+     */
+    Map<String, Integer> getIdleConnectionCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Destination destination : destinations.values()) {
+            int idle = destination.getIdle();
+            if (idle > 0) {
+                counts.put(destination.key, idle);
+            }
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private class Destination {
+        private final String key;
+        private volatile InetSocketAddress remoteAddress;
+        private volatile ChainedProxy chainedProxy;
+        /**
+         * The server as given in the requests, for its connection slots, or
+         * null for a chained proxy.
+         */
+        private volatile String serverHostAndPort;
+        private volatile boolean configured;
+        private final ArrayDeque<WarmChannel> idle = new ArrayDeque<>();
+        private int connecting;
+        private long uses;
+
+        private Destination(String key, InetSocketAddress remoteAddress) {
+            this.key = key;
+            this.remoteAddress = remoteAddress;
+        }
+
+        private synchronized void used(InetSocketAddress remoteAddress, ChainedProxy chainedProxy,
+                String serverHostAndPort) {
+            uses++;
+            if (!configured) {
+                this.remoteAddress = remoteAddress;
+                this.chainedProxy = chainedProxy;
+                this.serverHostAndPort = chainedProxy == null ? serverHostAndPort : null;
+            }
+        }
+
+        private synchronized long getUses() {
+            return uses;
+        }
+
+        private synchronized void decay() {
+            uses /= 2;
+        }
+
+        private synchronized int getIdle() {
+            return idle.size();
+        }
+
+        private synchronized boolean needsConnection() {
+            return remoteAddress != null && idle.size() + connecting < configuration.getMinIdleConnections();
+        }
+
+        private synchronized void connecting(int delta) {
+            connecting += delta;
+        }
+
+        private synchronized void add(WarmChannel warmChannel) {
+            connecting--;
+            if (warmChannel.channel.isActive()) {
+                idle.add(warmChannel);
+            }
+        }
+
+        private synchronized void remove(WarmChannel warmChannel) {
+            idle.remove(warmChannel);
+        }
+
+        private synchronized void putBack(WarmChannel warmChannel) {
+            if (warmChannel.channel.isActive()) {
+                idle.addFirst(warmChannel);
+            } else {
+                warmChannel.channel.close();
+            }
+        }
+
+        /**
+         * Takes the idle connection that was opened first and hasn't expired
+         * yet, so that all of them get used before they expire.
+         */
+        private synchronized WarmChannel poll(long expiryNanos) {
+            WarmChannel warmChannel;
+            while ((warmChannel = idle.poll()) != null) {
+                if (warmChannel.openedNanos - expiryNanos > 0 && warmChannel.channel.isActive()) {
+                    return warmChannel;
+                }
+                warmChannel.channel.close();
+            }
+            return null;
+        }
+
+        private synchronized List<WarmChannel> removeExpired(long expiryNanos) {
+            List<WarmChannel> expired = new ArrayList<>();
+            for (Iterator<WarmChannel> it = idle.iterator(); it.hasNext(); ) {
+                WarmChannel warmChannel = it.next();
+                if (warmChannel.openedNanos - expiryNanos <= 0) {
+                    it.remove();
+                    expired.add(warmChannel);
+                }
+            }
+            return expired;
+        }
+
+        private synchronized List<WarmChannel> drain() {
+            List<WarmChannel> drained = new ArrayList<>(idle);
+            idle.clear();
+            return drained;
+        }
+
+        /**
+         * Forgets this destination if it's a learned one that hasn't been
+         * used for a while and has no warm connections left.
+         */
+        private synchronized boolean removeIfUnused() {
+            return !configured && uses == 0 && idle.isEmpty() && connecting == 0;
+        }
+    }
+
+    /**
+     * An idle warm connection.
+     */
+    class WarmChannel {
+        private final Destination destination;
+        private final SSLEngine sslEngine;
+        private final long openedNanos = System.nanoTime();
+        private final String serverHostAndPort;
+        private final AtomicBoolean holdingConnectionSlot;
+        private volatile Channel channel;
+
+        private WarmChannel(Destination destination, SSLEngine sslEngine, String serverHostAndPort) {
+            this.destination = destination;
+            this.sslEngine = sslEngine;
+            this.serverHostAndPort = serverHostAndPort;
+            this.holdingConnectionSlot = new AtomicBoolean(serverHostAndPort != null);
+        }
+
+        Channel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Returns the engine of the TLS connection to the chained proxy, or
+         * null if the connection isn't encrypted.
+         */
+        SSLEngine getSslEngine() {
+            return sslEngine;
+        }
+
+        /**
+         * Hands the connection slot this warm connection holds to the caller,
+         * if it's a slot for the given server.
+         *
+         * @return true if the caller now holds the slot
+         */
+        boolean takeConnectionSlot(String serverHostAndPort) {
+            return serverHostAndPort.equals(this.serverHostAndPort) && holdingConnectionSlot.compareAndSet(true, false);
+        }
+
+        /**
+         * Gives back the connection slot this warm connection holds, if any.
+         */
+        void releaseConnectionSlot() {
+            if (holdingConnectionSlot.compareAndSet(true, false)) {
+                proxyServer.getServerConnectionLimits().release(serverHostAndPort);
+            }
+        }
+
+        /**
+         * Removes the warm connection's own handler, so that the caller can
+         * install its own handlers. Must be called on the channel's event loop.
+         *
+         * @return false if the connection was closed in the meantime
+         */
+        boolean adopt() {
+            if (channel.pipeline().get(WARM_HANDLER_NAME) == null) {
+                return false;
+            }
+            channel.pipeline().remove(WARM_HANDLER_NAME);
+            return channel.isActive();
+        }
+    }
+
+    /**
+     * Keeps track of a warm connection while it's idle. Servers aren't
+     * expected to send anything on an idle connection, so the connection is
+     * closed if they do.
+     */
+    private static class WarmChannelHandler extends ChannelInboundHandlerAdapter {
+        private final WarmChannel warmChannel;
+
+        private WarmChannelHandler(WarmChannel warmChannel) {
+            this.warmChannel = warmChannel;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            warmChannel.destination.remove(warmChannel);
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.debug("Closing warm connection to {}", warmChannel.destination.key, cause);
+            ctx.close();
+        }
+    }
+}
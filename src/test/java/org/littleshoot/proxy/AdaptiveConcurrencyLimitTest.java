@@ -0,0 +1,97 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.AdaptiveConcurrencyLimitConfiguration;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.Delay;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that requests to a server that is at its concurrency limit are
+ * rejected right away.
+ */
+public class AdaptiveConcurrencyLimitTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private DefaultHttpProxyServer proxyServer;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        executor = Executors.newCachedThreadPool();
+
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration()
+                        .withInitialLimit(1)
+                        .withMaxLimit(1))
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            executor.shutdownNow();
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestOverLimitIsRejected() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/slow"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withDelay(new Delay(TimeUnit.SECONDS, 3)));
+
+        Future<Integer> first = executor.submit(() -> get("/slow"));
+        while (mockServer.retrieveRecordedRequests(request().withPath("/slow")).length == 0) {
+            Thread.sleep(10);
+        }
+
+        long start = System.nanoTime();
+        assertEquals("Expected a 503 while the server is at its limit", 503, get("/slow"));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+
+        assertEquals(200, (int) first.get());
+        assertEquals(1, proxyServer.getConcurrencyLimitedRequestCount());
+
+        // the first request is done, so the next one may go through
+        assertEquals(200, get("/slow"));
+    }
+
+    private int get(String path) throws Exception {
+        try (CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + path));
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.CircuitBreakerConfiguration;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.net.ServerSocket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the circuit breaker of an origin server that can't be reached
+ * opens, and that requests to it then fail right away.
+ */
+public class CircuitBreakerProxyTest extends AbstractProxyTest {
+    @Override
+    protected void setUp() {
+        this.proxyServer = bootstrapProxy()
+                .withPort(0)
+                .withCircuitBreakers(new CircuitBreakerConfiguration()
+                        .withMinimumNumberOfCalls(2)
+                        .withOpenStateDurationMillis(60000)
+                        .withProbeIntervalMillis(0))
+                .start();
+    }
+
+    @Test
+    public void testUnreachableServerOpensCircuitBreaker() throws Exception {
+        int unusedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            unusedPort = serverSocket.getLocalPort();
+        }
+        HttpHost deadHost = new HttpHost("127.0.0.1", unusedPort);
+        String upstream = "127.0.0.1:" + unusedPort;
+
+        assertReceivedBadGateway(httpGetWithApacheClient(deadHost, DEFAULT_RESOURCE, true, false));
+        assertReceivedBadGateway(httpGetWithApacheClient(deadHost, DEFAULT_RESOURCE, true, false));
+
+        DefaultHttpProxyServer server = (DefaultHttpProxyServer) proxyServer;
+        assertEquals(CircuitBreakerState.OPEN, server.getCircuitBreakerStates().get(upstream));
+
+        assertReceivedBadGateway(httpGetWithApacheClient(deadHost, DEFAULT_RESOURCE, true, false));
+        assertEquals(CircuitBreakerState.OPEN, server.getCircuitBreakerStates().get(upstream));
+
+        // requests to other servers are unaffected
+        ResponseInfo response = httpGetWithApacheClient(webHost, DEFAULT_RESOURCE, true, false);
+        assertEquals(200, response.getStatusCode());
+        assertEquals(CircuitBreakerState.CLOSED, server.getCircuitBreakerStates().get("127.0.0.1:" + webServerPort));
+    }
+}
@@ -0,0 +1,184 @@
+package org.littleshoot.proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.test.SocketClientUtil;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.Delay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that stopping the proxy gracefully closes idle client connections at
+ * once, lets requests in flight finish and cuts off tunnels that are still
+ * open when the drain timeout expires.
+ */
+public class DrainTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestInFlightFinishesWhileIdleConnectionIsClosed() throws Exception {
+        mockServer.when(request().withMethod("GET").withPath("/fast"))
+                .respond(response().withStatusCode(200).withBody("fast"));
+        mockServer.when(request().withMethod("GET").withPath("/slow"))
+                .respond(response().withStatusCode(200).withBody("slow")
+                        .withDelay(new Delay(TimeUnit.SECONDS, 1)));
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+        int proxyPort = proxyServer.getListenAddress().getPort();
+
+        try (Socket idleSocket = SocketClientUtil.getSocketToProxyServer(proxyServer);
+             Socket busySocket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(get("/fast"), idleSocket);
+            String idleResponse = readResponse(idleSocket);
+            assertTrue("Expected a 200, but got: " + idleResponse, idleResponse.startsWith("HTTP/1.1 200"));
+
+            SocketClientUtil.writeStringToSocket(get("/slow"), busySocket);
+            Thread.sleep(200);
+
+            Thread stopper = new Thread(proxyServer::stop);
+            stopper.start();
+
+            assertTrue("Expected the idle connection to be closed", awaitClosed(idleSocket));
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", proxyPort), 1000);
+                fail("Expected the proxy to stop accepting connections");
+            } catch (IOException e) {
+                // expected
+            }
+
+            String busyResponse = readResponse(busySocket);
+            assertTrue("Expected the response to the request in flight, but got: " + busyResponse,
+                    busyResponse.startsWith("HTTP/1.1 200"));
+            assertTrue("Expected the client to be told to close the connection, but got: " + busyResponse,
+                    busyResponse.toLowerCase(Locale.US).contains("connection: close"));
+            assertTrue("Expected the connection to be closed after the response", awaitClosed(busySocket));
+
+            stopper.join(5000);
+            assertFalse(stopper.isAlive());
+            assertEquals(0, ((DefaultHttpProxyServer) proxyServer).getCutOffExchangeCount());
+        }
+    }
+
+    @Test
+    public void testTunnelIsCutOffAtDrainTimeout() throws Exception {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withDrainTimeout(1)
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket("CONNECT 127.0.0.1:" + mockServerPort + " HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + mockServerPort + "\r\n"
+                    + "\r\n", socket);
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected the CONNECT to succeed, but got: " + response, response.startsWith("HTTP/1.1 200"));
+
+            proxyServer.stop();
+
+            assertEquals(1, ((DefaultHttpProxyServer) proxyServer).getCutOffExchangeCount());
+            assertTrue("Expected the tunnel to be closed", awaitClosed(socket));
+        }
+    }
+
+    /**
+     * Reads a response with a Content-Length body, or up to the end of the
+     * stream if it has none.
+     */
+    private static String readResponse(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int b;
+        while (!endsWithBlankLine(response) && (b = in.read()) != -1) {
+            response.write(b);
+        }
+        String head = new String(response.toByteArray(), StandardCharsets.US_ASCII);
+        int contentLength = -1;
+        for (String line : head.split("\r\n")) {
+            if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        for (int read = 0; (contentLength < 0 || read < contentLength) && (b = in.read()) != -1; read++) {
+            response.write(b);
+        }
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean endsWithBlankLine(ByteArrayOutputStream bytes) {
+        byte[] b = bytes.toByteArray();
+        int n = b.length;
+        return n >= 4 && b[n - 4] == '\r' && b[n - 3] == '\n' && b[n - 2] == '\r' && b[n - 1] == '\n';
+    }
+
+    /**
+     * Waits for the proxy to close the given connection, discarding anything
+     * it still sends, and returns false if it is still open after a few
+     * seconds.
+     */
+    private static boolean awaitClosed(Socket socket) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        socket.setSoTimeout(100);
+        InputStream in = socket.getInputStream();
+        while (System.nanoTime() - deadline < 0) {
+            try {
+                if (in.read() == -1) {
+                    return true;
+                }
+            } catch (SocketTimeoutException e) {
+                // still open, keep waiting
+            } catch (SocketException e) {
+                // reset
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String get(String path) {
+        return "GET http://127.0.0.1:" + mockServerPort + path + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + mockServerPort + "\r\n"
+                + "\r\n";
+    }
+}
@@ -0,0 +1,56 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.TrunkConfiguration;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+
+/**
+ * Tests a proxy chained to another proxy over encrypted trunk connections
+ * with compressed streams.
+ */
+public class EncryptedHttp2ChainedProxyTest extends BaseChainedProxyTest {
+    private final SslEngineSource sslEngineSource = new SelfSignedSslEngineSource(
+            "chain_proxy_keystore_1.jks");
+
+    @Override
+    protected HttpProxyServerBootstrap upstreamProxy() {
+        return super.upstreamProxy()
+                .withSslEngineSource(sslEngineSource)
+                .withTrunks(new TrunkConfiguration().withListenPort(0));
+    }
+
+    @Override
+    protected HttpProxyServerBootstrap bootstrapProxy() {
+        return super.bootstrapProxy()
+                .withTrunks(new TrunkConfiguration().withCompression(true));
+    }
+
+    @Override
+    protected ChainedProxy newChainedProxy() {
+        return new BaseChainedProxy() {
+            @Override
+            public InetSocketAddress getChainedProxyAddress() {
+                return new InetSocketAddress("127.0.0.1",
+                        ((DefaultHttpProxyServer) upstreamProxy).getTrunkListenAddress().getPort());
+            }
+
+            @Override
+            public ChainedProxyType getChainedProxyType() {
+                return ChainedProxyType.HTTP2;
+            }
+
+            @Override
+            public boolean requiresEncryption() {
+                return true;
+            }
+
+            @Override
+            public SSLEngine newSslEngine() {
+                return sslEngineSource.newSslEngine();
+            }
+        };
+    }
+}
@@ -0,0 +1,252 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ExtensionExecutorConfiguration;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+import org.littleshoot.proxy.test.SocketClientUtil;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that extension points that block run on the extension executor, that
+ * they don't hold up other clients, and that what the client sends while they
+ * run is processed afterwards, in order.
+ */
+public class ExtensionExecutorTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+    private HttpProxyServer proxyServer;
+
+    private final CountDownLatch slowRequestMayProceed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+    }
+
+    @After
+    public void tearDown() {
+        slowRequestMayProceed.countDown();
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testBlockingFilterDoesNotHoldUpOtherClients() throws Exception {
+        mockServer.when(request().withMethod("GET").withPath("/fast"))
+                .respond(response().withStatusCode(200).withBody("fast"));
+        mockServer.when(request().withMethod("GET").withPath("/slow"))
+                .respond(response().withStatusCode(200).withBody("slow"));
+
+        AtomicReference<String> filterThread = new AtomicReference<>();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                // a single worker thread serves both clients
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withClientToProxyWorkerThreads(1)
+                        .withProxyToServerWorkerThreads(1))
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                        filterThread.set(Thread.currentThread().getName());
+                        if (originalRequest.uri().endsWith("/slow")) {
+                            awaitUninterruptibly(slowRequestMayProceed);
+                        }
+                        return null;
+                    }
+                })
+                .withExtensionExecutor(new ExtensionExecutorConfiguration())
+                .start();
+
+        try (Socket slowSocket = SocketClientUtil.getSocketToProxyServer(proxyServer);
+             Socket fastSocket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(get("/slow"), slowSocket);
+            SocketClientUtil.writeStringToSocket(get("/fast"), fastSocket);
+
+            String fastResponse = SocketClientUtil.readStringFromSocket(fastSocket);
+            assertTrue("Expected a 200 while the other request is blocked, but got: " + fastResponse,
+                    fastResponse.startsWith("HTTP/1.1 200"));
+            assertFalse("Expected the filters source to be called off the worker thread",
+                    filterThread.get().contains("ClientToProxyWorker"));
+
+            slowRequestMayProceed.countDown();
+            String slowResponse = SocketClientUtil.readStringFromSocket(slowSocket);
+            assertTrue("Expected a 200 once the filter returns, but got: " + slowResponse,
+                    slowResponse.startsWith("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    public void testRequestBodyIsForwardedAfterBlockingAuthentication() throws Exception {
+        mockServer.when(request().withMethod("POST").withPath("/post").withBody("hello"),
+                Times.exactly(1))
+                .respond(response().withStatusCode(200).withBody("received"));
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withProxyAuthenticator(new ProxyAuthenticator() {
+                    @Override
+                    public boolean authenticate(String userName, String password) {
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return "user".equals(userName) && "secret".equals(password);
+                    }
+
+                    @Override
+                    public String getRealm() {
+                        return null;
+                    }
+                })
+                .withExtensionExecutor(new ExtensionExecutorConfiguration())
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            // the headers and the body arrive together, so the body is read while the authenticator is running
+            String credentials = Base64.getEncoder().encodeToString("user:secret".getBytes(StandardCharsets.UTF_8));
+            SocketClientUtil.writeStringToSocket("POST http://127.0.0.1:" + mockServerPort + "/post HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + mockServerPort + "\r\n"
+                    + "Proxy-Authorization: Basic " + credentials + "\r\n"
+                    + "Content-Length: 5\r\n"
+                    + "\r\n"
+                    + "hello", socket);
+
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected the server to receive the body, but got: " + response,
+                    response.startsWith("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    public void testRequestIsAggregatedForFilters() throws Exception {
+        mockServer.when(request().withMethod("POST").withPath("/post").withBody("hello"),
+                Times.exactly(1))
+                .respond(response().withStatusCode(200).withBody("received"));
+
+        AtomicReference<String> filteredBody = new AtomicReference<>();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                        return new HttpFiltersAdapter(originalRequest, ctx) {
+                            @Override
+                            public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                                if (httpObject instanceof FullHttpRequest) {
+                                    filteredBody.set(((FullHttpRequest) httpObject).content()
+                                            .toString(StandardCharsets.UTF_8));
+                                }
+                                return null;
+                            }
+
+                            @Override
+                            public int getMaximumRequestBufferSizeInBytes() {
+                                return 1024;
+                            }
+                        };
+                    }
+                })
+                .withExtensionExecutor(new ExtensionExecutorConfiguration())
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            // the body is read while the filters source is called, and has to be aggregated afterwards
+            SocketClientUtil.writeStringToSocket("POST http://127.0.0.1:" + mockServerPort + "/post HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + mockServerPort + "\r\n"
+                    + "Content-Length: 5\r\n"
+                    + "\r\n"
+                    + "hello", socket);
+
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected the server to receive the body, but got: " + response,
+                    response.startsWith("HTTP/1.1 200"));
+            assertEquals("hello", filteredBody.get());
+        }
+    }
+
+    @Test
+    public void testRespondsWithServiceUnavailableWhenQueueIsFull() throws Exception {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                        awaitUninterruptibly(slowRequestMayProceed);
+                        return null;
+                    }
+                })
+                .withExtensionExecutor(new ExtensionExecutorConfiguration()
+                        .withThreads(1)
+                        .withMaxQueuedCalls(1))
+                .start();
+
+        try (Socket runningSocket = SocketClientUtil.getSocketToProxyServer(proxyServer);
+             Socket queuedSocket = SocketClientUtil.getSocketToProxyServer(proxyServer);
+             Socket rejectedSocket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(get("/running"), runningSocket);
+            waitForQueueDepth(0);
+            SocketClientUtil.writeStringToSocket(get("/queued"), queuedSocket);
+            waitForQueueDepth(1);
+            SocketClientUtil.writeStringToSocket(get("/rejected"), rejectedSocket);
+
+            String response = SocketClientUtil.readStringFromSocket(rejectedSocket);
+            assertTrue("Expected a 503 Service Unavailable, but got: " + response,
+                    response.startsWith("HTTP/1.1 503"));
+        }
+    }
+
+    private String get(String path) {
+        return "GET http://127.0.0.1:" + mockServerPort + path + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + mockServerPort + "\r\n"
+                + "\r\n";
+    }
+
+    private void waitForQueueDepth(int queueDepth) throws InterruptedException {
+        DefaultHttpProxyServer server = (DefaultHttpProxyServer) proxyServer;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getExtensionQueueDepth() != queueDepth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the running call has been taken off the queue once it's blocked, give it a moment to get there
+        Thread.sleep(100);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
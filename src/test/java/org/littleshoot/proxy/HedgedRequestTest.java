@@ -0,0 +1,172 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.RequestHedgingConfiguration;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.Delay;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that a slow GET request is hedged, and that the response to the hedge
+ * is used when it arrives first.
+ */
+public class HedgedRequestTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private DefaultHttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withRequestHedging(new RequestHedgingConfiguration()
+                        .withInitialDelayMillis(100))
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/hedged"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("slow")
+                        .withDelay(new Delay(TimeUnit.SECONDS, 10)));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/hedged"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("fast"));
+
+        CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort());
+
+        long start = System.nanoTime();
+        HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/hedged"));
+        String body = EntityUtils.toString(response.getEntity());
+        long stop = System.nanoTime();
+
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("Expected the response to the hedge", "fast", body);
+        assertThat("Expected the hedge to be answered long before the original request",
+                TimeUnit.NANOSECONDS.toMillis(stop - start), lessThan(5000L));
+        assertEquals(1, proxyServer.getHedgeableRequestCount());
+        assertEquals(1, proxyServer.getHedgedRequestCount());
+        assertEquals(1, proxyServer.getHedgeWinCount());
+
+        // the connection of the hedge should now be used for the next request
+        response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/hedged"));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("fast", EntityUtils.toString(response.getEntity()));
+        assertEquals(2, proxyServer.getHedgeableRequestCount());
+        assertEquals("A quick response should not be hedged", 1, proxyServer.getHedgedRequestCount());
+    }
+
+    @Test
+    public void testHedgeIsOnlyFilteredByItsOwnChainedProxy() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/hedged")
+                        .withHeader("X-Chained-Proxy-A", "true"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("slow")
+                        .withDelay(new Delay(TimeUnit.SECONDS, 10)));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/hedged"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("fast"));
+
+        HttpProxyServer upstreamProxyA = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+        HttpProxyServer upstreamProxyB = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+        try {
+            proxyServer.abort();
+            proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                    .withPort(0)
+                    .withRequestHedging(new RequestHedgingConfiguration()
+                            .withInitialDelayMillis(100))
+                    .withChainProxyManager((httpRequest, chainedProxies, clientDetails) -> {
+                        chainedProxies.add(headerSettingChainedProxy(upstreamProxyA, "X-Chained-Proxy-A"));
+                        chainedProxies.add(headerSettingChainedProxy(upstreamProxyB, "X-Chained-Proxy-B"));
+                    })
+                    .start();
+
+            CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort());
+            HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/hedged"));
+
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("Expected the response to the hedge", "fast", EntityUtils.toString(response.getEntity()));
+            assertEquals(1, mockServer.retrieveRecordedRequests(request()
+                    .withPath("/hedged")
+                    .withHeader("X-Chained-Proxy-B", "true")).length);
+            assertEquals("Expected the hedge not to carry the header of the original chained proxy",
+                    0, mockServer.retrieveRecordedRequests(request()
+                            .withPath("/hedged")
+                            .withHeader("X-Chained-Proxy-A", "true")
+                            .withHeader("X-Chained-Proxy-B", "true")).length);
+        } finally {
+            upstreamProxyA.abort();
+            upstreamProxyB.abort();
+        }
+    }
+
+    private static ChainedProxy headerSettingChainedProxy(HttpProxyServer upstreamProxy, String headerName) {
+        return new ChainedProxyAdapter() {
+            @Override
+            public InetSocketAddress getChainedProxyAddress() {
+                return upstreamProxy.getListenAddress();
+            }
+
+            @Override
+            public void filterRequest(HttpObject httpObject) {
+                if (httpObject instanceof HttpRequest) {
+                    ((HttpRequest) httpObject).headers().set(headerName, "true");
+                }
+            }
+        };
+    }
+}
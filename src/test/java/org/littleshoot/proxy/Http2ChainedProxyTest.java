@@ -0,0 +1,33 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.TrunkConfiguration;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Tests a proxy chained to another proxy over trunk connections.
+ */
+public class Http2ChainedProxyTest extends BaseChainedProxyTest {
+    @Override
+    protected HttpProxyServerBootstrap upstreamProxy() {
+        return super.upstreamProxy()
+                .withTrunks(new TrunkConfiguration().withListenPort(0));
+    }
+
+    @Override
+    protected ChainedProxy newChainedProxy() {
+        return new BaseChainedProxy() {
+            @Override
+            public InetSocketAddress getChainedProxyAddress() {
+                return new InetSocketAddress("127.0.0.1",
+                        ((DefaultHttpProxyServer) upstreamProxy).getTrunkListenAddress().getPort());
+            }
+
+            @Override
+            public ChainedProxyType getChainedProxyType() {
+                return ChainedProxyType.HTTP2;
+            }
+        };
+    }
+}
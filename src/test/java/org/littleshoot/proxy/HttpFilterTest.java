@@ -1,7 +1,9 @@
 package org.littleshoot.proxy;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
+import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jetty.server.Server;
 import org.junit.After;
 import org.junit.Before;
@@ -780,6 +782,191 @@ public class HttpFilterTest {
         assertEquals("Expected to receive an HTTP 200 from proxy", 200, httpResponse.getStatusLine().getStatusCode());
     }
 
+    @Test
+    public void testPerRequestBuffering() throws Exception {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/buffered"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("buffered response"));
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/streamed"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("streamed response"));
+
+        final AtomicInteger fullHttpRequestsReceived = new AtomicInteger(0);
+        final AtomicInteger fullHttpResponsesReceived = new AtomicInteger(0);
+        final AtomicInteger requestContentChunksReceived = new AtomicInteger(0);
+        final AtomicInteger responseContentChunksReceived = new AtomicInteger(0);
+
+        HttpFiltersSource filtersSource = new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest) {
+                final boolean buffer = originalRequest.uri().endsWith("/buffered");
+                return new HttpFiltersAdapter(originalRequest) {
+                    @Override
+                    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                        if (httpObject instanceof FullHttpRequest) {
+                            fullHttpRequestsReceived.incrementAndGet();
+                        } else if (httpObject instanceof HttpContent) {
+                            requestContentChunksReceived.incrementAndGet();
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public HttpObject serverToProxyResponse(HttpObject httpObject) {
+                        if (httpObject instanceof FullHttpResponse) {
+                            fullHttpResponsesReceived.incrementAndGet();
+                        } else if (httpObject instanceof HttpContent) {
+                            responseContentChunksReceived.incrementAndGet();
+                        }
+                        return httpObject;
+                    }
+
+                    @Override
+                    public int getMaximumRequestBufferSizeInBytes() {
+                        return buffer ? 1024 * 1024 : 0;
+                    }
+
+                    @Override
+                    public int getMaximumResponseBufferSizeInBytes() {
+                        return buffer ? 1024 * 1024 : 0;
+                    }
+                };
+            }
+        };
+
+        setUpHttpProxyServer(filtersSource);
+
+        org.apache.http.HttpResponse httpResponse = HttpClientUtil.performHttpPost("http://localhost:" + mockServerPort + "/buffered", 50000, proxyServer);
+        assertEquals("Expected to receive an HTTP 200 from proxy", 200, httpResponse.getStatusLine().getStatusCode());
+        assertEquals("Expected the buffered request to reach the filter as a FullHttpRequest", 1, fullHttpRequestsReceived.get());
+        assertEquals("Expected the buffered response to reach the filter as a FullHttpResponse", 1, fullHttpResponsesReceived.get());
+        assertEquals("Expected no request chunks for the buffered request", 0, requestContentChunksReceived.get());
+        assertEquals("Expected no response chunks for the buffered response", 0, responseContentChunksReceived.get());
+
+        httpResponse = HttpClientUtil.performHttpPost("http://localhost:" + mockServerPort + "/streamed", 50000, proxyServer);
+        assertEquals("Expected to receive an HTTP 200 from proxy", 200, httpResponse.getStatusLine().getStatusCode());
+        assertEquals("Expected the streamed request not to be buffered", 1, fullHttpRequestsReceived.get());
+        assertEquals("Expected the streamed response not to be buffered", 1, fullHttpResponsesReceived.get());
+        assertTrue("Expected the streamed request to reach the filter in chunks", requestContentChunksReceived.get() > 0);
+        assertTrue("Expected the streamed response to reach the filter in chunks", responseContentChunksReceived.get() > 0);
+    }
+
+    @Test
+    public void testOriginalRequestIsPreservedWhenBuffering() throws Exception {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/original"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("success"));
+
+        final AtomicReference<String> originalContent = new AtomicReference<>();
+        final AtomicReference<String> originalViaHeader = new AtomicReference<>();
+        final AtomicReference<String> forwardedViaHeader = new AtomicReference<>();
+
+        HttpFiltersSource filtersSource = new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest) {
+                return new HttpFiltersAdapter(originalRequest) {
+                    @Override
+                    public HttpResponse proxyToServerRequest(HttpObject httpObject) {
+                        if (httpObject instanceof FullHttpRequest) {
+                            FullHttpRequest forwardedRequest = (FullHttpRequest) httpObject;
+                            // consume the forwarded content, which must not affect the original request
+                            forwardedRequest.content().skipBytes(forwardedRequest.content().readableBytes());
+                            forwardedViaHeader.set(forwardedRequest.headers().get(HttpHeaderNames.VIA));
+
+                            FullHttpRequest fullOriginalRequest = (FullHttpRequest) originalRequest;
+                            originalContent.set(fullOriginalRequest.content().toString(java.nio.charset.StandardCharsets.UTF_8));
+                            originalViaHeader.set(fullOriginalRequest.headers().get(HttpHeaderNames.VIA));
+
+                            forwardedRequest.content().resetReaderIndex();
+                        }
+                        return null;
+                    }
+                };
+            }
+
+            @Override
+            public int getMaximumRequestBufferSizeInBytes() {
+                return 1024 * 1024;
+            }
+        };
+
+        setUpHttpProxyServer(filtersSource);
+
+        org.apache.http.HttpResponse httpResponse = HttpClientUtil.performHttpPost("http://localhost:" + mockServerPort + "/original", 50000, proxyServer);
+        assertEquals("Expected to receive an HTTP 200 from proxy", 200, httpResponse.getStatusLine().getStatusCode());
+
+        assertNotNull("Expected the proxy to add a Via header to the forwarded request", forwardedViaHeader.get());
+        assertNull("Expected the original request not to be modified by the proxy", originalViaHeader.get());
+        assertNotNull("Expected the original request to be a FullHttpRequest", originalContent.get());
+        assertEquals(50000, originalContent.get().length());
+        assertTrue(originalContent.get().matches("q+"));
+    }
+
+    @Test
+    public void testOriginalRequestSharesContentWithForwardedRequest() throws Exception {
+        mockServer.when(request()
+                        .withMethod("POST")
+                        .withPath("/shared"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("success"));
+
+        final AtomicReference<String> originalContent = new AtomicReference<>();
+
+        HttpFiltersSource filtersSource = new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest) {
+                return new HttpFiltersAdapter(originalRequest) {
+                    @Override
+                    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                        if (httpObject instanceof FullHttpRequest) {
+                            // change the forwarded content in place
+                            ByteBuf content = ((FullHttpRequest) httpObject).content();
+                            content.setByte(content.readerIndex(), 'x');
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public HttpResponse proxyToServerRequest(HttpObject httpObject) {
+                        if (httpObject instanceof FullHttpRequest) {
+                            originalContent.set(((FullHttpRequest) originalRequest).content()
+                                    .toString(java.nio.charset.StandardCharsets.UTF_8));
+                        }
+                        return null;
+                    }
+                };
+            }
+
+            @Override
+            public int getMaximumRequestBufferSizeInBytes() {
+                return 1024 * 1024;
+            }
+        };
+
+        setUpHttpProxyServer(filtersSource);
+
+        org.apache.http.HttpResponse httpResponse = HttpClientUtil.performHttpPost("http://localhost:" + mockServerPort + "/shared", 100, proxyServer);
+        assertEquals("Expected to receive an HTTP 200 from proxy", 200, httpResponse.getStatusLine().getStatusCode());
+
+        assertNotNull("Expected the original request to be a FullHttpRequest", originalContent.get());
+        assertEquals("Expected the change to the forwarded content to show through the original request",
+                "x" + StringUtils.repeat('q', 99), originalContent.get());
+    }
+
     private long now() {
         // using nanoseconds instead of milliseconds, since it is extremely unlikely that any two callbacks would be invoked in the same nanosecond,
         // even on very fast hardware
@@ -0,0 +1,58 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.extras.LeastLatencyChainedProxyManager;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests a proxy chained to an upstream proxy through the
+ * {@link LeastLatencyChainedProxyManager}, and verifies that the chained proxy
+ * gets told about connect times and request outcomes.
+ */
+public class LeastLatencyChainedProxyTest extends BaseChainedProxyTest {
+    private final AtomicInteger connectTimesMeasured = new AtomicInteger();
+    private final AtomicInteger requestsSent = new AtomicInteger();
+    private final AtomicInteger responsesReceived = new AtomicInteger();
+    private final AtomicInteger requestsFailed = new AtomicInteger();
+
+    @Override
+    protected ChainedProxyManager chainedProxyManager() {
+        return new LeastLatencyChainedProxyManager(Collections.singletonList(new BaseChainedProxy() {
+            @Override
+            public void connectTimeMeasured(long connectTimeNanos) {
+                assertTrue(connectTimeNanos > 0);
+                connectTimesMeasured.incrementAndGet();
+            }
+
+            @Override
+            public void requestSent() {
+                requestsSent.incrementAndGet();
+            }
+
+            @Override
+            public void responseReceived(long responseTimeNanos) {
+                assertTrue(responseTimeNanos > 0);
+                responsesReceived.incrementAndGet();
+            }
+
+            @Override
+            public void requestFailed() {
+                requestsFailed.incrementAndGet();
+            }
+        }));
+    }
+
+    @Override
+    protected void tearDown() {
+        super.tearDown();
+
+        assertTrue("Expected the connect time to be measured", connectTimesMeasured.get() > 0);
+        // HTTPS requests are tunneled, so the proxy only sees the requests sent over HTTP
+        assertEquals("Every request should either get a response or fail",
+                requestsSent.get(), responsesReceived.get() + requestsFailed.get());
+    }
+}
@@ -0,0 +1,113 @@
+package org.littleshoot.proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.SelfSignedMitmManager;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.MitmBypassConfiguration;
+import org.littleshoot.proxy.test.SocketClientUtil;
+import org.mockserver.integration.ClientAndServer;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that a MITMing proxy tunnels CONNECTs to bypassed hosts, and that it
+ * learns to bypass hosts whose clients reject its certificates.
+ */
+public class MitmBypassTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+    private HttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testConfiguredDomainIsTunneled() throws Exception {
+        startProxy(new MitmBypassConfiguration()
+                .withDomain("localdomain")
+                .withDomain("127.0.0.1"));
+
+        // plain text through the tunnel only works if the proxy doesn't expect a TLS handshake
+        assertTunneled("127.0.0.1");
+    }
+
+    @Test
+    public void testHostIsLearnedAfterClientHandshakesFail() throws Exception {
+        startProxy(new MitmBypassConfiguration()
+                .withClientHandshakeFailuresToBypass(2));
+
+        for (int i = 0; i < 2; i++) {
+            try (Socket socket = connect("localhost")) {
+                // the default trust store doesn't trust the proxy's self-signed certificate, like a pinning client
+                SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, "localhost", mockServerPort, true);
+                sslSocket.startHandshake();
+                fail("Expected the client to reject the proxy's certificate");
+            } catch (SSLHandshakeException e) {
+                // expected
+            }
+        }
+
+        DefaultHttpProxyServer server = (DefaultHttpProxyServer) proxyServer;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getLearnedMitmBypassHostCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getLearnedMitmBypassHostCount());
+
+        assertTunneled("localhost");
+    }
+
+    private void startProxy(MitmBypassConfiguration mitmBypassConfiguration) {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withManInTheMiddle(new SelfSignedMitmManager())
+                .withMitmBypass(mitmBypassConfiguration)
+                .start();
+    }
+
+    private Socket connect(String host) throws IOException {
+        Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer);
+        SocketClientUtil.writeStringToSocket("CONNECT " + host + ":" + mockServerPort + " HTTP/1.1\r\nHost: "
+                + host + ":" + mockServerPort + "\r\n\r\n", socket);
+        String response = SocketClientUtil.readStringFromSocket(socket);
+        assertTrue("Expected the CONNECT to succeed, but got: " + response, response.startsWith("HTTP/1.1 200"));
+        return socket;
+    }
+
+    private void assertTunneled(String host) throws IOException {
+        try (Socket socket = connect(host)) {
+            SocketClientUtil.writeStringToSocket("GET /unmatched HTTP/1.1\r\nHost: " + host + ":" + mockServerPort
+                    + "\r\n\r\n", socket);
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected the server's 404 through the tunnel, but got: " + response,
+                    response.startsWith("HTTP/1.1 404"));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.SelfSignedMitmManager;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that a proxy running as a man in the middle handshakes with the client
+ * and the server at the same time if its {@link MitmManager} doesn't need the
+ * server's {@link SSLSession}, and one after the other otherwise.
+ */
+public class MitmHandshakeTest extends AbstractProxyTest {
+    private final List<SSLSession> serverSslSessions = new CopyOnWriteArrayList<>();
+
+    @Override
+    protected void setUp() {
+        // each test starts its own proxy
+    }
+
+    @Override
+    protected boolean isMITM() {
+        return true;
+    }
+
+    @Test
+    public void testHandshakesInParallel() throws Exception {
+        startProxy(false);
+        compareProxiedAndUnproxiedGET(httpsWebHost, DEFAULT_RESOURCE);
+
+        assertEquals(1, serverSslSessions.size());
+        assertNull(serverSslSessions.get(0));
+    }
+
+    @Test
+    public void testHandshakesOneAfterTheOther() throws Exception {
+        startProxy(true);
+        compareProxiedAndUnproxiedGET(httpsWebHost, DEFAULT_RESOURCE);
+
+        assertEquals(1, serverSslSessions.size());
+        assertNotNull(serverSslSessions.get(0));
+    }
+
+    private void startProxy(final boolean needsServerSslSession) {
+        proxyServer = bootstrapProxy()
+                .withPort(0)
+                .withManInTheMiddle(new SelfSignedMitmManager() {
+                    @Override
+                    public SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession) {
+                        serverSslSessions.add(serverSslSession);
+                        return super.clientSslEngineFor(httpRequest, serverSslSession);
+                    }
+
+                    @Override
+                    public boolean needsServerSslSession() {
+                        return needsServerSslSession;
+                    }
+                })
+                .start();
+    }
+}
@@ -0,0 +1,35 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.HandshakeExecutorConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests a proxy running as a man in the middle that runs its TLS handshakes on
+ * a thread pool of its own.
+ */
+public class MitmWithHandshakeExecutorTest extends MitmProxyTest {
+    @Override
+    protected HttpProxyServerBootstrap bootstrapProxy() {
+        return super.bootstrapProxy()
+                .withHandshakeExecutor(new HandshakeExecutorConfiguration()
+                        .withThreads(2)
+                        .withMaxQueuedTasks(16));
+    }
+
+    @Test
+    public void testHandshakesAreCounted() throws Exception {
+        compareProxiedAndUnproxiedGET(httpsWebHost, DEFAULT_RESOURCE);
+
+        DefaultHttpProxyServer server = (DefaultHttpProxyServer) proxyServer;
+        // one handshake with the client and one with the server
+        assertTrue("Expected handshakes with client and server, but got " + server.getHandshakeCount(),
+                server.getHandshakeCount() >= 2);
+        assertTrue(server.getHandshakeNanos() > 0);
+        assertEquals(0, server.getHandshakeQueueDepth());
+        assertEquals(0, server.getHandshakeTasksRunOnWorkerThreads());
+    }
+}
@@ -0,0 +1,30 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.TrunkConfiguration;
+
+import java.net.InetSocketAddress;
+
+public class MitmWithHttp2ChainedProxyTest extends MitmWithChainedProxyTest {
+    @Override
+    protected HttpProxyServerBootstrap upstreamProxy() {
+        return super.upstreamProxy()
+                .withTrunks(new TrunkConfiguration().withListenPort(0));
+    }
+
+    @Override
+    protected ChainedProxy newChainedProxy() {
+        return new BaseChainedProxy() {
+            @Override
+            public InetSocketAddress getChainedProxyAddress() {
+                return new InetSocketAddress("127.0.0.1",
+                        ((DefaultHttpProxyServer) upstreamProxy).getTrunkListenAddress().getPort());
+            }
+
+            @Override
+            public ChainedProxyType getChainedProxyType() {
+                return ChainedProxyType.HTTP2;
+            }
+        };
+    }
+}
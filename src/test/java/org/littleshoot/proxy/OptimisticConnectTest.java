@@ -0,0 +1,186 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.ClientDetails;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.OptimisticConnectConfiguration;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that CONNECT requests are answered before the proxy has connected to
+ * the server if optimistic CONNECT is enabled for their destination, and that
+ * what the client sends in the meantime makes it to the server.
+ */
+public class OptimisticConnectTest {
+    private HttpProxyServer proxyServer;
+    private ServerSocket upstreamProxy;
+    private CountDownLatch upstreamProxyMayRespond;
+
+    @Before
+    public void setUp() throws IOException {
+        upstreamProxy = new ServerSocket(0);
+        upstreamProxyMayRespond = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        } finally {
+            upstreamProxyMayRespond.countDown();
+            upstreamProxy.close();
+        }
+    }
+
+    @Test
+    public void testRespondsBeforeConnectingAndForwardsBufferedBytes() throws Exception {
+        startSlowEchoingUpstreamProxy();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withChainProxyManager(new ChainedProxyManager() {
+                    @Override
+                    public void lookupChainedProxies(HttpRequest httpRequest, Queue<ChainedProxy> chainedProxies,
+                            ClientDetails clientDetails) {
+                        chainedProxies.add(new ChainedProxyAdapter() {
+                            @Override
+                            public InetSocketAddress getChainedProxyAddress() {
+                                return new InetSocketAddress("127.0.0.1", upstreamProxy.getLocalPort());
+                            }
+                        });
+                    }
+                })
+                .withOptimisticConnect(new OptimisticConnectConfiguration())
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket("CONNECT www.example.org:443 HTTP/1.1\r\nHost: www.example.org:443\r\n\r\n", socket);
+
+            // the upstream proxy hasn't answered the proxy's CONNECT yet
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected the CONNECT to succeed right away, but got: " + response,
+                    response.startsWith("HTTP/1.1 200"));
+
+            SocketClientUtil.writeStringToSocket("hello", socket);
+            upstreamProxyMayRespond.countDown();
+
+            assertEquals("hello", readString(socket, 5));
+        }
+    }
+
+    @Test
+    public void testClosesTunnelIfConnectFails() throws Exception {
+        int closedPort = closedPort();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withOptimisticConnect(new OptimisticConnectConfiguration()
+                        .withDestination("127.0.0.1:" + closedPort))
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket("CONNECT 127.0.0.1:" + closedPort + " HTTP/1.1\r\nHost: 127.0.0.1:" + closedPort + "\r\n\r\n", socket);
+
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected the CONNECT to succeed right away, but got: " + response,
+                    response.startsWith("HTTP/1.1 200"));
+            try {
+                response = SocketClientUtil.readStringFromSocket(socket);
+                fail("Expected the tunnel to be closed, but got: " + response);
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testOtherDestinationsAreNotConnectedOptimistically() throws Exception {
+        int closedPort = closedPort();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withOptimisticConnect(new OptimisticConnectConfiguration()
+                        .withDestination("*.example.org"))
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket("CONNECT 127.0.0.1:" + closedPort + " HTTP/1.1\r\nHost: 127.0.0.1:" + closedPort + "\r\n\r\n", socket);
+
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected a 502 Bad Gateway, but got: " + response,
+                    response.startsWith("HTTP/1.1 502"));
+        }
+    }
+
+    /**
+     * Accepts one connection, waits until it may respond to the CONNECT
+     * request, and then echoes whatever it reads.
+     */
+    private void startSlowEchoingUpstreamProxy() {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = upstreamProxy.accept()) {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+
+                // read the CONNECT request up to the double-CRLF, byte by byte to leave the tunneled bytes alone
+                int lastBytes = 0;
+                while (lastBytes != 0x0d0a0d0a) {
+                    int b = in.read();
+                    if (b == -1) {
+                        return;
+                    }
+                    lastBytes = (lastBytes << 8) | b;
+                }
+
+                if (!upstreamProxyMayRespond.await(5, TimeUnit.SECONDS)) {
+                    return;
+                }
+                out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                byte[] bytes = new byte[1024];
+                int read;
+                while ((read = in.read(bytes)) != -1) {
+                    out.write(bytes, 0, read);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // the test is over
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static String readString(Socket socket, int length) throws IOException {
+        StringBuilder string = new StringBuilder();
+        while (string.length() < length) {
+            string.append(SocketClientUtil.readStringFromSocket(socket));
+        }
+        return string.toString();
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
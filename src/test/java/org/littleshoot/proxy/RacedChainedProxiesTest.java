@@ -0,0 +1,66 @@
+package org.littleshoot.proxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests a proxy that races connections through an unreachable chained proxy
+ * and a working one. Every request should go through the working proxy, which
+ * should be started as soon as the unreachable one failed, and the unreachable
+ * one should be told that connecting through it failed.
+ */
+public class RacedChainedProxiesTest extends BaseChainedProxyTest {
+    private final AtomicBoolean unableToConnect = new AtomicBoolean(false);
+
+    @Override
+    protected void setUp() {
+        unableToConnect.set(false);
+        REQUESTS_SENT_BY_DOWNSTREAM.set(0);
+        REQUESTS_RECEIVED_BY_UPSTREAM.set(0);
+        TRANSPORTS_USED.clear();
+        this.upstreamProxy = upstreamProxy().start();
+        this.proxyServer = bootstrapProxy()
+                .withName("Downstream")
+                .withPort(0)
+                .withChainProxyManager(chainedProxyManager())
+                .withRacedChainedProxies(2)
+                // long enough for the requests to time out, unless the failed racer starts the next one right away
+                .withChainedProxyRaceStaggerMillis(60000)
+                .plusActivityTracker(DOWNSTREAM_TRACKER).start();
+    }
+
+    @Override
+    protected ChainedProxyManager chainedProxyManager() {
+        return (httpRequest, chainedProxies, clientDetails) -> {
+            chainedProxies.add(new ChainedProxyAdapter() {
+                @Override
+                public InetSocketAddress getChainedProxyAddress() {
+                    try {
+                        // using unconnectable port 0
+                        return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+                    } catch (UnknownHostException uhe) {
+                        throw new RuntimeException(
+                                "Unable to resolve 127.0.0.1?!");
+                    }
+                }
+
+                @Override
+                public void connectionFailed(Throwable cause) {
+                    unableToConnect.set(true);
+                }
+            });
+            chainedProxies.add(newChainedProxy());
+        };
+    }
+
+    @Override
+    protected void tearDown() {
+        super.tearDown();
+        assertTrue("We should have been told that we were unable to connect through the unreachable proxy",
+                unableToConnect.get());
+    }
+}
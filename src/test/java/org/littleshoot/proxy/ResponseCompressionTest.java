@@ -0,0 +1,148 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ResponseCompressionConfiguration;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests compression of responses on their way to the client.
+ */
+public class ResponseCompressionTest {
+    private HttpProxyServer proxyServer;
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private final AtomicInteger responsesCompressed = new AtomicInteger(0);
+    private final AtomicLong uncompressedBytes = new AtomicLong(0);
+    private final AtomicLong compressedBytes = new AtomicLong(0);
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+
+        this.proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withResponseCompression(new ResponseCompressionConfiguration()
+                        .withMinimumResponseSizeInBytes(1000))
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void responseCompressed(FlowContext flowContext, long uncompressed, long compressed,
+                            long compressionTimeNanos) {
+                        responsesCompressed.incrementAndGet();
+                        uncompressedBytes.addAndGet(uncompressed);
+                        compressedBytes.addAndGet(compressed);
+                    }
+                })
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        } finally {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testCompressibleResponseIsCompressed() throws Exception {
+        String body = repeat("{\"key\": \"value\"}, ", 500);
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/json"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withHeader("Content-Type", "application/json; charset=utf-8")
+                        .withBody(body));
+
+        assertEquals(body, get("/json"));
+        assertEquals("Expected the response to be compressed", 1, responsesCompressed.get());
+        assertEquals(body.length(), uncompressedBytes.get());
+        assertTrue("Expected compressed content to be smaller than the original", compressedBytes.get() < uncompressedBytes.get());
+    }
+
+    @Test
+    public void testSmallResponseIsNotCompressed() throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/small"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("small"));
+
+        assertEquals("small", get("/small"));
+        assertEquals("Expected a response below the minimum size not to be compressed", 0, responsesCompressed.get());
+    }
+
+    @Test
+    public void testIncompressibleContentTypeIsNotCompressed() throws Exception {
+        String body = repeat("not really an image ", 500);
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/image"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withHeader("Content-Type", "image/png")
+                        .withBody(body));
+
+        assertEquals(body, get("/image"));
+        assertEquals("Expected an image not to be compressed", 0, responsesCompressed.get());
+    }
+
+    @Test
+    public void testRangeResponseIsNotCompressed() throws Exception {
+        String body = repeat("partial content ", 500);
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/range"),
+                Times.exactly(1))
+                .respond(response()
+                        .withStatusCode(206)
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("Content-Range", "bytes 0-" + (body.length() - 1) + "/100000")
+                        .withBody(body));
+
+        assertEquals(body, get("/range"));
+        assertEquals("Expected a range response not to be compressed", 0, responsesCompressed.get());
+    }
+
+    private String get(String path) throws Exception {
+        HttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort());
+        HttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + mockServerPort + path));
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
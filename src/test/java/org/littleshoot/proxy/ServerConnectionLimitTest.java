@@ -0,0 +1,225 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerConnectionLimitConfiguration;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.Delay;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that connections to a server over its limit wait for other connections
+ * to the server to close, and that requests are rejected when they can't wait.
+ */
+public class ServerConnectionLimitTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private DefaultHttpProxyServer proxyServer;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            executor.shutdownNow();
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionWaitsForServer() throws Exception {
+        startProxy(new ServerConnectionLimitConfiguration()
+                .withMaxConnectionsPerServer(1));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/slow"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withDelay(new Delay(TimeUnit.MILLISECONDS, 1000)));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/fast"))
+                .respond(response()
+                        .withStatusCode(200));
+
+        // the first client takes the only connection to the server, and gives it back by disconnecting
+        Future<Integer> first = executor.submit(() -> {
+            try (CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+                return get(httpClient, "/slow");
+            }
+        });
+        waitUntilReceived("/slow", 1);
+
+        CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort());
+        assertEquals(200, get(httpClient, "/fast"));
+        assertEquals(200, (int) first.get());
+
+        assertEquals(1, proxyServer.getQueuedServerConnectionCount());
+        assertThat(proxyServer.getServerConnectionQueueWaitNanos(), greaterThan(0L));
+        assertEquals(0, proxyServer.getServerConnectionQueueDepth());
+        assertEquals(0, proxyServer.getRejectedServerConnectionCount());
+        assertEquals(0, proxyServer.getTimedOutServerConnectionCount());
+    }
+
+    @Test
+    public void testQueueFullAndQueueTimeout() throws Exception {
+        startProxy(new ServerConnectionLimitConfiguration()
+                .withMaxConnectionsPerServer(1)
+                .withMaxQueueLength(1)
+                .withQueueTimeoutMillis(1000));
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/slow"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withDelay(new Delay(TimeUnit.SECONDS, 3)));
+
+        Future<Integer> first = executor.submit(() -> get("/slow"));
+        waitUntilReceived("/slow", 1);
+        Future<Integer> second = executor.submit(() -> get("/slow"));
+        while (proxyServer.getServerConnectionQueueDepth() == 0) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, proxyServer.getServerConnectionQueueDepth());
+        assertEquals(Collections.singletonMap("127.0.0.1:" + mockServerPort, 1), proxyServer.getServerConnectionQueueDepths());
+
+        assertEquals("Expected a 503 when the queue is full", 503, (int) get("/slow"));
+        assertEquals("Expected a 504 after waiting for too long", 504, (int) second.get());
+        assertEquals(200, (int) first.get());
+
+        assertEquals(1, proxyServer.getRejectedServerConnectionCount());
+        assertEquals(1, proxyServer.getTimedOutServerConnectionCount());
+        assertEquals(0, proxyServer.getServerConnectionQueueDepth());
+    }
+
+    @Test
+    public void testRacersCountAgainstLimit() throws Exception {
+        assertFalse("Expected no racer through the second chained proxy when the server is at its limit",
+                raceIsContested(1));
+        assertTrue("Expected a racer through the second chained proxy when the server is below its limit",
+                raceIsContested(2));
+    }
+
+    /**
+     * Races a request through a working chained proxy and a SOCKS5 one that
+     * accepts connections but never answers its handshake, so that it can't
+     * win, and returns whether a racer connected through the second one.
+     */
+    private boolean raceIsContested(int maxConnectionsPerServer) throws Exception {
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/raced"))
+                .respond(response()
+                        .withStatusCode(200));
+
+        HttpProxyServer upstreamProxy = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+        try (ServerSocket silentChainedProxy = new ServerSocket(0)) {
+            proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                    .withPort(0)
+                    .withServerConnectionLimits(new ServerConnectionLimitConfiguration()
+                            .withMaxConnectionsPerServer(maxConnectionsPerServer))
+                    .withChainProxyManager((httpRequest, chainedProxies, clientDetails) -> {
+                        chainedProxies.add(chainedProxyAt(upstreamProxy.getListenAddress()));
+                        chainedProxies.add(new ChainedProxyAdapter() {
+                            @Override
+                            public InetSocketAddress getChainedProxyAddress() {
+                                return new InetSocketAddress("127.0.0.1", silentChainedProxy.getLocalPort());
+                            }
+
+                            @Override
+                            public ChainedProxyType getChainedProxyType() {
+                                return ChainedProxyType.SOCKS5;
+                            }
+                        });
+                    })
+                    .withRacedChainedProxies(2)
+                    .withChainedProxyRaceStaggerMillis(0)
+                    .start();
+
+            assertEquals(200, (int) get("/raced"));
+
+            silentChainedProxy.setSoTimeout(1000);
+            try {
+                silentChainedProxy.accept().close();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+        } finally {
+            proxyServer.abort();
+            upstreamProxy.abort();
+        }
+    }
+
+    private static ChainedProxy chainedProxyAt(InetSocketAddress address) {
+        return new ChainedProxyAdapter() {
+            @Override
+            public InetSocketAddress getChainedProxyAddress() {
+                return address;
+            }
+        };
+    }
+
+    private void startProxy(ServerConnectionLimitConfiguration configuration) {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withServerConnectionLimits(configuration)
+                .start();
+    }
+
+    private void waitUntilReceived(String path, int numberOfRequests) throws InterruptedException {
+        while (mockServer.retrieveRecordedRequests(request().withPath(path)).length < numberOfRequests) {
+            Thread.sleep(10);
+        }
+    }
+
+    private int get(String path) throws Exception {
+        try (CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            return get(httpClient, path);
+        }
+    }
+
+    private int get(CloseableHttpClient httpClient, String path) throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + path));
+        EntityUtils.consumeQuietly(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+}
@@ -0,0 +1,83 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that connections to the same server are bound to different addresses
+ * of the source address pool.
+ */
+public class SourceAddressPoolProxyTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private DefaultHttpProxyServer proxyServer;
+    private InetAddress firstAddress;
+    private InetAddress secondAddress;
+
+    @Before
+    public void setUp() throws Exception {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/pooled"))
+                .respond(response()
+                        .withStatusCode(200));
+
+        // the whole 127.0.0.0/8 block is bound to the loopback interface
+        firstAddress = InetAddress.getByName("127.0.0.1");
+        secondAddress = InetAddress.getByName("127.0.0.2");
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withSourceAddresses(Arrays.asList(firstAddress, secondAddress))
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionsAreSpreadAcrossSourceAddresses() throws Exception {
+        int proxyPort = proxyServer.getListenAddress().getPort();
+        try (CloseableHttpClient firstClient = TestUtils.createProxiedHttpClient(proxyPort);
+             CloseableHttpClient secondClient = TestUtils.createProxiedHttpClient(proxyPort)) {
+            // both clients keep their connections open, and with them their connections to the server
+            assertEquals(200, get(firstClient));
+            assertEquals(200, get(secondClient));
+
+            assertEquals(1, (int) proxyServer.getSourceAddressConnectionCounts().get(firstAddress));
+            assertEquals(1, (int) proxyServer.getSourceAddressConnectionCounts().get(secondAddress));
+        }
+    }
+
+    private int get(CloseableHttpClient httpClient) throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/pooled"));
+        EntityUtils.consumeQuietly(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+}
@@ -0,0 +1,120 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that an idempotent request is sent again over a new connection when
+ * the server closes the reused connection it was sent over without
+ * responding.
+ */
+public class StaleConnectionRetryTest {
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private DefaultHttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws IOException {
+        // a server that answers the first request on its first connection, and then closes that connection as soon
+        // as the next request arrives, as if its keep-alive timeout expired just then
+        serverSocket = new ServerSocket(0);
+        serverThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(socket, connections.incrementAndGet());
+                } catch (IOException e) {
+                    // the test is over, or the proxy hung up
+                }
+            }
+        }, "StaleConnectionRetryTest-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            serverSocket.close();
+            serverThread.join(5000);
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestOnStaleConnectionIsRetried() throws Exception {
+        try (CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            assertEquals("response 1", get(httpClient, "/first"));
+            assertEquals("response 2", get(httpClient, "/second"));
+        }
+
+        assertEquals(2, connections.get());
+        assertEquals(1, proxyServer.getStaleConnectionRetryCount());
+    }
+
+    private String get(CloseableHttpClient httpClient, String path) throws IOException {
+        HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + serverSocket.getLocalPort() + path));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    private static void serve(Socket socket, int connection) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream out = socket.getOutputStream();
+        int requests = 0;
+        while (readRequestHead(reader)) {
+            requests++;
+            if (connection == 1 && requests > 1) {
+                return;
+            }
+            String body = "response " + connection;
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n"
+                    + body).getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the head of a request without a body.
+     *
+     * @return false if the connection was closed
+     */
+    private static boolean readRequestHead(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return false;
+        }
+        while (line != null && !line.isEmpty()) {
+            line = reader.readLine();
+        }
+        return true;
+    }
+}
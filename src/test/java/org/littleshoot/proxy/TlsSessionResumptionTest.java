@@ -0,0 +1,79 @@
+package org.littleshoot.proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.TlsSessionCacheConfiguration;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that clients that reconnect to a proxy with an {@link SslEngineSource}
+ * resume their TLS session, that the proxy counts the resumptions, and that
+ * the session cache is configured.
+ */
+public class TlsSessionResumptionTest {
+    private SelfSignedSslEngineSource sslEngineSource;
+    private HttpProxyServer proxyServer;
+    private SSLContext clientSslContext;
+
+    @Before
+    public void setUp() {
+        sslEngineSource = new SelfSignedSslEngineSource("target/tls_session_keystore.jks");
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withSslEngineSource(sslEngineSource)
+                .withAuthenticateSslClients(false)
+                .withTlsSessionCache(new TlsSessionCacheConfiguration()
+                        .withSessionCacheSize(100)
+                        .withSessionTimeoutSeconds(600))
+                .start();
+
+        // trusts all servers and doesn't send a certificate
+        clientSslContext = new SelfSignedSslEngineSource("target/tls_session_keystore.jks", true, false)
+                .getSslContext();
+    }
+
+    @After
+    public void tearDown() {
+        proxyServer.abort();
+    }
+
+    @Test
+    public void testReconnectingClientResumesSession() throws Exception {
+        request(proxyServer);
+        request(proxyServer);
+
+        DefaultHttpProxyServer server = (DefaultHttpProxyServer) proxyServer;
+        assertEquals(2, server.getClientTlsHandshakeCount());
+        assertEquals(1, server.getClientTlsResumedHandshakeCount());
+
+        SSLSessionContext sessionContext = sslEngineSource.getSslContext().getServerSessionContext();
+        assertEquals(100, sessionContext.getSessionCacheSize());
+        assertEquals(600, sessionContext.getSessionTimeout());
+    }
+
+    /**
+     * Connects to the proxy over TLS and sends an invalid request, so that the
+     * handshake has completed on both ends once the response arrives.
+     */
+    private void request(HttpProxyServer server) throws IOException {
+        try (SSLSocket socket = (SSLSocket) clientSslContext.getSocketFactory()
+                .createSocket("127.0.0.1", server.getListenAddress().getPort())) {
+            socket.setSoTimeout(5000);
+            socket.startHandshake();
+            SocketClientUtil.writeStringToSocket("GET / HTTP/1.1\r\n\r\n", socket);
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected a response, but got: " + response, response.startsWith("HTTP/1.1"));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.TrunkConfiguration;
+import org.mockserver.integration.ClientAndServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that the connections of many clients are carried over a few trunk
+ * connections between two proxies.
+ */
+public class TrunkTest {
+    private static final int CLIENTS = 5;
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private DefaultHttpProxyServer upstreamProxy;
+    private DefaultHttpProxyServer downstreamProxy;
+    private final AtomicInteger upstreamClientConnections = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/trunked"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("trunked"));
+
+        upstreamProxy = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withName("Upstream")
+                .withPort(0)
+                .withTrunks(new TrunkConfiguration().withListenPort(0))
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void clientConnected(InetSocketAddress clientAddress) {
+                        upstreamClientConnections.incrementAndGet();
+                    }
+                })
+                .start();
+        InetSocketAddress trunkAddress = upstreamProxy.getTrunkListenAddress();
+
+        downstreamProxy = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withName("Downstream")
+                .withPort(0)
+                .withChainProxyManager((httpRequest, chainedProxies, clientDetails) -> chainedProxies.add(new ChainedProxyAdapter() {
+                    @Override
+                    public InetSocketAddress getChainedProxyAddress() {
+                        return trunkAddress;
+                    }
+
+                    @Override
+                    public ChainedProxyType getChainedProxyType() {
+                        return ChainedProxyType.HTTP2;
+                    }
+                }))
+                .start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            try {
+                if (downstreamProxy != null) {
+                    downstreamProxy.abort();
+                }
+            } finally {
+                if (upstreamProxy != null) {
+                    upstreamProxy.abort();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testClientConnectionsShareTrunkConnections() throws Exception {
+        List<CloseableHttpClient> httpClients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                // every client keeps its connection, and with it its stream, open
+                CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(downstreamProxy.getListenAddress().getPort());
+                httpClients.add(httpClient);
+                HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/trunked"));
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                assertEquals("trunked", EntityUtils.toString(response.getEntity()));
+            }
+        } finally {
+            for (CloseableHttpClient httpClient : httpClients) {
+                httpClient.close();
+            }
+        }
+
+        String peer = "http-proxy " + upstreamProxy.getTrunkListenAddress().getHostString() + ":"
+                + upstreamProxy.getTrunkListenAddress().getPort();
+        assertEquals("Only the default number of trunk connections should have been opened",
+                2, (int) downstreamProxy.getTrunkConnectionCounts().get(peer));
+        assertEquals("Every stream should have been a client connection to the upstream proxy",
+                CLIENTS, upstreamClientConnections.get());
+    }
+}
@@ -0,0 +1,138 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerConnectionLimitConfiguration;
+import org.littleshoot.proxy.impl.WarmConnectionConfiguration;
+import org.mockserver.integration.ClientAndServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that requests take over idle warm connections to their server, both
+ * for configured and for learned destinations.
+ */
+public class WarmConnectionTest {
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+    private String destination;
+
+    private DefaultHttpProxyServer proxyServer;
+
+    @Before
+    public void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        destination = "127.0.0.1:" + mockServerPort;
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/warm"))
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("warm"));
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (mockServer != null) {
+                mockServer.stop();
+            }
+        } finally {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        }
+    }
+
+    @Test
+    public void testConfiguredDestinationIsKeptWarm() throws Exception {
+        startProxy(new WarmConnectionConfiguration()
+                .withMinIdleConnections(1)
+                .withMaxLearnedDestinations(0)
+                .withDestination(destination));
+        awaitIdleWarmConnection();
+
+        assertEquals("warm", get());
+        assertEquals(1, proxyServer.getWarmConnectionHitCount());
+        assertEquals(0, proxyServer.getWarmConnectionMissCount());
+
+        // the connection that was taken is replaced
+        awaitIdleWarmConnection();
+    }
+
+    @Test
+    public void testLearnedDestinationIsKeptWarm() throws Exception {
+        startProxy(new WarmConnectionConfiguration()
+                .withMinIdleConnections(1));
+
+        assertEquals("warm", get());
+        assertEquals(0, proxyServer.getWarmConnectionHitCount());
+        assertEquals(1, proxyServer.getWarmConnectionMissCount());
+
+        awaitIdleWarmConnection();
+        assertEquals("warm", get());
+        assertEquals(1, proxyServer.getWarmConnectionHitCount());
+    }
+
+    @Test
+    public void testWarmConnectionsCountAgainstServerConnectionLimit() throws Exception {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withWarmConnections(new WarmConnectionConfiguration()
+                        .withMinIdleConnections(2)
+                        .withMaxLearnedDestinations(0)
+                        .withDestination(destination))
+                .withServerConnectionLimits(new ServerConnectionLimitConfiguration()
+                        .withMaxConnectionsPerServer(1)
+                        .withQueueTimeoutMillis(1000))
+                .start();
+        awaitIdleWarmConnection();
+        // give the proxy a few chances to open another warm connection
+        Thread.sleep(500);
+        assertEquals("Expected only as many warm connections as the server's limit allows",
+                1, (int) proxyServer.getIdleWarmConnectionCounts().get(destination));
+
+        // the request takes over the warm connection along with its slot, rather than waiting for another slot
+        assertEquals("warm", get());
+        assertEquals(1, proxyServer.getWarmConnectionHitCount());
+        assertEquals(0, proxyServer.getQueuedServerConnectionCount());
+    }
+
+    private void startProxy(WarmConnectionConfiguration warmConnectionConfiguration) {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withWarmConnections(warmConnectionConfiguration)
+                .start();
+    }
+
+    private void awaitIdleWarmConnection() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (proxyServer.getIdleWarmConnectionCounts().getOrDefault(destination, 0) < 1
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("No idle warm connection to " + destination + ": " + proxyServer.getIdleWarmConnectionCounts(),
+                proxyServer.getIdleWarmConnectionCounts().getOrDefault(destination, 0) >= 1);
+    }
+
+    /**
+     * Sends a request with a new client, so that the proxy needs a new connection to the server.
+     */
+    private String get() throws Exception {
+        try (CloseableHttpClient httpClient = TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            HttpResponse response = httpClient.execute(new HttpGet("http://" + destination + "/warm"));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.Test;
+import org.littleshoot.proxy.ProxyAuthenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CachingProxyAuthenticatorTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final ProxyAuthenticator delegate = new ProxyAuthenticator() {
+        @Override
+        public boolean authenticate(String userName, String password) {
+            calls.incrementAndGet();
+            return "user".equals(userName) && "secret".equals(password);
+        }
+
+        @Override
+        public String getRealm() {
+            return "realm";
+        }
+    };
+
+    @Test
+    public void testResultsAreRememberedForTheirTtl() {
+        CachingProxyAuthenticator authenticator = authenticator(delegate, 100);
+
+        assertTrue(authenticator.authenticate("user", "secret"));
+        assertTrue(authenticator.authenticate("user", "secret"));
+        assertFalse(authenticator.authenticate("user", "wrong"));
+        assertFalse(authenticator.authenticate("user", "wrong"));
+        assertEquals(2, calls.get());
+
+        // rejected credentials expire first
+        now.addAndGet(TimeUnit.SECONDS.toNanos(20));
+        assertTrue(authenticator.authenticate("user", "secret"));
+        assertFalse(authenticator.authenticate("user", "wrong"));
+        assertEquals(3, calls.get());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertTrue(authenticator.authenticate("user", "secret"));
+        assertEquals(4, calls.get());
+
+        assertEquals(3, authenticator.getHitCount());
+        assertEquals(4, authenticator.getMissCount());
+        assertEquals(3.0 / 7, authenticator.getHitRatio(), 0.0001);
+        assertEquals("realm", authenticator.getRealm());
+    }
+
+    @Test
+    public void testUserNameAndPasswordAreNotConfused() {
+        CachingProxyAuthenticator authenticator = authenticator(delegate, 100);
+
+        assertTrue(authenticator.authenticate("user", "secret"));
+        assertFalse(authenticator.authenticate("user:", "secret"));
+        assertFalse(authenticator.authenticate("user", ":secret"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        CachingProxyAuthenticator authenticator = authenticator(delegate, 2);
+
+        for (int i = 0; i < 10; i++) {
+            authenticator.authenticate("user" + i, "secret");
+            assertTrue(authenticator.getSize() <= 2);
+        }
+    }
+
+    @Test
+    public void testEvictsInBatches() {
+        CachingProxyAuthenticator authenticator = authenticator(delegate, 100);
+
+        for (int i = 0; i < 100; i++) {
+            authenticator.authenticate("user" + i, "secret");
+        }
+        assertEquals(100, authenticator.getSize());
+
+        authenticator.authenticate("user100", "secret");
+        assertEquals("Expected a tenth of the space to be freed", 90, authenticator.getSize());
+    }
+
+    @Test
+    public void testConcurrentChecksCallTheDelegateOnce() throws Exception {
+        CountDownLatch delegateMayReturn = new CountDownLatch(1);
+        CachingProxyAuthenticator authenticator = authenticator(new ProxyAuthenticator() {
+            @Override
+            public boolean authenticate(String userName, String password) {
+                calls.incrementAndGet();
+                try {
+                    delegateMayReturn.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            public String getRealm() {
+                return null;
+            }
+        }, 100);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> authenticator.authenticate("user", "secret")));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (authenticator.getHitCount() < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            delegateMayReturn.countDown();
+
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+            assertEquals(7, authenticator.getHitCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExceptionsAreNotRemembered() {
+        CachingProxyAuthenticator authenticator = authenticator(new ProxyAuthenticator() {
+            @Override
+            public boolean authenticate(String userName, String password) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("directory unavailable");
+                }
+                return true;
+            }
+
+            @Override
+            public String getRealm() {
+                return null;
+            }
+        }, 100);
+
+        try {
+            authenticator.authenticate("user", "secret");
+            fail("Expected the delegate's exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(authenticator.authenticate("user", "secret"));
+        assertEquals(2, calls.get());
+    }
+
+    private CachingProxyAuthenticator authenticator(ProxyAuthenticator delegate, int maxEntries) {
+        return new CachingProxyAuthenticator(delegate, 60, 10, TimeUnit.SECONDS, maxEntries, now::get);
+    }
+}
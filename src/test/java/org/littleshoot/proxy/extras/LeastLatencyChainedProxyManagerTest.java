@@ -0,0 +1,142 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.Test;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+import org.littleshoot.proxy.extras.LeastLatencyChainedProxyManager.TrackedChainedProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class LeastLatencyChainedProxyManagerTest {
+    private final ChainedProxy fast = new ChainedProxyAdapter();
+    private final ChainedProxy slow = new ChainedProxyAdapter();
+    private final ChainedProxy slowest = new ChainedProxyAdapter();
+
+    @Test
+    public void testFastProxyIsPreferred() {
+        LeastLatencyChainedProxyManager manager = new LeastLatencyChainedProxyManager(Arrays.asList(slow, fast));
+        recordResponseTime(lookup(manager), fast, 10);
+        recordResponseTime(lookup(manager), slow, 100);
+
+        for (int i = 0; i < 20; i++) {
+            List<ChainedProxy> proxies = unwrap(lookup(manager));
+            assertEquals(Arrays.asList(fast, slow), proxies);
+        }
+    }
+
+    @Test
+    public void testRequestsInFlightAreTakenIntoAccount() {
+        LeastLatencyChainedProxyManager manager = new LeastLatencyChainedProxyManager(Arrays.asList(slow, fast));
+        recordResponseTime(lookup(manager), fast, 10);
+        recordResponseTime(lookup(manager), slow, 30);
+
+        TrackedChainedProxy trackedFast = find(lookup(manager), fast);
+        for (int i = 0; i < 5; i++) {
+            trackedFast.requestSent();
+        }
+        assertEquals(5, trackedFast.getRequestsInFlight());
+
+        assertEquals(Arrays.asList(slow, fast), unwrap(lookup(manager)));
+
+        for (int i = 0; i < 5; i++) {
+            trackedFast.requestFailed();
+        }
+        assertEquals(0, trackedFast.getRequestsInFlight());
+        assertEquals(Arrays.asList(fast, slow), unwrap(lookup(manager)));
+    }
+
+    @Test
+    public void testFallbacksAreOrderedByScore() {
+        LeastLatencyChainedProxyManager manager = new LeastLatencyChainedProxyManager(
+                Arrays.asList(slowest, ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION, slow, fast));
+        recordResponseTime(lookup(manager), fast, 10);
+        recordResponseTime(lookup(manager), slow, 100);
+        recordResponseTime(lookup(manager), slowest, 1000);
+
+        for (int i = 0; i < 20; i++) {
+            List<ChainedProxy> proxies = unwrap(lookup(manager));
+            assertEquals(4, proxies.size());
+            // the first proxy is the better one of two random proxies, so it can never be the slowest one
+            assertNotSame(slowest, proxies.get(0));
+            assertSame(ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION, proxies.get(3));
+            if (proxies.get(0) == fast) {
+                assertEquals(Arrays.asList(fast, slow, slowest), proxies.subList(0, 3));
+            } else {
+                assertEquals(Arrays.asList(slow, fast, slowest), proxies.subList(0, 3));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedConnectionsArePenalized() {
+        LeastLatencyChainedProxyManager manager = new LeastLatencyChainedProxyManager(Arrays.asList(slow, fast));
+        recordResponseTime(lookup(manager), fast, 10);
+        recordResponseTime(lookup(manager), slow, 100);
+
+        find(lookup(manager), fast).connectionFailed(null);
+
+        assertEquals(Arrays.asList(slow, fast), unwrap(lookup(manager)));
+    }
+
+    @Test
+    public void testCallsArePassedOn() {
+        ChainedProxy chainedProxy = mock(ChainedProxy.class);
+        LeastLatencyChainedProxyManager manager = new LeastLatencyChainedProxyManager(Arrays.asList(chainedProxy));
+        TrackedChainedProxy tracked = find(lookup(manager), chainedProxy);
+
+        tracked.connectionSucceeded();
+        tracked.connectTimeMeasured(5);
+        tracked.requestSent();
+        tracked.responseReceived(7);
+        tracked.disconnected();
+
+        verify(chainedProxy).connectionSucceeded();
+        verify(chainedProxy).connectTimeMeasured(5);
+        verify(chainedProxy).requestSent();
+        verify(chainedProxy).responseReceived(7);
+        verify(chainedProxy).disconnected();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSmoothingFactor() {
+        new LeastLatencyChainedProxyManager(Arrays.asList(fast), 0);
+    }
+
+    private static Queue<ChainedProxy> lookup(LeastLatencyChainedProxyManager manager) {
+        Queue<ChainedProxy> chainedProxies = new ConcurrentLinkedQueue<>();
+        manager.lookupChainedProxies(null, chainedProxies, null);
+        return chainedProxies;
+    }
+
+    private static void recordResponseTime(Queue<ChainedProxy> chainedProxies, ChainedProxy chainedProxy, long millis) {
+        TrackedChainedProxy tracked = find(chainedProxies, chainedProxy);
+        tracked.connectTimeMeasured(TimeUnit.MILLISECONDS.toNanos(millis));
+        tracked.requestSent();
+        tracked.responseReceived(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static TrackedChainedProxy find(Queue<ChainedProxy> chainedProxies, ChainedProxy chainedProxy) {
+        for (ChainedProxy proxy : chainedProxies) {
+            if (proxy instanceof TrackedChainedProxy && ((TrackedChainedProxy) proxy).getChainedProxy() == chainedProxy) {
+                return (TrackedChainedProxy) proxy;
+            }
+        }
+        throw new AssertionError("Chained proxy not found");
+    }
+
+    private static List<ChainedProxy> unwrap(Queue<ChainedProxy> chainedProxies) {
+        List<ChainedProxy> unwrapped = new ArrayList<>();
+        for (ChainedProxy proxy : chainedProxies) {
+            unwrapped.add(proxy instanceof TrackedChainedProxy ? ((TrackedChainedProxy) proxy).getChainedProxy() : proxy);
+        }
+        return unwrapped;
+    }
+}
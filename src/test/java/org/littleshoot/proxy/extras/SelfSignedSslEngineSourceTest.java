@@ -0,0 +1,56 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SelfSignedSslEngineSourceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGeneratesKeyStore() throws Exception {
+        File keyStore = new File(folder.getRoot(), "keystore.jks");
+
+        SelfSignedSslEngineSource source = new SelfSignedSslEngineSource(keyStore.getPath());
+
+        assertTrue("Expected the key store to be generated", keyStore.isFile());
+        assertTrue("Expected the certificate to be exported next to the key store",
+                new File(folder.getRoot(), "littleproxy_cert").isFile());
+        assertNotNull(source.newSslEngine());
+    }
+
+    @Test
+    public void testSharesSslContext() throws Exception {
+        String keyStore = new File(folder.getRoot(), "keystore.jks").getPath();
+        SelfSignedSslEngineSource source = new SelfSignedSslEngineSource(keyStore, true, true);
+        SelfSignedSslEngineSource sameSource = new SelfSignedSslEngineSource(keyStore, true, true);
+
+        assertSame(source.getSslContext(), sameSource.getSslContext());
+
+        SelfSignedSslEngineSource otherSource = new SelfSignedSslEngineSource(keyStore, false, true);
+        assertNotSame(source.getSslContext(), otherSource.getSslContext());
+        assertNotNull(otherSource.newSslEngine());
+    }
+
+    @Test
+    public void testReloadsChangedKeyStore() throws Exception {
+        File keyStore = new File(folder.getRoot(), "keystore.jks");
+        SelfSignedSslEngineSource source = new SelfSignedSslEngineSource(keyStore.getPath());
+
+        assertTrue(keyStore.delete());
+        SelfSignedSslEngineSource regeneratedSource = new SelfSignedSslEngineSource(keyStore.getPath());
+
+        assertTrue("Expected the key store to be generated again", keyStore.isFile());
+        assertNotSame(source.getSslContext(), regeneratedSource.getSslContext());
+        assertSame(regeneratedSource.getSslContext(),
+                new SelfSignedSslEngineSource(keyStore.getPath()).getSslContext());
+    }
+}
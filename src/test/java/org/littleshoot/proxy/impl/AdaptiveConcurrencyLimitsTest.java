@@ -0,0 +1,94 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link AdaptiveConcurrencyLimits}.
+ */
+public class AdaptiveConcurrencyLimitsTest {
+    private static final String SERVER = "server:80";
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void testRejectsOverLimit() {
+        AdaptiveConcurrencyLimits limits = new AdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration()
+                .withInitialLimit(2));
+
+        AdaptiveConcurrencyLimits.Permit first = limits.tryAcquire(SERVER);
+        assertNotNull(first);
+        assertNotNull(limits.tryAcquire(SERVER));
+        assertNull("Expected the third request to be rejected", limits.tryAcquire(SERVER));
+        assertNotNull("Other servers should not be affected", limits.tryAcquire("other:80"));
+        assertEquals(1, limits.getRejectedRequests());
+
+        first.ignored();
+        first.ignored();
+        assertNotNull(limits.tryAcquire(SERVER));
+        assertNull("Completing a permit twice should only free one request", limits.tryAcquire(SERVER));
+    }
+
+    @Test
+    public void testGrowsWhileFastAndBusy() {
+        AdaptiveConcurrencyLimits limits = new AdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration()
+                .withInitialLimit(10));
+
+        for (int round = 0; round < 20; round++) {
+            List<AdaptiveConcurrencyLimits.Permit> permits = acquireAll(limits);
+            for (AdaptiveConcurrencyLimits.Permit permit : permits) {
+                permit.succeeded(RTT);
+            }
+        }
+
+        assertTrue("Expected the limit to grow", limits.getLimits().get(SERVER) > 10);
+    }
+
+    @Test
+    public void testDoesNotGrowWhileIdle() {
+        AdaptiveConcurrencyLimits limits = new AdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration()
+                .withInitialLimit(10));
+
+        for (int i = 0; i < 100; i++) {
+            limits.tryAcquire(SERVER).succeeded(RTT);
+        }
+
+        assertEquals(10, (int) limits.getLimits().get(SERVER));
+    }
+
+    @Test
+    public void testShrinksWhenSlowOrFailing() {
+        AdaptiveConcurrencyLimits limits = new AdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration()
+                .withInitialLimit(100)
+                .withMinLimit(5));
+
+        // establish the baseline
+        for (AdaptiveConcurrencyLimits.Permit permit : acquireAll(limits)) {
+            permit.succeeded(RTT);
+        }
+        int limit = limits.getLimits().get(SERVER);
+
+        for (AdaptiveConcurrencyLimits.Permit permit : acquireAll(limits)) {
+            permit.succeeded(RTT * 10);
+        }
+        assertTrue("Expected slow responses to shrink the limit", limits.getLimits().get(SERVER) < limit);
+
+        for (int i = 0; i < 100; i++) {
+            limits.tryAcquire(SERVER).dropped();
+        }
+        assertEquals("Expected failures to shrink the limit down to the minimum", 5, (int) limits.getLimits().get(SERVER));
+    }
+
+    private static List<AdaptiveConcurrencyLimits.Permit> acquireAll(AdaptiveConcurrencyLimits limits) {
+        List<AdaptiveConcurrencyLimits.Permit> permits = new ArrayList<>();
+        AdaptiveConcurrencyLimits.Permit permit;
+        while ((permit = limits.tryAcquire(SERVER)) != null) {
+            permits.add(permit);
+        }
+        return permits;
+    }
+}
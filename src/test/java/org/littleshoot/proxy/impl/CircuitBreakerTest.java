@@ -0,0 +1,119 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.CircuitBreakerState;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the state machine of {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+    private ActivityTracker tracker;
+    private CircuitBreakers circuitBreakers;
+
+    @Before
+    public void setUp() {
+        tracker = mock(ActivityTracker.class);
+        DefaultHttpProxyServer proxyServer = mock(DefaultHttpProxyServer.class);
+        when(proxyServer.getActivityTrackers()).thenReturn(Collections.singletonList(tracker));
+
+        circuitBreakers = new CircuitBreakers(proxyServer, new CircuitBreakerConfiguration()
+                .withSlidingWindowSize(4)
+                .withMinimumNumberOfCalls(4)
+                .withFailureRateThreshold(0.5)
+                .withOpenStateDurationMillis(0)
+                .withProbeIntervalMillis(0));
+    }
+
+    @Test
+    public void testOpensWhenFailureRateIsReached() {
+        CircuitBreaker circuitBreaker = circuitBreakers.forUpstream("upstream:80");
+
+        circuitBreaker.recordFailure(null);
+        circuitBreaker.recordFailure(null);
+        circuitBreaker.recordSuccess();
+        assertEquals("Breaker should stay closed until the minimum number of calls was seen",
+                CircuitBreakerState.CLOSED, circuitBreaker.getState());
+
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.getState());
+
+        // the window now holds failure, success, success, failure
+        circuitBreaker.recordFailure(null);
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.getState());
+        verify(tracker).circuitBreakerStateChanged("upstream:80", CircuitBreakerState.CLOSED, CircuitBreakerState.OPEN);
+        assertEquals(CircuitBreakerState.OPEN, circuitBreakers.getStates().get("upstream:80"));
+    }
+
+    @Test
+    public void testSlidingWindowForgetsOldOutcomes() {
+        CircuitBreaker circuitBreaker = circuitBreakers.forUpstream("upstream:80");
+
+        circuitBreaker.recordFailure(null);
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.recordSuccess();
+        }
+        circuitBreaker.recordFailure(null);
+
+        assertEquals("Only one of the last four calls failed", CircuitBreakerState.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenLetsSingleTrialThrough() {
+        CircuitBreaker circuitBreaker = openCircuitBreaker(new CircuitBreakerConfiguration()
+                .withMinimumNumberOfCalls(1)
+                .withOpenStateDurationMillis(60000)
+                .withProbeIntervalMillis(0));
+        assertFalse("Open breaker should not let requests through", circuitBreaker.allowRequest());
+
+        circuitBreaker = openCircuitBreaker(new CircuitBreakerConfiguration()
+                .withMinimumNumberOfCalls(1)
+                .withOpenStateDurationMillis(0)
+                .withProbeIntervalMillis(0));
+        assertTrue("Breaker should let a trial request through once the open duration has passed", circuitBreaker.allowRequest());
+        assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testTrialOutcomeDecidesState() {
+        CircuitBreaker circuitBreaker = circuitBreakers.forUpstream("upstream:80");
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.recordFailure(null);
+        }
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.recordFailure(null);
+        assertEquals("Failed trial should open the breaker again", CircuitBreakerState.OPEN, circuitBreaker.getState());
+
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.recordSuccess();
+        assertEquals("Successful trial should close the breaker", CircuitBreakerState.CLOSED, circuitBreaker.getState());
+        verify(tracker).circuitBreakerStateChanged("upstream:80", CircuitBreakerState.HALF_OPEN, CircuitBreakerState.CLOSED);
+    }
+
+    @Test
+    public void testProbeClosesBreaker() {
+        CircuitBreaker circuitBreaker = circuitBreakers.forUpstream("upstream:80");
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.recordFailure(null);
+        }
+
+        circuitBreaker.probeSucceeded();
+        assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    private CircuitBreaker openCircuitBreaker(CircuitBreakerConfiguration configuration) {
+        DefaultHttpProxyServer proxyServer = mock(DefaultHttpProxyServer.class);
+        when(proxyServer.getActivityTrackers()).thenReturn(Collections.emptyList());
+        CircuitBreaker circuitBreaker = new CircuitBreakers(proxyServer, configuration).forUpstream("upstream:80");
+        circuitBreaker.recordFailure(null);
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.getState());
+        return circuitBreaker;
+    }
+}
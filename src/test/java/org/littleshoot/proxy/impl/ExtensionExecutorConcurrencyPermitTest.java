@@ -0,0 +1,143 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.junit.After;
+import org.junit.Test;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the adaptive concurrency permit of a request is given back when
+ * the chained proxy lookup on the {@link ExtensionExecutor} doesn't carry on
+ * with the request.
+ */
+public class ExtensionExecutorConcurrencyPermitTest {
+    /**
+     * Nothing is ever connected to, the requests don't get that far.
+     */
+    private static final String SERVER = "127.0.0.1:1";
+
+    private DefaultHttpProxyServer proxyServer;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+    }
+
+    @Test
+    public void testPermitIsIgnoredWhenLookupIsRejected() throws Exception {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration())
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                        return new HttpFiltersAdapter(originalRequest, ctx) {
+                            @Override
+                            public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+                                saturateExtensionExecutor(ctx);
+                                return null;
+                            }
+                        };
+                    }
+                })
+                .withExtensionExecutor(new ExtensionExecutorConfiguration()
+                        .withThreads(1)
+                        .withMaxQueuedCalls(1))
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(get(), socket);
+
+            String response = SocketClientUtil.readStringFromSocket(socket);
+            assertTrue("Expected a 503 Service Unavailable, but got: " + response,
+                    response.startsWith("HTTP/1.1 503"));
+            assertEquals(0, proxyServer.getAdaptiveConcurrencyLimits().getInFlight(SERVER));
+        }
+    }
+
+    @Test
+    public void testPermitIsIgnoredWhenClientIsGoneAfterLookup() throws Exception {
+        CountDownLatch lookupStarted = new CountDownLatch(1);
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIdleConnectionTimeout(1)
+                .withAdaptiveConcurrencyLimits(new AdaptiveConcurrencyLimitConfiguration())
+                .withChainProxyManager((httpRequest, chainedProxies, clientDetails) -> {
+                    lookupStarted.countDown();
+                    awaitUninterruptibly(release);
+                })
+                .withExtensionExecutor(new ExtensionExecutorConfiguration())
+                .start();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(get(), socket);
+            assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+            assertEquals(1, proxyServer.getAdaptiveConcurrencyLimits().getInFlight(SERVER));
+
+            // the idle client connection is closed while the lookup is still running
+            assertFalse("Expected the client connection to be closed", SocketClientUtil.isSocketReadyToRead(socket));
+        }
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (proxyServer.getAdaptiveConcurrencyLimits().getInFlight(SERVER) != 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, proxyServer.getAdaptiveConcurrencyLimits().getInFlight(SERVER));
+    }
+
+    /**
+     * Keeps the only thread of the extension executor busy and fills its
+     * queue before the proxy carries on with the current call, so that the
+     * next call is rejected. Called on the extension executor.
+     */
+    private void saturateExtensionExecutor(ChannelHandlerContext ctx) {
+        ExtensionExecutor extensionExecutor = proxyServer.getExtensionExecutor();
+        CountDownLatch saturated = new CountDownLatch(1);
+        // the result of the current call is handed back on this event loop, hold it back until we're done
+        ctx.executor().execute(() -> awaitUninterruptibly(saturated));
+        extensionExecutor.call(() -> {
+            extensionExecutor.call(() -> {
+                awaitUninterruptibly(release);
+                return null;
+            }, ctx.executor());
+            saturated.countDown();
+            awaitUninterruptibly(release);
+            return null;
+        }, ctx.executor());
+    }
+
+    private static String get() {
+        return "GET http://" + SERVER + "/ HTTP/1.1\r\n"
+                + "Host: " + SERVER + "\r\n"
+                + "\r\n";
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
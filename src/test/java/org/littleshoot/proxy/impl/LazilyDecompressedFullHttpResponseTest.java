@@ -0,0 +1,103 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link LazilyDecompressedFullHttpResponse}.
+ */
+public class LazilyDecompressedFullHttpResponseTest {
+    private static final String BODY = "Hello, this is the uncompressed body of the response. Hello, hello, hello.";
+
+    @Test
+    public void testUntouchedContentIsNotDecompressed() throws IOException {
+        FullHttpResponse original = gzippedResponse(BODY);
+        byte[] compressed = ByteBufUtil.getBytes(original.content());
+
+        LazilyDecompressedFullHttpResponse response = new LazilyDecompressedFullHttpResponse(original);
+        original.release();
+
+        assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+
+        response.restoreContentEncoding();
+
+        assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        assertArrayEquals(compressed, ByteBufUtil.getBytes(response.content()));
+        assertTrue(response.release());
+    }
+
+    @Test
+    public void testReadContentIsDecompressedAndRestored() throws IOException {
+        FullHttpResponse original = gzippedResponse(BODY);
+        byte[] compressed = ByteBufUtil.getBytes(original.content());
+
+        LazilyDecompressedFullHttpResponse response = new LazilyDecompressedFullHttpResponse(original);
+        original.release();
+
+        assertEquals(BODY, response.content().toString(StandardCharsets.UTF_8));
+        assertFalse(response.headers().contains(HttpHeaderNames.CONTENT_ENCODING));
+        assertEquals(BODY.length(), HttpUtil.getContentLength(response));
+
+        response.restoreContentEncoding();
+
+        assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        assertEquals(compressed.length, HttpUtil.getContentLength(response));
+        assertArrayEquals("Expected the original compressed bytes for unmodified content", compressed, ByteBufUtil.getBytes(response.content()));
+        assertTrue(response.release());
+    }
+
+    @Test
+    public void testModifiedContentIsRecompressed() throws IOException {
+        FullHttpResponse original = gzippedResponse(BODY);
+
+        LazilyDecompressedFullHttpResponse response = new LazilyDecompressedFullHttpResponse(original);
+        original.release();
+
+        ByteBuf content = response.content();
+        content.clear().writeBytes("modified".getBytes(StandardCharsets.UTF_8));
+
+        response.restoreContentEncoding();
+
+        assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        assertEquals(response.content().readableBytes(), HttpUtil.getContentLength(response));
+        assertEquals("modified", gunzip(ByteBufUtil.getBytes(response.content())));
+        assertTrue(response.release());
+    }
+
+    private static FullHttpResponse gzippedResponse(String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.wrappedBuffer(bytes.toByteArray()));
+        response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        return response;
+    }
+
+    private static String gunzip(byte[] compressed) throws IOException {
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
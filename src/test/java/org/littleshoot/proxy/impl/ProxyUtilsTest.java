@@ -1,10 +1,12 @@
 package org.littleshoot.proxy.impl;
 
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.*;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static java.util.Collections.singletonList;
@@ -27,6 +29,17 @@ public class ProxyUtilsTest {
         assertEquals("httpbin.org:443", ProxyUtils.parseHostAndPort("httpbin.org:443/get"));
     }
 
+    @Test
+    public void testIsIdempotent() {
+        assertTrue(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/")));
+        assertTrue(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/")));
+        assertTrue(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PUT, "/")));
+        assertTrue(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.DELETE, "/")));
+        assertFalse(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/")));
+        assertFalse(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.PATCH, "/")));
+        assertFalse(ProxyUtils.isIdempotent(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "example.com:443")));
+    }
+
     @Test
     public void testAddNewViaHeader() {
         String hostname = "hostname";
@@ -228,6 +241,53 @@ public class ProxyUtilsTest {
         assertThat("Expected no header tokens", ProxyUtils.splitCommaSeparatedHeaderValues(" ,  ,\t, "), empty());
     }
 
+    @Test
+    public void testStripConnectionTokens() {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.add(HttpHeaderNames.CONNECTION, "Keep-Alive, X-Custom-Header");
+        headers.add(HttpHeaderNames.CONNECTION, " Transfer-Encoding ,\tclose");
+        headers.add(HttpHeaderNames.KEEP_ALIVE, "timeout=5");
+        headers.add("X-Custom-Header", "value");
+        headers.add("Close", "value");
+        headers.add(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        headers.add(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+
+        ProxyUtils.stripConnectionTokens(headers);
+
+        assertFalse(headers.contains(HttpHeaderNames.KEEP_ALIVE));
+        assertFalse(headers.contains("X-Custom-Header"));
+        assertFalse(headers.contains("Close"));
+        assertTrue("Transfer-Encoding should never be stripped", headers.contains(HttpHeaderNames.TRANSFER_ENCODING));
+        assertTrue(headers.contains(HttpHeaderNames.CONTENT_TYPE));
+        assertThat(headers.getAll(HttpHeaderNames.CONNECTION), hasSize(2));
+    }
+
+    @Test
+    public void testStripHopByHopHeaders() {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.add("connection", "close");
+        headers.add("Keep-Alive", "timeout=5");
+        headers.add("PROXY-AUTHORIZATION", "Basic dXNlcjpwYXNz");
+        headers.add(HttpHeaderNames.UPGRADE, "websocket");
+        headers.add(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        headers.add(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+
+        ProxyUtils.stripHopByHopHeaders(headers);
+
+        assertThat(headers.names(), containsInAnyOrder("transfer-encoding", "content-type"));
+    }
+
+    @Test
+    public void testCurrentDateHeaderValue() {
+        long before = System.currentTimeMillis() / 1000L * 1000L;
+        String dateHeaderValue = ProxyUtils.currentDateHeaderValue().toString();
+        long after = System.currentTimeMillis();
+
+        long date = DateFormatter.parseHttpDate(dateHeaderValue).getTime();
+        assertThat(date, both(greaterThanOrEqualTo(before)).and(lessThanOrEqualTo(after)));
+        assertEquals(ProxyUtils.formatDate(new Date(date)), dateHeaderValue);
+    }
+
     /**
      * Verifies that 'sdch' is removed from the 'Accept-Encoding' header list.
      */
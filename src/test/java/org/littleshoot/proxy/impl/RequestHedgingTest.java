@@ -0,0 +1,62 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link RequestHedging}.
+ */
+public class RequestHedgingTest {
+    @Test
+    public void testIsHedgeable() {
+        assertTrue(RequestHedging.isHedgeable(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/")));
+        assertTrue(RequestHedging.isHedgeable(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/")));
+        assertFalse(RequestHedging.isHedgeable(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/")));
+
+        HttpRequest withBody = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        withBody.headers().set(HttpHeaderNames.CONTENT_LENGTH, 10);
+        assertFalse(RequestHedging.isHedgeable(withBody));
+    }
+
+    @Test
+    public void testBudget() {
+        RequestHedging requestHedging = new RequestHedging(new RequestHedgingConfiguration().withBudgetRatio(0.1));
+
+        assertTrue("Budget should allow a first hedge", requestHedging.tryHedge());
+        assertFalse(requestHedging.tryHedge());
+
+        for (int i = 0; i < 9; i++) {
+            requestHedging.requestHedgeable();
+        }
+        assertFalse("Nine requests should not be enough for another hedge", requestHedging.tryHedge());
+        requestHedging.requestHedgeable();
+        assertTrue(requestHedging.tryHedge());
+        assertEquals(2, requestHedging.getHedgedRequests());
+    }
+
+    @Test
+    public void testDelayFollowsPercentile() {
+        RequestHedging requestHedging = new RequestHedging(new RequestHedgingConfiguration()
+                .withPercentile(0.9)
+                .withMinimumNumberOfSamples(10)
+                .withInitialDelayMillis(500)
+                .withMinimumDelayMillis(5));
+
+        assertEquals(500, requestHedging.delayMillisFor("server:80"));
+
+        for (int i = 1; i <= 10; i++) {
+            requestHedging.recordResponseTime("server:80", TimeUnit.MILLISECONDS.toNanos(i * 10));
+        }
+        assertEquals(90, requestHedging.delayMillisFor("server:80"));
+        assertEquals("Other servers should not be affected", 500, requestHedging.delayMillisFor("other:80"));
+    }
+}
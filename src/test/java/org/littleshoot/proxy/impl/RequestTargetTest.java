@@ -0,0 +1,92 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link RequestTarget}.
+ */
+public class RequestTargetTest {
+    @Test
+    public void testAbsoluteForm() {
+        RequestTarget target = RequestTarget.parse("http://www.example.org:8080/path?query=1");
+
+        assertTrue(target.isAbsoluteForm());
+        assertTrue(target.isHttpScheme());
+        assertTrue(target.hasValidAuthority());
+        assertEquals("www.example.org:8080", target.hostAndPort());
+        assertEquals("www.example.org", target.host());
+        assertEquals(8080, target.port(80));
+        assertEquals("/path?query=1", target.pathAndQuery());
+    }
+
+    @Test
+    public void testAbsoluteFormWithoutPath() {
+        RequestTarget target = RequestTarget.parse("HTTPS://www.example.org");
+
+        assertTrue(target.isAbsoluteForm());
+        assertFalse(target.isHttpScheme());
+        assertEquals("www.example.org", target.hostAndPort());
+        assertFalse(target.hasPort());
+        assertEquals(443, target.port(443));
+        assertEquals("/", target.pathAndQuery());
+
+        assertEquals("/?query=1", RequestTarget.parse("http://www.example.org?query=1").pathAndQuery());
+        assertEquals("www.example.org", RequestTarget.parse("http://www.example.org?query=1").hostAndPort());
+    }
+
+    @Test
+    public void testOriginForm() {
+        RequestTarget target = RequestTarget.parse("/path?query=1");
+
+        assertFalse(target.isAbsoluteForm());
+        assertFalse(target.isHttpScheme());
+        assertEquals("", target.hostAndPort());
+        assertEquals("/path?query=1", target.pathAndQuery());
+    }
+
+    @Test
+    public void testAuthorityForm() {
+        RequestTarget target = RequestTarget.parse("www.example.org:443");
+
+        assertFalse(target.isAbsoluteForm());
+        assertTrue(target.hasValidAuthority());
+        assertEquals("www.example.org:443", target.hostAndPort());
+        assertEquals("www.example.org", target.host());
+        assertEquals(443, target.port(80));
+
+        assertEquals("httpbin.org:443", RequestTarget.parse("httpbin.org:443/get").hostAndPort());
+    }
+
+    @Test
+    public void testIpv6Literals() {
+        RequestTarget target = RequestTarget.parse("http://[a:b:c:d::1]:8650/path");
+        assertEquals("[a:b:c:d::1]:8650", target.hostAndPort());
+        assertEquals("a:b:c:d::1", target.host());
+        assertEquals(8650, target.port(80));
+        assertEquals("/path", target.pathAndQuery());
+
+        target = RequestTarget.parse("[::1]:443");
+        assertEquals("::1", target.host());
+        assertEquals(443, target.port(80));
+
+        target = RequestTarget.parse("[::1]");
+        assertEquals("::1", target.host());
+        assertFalse(target.hasPort());
+
+        target = RequestTarget.parse("::1");
+        assertTrue(target.hasValidAuthority());
+        assertEquals("::1", target.host());
+        assertFalse(target.hasPort());
+    }
+
+    @Test
+    public void testInvalidAuthority() {
+        assertFalse(RequestTarget.parse("[::1").hasValidAuthority());
+        assertFalse(RequestTarget.parse("[::1]x").hasValidAuthority());
+        assertFalse(RequestTarget.parse("www.example.org:http").hasValidAuthority());
+        assertFalse(RequestTarget.parse("www.example.org:65536").hasValidAuthority());
+        assertFalse(RequestTarget.parse("www.example.org:99999999999").hasValidAuthority());
+    }
+}
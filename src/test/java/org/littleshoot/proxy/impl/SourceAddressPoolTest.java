@@ -0,0 +1,61 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link SourceAddressPool}.
+ */
+public class SourceAddressPoolTest {
+    private static final InetSocketAddress SERVER = new InetSocketAddress("127.0.0.1", 80);
+    private static final InetSocketAddress OTHER_SERVER = new InetSocketAddress("127.0.0.1", 8080);
+
+    @Test
+    public void testSpreadsConnectionsToSameDestination() throws UnknownHostException {
+        InetAddress first = InetAddress.getByName("127.0.0.1");
+        InetAddress second = InetAddress.getByName("127.0.0.2");
+        SourceAddressPool pool = new SourceAddressPool(Arrays.asList(first, second));
+
+        SourceAddressPool.Lease lease1 = pool.acquire(SERVER);
+        SourceAddressPool.Lease lease2 = pool.acquire(SERVER);
+        assertNotEquals(lease1.getLocalAddress(), lease2.getLocalAddress());
+        assertEquals(0, lease1.getLocalAddress().getPort());
+        assertEquals(1, (int) pool.getConnectionCounts().get(first));
+        assertEquals(1, (int) pool.getConnectionCounts().get(second));
+
+        // the address that was given back is the least used one for the destination
+        lease1.release();
+        lease1.release();
+        assertEquals(lease1.getLocalAddress(), pool.acquire(SERVER).getLocalAddress());
+
+        // another destination starts out with all addresses unused
+        SourceAddressPool.Lease other1 = pool.acquire(OTHER_SERVER);
+        SourceAddressPool.Lease other2 = pool.acquire(OTHER_SERVER);
+        assertNotEquals(other1.getLocalAddress(), other2.getLocalAddress());
+        assertEquals(2, (int) pool.getConnectionCounts().get(first));
+        assertEquals(2, (int) pool.getConnectionCounts().get(second));
+    }
+
+    @Test
+    public void testOnlyUsesAddressesOfSameFamily() throws UnknownHostException {
+        InetAddress ipv6 = InetAddress.getByName("::1");
+        InetAddress ipv4 = InetAddress.getByName("127.0.0.1");
+        SourceAddressPool pool = new SourceAddressPool(Arrays.asList(ipv6, ipv4));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ipv4, pool.acquire(SERVER).getLocalAddress().getAddress());
+        }
+        assertEquals(0, (int) pool.getConnectionCounts().get(ipv6));
+
+        SourceAddressPool ipv6Pool = new SourceAddressPool(Arrays.asList(ipv6));
+        assertNull(ipv6Pool.acquire(SERVER));
+        assertNotNull("Unresolved destinations may use any address",
+                ipv6Pool.acquire(InetSocketAddress.createUnresolved("www.example.org", 80)));
+    }
+}